@@ -0,0 +1,92 @@
+package com.mplus.adx;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Dictionary of lower-case ASCII strings to dense ids, interned while an
+ * index is built, and then looked up from the bytes of a request, ignoring
+ * case, in an open-addressing table that allocates nothing.
+ */
+final class AsciiDictionary {
+	private Map<String, Integer> building = new HashMap<>();
+	private byte[][] keys;
+	/** Id plus one of each slot, 0 if empty. */
+	private int[] slots;
+	private int mask;
+
+	/**
+	 * Returns the id of {@code key}, in lower case, adding it if new.
+	 */
+	int intern(String key) {
+		key = key.toLowerCase(Locale.ROOT);
+		Integer id = building.get(key);
+		if (id == null) {
+			id = building.size();
+			building.put(key, id);
+		}
+		return id;
+	}
+
+	void freeze() {
+		keys = new byte[building.size()][];
+		int capacity = Integer.highestOneBit(Math.max(2, building.size() * 2 - 1)) << 1;
+		slots = new int[capacity];
+		mask = capacity - 1;
+		for (Map.Entry<String, Integer> entry : building.entrySet()) {
+			byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			keys[entry.getValue()] = key;
+			int slot = hash(new ByteSlice(key)) & mask;
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = entry.getValue() + 1;
+		}
+		building = null;
+	}
+
+	int size() {
+		return keys.length;
+	}
+
+	/**
+	 * Returns the id of {@code value}, or -1.
+	 */
+	int lookup(ByteSlice value) {
+		int slot = hash(value) & mask;
+		while (slots[slot] != 0) {
+			int id = slots[slot] - 1;
+			if (equalsLowerCase(value, keys[id])) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private static int hash(ByteSlice value) {
+		int h = 0x811C9DC5;
+		for (int i = 0; i < value.length(); ++i) {
+			h = (h ^ toLowerCase(value.byteAt(i))) * 0x01000193;
+		}
+		return h ^ h >>> 16;
+	}
+
+	private static boolean equalsLowerCase(ByteSlice value, byte[] key) {
+		if (value.length() != key.length) {
+			return false;
+		}
+		for (int i = 0; i < key.length; ++i) {
+			if (toLowerCase(value.byteAt(i)) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte toLowerCase(byte b) {
+		return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+	}
+}
@@ -0,0 +1,461 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.mplus.adx.ProtoCursor.WIRETYPE_LENGTH_DELIMITED;
+import static com.mplus.adx.ProtoCursor.WIRETYPE_VARINT;
+import static com.mplus.adx.ProtoCursor.makeTag;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Utf8;
+
+/**
+ * Writes a {@code BidResponse} (see {@code bidresponse.proto}) in the
+ * protobuf wire format straight into a direct buffer of a
+ * {@link DirectBufferPool}, field by field, without message objects:
+ *
+ * <pre>
+ * ByteBuffer out = writer.start(requestId)
+ * 		.startSeatBid()
+ * 		.startBid("1", impId, price).adm(adm).w(300).h(250).endBid()
+ * 		.endSeatBid()
+ * 		.finish();
+ * channel.write(out);
+ * pool.release(out);
+ * </pre>
+ *
+ * The length of a {@code SeatBid} or {@code Bid} is unknown until it ends, so
+ * 4 bytes are reserved for it and patched in place with a padded varint,
+ * which parsers accept as any varint; nothing written is moved or copied
+ * again. Strings are encoded as UTF-8 straight into the buffer, and
+ * {@link ByteSlice}s, such as a pre-encoded {@code adm} or the ids of a
+ * decoded request, are copied once.
+ * <p>
+ * The buffer of a response is taken from the pool by {@link #start} and
+ * handed to the caller by {@link #finish()}, who gives it back to the pool
+ * once sent; a writer, and a pool sized by its traffic, then allocate
+ * nothing. Fields must be written in their message: bid fields between
+ * {@link #startBid} and {@link #endBid()}, and so on. Not thread-safe; keep
+ * one writer per thread.
+ */
+public final class BidResponseWriter {
+	private static final int ID = makeTag(1, WIRETYPE_LENGTH_DELIMITED);
+	private static final int SEATBID = makeTag(2, WIRETYPE_LENGTH_DELIMITED);
+	private static final int BIDID = makeTag(3, WIRETYPE_LENGTH_DELIMITED);
+	private static final int CUR = makeTag(4, WIRETYPE_LENGTH_DELIMITED);
+	private static final int NBR = makeTag(5, WIRETYPE_VARINT);
+
+	private static final int SEATBID_BID = makeTag(1, WIRETYPE_LENGTH_DELIMITED);
+	private static final int SEATBID_SEAT = makeTag(2, WIRETYPE_LENGTH_DELIMITED);
+
+	private static final int BID_ID = makeTag(1, WIRETYPE_LENGTH_DELIMITED);
+	private static final int BID_IMPID = makeTag(2, WIRETYPE_LENGTH_DELIMITED);
+	private static final int BID_PRICE = makeTag(3, WIRETYPE_VARINT);
+	private static final int BID_ADID = makeTag(4, WIRETYPE_LENGTH_DELIMITED);
+	private static final int BID_NURL = makeTag(5, WIRETYPE_LENGTH_DELIMITED);
+	private static final int BID_ADM = makeTag(6, WIRETYPE_LENGTH_DELIMITED);
+	private static final int BID_ADOMAIN = makeTag(7, WIRETYPE_LENGTH_DELIMITED);
+	private static final int BID_BUNDLE = makeTag(8, WIRETYPE_LENGTH_DELIMITED);
+	private static final int BID_IURL = makeTag(9, WIRETYPE_LENGTH_DELIMITED);
+	private static final int BID_CID = makeTag(10, WIRETYPE_LENGTH_DELIMITED);
+	private static final int BID_CRID = makeTag(11, WIRETYPE_LENGTH_DELIMITED);
+	private static final int BID_CAT = makeTag(12, WIRETYPE_LENGTH_DELIMITED);
+	private static final int BID_ATTR = makeTag(13, WIRETYPE_VARINT);
+	private static final int BID_API = makeTag(14, WIRETYPE_VARINT);
+	private static final int BID_PROTOCOL = makeTag(15, WIRETYPE_VARINT);
+	private static final int BID_DEALID = makeTag(16, WIRETYPE_LENGTH_DELIMITED);
+	private static final int BID_W = makeTag(17, WIRETYPE_VARINT);
+	private static final int BID_H = makeTag(18, WIRETYPE_VARINT);
+
+	/** Bytes reserved for the length of a submessage: up to 2^28 - 1. */
+	private static final int LENGTH_BYTES = 4;
+	private static final int MAX_LENGTH = (1 << 7 * LENGTH_BYTES) - 1;
+
+	/** Nesting of the message being written. */
+	private static final int NONE = -1;
+	private static final int RESPONSE = 0;
+	private static final int SEATBID_LEVEL = 1;
+	private static final int BID_LEVEL = 2;
+
+	private final DirectBufferPool pool;
+	private final int headroom;
+	private ByteBuffer buffer;
+	private int level = NONE;
+	/** Positions of the reserved lengths of the open seat bid and bid. */
+	private final int[] lengthAt = new int[BID_LEVEL + 1];
+
+	public BidResponseWriter(DirectBufferPool pool) {
+		this(pool, 0);
+	}
+
+	/**
+	 * @param headroom
+	 *            bytes left free before each response, for a transport to
+	 *            write its header in front of it, such as an HTTP status line
+	 */
+	public BidResponseWriter(DirectBufferPool pool, int headroom) {
+		checkArgument(headroom >= 0, "headroom must not be negative: %s", headroom);
+		this.pool = checkNotNull(pool);
+		this.headroom = headroom;
+	}
+
+	/**
+	 * Starts a response, dropping any unfinished one.
+	 *
+	 * @param id
+	 *            the id of the request
+	 * @return this writer
+	 */
+	public BidResponseWriter start(CharSequence id) {
+		begin();
+		string(ID, id);
+		return this;
+	}
+
+	public BidResponseWriter start(ByteSlice id) {
+		begin();
+		bytes(ID, id);
+		return this;
+	}
+
+	public BidResponseWriter bidid(CharSequence bidid) {
+		check(RESPONSE);
+		string(BIDID, bidid);
+		return this;
+	}
+
+	public BidResponseWriter cur(CharSequence cur) {
+		check(RESPONSE);
+		string(CUR, cur);
+		return this;
+	}
+
+	/**
+	 * Sets the no-bid reason.
+	 */
+	public BidResponseWriter nbr(int nbr) {
+		check(RESPONSE);
+		int32(NBR, nbr);
+		return this;
+	}
+
+	public BidResponseWriter startSeatBid() {
+		check(RESPONSE);
+		open(SEATBID, SEATBID_LEVEL);
+		return this;
+	}
+
+	public BidResponseWriter seat(CharSequence seat) {
+		check(SEATBID_LEVEL);
+		string(SEATBID_SEAT, seat);
+		return this;
+	}
+
+	public BidResponseWriter endSeatBid() {
+		check(SEATBID_LEVEL);
+		close();
+		return this;
+	}
+
+	/**
+	 * Starts a bid with its required fields.
+	 *
+	 * @param price
+	 *            in the unit agreed with the exchange, as
+	 *            {@code Imp.bidfloor}
+	 */
+	public BidResponseWriter startBid(CharSequence id, CharSequence impid, long price) {
+		check(SEATBID_LEVEL);
+		open(SEATBID_BID, BID_LEVEL);
+		string(BID_ID, id);
+		string(BID_IMPID, impid);
+		int64(BID_PRICE, price);
+		return this;
+	}
+
+	/**
+	 * Starts a bid with its required fields, {@code impid} being read from a
+	 * request.
+	 */
+	public BidResponseWriter startBid(CharSequence id, ByteSlice impid, long price) {
+		check(SEATBID_LEVEL);
+		open(SEATBID_BID, BID_LEVEL);
+		string(BID_ID, id);
+		bytes(BID_IMPID, impid);
+		int64(BID_PRICE, price);
+		return this;
+	}
+
+	public BidResponseWriter adid(CharSequence adid) {
+		check(BID_LEVEL);
+		string(BID_ADID, adid);
+		return this;
+	}
+
+	public BidResponseWriter nurl(CharSequence nurl) {
+		check(BID_LEVEL);
+		string(BID_NURL, nurl);
+		return this;
+	}
+
+	/**
+	 * Expands the win-notice URL straight into the response, keeping
+	 * {@code ${AUCTION_PRICE}} for the exchange.
+	 *
+	 * @param auctionId
+	 *            the id of the request
+	 * @param impId
+	 *            the id of the impression bid on
+	 */
+	public BidResponseWriter nurl(NoticeUrlTemplate nurl, ByteSlice auctionId, ByteSlice impId) {
+		check(BID_LEVEL);
+		int length = nurl.expandedLength(auctionId, impId, null);
+		ensure(10 + length);
+		varint(BID_NURL);
+		varint(length);
+		nurl.expand(buffer, auctionId, impId, null);
+		return this;
+	}
+
+	/**
+	 * Copies the markup, already encoded as UTF-8, into the response.
+	 */
+	public BidResponseWriter adm(ByteSlice adm) {
+		check(BID_LEVEL);
+		bytes(BID_ADM, adm);
+		return this;
+	}
+
+	public BidResponseWriter adm(CharSequence adm) {
+		check(BID_LEVEL);
+		string(BID_ADM, adm);
+		return this;
+	}
+
+	/**
+	 * Adds an advertiser domain.
+	 */
+	public BidResponseWriter adomain(CharSequence adomain) {
+		check(BID_LEVEL);
+		string(BID_ADOMAIN, adomain);
+		return this;
+	}
+
+	public BidResponseWriter bundle(CharSequence bundle) {
+		check(BID_LEVEL);
+		string(BID_BUNDLE, bundle);
+		return this;
+	}
+
+	public BidResponseWriter iurl(CharSequence iurl) {
+		check(BID_LEVEL);
+		string(BID_IURL, iurl);
+		return this;
+	}
+
+	public BidResponseWriter cid(CharSequence cid) {
+		check(BID_LEVEL);
+		string(BID_CID, cid);
+		return this;
+	}
+
+	public BidResponseWriter crid(CharSequence crid) {
+		check(BID_LEVEL);
+		string(BID_CRID, crid);
+		return this;
+	}
+
+	/**
+	 * Adds a category.
+	 */
+	public BidResponseWriter cat(CharSequence cat) {
+		check(BID_LEVEL);
+		string(BID_CAT, cat);
+		return this;
+	}
+
+	/**
+	 * Adds a creative attribute.
+	 */
+	public BidResponseWriter attr(int attr) {
+		check(BID_LEVEL);
+		int32(BID_ATTR, attr);
+		return this;
+	}
+
+	public BidResponseWriter api(int api) {
+		check(BID_LEVEL);
+		int32(BID_API, api);
+		return this;
+	}
+
+	public BidResponseWriter protocol(int protocol) {
+		check(BID_LEVEL);
+		int32(BID_PROTOCOL, protocol);
+		return this;
+	}
+
+	public BidResponseWriter dealid(CharSequence dealid) {
+		check(BID_LEVEL);
+		string(BID_DEALID, dealid);
+		return this;
+	}
+
+	public BidResponseWriter dealid(ByteSlice dealid) {
+		check(BID_LEVEL);
+		bytes(BID_DEALID, dealid);
+		return this;
+	}
+
+	public BidResponseWriter w(int w) {
+		check(BID_LEVEL);
+		int32(BID_W, w);
+		return this;
+	}
+
+	public BidResponseWriter h(int h) {
+		check(BID_LEVEL);
+		int32(BID_H, h);
+		return this;
+	}
+
+	public BidResponseWriter endBid() {
+		check(BID_LEVEL);
+		close();
+		return this;
+	}
+
+	/**
+	 * Ends the response.
+	 *
+	 * @return the response, from the position after the headroom to the
+	 *         limit, to be given back to the pool once sent
+	 */
+	public ByteBuffer finish() {
+		check(RESPONSE);
+		ByteBuffer response = buffer;
+		((Buffer) response).flip();
+		((Buffer) response).position(headroom);
+		buffer = null;
+		level = NONE;
+		return response;
+	}
+
+	private void begin() {
+		if (buffer == null) {
+			buffer = pool.acquire(headroom);
+		} else {
+			((Buffer) buffer).clear();
+		}
+		((Buffer) buffer).position(headroom);
+		level = RESPONSE;
+	}
+
+	private void check(int expected) {
+		// no varargs Preconditions here, which would box per field
+		if (level != expected) {
+			throw new IllegalStateException(level == NONE ? "No response started" : "Field not in its message");
+		}
+	}
+
+	/**
+	 * Writes the tag of a submessage and reserves its length.
+	 */
+	private void open(int tag, int nested) {
+		ensure(5 + LENGTH_BYTES);
+		varint(tag);
+		lengthAt[nested] = buffer.position();
+		((Buffer) buffer).position(buffer.position() + LENGTH_BYTES);
+		level = nested;
+	}
+
+	/**
+	 * Patches the length of the current submessage.
+	 */
+	private void close() {
+		int at = lengthAt[level];
+		int length = buffer.position() - at - LENGTH_BYTES;
+		if (length > MAX_LENGTH) {
+			throw new IllegalStateException("Message too long: " + length + " bytes");
+		}
+		for (int i = 0; i < LENGTH_BYTES - 1; ++i) {
+			buffer.put(at + i, (byte) (length & 0x7F | 0x80));
+			length >>>= 7;
+		}
+		buffer.put(at + LENGTH_BYTES - 1, (byte) length);
+		--level;
+	}
+
+	private void string(int tag, CharSequence value) {
+		int length = Utf8.encodedLength(value);
+		ensure(10 + length);
+		varint(tag);
+		varint(length);
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xC0 | c >>> 6));
+				buffer.put((byte) (0x80 | c & 0x3F));
+			} else if (Character.isHighSurrogate(c)) {
+				// paired, as checked by encodedLength
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buffer.put((byte) (0xF0 | codePoint >>> 18));
+				buffer.put((byte) (0x80 | codePoint >>> 12 & 0x3F));
+				buffer.put((byte) (0x80 | codePoint >>> 6 & 0x3F));
+				buffer.put((byte) (0x80 | codePoint & 0x3F));
+			} else {
+				buffer.put((byte) (0xE0 | c >>> 12));
+				buffer.put((byte) (0x80 | c >>> 6 & 0x3F));
+				buffer.put((byte) (0x80 | c & 0x3F));
+			}
+		}
+	}
+
+	private void bytes(int tag, ByteSlice value) {
+		ensure(10 + value.length());
+		varint(tag);
+		varint(value.length());
+		value.writeTo(buffer);
+	}
+
+	private void int32(int tag, int value) {
+		// negative int32 values take 10 bytes, as in generated code
+		int64(tag, value);
+	}
+
+	private void int64(int tag, long value) {
+		ensure(15);
+		varint(tag);
+		varint(value);
+	}
+
+	private void varint(long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) (value & 0x7F | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Makes room for {@code bytes} more bytes, moving the response to a
+	 * larger buffer if needed.
+	 */
+	private void ensure(int bytes) {
+		if (buffer.remaining() >= bytes) {
+			return;
+		}
+		if (bytes > MAX_LENGTH) {
+			throw new IllegalArgumentException("Field too long: " + bytes + " bytes");
+		}
+		ByteBuffer larger = pool.acquire(buffer.position() + bytes);
+		((Buffer) buffer).flip();
+		larger.put(buffer);
+		pool.release(buffer);
+		buffer = larger;
+	}
+}
@@ -0,0 +1,247 @@
+package com.mplus.adx;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import com.mplus.adx.CampaignIndex.Candidates;
+import com.mplus.adx.ProtoMessage.Slices;
+
+/**
+ * Filters out the campaigns whose bids a request blocks with its
+ * {@code bcat}, {@code badv} and {@code bapp}, as
+ * {@link Campaign#isBlockedBy(UnifiedBidRequest)} does, without comparing
+ * strings for each campaign.
+ * <p>
+ * When campaigns are loaded, their IAB categories, advertiser domains and
+ * app bundles are interned into dense integer ids, one dictionary each, and
+ * each campaign keeps the sorted ids of its values. A category also has the
+ * id of its parent, {@code IAB1} for {@code IAB1-2}, and a domain the ids of
+ * its parent domains, {@code example.com} and {@code com} for
+ * {@code sub.example.com}, so that blocking a parent blocks its children.
+ * <p>
+ * The block lists of a request are then looked up once, by hashing their
+ * bytes, into sorted arrays of ids in a {@link Blocks}; values no campaign
+ * has are dropped. Checking a campaign binary-searches its few ids in them,
+ * with no allocation. ASCII case is ignored throughout.
+ * <p>
+ * Immutable and thread-safe; built by {@link CampaignIndex} for its
+ * campaigns, see {@link CampaignIndex#getBlocklist()}.
+ */
+public final class BlocklistFilter {
+	private final AsciiDictionary catIds = new AsciiDictionary();
+	private final AsciiDictionary domainIds = new AsciiDictionary();
+	private final AsciiDictionary bundleIds = new AsciiDictionary();
+
+	/** Ids of the categories of campaign i at {@code [catStart[i], catStart[i + 1])}. */
+	private final int[] catStart;
+	private final int[] cats;
+	private final int[] domainStart;
+	private final int[] domains;
+	/** Id of the bundle of each campaign, -1 if none. */
+	private final int[] bundles;
+
+	/**
+	 * @param campaigns
+	 *            by ordinal
+	 */
+	public BlocklistFilter(List<Campaign> campaigns) {
+		catStart = new int[campaigns.size() + 1];
+		domainStart = new int[campaigns.size() + 1];
+		bundles = new int[campaigns.size()];
+		IntList catList = new IntList();
+		IntList domainList = new IntList();
+		for (int ordinal = 0; ordinal < campaigns.size(); ++ordinal) {
+			Campaign campaign = campaigns.get(ordinal);
+			for (String cat : campaign.getCats()) {
+				// IAB1-2-3, IAB1-2, IAB1
+				String lower = cat.toLowerCase(Locale.ROOT);
+				for (int end = lower.length(); end > 0; end = lower.lastIndexOf('-', end - 1)) {
+					catList.add(catIds.intern(lower.substring(0, end)));
+				}
+			}
+			catStart[ordinal + 1] = catList.sortTail(catStart[ordinal]);
+			for (String adomain : campaign.getAdomains()) {
+				// sub.example.com, example.com, com
+				String lower = adomain.toLowerCase(Locale.ROOT);
+				for (int start = 0; start < lower.length();) {
+					domainList.add(domainIds.intern(lower.substring(start)));
+					int dot = lower.indexOf('.', start);
+					if (dot < 0) {
+						break;
+					}
+					start = dot + 1;
+				}
+			}
+			domainStart[ordinal + 1] = domainList.sortTail(domainStart[ordinal]);
+			bundles[ordinal] = campaign.getBundle() == null ? -1
+					: bundleIds.intern(campaign.getBundle().toLowerCase(Locale.ROOT));
+		}
+		cats = catList.toArray();
+		domains = domainList.toArray();
+		catIds.freeze();
+		domainIds.freeze();
+		bundleIds.freeze();
+	}
+
+	/**
+	 * Returns the number of distinct categories, domains and bundles
+	 * interned, parents included.
+	 */
+	public int getInternedCount() {
+		return catIds.size() + domainIds.size() + bundleIds.size();
+	}
+
+	/**
+	 * Looks up the block lists of {@code request} into {@code blocks}, once
+	 * per request.
+	 *
+	 * @return {@code blocks}
+	 */
+	public Blocks decode(UnifiedBidRequest request, Blocks blocks) {
+		blocks.filter = this;
+		blocks.cats.lookup(catIds, request.getBcat());
+		blocks.domains.lookup(domainIds, request.getBadv());
+		blocks.bundles.lookup(bundleIds, request.getBapp());
+		return blocks;
+	}
+
+	/**
+	 * Returns whether {@code blocks} block the campaign with this ordinal.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if {@code blocks} were decoded by another filter
+	 */
+	public boolean isBlocked(int ordinal, Blocks blocks) {
+		if (blocks.filter != this) {
+			throw new IllegalArgumentException("Blocks decoded by another filter");
+		}
+		return blocks.cats.intersects(cats, catStart[ordinal], catStart[ordinal + 1])
+				|| blocks.domains.intersects(domains, domainStart[ordinal], domainStart[ordinal + 1])
+				|| (bundles[ordinal] >= 0 && blocks.bundles.intersects(bundles, ordinal, ordinal + 1));
+	}
+
+	/**
+	 * Removes the campaigns {@code blocks} block from {@code candidates},
+	 * which must have been selected by the index of this filter.
+	 *
+	 * @return the number of campaigns removed
+	 */
+	public int removeBlocked(Candidates candidates, Blocks blocks) {
+		if (candidates.getIndex().getBlocklist() != this) {
+			throw new IllegalArgumentException("Candidates selected by another index");
+		}
+		if (blocks.isEmpty()) {
+			return 0;
+		}
+		int removed = 0;
+		for (int ordinal = candidates.next(0); ordinal >= 0; ordinal = candidates.next(ordinal + 1)) {
+			if (isBlocked(ordinal, blocks)) {
+				candidates.remove(ordinal);
+				++removed;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Block lists of a request as sorted ids of a {@link BlocklistFilter}.
+	 * Reused for each request; keep one per thread. Not thread-safe.
+	 */
+	public static final class Blocks {
+		private BlocklistFilter filter;
+		private final IdSet cats = new IdSet();
+		private final IdSet domains = new IdSet();
+		private final IdSet bundles = new IdSet();
+
+		/**
+		 * Returns whether the request blocks none of the campaigns.
+		 */
+		public boolean isEmpty() {
+			return cats.size == 0 && domains.size == 0 && bundles.size == 0;
+		}
+
+		/**
+		 * Returns the number of values blocked that some campaign has.
+		 */
+		public int size() {
+			return cats.size + domains.size + bundles.size;
+		}
+	}
+
+	/**
+	 * Sorted ids.
+	 */
+	private static final class IdSet {
+		private int[] ids = new int[16];
+		private int size;
+
+		void lookup(AsciiDictionary dictionary, Slices values) {
+			size = 0;
+			for (int i = 0; i < values.size(); ++i) {
+				int id = dictionary.lookup(values.get(i));
+				if (id >= 0) {
+					if (size == ids.length) {
+						ids = Arrays.copyOf(ids, size * 2);
+					}
+					ids[size++] = id;
+				}
+			}
+			if (size > 1) {
+				Arrays.sort(ids, 0, size);
+			}
+		}
+
+		/**
+		 * Returns whether one of the sorted ids of {@code other} between
+		 * {@code from} and {@code to} is in this set.
+		 */
+		boolean intersects(int[] other, int from, int to) {
+			if (size == 0) {
+				return false;
+			}
+			// a campaign has a few ids, a request may block many
+			for (int i = from; i < to; ++i) {
+				if (Arrays.binarySearch(ids, 0, size, other[i]) >= 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Growable {@code int[]} of the ids of all campaigns.
+	 */
+	private static final class IntList {
+		private int[] values = new int[1024];
+		private int size;
+
+		void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		/**
+		 * Sorts the values from {@code from} and removes their duplicates.
+		 *
+		 * @return the new size
+		 */
+		int sortTail(int from) {
+			Arrays.sort(values, from, size);
+			int end = from;
+			for (int i = from; i < size; ++i) {
+				if (end == from || values[i] != values[end - 1]) {
+					values[end++] = values[i];
+				}
+			}
+			return size = end;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package com.mplus.adx;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Mutable view of a range of a {@link ByteBuffer}, such as a string field of
+ * a protobuf message, read without copying the bytes.
+ * <p>
+ * A slice is only valid while its buffer is not reused; copy it with
+ * {@link #toString()} or {@link #getBytes(byte[], int)} to keep it. Not
+ * thread-safe.
+ */
+public final class ByteSlice {
+	private ByteBuffer buffer;
+	private int offset;
+	private int length;
+	/** Duplicate of {@link #viewOf} kept for {@link #writeTo(ByteBuffer)}. */
+	private ByteBuffer view;
+	private ByteBuffer viewOf;
+
+	public ByteSlice() {
+	}
+
+	/**
+	 * Views the whole of {@code bytes}.
+	 */
+	public ByteSlice(byte[] bytes) {
+		set(ByteBuffer.wrap(bytes), 0, bytes.length);
+	}
+
+	/**
+	 * @param offset
+	 *            absolute index in {@code buffer}
+	 * @return this slice
+	 */
+	public ByteSlice set(ByteBuffer buffer, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > buffer.capacity()) {
+			throw new IndexOutOfBoundsException(String.format("Invalid slice: %s+%s", offset, length));
+		}
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+		return this;
+	}
+
+	/**
+	 * Makes this slice empty, and lets go of its buffer.
+	 */
+	public void clear() {
+		buffer = null;
+		view = null;
+		viewOf = null;
+		offset = 0;
+		length = 0;
+	}
+
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	public int offset() {
+		return offset;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public boolean isEmpty() {
+		return length == 0;
+	}
+
+	public byte byteAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException(String.format("Index %s of slice of %s bytes", index, length));
+		}
+		return buffer.get(offset + index);
+	}
+
+	/**
+	 * Compares with an ASCII string, without decoding.
+	 */
+	public boolean equalsAscii(CharSequence ascii) {
+		if (ascii.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; ++i) {
+			if (buffer.get(offset + i) != ascii.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the bytes into {@code dst}.
+	 *
+	 * @return the number of bytes copied
+	 */
+	public int getBytes(byte[] dst, int dstOff) {
+		if (length == 0) {
+			return 0;
+		}
+		if (buffer.hasArray()) {
+			System.arraycopy(buffer.array(), buffer.arrayOffset() + offset, dst, dstOff, length);
+		} else {
+			for (int i = 0; i < length; ++i) {
+				dst[dstOff + i] = buffer.get(offset + i);
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Copies the bytes into {@code dst} at its position, and advances it. A
+	 * slice set again on the same direct buffer copies without allocating.
+	 */
+	public void writeTo(ByteBuffer dst) {
+		if (length == 0) {
+			return;
+		}
+		if (buffer.hasArray()) {
+			dst.put(buffer.array(), buffer.arrayOffset() + offset, length);
+			return;
+		}
+		if (viewOf != buffer) {
+			view = buffer.duplicate();
+			viewOf = buffer;
+		}
+		// Buffer casts keep the Java 8 signatures when built on a newer JDK
+		((Buffer) view).limit(offset + length);
+		((Buffer) view).position(offset);
+		dst.put(view);
+	}
+
+	/**
+	 * Decodes the bytes as UTF-8.
+	 */
+	@Override
+	public String toString() {
+		if (length == 0) {
+			return "";
+		}
+		byte[] bytes = new byte[length];
+		getBytes(bytes, 0);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
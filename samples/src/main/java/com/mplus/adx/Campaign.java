@@ -0,0 +1,389 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.mplus.adx.ProtoMessage.Ints;
+import com.mplus.adx.ProtoMessage.Slices;
+import com.mplus.adx.UnifiedBidRequest.Banner;
+import com.mplus.adx.UnifiedBidRequest.Imp;
+import com.mplus.adx.UnifiedBidRequest.Video;
+
+/**
+ * A campaign and the attributes of its creative that decide which
+ * impressions it can serve: banner sizes and MIME type, video MIME type,
+ * duration and protocol, the API framework it needs, whether it is
+ * interstitial, and whether it is served over HTTPS; and the advertiser
+ * domains, IAB categories and app bundle of its bids, which requests may
+ * block. Immutable; create it with {@link #newBuilder(long)}.
+ * <p>
+ * {@link #matches(Imp)} and {@link #isBlockedBy(UnifiedBidRequest)} check
+ * one campaign; {@link CampaignIndex} and {@link BlocklistFilter} check many
+ * at once.
+ */
+public final class Campaign {
+	private final long id;
+	private final int[] widths;
+	private final int[] heights;
+	private final String bannerMime;
+	private final String videoMime;
+	private final int duration;
+	private final int protocol;
+	private final int api;
+	private final boolean interstitial;
+	private final boolean secure;
+	private final ImmutableList<String> adomains;
+	private final ImmutableList<String> cats;
+	private final String bundle;
+
+	private Campaign(Builder builder) {
+		this.id = builder.id;
+		this.widths = Arrays.copyOf(builder.widths, builder.sizeCount);
+		this.heights = Arrays.copyOf(builder.heights, builder.sizeCount);
+		this.bannerMime = builder.bannerMime;
+		this.videoMime = builder.videoMime;
+		this.duration = builder.duration;
+		this.protocol = builder.protocol;
+		this.api = builder.api;
+		this.interstitial = builder.interstitial;
+		this.secure = builder.secure;
+		this.adomains = builder.adomains.build();
+		this.cats = builder.cats.build();
+		this.bundle = builder.bundle;
+	}
+
+	public static Builder newBuilder(long id) {
+		return new Builder(id);
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public boolean isBanner() {
+		return bannerMime != null;
+	}
+
+	/**
+	 * Returns the number of banner sizes, 0 if the creative is not a banner.
+	 */
+	public int getSizeCount() {
+		return widths.length;
+	}
+
+	public int getWidth(int index) {
+		return widths[index];
+	}
+
+	public int getHeight(int index) {
+		return heights[index];
+	}
+
+	/**
+	 * Returns the MIME type of the banner, or null if the creative is not a
+	 * banner.
+	 */
+	public String getBannerMime() {
+		return bannerMime;
+	}
+
+	public boolean isVideo() {
+		return videoMime != null;
+	}
+
+	/**
+	 * Returns the MIME type of the video, or null if the creative is not a
+	 * video.
+	 */
+	public String getVideoMime() {
+		return videoMime;
+	}
+
+	/**
+	 * Returns the duration of the video, in seconds.
+	 */
+	public int getDuration() {
+		return duration;
+	}
+
+	/**
+	 * Returns the video protocol, such as 2 for VAST 2.0.
+	 */
+	public int getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * Returns the API framework the creative needs, or 0 if none.
+	 */
+	public int getApi() {
+		return api;
+	}
+
+	public boolean isInterstitial() {
+		return interstitial;
+	}
+
+	public boolean isSecure() {
+		return secure;
+	}
+
+	/**
+	 * Returns the advertiser domains of the bids, such as {@code example.com}.
+	 */
+	public List<String> getAdomains() {
+		return adomains;
+	}
+
+	/**
+	 * Returns the IAB categories of the bids, such as {@code IAB1-2}.
+	 */
+	public List<String> getCats() {
+		return cats;
+	}
+
+	/**
+	 * Returns the bundle or package name of the advertised app, or null.
+	 */
+	public String getBundle() {
+		return bundle;
+	}
+
+	/**
+	 * Returns whether this campaign can serve {@code imp}:
+	 * <ul>
+	 * <li>the creative is interstitial if and only if {@code imp} is, and is
+	 * secure if {@code imp} requires it;</li>
+	 * <li>and either {@code imp} has a banner whose size, unless unset, is a
+	 * size of the creative, whose MIME types, if any, include the banner MIME
+	 * type, and whose API frameworks include the one the creative needs;</li>
+	 * <li>or {@code imp} has a video whose MIME types and protocols, if any,
+	 * include those of the creative, whose duration range includes the
+	 * duration of the creative, 0 meaning no bound, and whose API frameworks
+	 * include the one the creative needs.</li>
+	 * </ul>
+	 */
+	public boolean matches(Imp imp) {
+		if ((imp.getInstl() == 1) != interstitial || (imp.getSecure() == 1 && !secure)) {
+			return false;
+		}
+		Banner banner = imp.getBanner();
+		if (banner != null && matches(banner)) {
+			return true;
+		}
+		Video video = imp.getVideo();
+		return video != null && matches(video);
+	}
+
+	private boolean matches(Banner banner) {
+		if (bannerMime == null) {
+			return false;
+		}
+		if (banner.getW() != 0 || banner.getH() != 0) {
+			int i = 0;
+			while (i < widths.length && (widths[i] != banner.getW() || heights[i] != banner.getH())) {
+				++i;
+			}
+			if (i == widths.length) {
+				return false;
+			}
+		}
+		return (banner.getMimes().size() == 0 || contains(banner.getMimes(), bannerMime))
+				&& (api == 0 || contains(banner.getApi(), api));
+	}
+
+	private boolean matches(Video video) {
+		if (videoMime == null) {
+			return false;
+		}
+		return (video.getMimes().size() == 0 || contains(video.getMimes(), videoMime))
+				&& (video.getProtocols().size() == 0 || contains(video.getProtocols(), protocol))
+				&& (video.getMinduration() == 0 || duration >= video.getMinduration())
+				&& (video.getMaxduration() == 0 || duration <= video.getMaxduration())
+				&& (api == 0 || contains(video.getApi(), api));
+	}
+
+	/**
+	 * Returns whether {@code request} blocks the bids of this campaign,
+	 * ignoring case: whether its {@code bcat} has a category of the campaign
+	 * or its parent, {@code IAB1} blocking {@code IAB1-2}; whether its
+	 * {@code badv} has a domain of the campaign or a parent domain,
+	 * {@code example.com} blocking {@code sub.example.com}; or whether its
+	 * {@code bapp} has the bundle of the campaign.
+	 */
+	public boolean isBlockedBy(UnifiedBidRequest request) {
+		for (String cat : cats) {
+			for (int i = 0; i < request.getBcat().size(); ++i) {
+				String blocked = request.getBcat().get(i).toString().toLowerCase(Locale.ROOT);
+				String lower = cat.toLowerCase(Locale.ROOT);
+				if (lower.equals(blocked) || lower.startsWith(blocked + "-")) {
+					return true;
+				}
+			}
+		}
+		for (String adomain : adomains) {
+			for (int i = 0; i < request.getBadv().size(); ++i) {
+				String blocked = request.getBadv().get(i).toString().toLowerCase(Locale.ROOT);
+				String lower = adomain.toLowerCase(Locale.ROOT);
+				if (lower.equals(blocked) || lower.endsWith("." + blocked)) {
+					return true;
+				}
+			}
+		}
+		for (int i = 0; bundle != null && i < request.getBapp().size(); ++i) {
+			if (bundle.equalsIgnoreCase(request.getBapp().get(i).toString())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static boolean contains(Slices slices, String ascii) {
+		for (int i = 0; i < slices.size(); ++i) {
+			if (slices.get(i).equalsAscii(ascii)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static boolean contains(Ints ints, int value) {
+		for (int i = 0; i < ints.size(); ++i) {
+			if (ints.get(i) == value) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		MoreObjects.ToStringHelper helper = MoreObjects.toStringHelper(this).add("id", id);
+		if (bannerMime != null) {
+			StringBuilder sizes = new StringBuilder();
+			for (int i = 0; i < widths.length; ++i) {
+				sizes.append(i > 0 ? "," : "").append(widths[i]).append('x').append(heights[i]);
+			}
+			helper.add("bannerMime", bannerMime).add("sizes", sizes);
+		}
+		if (videoMime != null) {
+			helper.add("videoMime", videoMime).add("duration", duration).add("protocol", protocol);
+		}
+		return helper.add("api", api).add("interstitial", interstitial).add("secure", secure)
+				.add("adomains", adomains).add("cats", cats).add("bundle", bundle).omitNullValues().toString();
+	}
+
+	public static final class Builder {
+		private final long id;
+		private int[] widths = new int[2];
+		private int[] heights = new int[2];
+		private int sizeCount;
+		private String bannerMime;
+		private String videoMime;
+		private int duration;
+		private int protocol;
+		private int api;
+		private boolean interstitial;
+		private boolean secure;
+		private final ImmutableList.Builder<String> adomains = ImmutableList.builder();
+		private final ImmutableList.Builder<String> cats = ImmutableList.builder();
+		private String bundle;
+
+		private Builder(long id) {
+			this.id = id;
+		}
+
+		/**
+		 * Makes the creative a banner of this MIME type; add its sizes with
+		 * {@link #size(int, int)}.
+		 */
+		public Builder banner(String mime) {
+			this.bannerMime = checkNotNull(mime);
+			return this;
+		}
+
+		public Builder size(int w, int h) {
+			checkArgument(w > 0 && h > 0, "Invalid size: %sx%s", w, h);
+			if (sizeCount == widths.length) {
+				widths = Arrays.copyOf(widths, sizeCount * 2);
+				heights = Arrays.copyOf(heights, sizeCount * 2);
+			}
+			widths[sizeCount] = w;
+			heights[sizeCount] = h;
+			++sizeCount;
+			return this;
+		}
+
+		/**
+		 * Makes the creative a video.
+		 *
+		 * @param duration
+		 *            in seconds
+		 * @param protocol
+		 *            such as 2 for VAST 2.0
+		 */
+		public Builder video(String mime, int duration, int protocol) {
+			checkArgument(duration > 0, "Invalid duration: %s", duration);
+			this.videoMime = checkNotNull(mime);
+			this.duration = duration;
+			this.protocol = protocol;
+			return this;
+		}
+
+		/**
+		 * Sets the API framework the creative needs, 0 for none.
+		 */
+		public Builder api(int api) {
+			checkArgument(api >= 0, "Invalid api: %s", api);
+			this.api = api;
+			return this;
+		}
+
+		public Builder interstitial(boolean interstitial) {
+			this.interstitial = interstitial;
+			return this;
+		}
+
+		public Builder secure(boolean secure) {
+			this.secure = secure;
+			return this;
+		}
+
+		/**
+		 * Adds an advertiser domain, such as {@code example.com}.
+		 */
+		public Builder adomain(String adomain) {
+			checkArgument(!adomain.isEmpty(), "Empty adomain");
+			adomains.add(adomain);
+			return this;
+		}
+
+		/**
+		 * Adds an IAB category, such as {@code IAB1-2}.
+		 */
+		public Builder cat(String cat) {
+			checkArgument(!cat.isEmpty(), "Empty cat");
+			cats.add(cat);
+			return this;
+		}
+
+		public Builder bundle(String bundle) {
+			this.bundle = checkNotNull(bundle);
+			return this;
+		}
+
+		public Campaign build() {
+			checkState(bannerMime != null || videoMime != null, "Campaign %s is neither a banner nor a video", id);
+			checkState((bannerMime != null) == (sizeCount > 0), "Campaign %s: a banner needs a size, and sizes a banner",
+					id);
+			return new Campaign(this);
+		}
+	}
+}
@@ -0,0 +1,448 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.mplus.adx.ProtoMessage.Ints;
+import com.mplus.adx.ProtoMessage.Slices;
+import com.mplus.adx.UnifiedBidRequest.Banner;
+import com.mplus.adx.UnifiedBidRequest.Imp;
+import com.mplus.adx.UnifiedBidRequest.Video;
+
+/**
+ * Inverted index of the targeting of {@link Campaign}s, selecting the
+ * campaigns that can serve an {@link Imp} with a few bitset operations
+ * instead of checking each campaign.
+ * <p>
+ * Campaigns are numbered by their position, their ordinal, and each
+ * attribute value has a posting bitset of the campaigns that have it: each
+ * banner size, banner and video MIME type, video protocol and API framework.
+ * Video durations have cumulative bitsets, of the campaigns at most as long
+ * as each distinct duration, so a duration range is two operations. An
+ * {@link Imp} is matched as {@link Campaign#matches(Imp)} does, by ANDing the
+ * union of the postings of its values for each attribute, and
+ * {@link #select(Imp, Candidates)} gives the same campaigns as that method.
+ * <p>
+ * Campaigns a request blocks are then removed from the candidates by the
+ * {@link #getBlocklist() BlocklistFilter} of the same campaigns.
+ * <p>
+ * Immutable and thread-safe; rebuild it when campaigns change, see
+ * {@link CampaignSelector}. Selecting allocates nothing: each thread keeps
+ * its own {@link Candidates}.
+ */
+public final class CampaignIndex {
+	private final Campaign[] campaigns;
+	private final int words;
+
+	private final long[] banner;
+	private final long[] video;
+	private final long[] interstitial;
+	private final long[] nonInterstitial;
+	private final long[] secure;
+	/** Campaigns that need no API framework. */
+	private final long[] noApi;
+
+	private final IntPostings sizes;
+	private final MimePostings bannerMimes;
+	private final MimePostings videoMimes;
+	private final IntPostings protocols;
+	private final IntPostings apis;
+	/** Distinct video durations, ascending. */
+	private final int[] durations;
+	/** Video campaigns at most {@code durations[i]} long. */
+	private final long[][] atMostDuration;
+	private final BlocklistFilter blocklist;
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if two campaigns have the same id
+	 */
+	public CampaignIndex(Collection<Campaign> campaigns) {
+		this.campaigns = campaigns.toArray(new Campaign[campaigns.size()]);
+		this.words = (this.campaigns.length + 63) >>> 6;
+		banner = new long[words];
+		video = new long[words];
+		interstitial = new long[words];
+		nonInterstitial = new long[words];
+		secure = new long[words];
+		noApi = new long[words];
+
+		Map<Long, long[]> sizeSets = new HashMap<>();
+		Map<String, long[]> bannerMimeSets = new LinkedHashMap<>();
+		Map<String, long[]> videoMimeSets = new LinkedHashMap<>();
+		Map<Long, long[]> protocolSets = new HashMap<>();
+		Map<Long, long[]> apiSets = new HashMap<>();
+		TreeMap<Integer, long[]> durationSets = new TreeMap<>();
+		Set<Long> ids = new HashSet<>();
+		for (int ordinal = 0; ordinal < this.campaigns.length; ++ordinal) {
+			Campaign campaign = this.campaigns[ordinal];
+			checkArgument(ids.add(campaign.getId()), "Duplicate campaign id: %s", campaign.getId());
+			if (campaign.isBanner()) {
+				set(banner, ordinal);
+				for (int i = 0; i < campaign.getSizeCount(); ++i) {
+					set(posting(sizeSets, sizeKey(campaign.getWidth(i), campaign.getHeight(i))), ordinal);
+				}
+				set(posting(bannerMimeSets, campaign.getBannerMime()), ordinal);
+			}
+			if (campaign.isVideo()) {
+				set(video, ordinal);
+				set(posting(videoMimeSets, campaign.getVideoMime()), ordinal);
+				set(posting(protocolSets, (long) campaign.getProtocol()), ordinal);
+				set(posting(durationSets, campaign.getDuration()), ordinal);
+			}
+			set(campaign.getApi() == 0 ? noApi : posting(apiSets, (long) campaign.getApi()), ordinal);
+			set(campaign.isInterstitial() ? interstitial : nonInterstitial, ordinal);
+			if (campaign.isSecure()) {
+				set(secure, ordinal);
+			}
+		}
+
+		sizes = new IntPostings(sizeSets);
+		bannerMimes = new MimePostings(bannerMimeSets);
+		videoMimes = new MimePostings(videoMimeSets);
+		protocols = new IntPostings(protocolSets);
+		apis = new IntPostings(apiSets);
+		durations = new int[durationSets.size()];
+		atMostDuration = new long[durations.length][];
+		long[] cumulative = new long[words];
+		int i = 0;
+		for (Map.Entry<Integer, long[]> entry : durationSets.entrySet()) {
+			or(cumulative, entry.getValue());
+			durations[i] = entry.getKey();
+			atMostDuration[i++] = cumulative.clone();
+		}
+		blocklist = new BlocklistFilter(Arrays.asList(this.campaigns));
+	}
+
+	private long[] posting(Map<Long, long[]> sets, long key) {
+		return sets.computeIfAbsent(key, k -> new long[words]);
+	}
+
+	private long[] posting(Map<String, long[]> sets, String key) {
+		return sets.computeIfAbsent(key, k -> new long[words]);
+	}
+
+	private long[] posting(TreeMap<Integer, long[]> sets, int key) {
+		return sets.computeIfAbsent(key, k -> new long[words]);
+	}
+
+	/**
+	 * Returns the number of campaigns.
+	 */
+	public int size() {
+		return campaigns.length;
+	}
+
+	public Campaign getCampaign(int ordinal) {
+		return campaigns[ordinal];
+	}
+
+	/**
+	 * Returns the filter of the categories, domains and bundles of these
+	 * campaigns that requests block.
+	 */
+	public BlocklistFilter getBlocklist() {
+		return blocklist;
+	}
+
+	/**
+	 * Returns the number of posting bitsets, each of {@code (size() + 63) / 64}
+	 * longs.
+	 */
+	public int getPostingCount() {
+		return 6 + sizes.size() + bannerMimes.size() + videoMimes.size() + protocols.size() + apis.size()
+				+ durations.length;
+	}
+
+	/**
+	 * Selects the campaigns that can serve {@code imp}, as
+	 * {@link Campaign#matches(Imp)} would, into {@code candidates}.
+	 *
+	 * @return {@code candidates}
+	 */
+	public Candidates select(Imp imp, Candidates candidates) {
+		long[] result = candidates.reset(this);
+		long[] side = candidates.side;
+		long[] any = candidates.any;
+
+		Banner impBanner = imp.getBanner();
+		if (impBanner != null) {
+			System.arraycopy(banner, 0, side, 0, words);
+			if (impBanner.getW() != 0 || impBanner.getH() != 0) {
+				and(side, sizes.get(sizeKey(impBanner.getW(), impBanner.getH())));
+			}
+			if (impBanner.getMimes().size() > 0) {
+				and(side, bannerMimes.union(impBanner.getMimes(), any));
+			}
+			and(side, apis(impBanner.getApi(), any));
+			or(result, side);
+		}
+
+		Video impVideo = imp.getVideo();
+		if (impVideo != null) {
+			System.arraycopy(video, 0, side, 0, words);
+			if (impVideo.getMimes().size() > 0) {
+				and(side, videoMimes.union(impVideo.getMimes(), any));
+			}
+			if (impVideo.getProtocols().size() > 0) {
+				and(side, protocols.union(impVideo.getProtocols(), any));
+			}
+			if (impVideo.getMaxduration() != 0) {
+				int longest = atMost(impVideo.getMaxduration());
+				and(side, longest < 0 ? null : atMostDuration[longest]);
+			}
+			if (impVideo.getMinduration() != 0) {
+				int tooShort = atMost(impVideo.getMinduration() - 1);
+				if (tooShort >= 0) {
+					andNot(side, atMostDuration[tooShort]);
+				}
+			}
+			and(side, apis(impVideo.getApi(), any));
+			or(result, side);
+		}
+
+		and(result, imp.getInstl() == 1 ? interstitial : nonInterstitial);
+		if (imp.getSecure() == 1) {
+			and(result, secure);
+		}
+		return candidates;
+	}
+
+	/**
+	 * Returns the campaigns that need no API framework, or one of
+	 * {@code values}, in {@code target}.
+	 */
+	private long[] apis(Ints values, long[] target) {
+		System.arraycopy(noApi, 0, target, 0, words);
+		for (int i = 0; i < values.size(); ++i) {
+			or(target, apis.get(values.get(i)));
+		}
+		return target;
+	}
+
+	/**
+	 * Returns the index of the longest distinct duration at most
+	 * {@code seconds}, or -1.
+	 */
+	private int atMost(int seconds) {
+		int i = Arrays.binarySearch(durations, seconds);
+		return i >= 0 ? i : -i - 2;
+	}
+
+	private static long sizeKey(int w, int h) {
+		return (long) w << 32 | (h & 0xFFFFFFFFL);
+	}
+
+	private static void set(long[] bits, int ordinal) {
+		bits[ordinal >>> 6] |= 1L << ordinal;
+	}
+
+	/**
+	 * ANDs {@code bits} into {@code dst}; a null {@code bits} is empty.
+	 */
+	private static void and(long[] dst, long[] bits) {
+		if (bits == null) {
+			Arrays.fill(dst, 0);
+			return;
+		}
+		for (int i = 0; i < dst.length; ++i) {
+			dst[i] &= bits[i];
+		}
+	}
+
+	private static void andNot(long[] dst, long[] bits) {
+		for (int i = 0; i < dst.length; ++i) {
+			dst[i] &= ~bits[i];
+		}
+	}
+
+	/**
+	 * ORs {@code bits} into {@code dst}; a null {@code bits} is empty.
+	 */
+	private static void or(long[] dst, long[] bits) {
+		if (bits == null) {
+			return;
+		}
+		for (int i = 0; i < dst.length; ++i) {
+			dst[i] |= bits[i];
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s campaigns, %s postings of %s bytes", campaigns.length, getPostingCount(), words * 8);
+	}
+
+	/**
+	 * Postings keyed by an integer, such as a banner size or a protocol.
+	 */
+	private static final class IntPostings {
+		/** Index in {@link #sets} plus one, by key. */
+		private final LongLongMap slots;
+		private final long[][] sets;
+
+		IntPostings(Map<Long, long[]> sets) {
+			this.slots = new LongLongMap(sets.size());
+			this.sets = new long[sets.size()][];
+			int i = 0;
+			for (Map.Entry<Long, long[]> entry : sets.entrySet()) {
+				this.sets[i] = entry.getValue();
+				slots.put(entry.getKey(), ++i);
+			}
+		}
+
+		int size() {
+			return sets.length;
+		}
+
+		/**
+		 * Returns the posting of {@code key}, or null if no campaign has it.
+		 */
+		long[] get(long key) {
+			int slot = (int) slots.get(key);
+			return slot == 0 ? null : sets[slot - 1];
+		}
+
+		/**
+		 * Returns the union of the postings of {@code keys}, in
+		 * {@code target}.
+		 */
+		long[] union(Ints keys, long[] target) {
+			Arrays.fill(target, 0);
+			for (int i = 0; i < keys.size(); ++i) {
+				or(target, get(keys.get(i)));
+			}
+			return target;
+		}
+	}
+
+	/**
+	 * Postings keyed by a MIME type. There are few, so a lookup compares the
+	 * bytes of a request with each of them, without decoding.
+	 */
+	private static final class MimePostings {
+		private final String[] mimes;
+		private final long[][] sets;
+
+		MimePostings(Map<String, long[]> sets) {
+			this.mimes = sets.keySet().toArray(new String[sets.size()]);
+			this.sets = sets.values().toArray(new long[sets.size()][]);
+		}
+
+		int size() {
+			return sets.length;
+		}
+
+		long[] union(Slices keys, long[] target) {
+			Arrays.fill(target, 0);
+			for (int i = 0; i < keys.size(); ++i) {
+				ByteSlice key = keys.get(i);
+				for (int j = 0; j < mimes.length; ++j) {
+					if (key.equalsAscii(mimes[j])) {
+						or(target, sets[j]);
+						break;
+					}
+				}
+			}
+			return target;
+		}
+	}
+
+	/**
+	 * Campaigns selected by {@link CampaignIndex#select(Imp, Candidates)},
+	 * as a bitset of ordinals in the index that selected them, with the
+	 * scratch bitsets of the selection. Reused for each selection; keep one
+	 * per thread. Not thread-safe.
+	 */
+	public static final class Candidates {
+		private CampaignIndex index;
+		private long[] bits = new long[0];
+		private long[] side = new long[0];
+		private long[] any = new long[0];
+
+		private long[] reset(CampaignIndex index) {
+			this.index = index;
+			if (bits.length != index.words) {
+				bits = new long[index.words];
+				side = new long[index.words];
+				any = new long[index.words];
+			} else {
+				Arrays.fill(bits, 0);
+			}
+			return bits;
+		}
+
+		/**
+		 * Returns the index of the last selection, the one the ordinals
+		 * refer to.
+		 */
+		public CampaignIndex getIndex() {
+			return index;
+		}
+
+		/**
+		 * Returns the number of campaigns selected.
+		 */
+		public int size() {
+			int size = 0;
+			for (long word : bits) {
+				size += Long.bitCount(word);
+			}
+			return size;
+		}
+
+		public boolean isEmpty() {
+			for (long word : bits) {
+				if (word != 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public boolean contains(int ordinal) {
+			return ordinal >= 0 && ordinal >>> 6 < bits.length && (bits[ordinal >>> 6] & 1L << ordinal) != 0;
+		}
+
+		/**
+		 * Returns the first ordinal selected from {@code fromOrdinal} on, or
+		 * -1; iterate with
+		 *
+		 * <pre>
+		 * for (int i = candidates.next(0); i &gt;= 0; i = candidates.next(i + 1)) {
+		 * 	Campaign campaign = candidates.get(i);
+		 * }
+		 * </pre>
+		 */
+		public int next(int fromOrdinal) {
+			int i = fromOrdinal >>> 6;
+			if (fromOrdinal < 0 || i >= bits.length) {
+				return -1;
+			}
+			long word = bits[i] & -1L << fromOrdinal;
+			while (word == 0) {
+				if (++i == bits.length) {
+					return -1;
+				}
+				word = bits[i];
+			}
+			return (i << 6) + Long.numberOfTrailingZeros(word);
+		}
+
+		public Campaign get(int ordinal) {
+			return index.getCampaign(ordinal);
+		}
+
+		void remove(int ordinal) {
+			bits[ordinal >>> 6] &= ~(1L << ordinal);
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package com.mplus.adx;
+
+import java.util.Collection;
+
+import com.mplus.adx.CampaignIndex.Candidates;
+import com.mplus.adx.UnifiedBidRequest.Imp;
+
+/**
+ * Selects candidate campaigns for impressions from the current
+ * {@link CampaignIndex}, which is replaced as a whole when campaigns change.
+ * <p>
+ * {@link #update(Collection)} builds the new index aside and swaps it in
+ * with a volatile write, so selections take no lock and each one sees a
+ * single version of the campaigns, the one its {@link Candidates} refer to.
+ */
+public class CampaignSelector {
+	private final SwappedIndex<Campaign, CampaignIndex> index = new SwappedIndex<>(CampaignIndex::new);
+
+	public CampaignSelector() {
+	}
+
+	public CampaignSelector(Collection<Campaign> campaigns) {
+		update(campaigns);
+	}
+
+	/**
+	 * Replaces the campaigns. Selections in progress finish with the
+	 * previous ones.
+	 *
+	 * @return the new index
+	 * @throws IllegalArgumentException
+	 *             if two campaigns have the same id; the campaigns are not
+	 *             replaced
+	 */
+	public CampaignIndex update(Collection<Campaign> campaigns) {
+		return index.update(campaigns);
+	}
+
+	public CampaignIndex getIndex() {
+		return index.get();
+	}
+
+	/**
+	 * Selects the campaigns that can serve {@code imp} from the current
+	 * index.
+	 *
+	 * @return {@code candidates}
+	 */
+	public Candidates select(Imp imp, Candidates candidates) {
+		return index.get().select(imp, candidates);
+	}
+}
@@ -0,0 +1,171 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Verifies client API tokens, {@code SHA1(clientKey|timestamp)} as uppercase
+ * hex (see {@link Sha1Encryptor#encryptToHex(CharSequence, long, char[], int)}).
+ * <p>
+ * A token is accepted if its timestamp (in seconds) is within
+ * {@code maxSkewSeconds} of the current time and it matches the recomputed
+ * digest, compared in constant time. Verified tokens are cached until their
+ * timestamp leaves the window, so a client that repeats its token costs a
+ * hash lookup instead of a SHA-1. Rejections are never cached. Thread-safe.
+ */
+public class ClientTokenVerifier {
+	public enum Result {
+		VERIFIED,
+		/** The client id is not known. */
+		UNKNOWN_CLIENT,
+		/** The timestamp is outside the allowed skew window. */
+		EXPIRED,
+		/** The token does not match the digest. */
+		INVALID
+	}
+
+	private static final ThreadLocal<char[]> expectedTokens = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[Sha1Encryptor.HEX_SIZE];
+		}
+	};
+
+	private final Function<String, String> clientKeys;
+	private final long maxSkewSeconds;
+	private final Sha1Encryptor sha1 = new Sha1Encryptor();
+	private final Cache<VerifiedToken, Boolean> verifiedTokens;
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * @param clientKeys
+	 *            resolves a client id to its key, or to null if unknown
+	 * @param maxSkewSeconds
+	 *            accepted distance between a token timestamp and the current
+	 *            time
+	 * @param cacheSize
+	 *            maximum number of verified tokens kept
+	 */
+	public ClientTokenVerifier(Function<String, String> clientKeys, long maxSkewSeconds, int cacheSize) {
+		checkArgument(maxSkewSeconds >= 0, "Invalid skew: %s", maxSkewSeconds);
+		this.clientKeys = checkNotNull(clientKeys);
+		this.maxSkewSeconds = maxSkewSeconds;
+		// A token cannot be accepted for longer than the whole window.
+		this.verifiedTokens = CacheBuilder.newBuilder().maximumSize(cacheSize)
+				.expireAfterWrite(2 * maxSkewSeconds + 1, TimeUnit.SECONDS).recordStats().build();
+	}
+
+	public Result verify(String clientId, long timestamp, CharSequence token) {
+		return verify(clientId, timestamp, token, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+	}
+
+	/**
+	 * @param timestamp
+	 *            token timestamp, in seconds
+	 * @param nowSeconds
+	 *            current time, in seconds
+	 */
+	public Result verify(String clientId, long timestamp, CharSequence token, long nowSeconds) {
+		// Checked before the cache, so cached tokens expire with the window.
+		// Bounds saturate, as nowSeconds - timestamp may overflow.
+		long earliest = nowSeconds < Long.MIN_VALUE + maxSkewSeconds ? Long.MIN_VALUE : nowSeconds - maxSkewSeconds;
+		long latest = nowSeconds > Long.MAX_VALUE - maxSkewSeconds ? Long.MAX_VALUE : nowSeconds + maxSkewSeconds;
+		if (timestamp < earliest || timestamp > latest) {
+			rejected.increment();
+			return Result.EXPIRED;
+		}
+		if (clientId == null || token == null || token.length() != Sha1Encryptor.HEX_SIZE) {
+			rejected.increment();
+			return Result.INVALID;
+		}
+
+		VerifiedToken key = new VerifiedToken(clientId, timestamp, token.toString());
+		if (verifiedTokens.getIfPresent(key) != null) {
+			return Result.VERIFIED;
+		}
+
+		String clientKey = clientKeys.apply(clientId);
+		if (clientKey == null) {
+			rejected.increment();
+			return Result.UNKNOWN_CLIENT;
+		}
+
+		char[] expected = expectedTokens.get();
+		sha1.encryptToHex(clientKey, timestamp, expected, 0);
+		if (!constantTimeEquals(expected, token)) {
+			rejected.increment();
+			return Result.INVALID;
+		}
+
+		verifiedTokens.put(key, Boolean.TRUE);
+		return Result.VERIFIED;
+	}
+
+	/**
+	 * Drops the cached tokens of a client, such as after its key changed.
+	 */
+	public void invalidate(String clientId) {
+		for (Iterator<VerifiedToken> it = verifiedTokens.asMap().keySet().iterator(); it.hasNext();) {
+			if (it.next().clientId.equals(clientId)) {
+				it.remove();
+			}
+		}
+	}
+
+	public CacheStats getCacheStats() {
+		return verifiedTokens.stats();
+	}
+
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Compares without an early exit, so the time taken does not reveal how
+	 * many leading chars match.
+	 */
+	private static boolean constantTimeEquals(char[] expected, CharSequence token) {
+		int diff = 0;
+		for (int i = 0; i < expected.length; ++i) {
+			diff |= expected[i] ^ token.charAt(i);
+		}
+		return diff == 0;
+	}
+
+	private static final class VerifiedToken {
+		final String clientId;
+		final long timestamp;
+		final String token;
+
+		VerifiedToken(String clientId, long timestamp, String token) {
+			this.clientId = clientId;
+			this.timestamp = timestamp;
+			this.token = token;
+		}
+
+		@Override
+		public int hashCode() {
+			return (clientId.hashCode() * 31 + Long.hashCode(timestamp)) * 31 + token.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this) {
+				return true;
+			} else if (!(obj instanceof VerifiedToken)) {
+				return false;
+			}
+			VerifiedToken other = (VerifiedToken) obj;
+			return timestamp == other.timestamp && clientId.equals(other.clientId) && token.equals(other.token);
+		}
+	}
+}
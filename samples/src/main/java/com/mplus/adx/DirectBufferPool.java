@@ -0,0 +1,88 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct {@link ByteBuffer}s of one size, for buffers handed to
+ * channels.
+ * <p>
+ * The size grows to fit the largest buffer asked for, and released buffers
+ * smaller than the current size are dropped, so a pool sized by its traffic
+ * stops allocating. Thread-safe.
+ */
+public final class DirectBufferPool {
+	private final BlockingQueue<ByteBuffer> idle;
+	private volatile int bufferSize;
+	private final LongAdder allocations = new LongAdder();
+
+	/**
+	 * @param bufferSize
+	 *            initial capacity of the buffers
+	 * @param maxIdle
+	 *            buffers kept for reuse; more released buffers are dropped
+	 */
+	public DirectBufferPool(int bufferSize, int maxIdle) {
+		checkArgument(bufferSize > 0, "bufferSize must be positive: %s", bufferSize);
+		checkArgument(maxIdle > 0, "maxIdle must be positive: %s", maxIdle);
+		this.bufferSize = bufferSize;
+		this.idle = new ArrayBlockingQueue<>(maxIdle);
+	}
+
+	/**
+	 * Returns a cleared buffer of the pool size.
+	 */
+	public ByteBuffer acquire() {
+		return acquire(0);
+	}
+
+	/**
+	 * Returns a cleared buffer of at least {@code minCapacity} bytes, growing
+	 * the pool size to the next power of two if needed.
+	 */
+	public ByteBuffer acquire(int minCapacity) {
+		checkArgument(minCapacity >= 0, "minCapacity must not be negative: %s", minCapacity);
+		int size = bufferSize;
+		if (minCapacity > size) {
+			size = Math.max(size, Integer.highestOneBit(minCapacity - 1) << 1);
+			bufferSize = size;
+		}
+		for (ByteBuffer buffer = idle.poll(); buffer != null; buffer = idle.poll()) {
+			if (buffer.capacity() >= size) {
+				return buffer;
+			}
+		}
+		allocations.increment();
+		return ByteBuffer.allocateDirect(size);
+	}
+
+	/**
+	 * Gives back a buffer from {@link #acquire()}. It must not be used
+	 * afterwards.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.isDirect() && buffer.capacity() >= bufferSize) {
+			buffer.clear();
+			idle.offer(buffer);
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * Returns the number of buffers allocated because none was idle.
+	 */
+	public long getAllocationCount() {
+		return allocations.sum();
+	}
+}
@@ -1,16 +1,33 @@
 package com.mplus.adx;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public class FileHelper {
+	/** 数组的最大长度，部分虚拟机在数组头部保留了几个字 */
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	/** 每次从通道读取的最大字节数，使 JDK 的临时直接缓冲区保持较小 */
+	private static final int READ_CHUNK = 1 << 20;
+
 	public static ArrayList<String> readLines(String filePath, String encoding) throws IOException {
 		ArrayList<String> lines = new ArrayList<>();
 		try (FileInputStream input = new FileInputStream(filePath);
@@ -24,32 +41,208 @@ public class FileHelper {
 		return lines;
 	}
 
+	/**
+	 * 逐行读取文件，内存占用与文件大小无关；使用完毕后须关闭返回的流
+	 *
+	 * <pre>
+	 * try (Stream&lt;String&gt; lines = FileHelper.lines(path, "UTF-8")) {
+	 * 	lines.forEach(...);
+	 * }
+	 * </pre>
+	 *
+	 * @param filePath
+	 *            被读取的文件路径
+	 * @param encoding
+	 *            文件编码
+	 * @return 文件各行组成的流，读取出错时抛出 {@link UncheckedIOException}
+	 * @throws IOException
+	 */
+	public static Stream<String> lines(String filePath, String encoding) throws IOException {
+		BufferedReader br = newReader(filePath, encoding);
+		return br.lines().onClose(() -> {
+			try {
+				br.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/**
+	 * 打开文件的逐行迭代器，内存占用与文件大小无关
+	 *
+	 * @param filePath
+	 *            被读取的文件路径
+	 * @param encoding
+	 *            文件编码
+	 * @return 迭代器，使用完毕后须关闭
+	 * @throws IOException
+	 */
+	public static LineIterator lineIterator(String filePath, String encoding) throws IOException {
+		return new LineIterator(newReader(filePath, encoding));
+	}
+
+	/**
+	 * 与 {@link #readLines(String, String)} 一样，无法解码的字节被替换而不报错
+	 */
+	private static BufferedReader newReader(String filePath, String encoding) throws IOException {
+		FileInputStream input = new FileInputStream(filePath);
+		try {
+			return new BufferedReader(new InputStreamReader(input, encoding));
+		} catch (IOException e) {
+			input.close();
+			throw e;
+		}
+	}
+
 	/**
 	 * 读取指定路径文件中所有的字节
-	 * 
+	 *
+	 * 按文件长度一次分配结果数组，通过 NIO 通道直接读入，不再经过 ByteArrayOutputStream 复制两次
+	 *
 	 * @param filePath
 	 *            被读取的文件路径
 	 * @return 读取的文件中的所有字节
 	 * @throws IOException
 	 */
 	public static byte[] readBytes(String filePath) throws IOException {
-		byte[] result = null;
-		try (FileInputStream inputStream = new FileInputStream(filePath)) {
-			try (ByteArrayOutputStream outStream = new ByteArrayOutputStream()) {
-				byte[] data = new byte[1024];
-				int count = -1;
-				while ((count = inputStream.read(data)) != -1) {
-					outStream.write(data, 0, count);
+		try (FileChannel channel = FileChannel.open(Paths.get(filePath))) {
+			long size = channel.size();
+			if (size > MAX_ARRAY_SIZE) {
+				throw new IOException("File too large to read into an array: " + filePath + ", " + size + " bytes");
+			}
+			byte[] result = new byte[(int) size];
+			ByteBuffer buffer = ByteBuffer.wrap(result);
+			while (buffer.position() < result.length) {
+				((Buffer) buffer).limit(Math.min(result.length, buffer.position() + READ_CHUNK));
+				if (channel.read(buffer) < 0) {
+					// 文件在读取过程中被截短
+					return Arrays.copyOf(result, buffer.position());
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * 将整个文件只读映射到内存，不复制文件内容；适合读取大文件
+	 *
+	 * @param filePath
+	 *            被映射的文件路径
+	 * @return 文件的只读映射，关闭文件后仍然有效
+	 * @throws IOException
+	 *             文件超过 2GB 时请使用 {@link #mapChunks(String, int)}
+	 */
+	public static MappedByteBuffer map(String filePath) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filePath))) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("File too large to map at once: " + filePath + ", " + size + " bytes");
+			}
+			return channel.map(MapMode.READ_ONLY, 0, size);
+		}
+	}
+
+	/**
+	 * 将文件按块只读映射到内存，每块约 {@code chunkSize} 字节，并延伸到下一个换行符为止，
+	 * 使每一行都完整地落在一个块中；可用于并行处理大文件
+	 *
+	 * @param filePath
+	 *            被映射的文件路径
+	 * @param chunkSize
+	 *            每块的最小字节数，最后一块除外
+	 * @return 按文件顺序排列的各块映射
+	 * @throws IOException
+	 *             某一行超过 2GB 时
+	 */
+	public static List<MappedByteBuffer> mapChunks(String filePath, int chunkSize) throws IOException {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+		}
+		List<MappedByteBuffer> chunks = new ArrayList<>();
+		try (FileChannel channel = FileChannel.open(Paths.get(filePath))) {
+			long size = channel.size();
+			ByteBuffer probe = ByteBuffer.allocate(8 * 1024);
+			for (long start = 0; start < size;) {
+				long end = Math.min(size, start + chunkSize);
+				// 延伸到下一个换行符之后
+				while (end < size) {
+					boolean found = endsLine(channel, end, probe);
+					end += probe.limit();
+					if (found || probe.limit() == 0) {
+						break;
+					}
+				}
+				if (end - start > Integer.MAX_VALUE) {
+					throw new IOException("Line too long to map: " + filePath + " at " + start);
 				}
+				chunks.add(channel.map(MapMode.READ_ONLY, start, end - start));
+				start = end;
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * 在 {@code position} 处读取一段内容，查找换行符
+	 *
+	 * @return true 表示找到换行符，此时 {@code probe} 的 limit 为换行符之后的偏移；
+	 *         否则 limit 为已读取的字节数
+	 */
+	private static boolean endsLine(FileChannel channel, long position, ByteBuffer probe) throws IOException {
+		((Buffer) probe).clear();
+		channel.read(probe, position);
+		((Buffer) probe).flip();
+		for (int i = 0; i < probe.limit(); ++i) {
+			if (probe.get(i) == '\n') {
+				((Buffer) probe).limit(i + 1);
+				return true;
+			}
+		}
+		return false;
+	}
 
-				data = null;
-				result = outStream.toByteArray();
-				outStream.flush();
+	/**
+	 * 逐行遍历缓冲区从 position 到 limit 的内容，不复制、不解码；行不含结尾的
+	 * {@code \n} 或 {@code \r\n}。缓冲区的 position 不变
+	 *
+	 * @param buffer
+	 *            例如 {@link #map(String)} 返回的映射
+	 * @param action
+	 *            接收每一行，传入的 {@link ByteSlice} 在下一行时被复用
+	 * @return 行数
+	 */
+	public static long forEachLine(ByteBuffer buffer, Consumer<ByteSlice> action) {
+		ByteSlice line = new ByteSlice();
+		long count = 0;
+		int start = buffer.position();
+		int limit = buffer.limit();
+		for (int i = start; i < limit; ++i) {
+			if (buffer.get(i) == '\n') {
+				int end = i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+				action.accept(line.set(buffer, start, end - start));
+				++count;
+				start = i + 1;
 			}
 		}
-		return result;
+		if (start < limit) {
+			action.accept(line.set(buffer, start, limit - start));
+			++count;
+		}
+		return count;
 	}
 
+	/**
+	 * 列出目录下的文件
+	 *
+	 * @param path
+	 *            目录路径
+	 * @param recursive
+	 *            是否扫描子目录
+	 * @param filter
+	 *            只过滤文件，不过滤子目录；为 null 时列出所有文件
+	 * @return 文件的绝对路径，按目录排序；目录不存在时返回 null
+	 */
 	public static List<String> getAllFileAbsolutePath(String path, final boolean recursive, FileFilter filter) {
 		File dir = new File(path);
 		// 如果不存在或者 也不是目录就直接返回
@@ -57,17 +250,63 @@ public class FileHelper {
 			return null;
 		}
 		List<String> filePaths = new ArrayList<>();
-		File[] dirfiles = dir.listFiles(filter);
+		File[] dirfiles = dir.listFiles();
+		if (dirfiles == null) {
+			return filePaths;
+		}
+		Arrays.sort(dirfiles);
 		for (File file : dirfiles) {
-			// 如果是目录 则继续扫描
+			// 如果是目录 则继续扫描，并收集子目录中的文件
 			if (file.isDirectory()) {
-				getAllFileAbsolutePath(file.getAbsolutePath(), recursive, filter);
-			} else {
-				// 如果是java类文件 去掉后面的.class 只留下类名
+				List<String> subPaths = recursive ? getAllFileAbsolutePath(file.getAbsolutePath(), recursive, filter)
+						: null;
+				if (subPaths != null) {
+					filePaths.addAll(subPaths);
+				}
+			} else if (filter == null || filter.accept(file)) {
 				filePaths.add(file.getAbsolutePath());
 			}
 		}
 
 		return filePaths;
 	}
+
+	/**
+	 * 逐行读取的迭代器，每次只在内存中保留一行
+	 */
+	public static final class LineIterator implements Iterator<String>, Closeable {
+		private final BufferedReader reader;
+		private String next;
+
+		LineIterator(BufferedReader reader) {
+			this.reader = reader;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null) {
+				try {
+					next = reader.readLine();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public String next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			String line = next;
+			next = null;
+			return line;
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
 }
@@ -0,0 +1,573 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.mplus.adx.UnifiedBidRequest.Device;
+
+/**
+ * Impression counts and last impression time per device and campaign, for
+ * frequency capping and recency, held off the heap.
+ * <p>
+ * Devices are keyed by a 64-bit hash of their best identifier, see
+ * {@link #deviceKey(Device)}. Each (device, campaign) pair has a fixed-width
+ * slot in an open-addressing table with linear probing, in direct
+ * {@link ByteBuffer}s: the garbage collector sees a few buffers whatever the
+ * number of devices. A slot counts impressions in a ring of
+ * {@code bucketCount} time buckets of {@code bucketMillis}, as unsigned
+ * shorts, so caps over any window up to {@code bucketCount * bucketMillis}
+ * are sums of buckets; stale buckets are cleared as time moves on.
+ * <p>
+ * The table is split in segments, each with its own lock, chosen by the hash
+ * of the pair. Pairs without an impression for {@code ttlMillis} are
+ * expired: they count as absent, and {@link #purgeExpired(long)} frees their
+ * slots, as does an insertion into a full segment once one of its pairs may
+ * have expired. If a segment is still full, the impression is not recorded
+ * and {@link #record} returns false.
+ * <p>
+ * {@link #snapshot(Path)} copies the table to a memory-mapped file, and
+ * {@link #load(Path)} restores it, so that caps survive a restart.
+ * <p>
+ * Slot layout, big-endian:
+ *
+ * <pre>
+ * 0   long  device key, 0 if the slot is empty
+ * 8   long  campaign id
+ * 16  long  time of the last impression, in milliseconds
+ * 24  unsigned short[bucketCount] impressions per bucket
+ * </pre>
+ */
+public final class FrequencyCapStore {
+	private static Logger log = Logger.getLogger(FrequencyCapStore.class);
+
+	public static final int DEFAULT_BUCKET_COUNT = 20;
+
+	private static final int MAGIC = 0x4D504643; // MPFC
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 64;
+	private static final int MAX_SEGMENTS = 256;
+	private static final int MIN_SEGMENT_SLOTS = 1024;
+	/** Load factor above which a segment refuses new pairs. */
+	private static final double MAX_LOAD = 0.75;
+
+	private static final int DEVICE = 0;
+	private static final int CAMPAIGN = 8;
+	private static final int LAST = 16;
+	private static final int BUCKETS = 24;
+
+	/** Device id fields of {@link Device}, the best first. */
+	private static final int[] DEVICE_IDS = { Device.IFA_FIELD_NUMBER, Device.IMEI_FIELD_NUMBER,
+			Device.ANID_FIELD_NUMBER, Device.DPIDSHA1_FIELD_NUMBER, Device.DIDSHA1_FIELD_NUMBER,
+			Device.DPIDMD5_FIELD_NUMBER, Device.DIDMD5_FIELD_NUMBER, Device.MACSHA1_FIELD_NUMBER,
+			Device.MACMD5_FIELD_NUMBER, Device.MAC_FIELD_NUMBER };
+
+	private final int bucketCount;
+	private final long bucketMillis;
+	private final long ttlMillis;
+	private final int slotBytes;
+	private final int segmentSlots;
+	private final int maxSegmentSize;
+	private final Segment[] segments;
+	private final LongAdder rejectedCount = new LongAdder();
+
+	/**
+	 * @param capacity
+	 *            number of (device, campaign) pairs to hold
+	 * @param bucketCount
+	 *            number of time buckets of a pair
+	 * @param bucketMillis
+	 *            length of a time bucket
+	 * @param ttlMillis
+	 *            time after its last impression when a pair expires
+	 */
+	public FrequencyCapStore(long capacity, int bucketCount, long bucketMillis, long ttlMillis) {
+		checkArgument(capacity > 0, "Invalid capacity: %s", capacity);
+		checkArgument(bucketCount > 0 && bucketCount <= 1024, "Invalid bucket count: %s", bucketCount);
+		checkArgument(bucketMillis > 0, "Invalid bucket length: %s", bucketMillis);
+		checkArgument(ttlMillis > 0, "Invalid ttl: %s", ttlMillis);
+		this.bucketCount = bucketCount;
+		this.bucketMillis = bucketMillis;
+		this.ttlMillis = ttlMillis;
+		this.slotBytes = (BUCKETS + 2 * bucketCount + 7) & ~7;
+		long slots = Long.highestOneBit((long) Math.ceil(capacity / MAX_LOAD) * 2 - 1);
+		int segmentCount = (int) Math.max(1, Math.min(MAX_SEGMENTS, slots / MIN_SEGMENT_SLOTS));
+		checkArgument(slots / segmentCount * slotBytes <= Integer.MAX_VALUE, "Capacity too large: %s", capacity);
+		this.segmentSlots = (int) (slots / segmentCount);
+		this.maxSegmentSize = (int) (segmentSlots * MAX_LOAD);
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; ++i) {
+			segments[i] = new Segment(ByteBuffer.allocateDirect(segmentSlots * slotBytes));
+		}
+	}
+
+	/**
+	 * Returns the key of the best identifier of {@code device}, in the order
+	 * of {@code ifa}, {@code imei}, {@code anid}, {@code dpidsha1},
+	 * {@code didsha1}, {@code dpidmd5}, {@code didmd5}, {@code macsha1},
+	 * {@code macmd5} and {@code mac}: a 64-bit hash of its bytes, ignoring
+	 * ASCII case, and of its kind. Returns 0 if the device has none.
+	 */
+	public static long deviceKey(Device device) {
+		if (device == null) {
+			return 0;
+		}
+		for (int field : DEVICE_IDS) {
+			if (device.has(field)) {
+				ByteSlice id = deviceId(device, field);
+				if (!id.isEmpty()) {
+					return hash(id, field);
+				}
+			}
+		}
+		return 0;
+	}
+
+	private static ByteSlice deviceId(Device device, int field) {
+		switch (field) {
+		case Device.IFA_FIELD_NUMBER:
+			return device.getIfa();
+		case Device.IMEI_FIELD_NUMBER:
+			return device.getImei();
+		case Device.ANID_FIELD_NUMBER:
+			return device.getAnid();
+		case Device.DPIDSHA1_FIELD_NUMBER:
+			return device.getDpidsha1();
+		case Device.DIDSHA1_FIELD_NUMBER:
+			return device.getDidsha1();
+		case Device.DPIDMD5_FIELD_NUMBER:
+			return device.getDpidmd5();
+		case Device.DIDMD5_FIELD_NUMBER:
+			return device.getDidmd5();
+		case Device.MACSHA1_FIELD_NUMBER:
+			return device.getMacsha1();
+		case Device.MACMD5_FIELD_NUMBER:
+			return device.getMacmd5();
+		default:
+			return device.getMac();
+		}
+	}
+
+	/**
+	 * FNV-1a of the lower-case bytes, seeded with the kind of id, and mixed
+	 * as the finalizer of MurmurHash3; never 0.
+	 */
+	private static long hash(ByteSlice id, int kind) {
+		long h = 0xCBF29CE484222325L ^ kind;
+		for (int i = 0; i < id.length(); ++i) {
+			byte b = id.byteAt(i);
+			h = (h ^ (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b)) * 0x100000001B3L;
+		}
+		h = mix(h);
+		return h == 0 ? 1 : h;
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		return h ^ h >>> 33;
+	}
+
+	private static long pairHash(long deviceKey, long campaignId) {
+		return mix(deviceKey ^ campaignId * 0x9E3779B97F4A7C15L);
+	}
+
+	private Segment segment(long hash) {
+		return segments[(int) ((hash >>> 32) & (segments.length - 1))];
+	}
+
+	/**
+	 * Records an impression of {@code campaignId} on the device at
+	 * {@code nowMillis}.
+	 *
+	 * @return false if the store is full and the impression was not
+	 *         recorded, or if it is older than the buckets
+	 */
+	public boolean record(long deviceKey, long campaignId, long nowMillis) {
+		checkDevice(deviceKey);
+		long hash = pairHash(deviceKey, campaignId);
+		Segment segment = segment(hash);
+		segment.lock.lock();
+		try {
+			int slot = segment.find(hash, deviceKey, campaignId);
+			if (slot < 0) {
+				slot = segment.insert(hash, deviceKey, campaignId, nowMillis);
+				if (slot < 0) {
+					rejectedCount.increment();
+					return false;
+				}
+			} else if (segment.isExpired(slot, nowMillis)) {
+				segment.clearBuckets(slot);
+				segment.buffer.putLong(slot + LAST, nowMillis);
+			}
+			return segment.increment(slot, nowMillis);
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the impressions of {@code campaignId} on the device in the
+	 * window of {@code windowMillis} up to {@code nowMillis}, rounded up to
+	 * whole buckets, and at most {@code bucketCount} buckets.
+	 */
+	public int count(long deviceKey, long campaignId, long windowMillis, long nowMillis) {
+		checkDevice(deviceKey);
+		long hash = pairHash(deviceKey, campaignId);
+		Segment segment = segment(hash);
+		segment.lock.lock();
+		try {
+			int slot = segment.find(hash, deviceKey, campaignId);
+			if (slot < 0 || segment.isExpired(slot, nowMillis)) {
+				return 0;
+			}
+			return segment.sum(slot, windowMillis, nowMillis);
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns whether the device has seen {@code campaignId} at least
+	 * {@code cap} times in the window.
+	 */
+	public boolean isCapped(long deviceKey, long campaignId, int cap, long windowMillis, long nowMillis) {
+		return count(deviceKey, campaignId, windowMillis, nowMillis) >= cap;
+	}
+
+	/**
+	 * Returns the time of the last impression of {@code campaignId} on the
+	 * device, or -1 if there is none or it has expired.
+	 */
+	public long getLastImpression(long deviceKey, long campaignId, long nowMillis) {
+		checkDevice(deviceKey);
+		long hash = pairHash(deviceKey, campaignId);
+		Segment segment = segment(hash);
+		segment.lock.lock();
+		try {
+			int slot = segment.find(hash, deviceKey, campaignId);
+			return slot < 0 || segment.isExpired(slot, nowMillis) ? -1 : segment.buffer.getLong(slot + LAST);
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	private static void checkDevice(long deviceKey) {
+		if (deviceKey == 0) {
+			throw new IllegalArgumentException("No device key");
+		}
+	}
+
+	/**
+	 * Frees the slots of the expired pairs.
+	 *
+	 * @return the number of pairs removed
+	 */
+	public int purgeExpired(long nowMillis) {
+		int removed = 0;
+		for (Segment segment : segments) {
+			segment.lock.lock();
+			try {
+				removed += segment.purge(nowMillis);
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Returns the number of pairs held, expired ones included until purged.
+	 */
+	public long size() {
+		long size = 0;
+		for (Segment segment : segments) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the number of impressions not recorded as the store was full.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+
+	/**
+	 * Returns the bytes of off-heap memory of the table.
+	 */
+	public long getMemoryBytes() {
+		return (long) segments.length * segmentSlots * slotBytes;
+	}
+
+	/**
+	 * Writes the table to {@code file}, through a memory mapping of a
+	 * temporary file then renamed, so that a crash leaves the previous
+	 * snapshot whole. Segments are copied one at a time, under their lock.
+	 */
+	public void snapshot(Path file) throws IOException {
+		long start = System.nanoTime();
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		long segmentBytes = (long) segmentSlots * slotBytes;
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedByteBuffer header = channel.map(MapMode.READ_WRITE, 0, HEADER_BYTES);
+			header.putInt(MAGIC).putInt(VERSION).putInt(segments.length).putInt(segmentSlots).putInt(bucketCount)
+					.putInt(slotBytes).putLong(bucketMillis).putLong(ttlMillis);
+			header.force();
+			for (int i = 0; i < segments.length; ++i) {
+				MappedByteBuffer mapped = channel.map(MapMode.READ_WRITE, HEADER_BYTES + i * segmentBytes,
+						segmentBytes);
+				Segment segment = segments[i];
+				segment.lock.lock();
+				try {
+					ByteBuffer source = segment.buffer.duplicate();
+					((Buffer) source).clear();
+					mapped.put(source);
+				} finally {
+					segment.lock.unlock();
+				}
+				mapped.force();
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		log.info(String.format("Wrote %s pairs to %s in %s ms", size(), file, (System.nanoTime() - start) / 1_000_000));
+	}
+
+	/**
+	 * Restores a store from a file written by {@link #snapshot(Path)}, with
+	 * the capacity, buckets and ttl it had.
+	 *
+	 * @throws IOException
+	 *             if the file is not a snapshot, or is truncated
+	 */
+	public static FrequencyCapStore load(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_BYTES) {
+				throw new IOException("Not a frequency cap snapshot: " + file);
+			}
+			MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_BYTES);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException("Not a frequency cap snapshot: " + file);
+			}
+			int segmentCount = header.getInt();
+			int segmentSlots = header.getInt();
+			int bucketCount = header.getInt();
+			int slotBytes = header.getInt();
+			long bucketMillis = header.getLong();
+			long ttlMillis = header.getLong();
+			FrequencyCapStore store = new FrequencyCapStore((long) (segmentCount * (long) segmentSlots * MAX_LOAD),
+					bucketCount, bucketMillis, ttlMillis);
+			if (store.segments.length != segmentCount || store.segmentSlots != segmentSlots
+					|| store.slotBytes != slotBytes) {
+				throw new IOException("Unsupported frequency cap snapshot layout: " + file);
+			}
+			long segmentBytes = (long) segmentSlots * slotBytes;
+			if (channel.size() < HEADER_BYTES + segmentCount * segmentBytes) {
+				throw new IOException("Truncated frequency cap snapshot: " + file);
+			}
+			for (int i = 0; i < segmentCount; ++i) {
+				Segment segment = store.segments[i];
+				segment.buffer.put(channel.map(MapMode.READ_ONLY, HEADER_BYTES + i * segmentBytes, segmentBytes));
+				((Buffer) segment.buffer).clear();
+				segment.recount();
+			}
+			log.info(String.format("Loaded %s pairs from %s", store.size(), file));
+			return store;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s pairs in %s segments of %s slots, %s MB off-heap, %s buckets of %s ms", size(),
+				segments.length, segmentSlots, getMemoryBytes() >> 20, bucketCount, bucketMillis);
+	}
+
+	/**
+	 * A part of the table with its own lock; offsets are in bytes.
+	 */
+	private final class Segment {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final ByteBuffer buffer;
+		private final int mask = segmentSlots - 1;
+		private int size;
+		/**
+		 * No pair expires before this time, as of the last purge; a full
+		 * segment is not scanned again until then.
+		 */
+		private long nextExpiryMillis = Long.MIN_VALUE;
+
+		Segment(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		private int home(long hash) {
+			return ((int) hash & mask) * slotBytes;
+		}
+
+		private int nextSlot(int slot) {
+			slot += slotBytes;
+			return slot == segmentSlots * slotBytes ? 0 : slot;
+		}
+
+		/**
+		 * Returns the slot of the pair, or -1.
+		 */
+		int find(long hash, long deviceKey, long campaignId) {
+			for (int slot = home(hash);; slot = nextSlot(slot)) {
+				long key = buffer.getLong(slot + DEVICE);
+				if (key == 0) {
+					return -1;
+				}
+				if (key == deviceKey && buffer.getLong(slot + CAMPAIGN) == campaignId) {
+					return slot;
+				}
+			}
+		}
+
+		/**
+		 * Adds a pair, purging the expired ones first if the segment is
+		 * full and some may have expired.
+		 *
+		 * @return its slot, or -1 if the segment is full
+		 */
+		int insert(long hash, long deviceKey, long campaignId, long nowMillis) {
+			if (size >= maxSegmentSize && (nowMillis < nextExpiryMillis || purge(nowMillis) == 0)) {
+				return -1;
+			}
+			int slot = home(hash);
+			while (buffer.getLong(slot + DEVICE) != 0) {
+				slot = nextSlot(slot);
+			}
+			buffer.putLong(slot + DEVICE, deviceKey);
+			buffer.putLong(slot + CAMPAIGN, campaignId);
+			buffer.putLong(slot + LAST, nowMillis);
+			clearBuckets(slot);
+			++size;
+			nextExpiryMillis = Math.min(nextExpiryMillis, nowMillis + ttlMillis);
+			return slot;
+		}
+
+		boolean isExpired(int slot, long nowMillis) {
+			return buffer.getLong(slot + LAST) + ttlMillis <= nowMillis;
+		}
+
+		void clearBuckets(int slot) {
+			for (int i = 0; i < bucketCount; ++i) {
+				buffer.putShort(slot + BUCKETS + 2 * i, (short) 0);
+			}
+		}
+
+		private int bucketOffset(int slot, long bucket) {
+			return slot + BUCKETS + 2 * (int) Math.floorMod(bucket, (long) bucketCount);
+		}
+
+		/**
+		 * Counts an impression in its bucket, clearing the buckets the ring
+		 * moves past.
+		 */
+		boolean increment(int slot, long nowMillis) {
+			long last = buffer.getLong(slot + LAST);
+			long lastBucket = Math.floorDiv(last, bucketMillis);
+			long bucket = Math.floorDiv(nowMillis, bucketMillis);
+			if (bucket > lastBucket) {
+				for (long b = Math.max(lastBucket + 1, bucket - bucketCount + 1); b <= bucket; ++b) {
+					buffer.putShort(bucketOffset(slot, b), (short) 0);
+				}
+				buffer.putLong(slot + LAST, nowMillis);
+			} else if (bucket <= lastBucket - bucketCount) {
+				// older than the ring
+				return false;
+			} else if (nowMillis > last) {
+				buffer.putLong(slot + LAST, nowMillis);
+			}
+			int offset = bucketOffset(slot, bucket);
+			char count = buffer.getChar(offset);
+			if (count < Character.MAX_VALUE) {
+				buffer.putChar(offset, (char) (count + 1));
+			}
+			return true;
+		}
+
+		int sum(int slot, long windowMillis, long nowMillis) {
+			long lastBucket = Math.floorDiv(buffer.getLong(slot + LAST), bucketMillis);
+			long bucket = Math.floorDiv(nowMillis, bucketMillis);
+			long windowBuckets = Math.max(1, (windowMillis + bucketMillis - 1) / bucketMillis);
+			long from = Math.max(bucket - windowBuckets + 1, lastBucket - bucketCount + 1);
+			long to = Math.min(bucket, lastBucket);
+			int sum = 0;
+			for (long b = from; b <= to; ++b) {
+				sum += buffer.getChar(bucketOffset(slot, b));
+			}
+			return sum;
+		}
+
+		/**
+		 * Removes the expired pairs, shifting back the pairs that probed
+		 * past them, and notes when the first of the others expires.
+		 */
+		int purge(long nowMillis) {
+			int removed = 0;
+			long nextExpiry = Long.MAX_VALUE;
+			for (int slot = 0; slot < segmentSlots * slotBytes; slot += slotBytes) {
+				while (buffer.getLong(slot + DEVICE) != 0 && isExpired(slot, nowMillis)) {
+					delete(slot);
+					++removed;
+				}
+				if (buffer.getLong(slot + DEVICE) != 0) {
+					nextExpiry = Math.min(nextExpiry, buffer.getLong(slot + LAST) + ttlMillis);
+				}
+			}
+			size -= removed;
+			nextExpiryMillis = nextExpiry;
+			return removed;
+		}
+
+		private void delete(int hole) {
+			for (int slot = nextSlot(hole);; slot = nextSlot(slot)) {
+				long key = buffer.getLong(slot + DEVICE);
+				if (key == 0) {
+					break;
+				}
+				int home = home(pairHash(key, buffer.getLong(slot + CAMPAIGN)));
+				// the pair stays if its home is cyclically in (hole, slot]
+				boolean stays = hole <= slot ? hole < home && home <= slot : hole < home || home <= slot;
+				if (!stays) {
+					for (int i = 0; i < slotBytes; i += 8) {
+						buffer.putLong(hole + i, buffer.getLong(slot + i));
+					}
+					hole = slot;
+				}
+			}
+			for (int i = 0; i < slotBytes; i += 8) {
+				buffer.putLong(hole + i, 0);
+			}
+		}
+
+		void recount() {
+			nextExpiryMillis = Long.MIN_VALUE;
+			size = 0;
+			for (int slot = 0; slot < segmentSlots * slotBytes; slot += slotBytes) {
+				if (buffer.getLong(slot + DEVICE) != 0) {
+					++size;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,353 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Arrays;
+
+import com.google.common.base.MoreObjects;
+import com.mplus.adx.UnifiedBidRequest.Geo;
+
+/**
+ * A geofence: a circle of a radius around a point, or a polygon of
+ * latitudes and longitudes, in the country and region it lies in. Immutable;
+ * create it with {@link #newBuilder(long)}.
+ * <p>
+ * Circles are measured on the sphere, with the haversine formula. Polygons
+ * are plane figures in latitude and longitude, which is accurate for the
+ * size of a city. Fences crossing the antimeridian or nearer than 5 degrees
+ * to a pole are not supported.
+ * <p>
+ * {@link #contains(Geo)} checks one fence; {@link GeoIndex} finds the fences
+ * of a point among many.
+ */
+public final class GeoFence {
+	/** Mean radius of the Earth, in meters. */
+	public static final double EARTH_RADIUS = 6_371_008.8;
+	private static final double MAX_LAT = 85;
+
+	private final long id;
+	private final double lat;
+	private final double lon;
+	private final double radius;
+	/** Latitudes and longitudes of the vertices of a polygon, or null. */
+	private final double[] lats;
+	private final double[] lons;
+	private final String country;
+	private final String region;
+	private final double minLat;
+	private final double maxLat;
+	private final double minLon;
+	private final double maxLon;
+
+	private GeoFence(Builder builder) {
+		this.id = builder.id;
+		this.lat = builder.lat;
+		this.lon = builder.lon;
+		this.radius = builder.radius;
+		this.lats = builder.lats;
+		this.lons = builder.lons;
+		this.country = builder.country;
+		this.region = builder.region;
+		if (lats == null) {
+			double dLat = Math.toDegrees(radius / EARTH_RADIUS);
+			minLat = lat - dLat;
+			maxLat = lat + dLat;
+			checkArgument(Math.max(-minLat, maxLat) < MAX_LAT, "Fence %s is too near a pole", id);
+			double dLon = dLat / Math.cos(Math.toRadians(Math.max(-minLat, maxLat)));
+			minLon = lon - dLon;
+			maxLon = lon + dLon;
+		} else {
+			minLat = Arrays.stream(lats).min().getAsDouble();
+			maxLat = Arrays.stream(lats).max().getAsDouble();
+			minLon = Arrays.stream(lons).min().getAsDouble();
+			maxLon = Arrays.stream(lons).max().getAsDouble();
+			checkArgument(Math.max(-minLat, maxLat) < MAX_LAT, "Fence %s is too near a pole", id);
+		}
+		checkArgument(minLon >= -180 && maxLon <= 180, "Fence %s crosses the antimeridian", id);
+	}
+
+	public static Builder newBuilder(long id) {
+		return new Builder(id);
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public boolean isCircle() {
+		return lats == null;
+	}
+
+	/**
+	 * Returns the country the fence lies in, such as {@code CHN}, or null.
+	 */
+	public String getCountry() {
+		return country;
+	}
+
+	/**
+	 * Returns the region of the country the fence lies in, or null if it is
+	 * not known.
+	 */
+	public String getRegion() {
+		return region;
+	}
+
+	public double getMinLat() {
+		return minLat;
+	}
+
+	public double getMaxLat() {
+		return maxLat;
+	}
+
+	public double getMinLon() {
+		return minLon;
+	}
+
+	public double getMaxLon() {
+		return maxLon;
+	}
+
+	/**
+	 * Returns whether the device of {@code geo} is in this fence: by its
+	 * coordinates if it has both, by its country and region otherwise, see
+	 * {@link #isIn(String, String)}.
+	 */
+	public boolean contains(Geo geo) {
+		if (geo.has(Geo.LAT_FIELD_NUMBER) && geo.has(Geo.LON_FIELD_NUMBER)) {
+			return contains(geo.getLat(), geo.getLon());
+		}
+		return geo.has(Geo.COUNTRY_FIELD_NUMBER)
+				&& isIn(geo.getCountry().toString(), geo.has(Geo.REGION_FIELD_NUMBER) ? geo.getRegion().toString() : null);
+	}
+
+	/**
+	 * Returns whether this point is in this fence, its boundary included.
+	 */
+	public boolean contains(double lat, double lon) {
+		if (lat < minLat || lat > maxLat || lon < minLon || lon > maxLon) {
+			return false;
+		}
+		if (lats == null) {
+			return distance(this.lat, this.lon, lat, lon) <= radius;
+		}
+		// crossings of a ray towards the east
+		boolean inside = false;
+		for (int i = 0, j = lats.length - 1; i < lats.length; j = i++) {
+			if ((lats[i] > lat) != (lats[j] > lat)
+					&& lon < lons[j] + (lons[i] - lons[j]) * (lat - lats[j]) / (lats[i] - lats[j])) {
+				inside = !inside;
+			}
+		}
+		return inside || onBoundary(lat, lon);
+	}
+
+	private boolean onBoundary(double lat, double lon) {
+		for (int i = 0, j = lats.length - 1; i < lats.length; j = i++) {
+			double cross = (lats[i] - lats[j]) * (lon - lons[j]) - (lons[i] - lons[j]) * (lat - lats[j]);
+			if (cross == 0 && lat >= Math.min(lats[i], lats[j]) && lat <= Math.max(lats[i], lats[j])
+					&& lon >= Math.min(lons[i], lons[j]) && lon <= Math.max(lons[i], lons[j])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether a device known only by its country and region is taken
+	 * to be in this fence: if the fence is in that country, and in that
+	 * region if the fence has one. This is coarser than coordinates, as the
+	 * fence may cover a small part of them. Ignores case.
+	 *
+	 * @param region
+	 *            null if unknown
+	 */
+	public boolean isIn(String country, String region) {
+		return this.country != null && this.country.equalsIgnoreCase(country)
+				&& (this.region == null || this.region.equalsIgnoreCase(region));
+	}
+
+	/**
+	 * Relation of a cell of latitudes and longitudes with a fence.
+	 */
+	enum Overlap {
+		/** No point of the cell is in the fence. */
+		NONE,
+		/** Some points of the cell may be in the fence. */
+		PARTIAL,
+		/** All points of the cell are in the fence. */
+		FULL
+	}
+
+	/**
+	 * Returns how the cell {@code [lat0, lat1] x [lon0, lon1]} overlaps this
+	 * fence, conservatively: {@link Overlap#PARTIAL} when in doubt.
+	 */
+	Overlap overlap(double lat0, double lat1, double lon0, double lon1) {
+		if (lat1 < minLat || lat0 > maxLat || lon1 < minLon || lon0 > maxLon) {
+			return Overlap.NONE;
+		}
+		return lats == null ? overlapCircle(lat0, lat1, lon0, lon1) : overlapPolygon(lat0, lat1, lon0, lon1);
+	}
+
+	/**
+	 * The distance to the center along a parallel grows with the difference
+	 * of longitude, and along a meridian it has a single minimum: so a cell
+	 * is in the circle if its corners are, and its nearest point is found by
+	 * clamping the longitude, then the latitude of that minimum.
+	 */
+	private Overlap overlapCircle(double lat0, double lat1, double lon0, double lon1) {
+		if (distance(lat, lon, lat0, lon0) <= radius && distance(lat, lon, lat0, lon1) <= radius
+				&& distance(lat, lon, lat1, lon0) <= radius && distance(lat, lon, lat1, lon1) <= radius) {
+			return Overlap.FULL;
+		}
+		double nearestLon = Math.max(lon0, Math.min(lon1, lon));
+		double phi = Math.toRadians(lat);
+		double nearestLat = Math.toDegrees(
+				Math.atan2(Math.sin(phi), Math.cos(phi) * Math.cos(Math.toRadians(nearestLon - lon))));
+		nearestLat = Math.max(lat0, Math.min(lat1, nearestLat));
+		return distance(lat, lon, nearestLat, nearestLon) > radius ? Overlap.NONE : Overlap.PARTIAL;
+	}
+
+	private Overlap overlapPolygon(double lat0, double lat1, double lon0, double lon1) {
+		for (int i = 0, j = lats.length - 1; i < lats.length; j = i++) {
+			if (crosses(lats[j], lons[j], lats[i], lons[i], lat0, lat1, lon0, lon1)) {
+				return Overlap.PARTIAL;
+			}
+		}
+		// no edge meets the cell: it is wholly inside or outside
+		return contains(lat0, lon0) ? Overlap.FULL : Overlap.NONE;
+	}
+
+	/**
+	 * Returns whether the segment from {@code (latA, lonA)} to
+	 * {@code (latB, lonB)} meets the cell.
+	 */
+	private static boolean crosses(double latA, double lonA, double latB, double lonB, double lat0, double lat1,
+			double lon0, double lon1) {
+		// clip the segment to the cell, Liang-Barsky
+		double t0 = 0;
+		double t1 = 1;
+		double dLat = latB - latA;
+		double dLon = lonB - lonA;
+		double[] p = { -dLon, dLon, -dLat, dLat };
+		double[] q = { lonA - lon0, lon1 - lonA, latA - lat0, lat1 - latA };
+		for (int i = 0; i < 4; ++i) {
+			if (p[i] == 0) {
+				if (q[i] < 0) {
+					return false;
+				}
+			} else {
+				double t = q[i] / p[i];
+				if (p[i] < 0) {
+					t0 = Math.max(t0, t);
+				} else {
+					t1 = Math.min(t1, t);
+				}
+				if (t0 > t1) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the great-circle distance between two points, in meters.
+	 */
+	public static double distance(double lat1, double lon1, double lat2, double lon2) {
+		double dLat = Math.toRadians(lat2 - lat1);
+		double dLon = Math.toRadians(lon2 - lon1);
+		double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(Math.toRadians(lat1))
+				* Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+		return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	@Override
+	public String toString() {
+		MoreObjects.ToStringHelper helper = MoreObjects.toStringHelper(this).add("id", id);
+		if (lats == null) {
+			helper.add("lat", lat).add("lon", lon).add("radius", radius);
+		} else {
+			helper.add("vertices", lats.length);
+		}
+		return helper.add("country", country).add("region", region).omitNullValues().toString();
+	}
+
+	public static final class Builder {
+		private final long id;
+		private double lat;
+		private double lon;
+		private double radius;
+		private double[] lats;
+		private double[] lons;
+		private String country;
+		private String region;
+
+		private Builder(long id) {
+			this.id = id;
+		}
+
+		/**
+		 * Makes the fence a circle.
+		 *
+		 * @param radius
+		 *            in meters
+		 */
+		public Builder circle(double lat, double lon, double radius) {
+			checkArgument(radius > 0, "Invalid radius: %s", radius);
+			this.lat = lat;
+			this.lon = lon;
+			this.radius = radius;
+			this.lats = null;
+			this.lons = null;
+			return this;
+		}
+
+		/**
+		 * Makes the fence a polygon.
+		 *
+		 * @param latLons
+		 *            latitude and longitude of each vertex, in order
+		 */
+		public Builder polygon(double... latLons) {
+			checkArgument(latLons.length >= 6 && latLons.length % 2 == 0, "Invalid polygon of %s coordinates",
+					latLons.length);
+			lats = new double[latLons.length / 2];
+			lons = new double[latLons.length / 2];
+			for (int i = 0; i < lats.length; ++i) {
+				lats[i] = latLons[2 * i];
+				lons[i] = latLons[2 * i + 1];
+			}
+			this.radius = 0;
+			return this;
+		}
+
+		/**
+		 * Sets the country the fence lies in, for devices without
+		 * coordinates.
+		 */
+		public Builder country(String country) {
+			this.country = checkNotNull(country);
+			return this;
+		}
+
+		/**
+		 * Sets the region the fence lies in, for devices without
+		 * coordinates.
+		 */
+		public Builder region(String region) {
+			this.region = checkNotNull(region);
+			return this;
+		}
+
+		public GeoFence build() {
+			checkState(radius > 0 || lats != null, "Fence %s is neither a circle nor a polygon", id);
+			checkState(region == null || country != null, "Fence %s has a region but no country", id);
+			return new GeoFence(this);
+		}
+	}
+}
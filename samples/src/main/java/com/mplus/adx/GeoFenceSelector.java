@@ -0,0 +1,53 @@
+package com.mplus.adx;
+
+import java.util.Collection;
+
+import com.mplus.adx.GeoIndex.Matches;
+import com.mplus.adx.UnifiedBidRequest.Geo;
+
+/**
+ * Tells which geofences contain a device, from the {@link GeoIndex} of the
+ * fences last loaded.
+ * <p>
+ * Fences are reloaded in bulk, as a new set of circles and polygons rather
+ * than edits of single fences, so a reload rebuilds the cells of all fences
+ * and swaps the index whole; a lookup walks one version of the cells, which
+ * its {@link Matches} keep referring to.
+ */
+public class GeoFenceSelector {
+	private final SwappedIndex<GeoFence, GeoIndex> index = new SwappedIndex<>(GeoIndex::new);
+
+	public GeoFenceSelector() {
+	}
+
+	public GeoFenceSelector(Collection<GeoFence> fences) {
+		update(fences);
+	}
+
+	/**
+	 * Loads a new set of fences. Lookups in progress finish against the
+	 * cells of the previous set.
+	 *
+	 * @return the new index
+	 * @throws IllegalArgumentException
+	 *             if two fences have the same id; the previous fences stay
+	 *             in use
+	 */
+	public GeoIndex update(Collection<GeoFence> fences) {
+		return index.update(fences);
+	}
+
+	public GeoIndex getIndex() {
+		return index.get();
+	}
+
+	/**
+	 * Matches the position of the device of {@code geo} against the fences
+	 * last loaded.
+	 *
+	 * @return {@code matches}
+	 */
+	public Matches match(Geo geo, Matches matches) {
+		return index.get().match(geo, matches);
+	}
+}
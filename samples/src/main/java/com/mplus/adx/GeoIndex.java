@@ -0,0 +1,363 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.mplus.adx.GeoFence.Overlap;
+import com.mplus.adx.UnifiedBidRequest.Geo;
+
+/**
+ * Spatial index of {@link GeoFence}s, finding the fences of a point with a
+ * few cell lookups instead of measuring each fence.
+ * <p>
+ * The world is divided in square cells of latitude and longitude at
+ * several levels, as in geohash: cells of level {@code k} are
+ * {@code 360 / 2^k} degrees wide. Each fence is put in the cells of the
+ * finest level at which its bounding box spans at most
+ * {@value #MAX_CELLS_PER_FENCE} cells, as interior in the cells wholly in the
+ * fence, and as boundary in those it only overlaps. A point is then looked
+ * up in one cell of each level in use: the interior fences of its cells
+ * match as such, and only the boundary fences are checked exactly, with
+ * {@link GeoFence#contains(double, double)}.
+ * <p>
+ * Devices without coordinates fall back to their country and region: the
+ * fences of the country without a region, and those of the region, as
+ * {@link GeoFence#isIn(String, String)} does.
+ * <p>
+ * Immutable and thread-safe; rebuild it when fences change, see
+ * {@link GeoFenceSelector}. Lookups allocate nothing: each thread keeps its
+ * own {@link Matches}.
+ */
+public final class GeoIndex {
+	static final int MAX_CELLS_PER_FENCE = 64;
+	/** Cells of about 38 meters. */
+	static final int MAX_LEVEL = 20;
+
+	private final GeoFence[] fences;
+	/** Levels with fences, ascending. */
+	private final int[] levels;
+	/** Index in {@link #cellStart} plus one, by cell key. */
+	private final LongLongMap cells;
+	/** Entries of cell i at {@code [cellStart[i], cellStart[i + 1])}. */
+	private final int[] cellStart;
+	/** Ordinal of a fence, times 2, plus 1 for a boundary fence. */
+	private final int[] cellEntries;
+
+	private final AsciiDictionary countries = new AsciiDictionary();
+	private final AsciiDictionary regions = new AsciiDictionary();
+	/** Index in {@link #areaStart} plus one, by country and region ids. */
+	private final LongLongMap areas;
+	private final int[] areaStart;
+	/** Ordinals of the fences of each area. */
+	private final int[] areaEntries;
+
+	private final int interiorCount;
+	private final int boundaryCount;
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if two fences have the same id
+	 */
+	public GeoIndex(Collection<GeoFence> fences) {
+		this.fences = fences.toArray(new GeoFence[fences.size()]);
+		Set<Long> ids = new HashSet<>();
+		// cell key and entry of each fence cell, then grouped by cell
+		long[] entryKeys = new long[1024];
+		int[] entryValues = new int[1024];
+		int entryCount = 0;
+		TreeSet<Integer> usedLevels = new TreeSet<>();
+		int interior = 0;
+		for (int ordinal = 0; ordinal < this.fences.length; ++ordinal) {
+			GeoFence fence = this.fences[ordinal];
+			checkArgument(ids.add(fence.getId()), "Duplicate fence id: %s", fence.getId());
+			int level = levelOf(fence);
+			usedLevels.add(level);
+			double size = cellSize(level);
+			for (long row = row(fence.getMinLat(), level); row <= row(fence.getMaxLat(), level); ++row) {
+				for (long col = col(fence.getMinLon(), level); col <= col(fence.getMaxLon(), level); ++col) {
+					double lat0 = row * size - 90;
+					double lon0 = col * size - 180;
+					Overlap overlap = fence.overlap(lat0, lat0 + size, lon0, lon0 + size);
+					if (overlap != Overlap.NONE) {
+						if (entryCount == entryKeys.length) {
+							entryKeys = Arrays.copyOf(entryKeys, entryCount * 2);
+							entryValues = Arrays.copyOf(entryValues, entryCount * 2);
+						}
+						entryKeys[entryCount] = key(level, row, col);
+						entryValues[entryCount++] = ordinal * 2 + (overlap == Overlap.FULL ? 0 : 1);
+						interior += overlap == Overlap.FULL ? 1 : 0;
+					}
+				}
+			}
+		}
+		levels = usedLevels.stream().mapToInt(Integer::intValue).toArray();
+		// slots numbered by first appearance, entries counted per slot
+		cells = new LongLongMap();
+		int[] counts = new int[16];
+		for (int i = 0; i < entryCount; ++i) {
+			int slot = (int) cells.get(entryKeys[i]);
+			if (slot == 0) {
+				slot = cells.size() + 1;
+				cells.put(entryKeys[i], slot);
+				if (slot == counts.length) {
+					counts = Arrays.copyOf(counts, slot * 2);
+				}
+			}
+			++counts[slot - 1];
+		}
+		cellStart = new int[cells.size() + 1];
+		for (int i = 0; i < cells.size(); ++i) {
+			cellStart[i + 1] = cellStart[i] + counts[i];
+		}
+		cellEntries = new int[entryCount];
+		int[] next = Arrays.copyOf(cellStart, cells.size());
+		for (int i = 0; i < entryCount; ++i) {
+			cellEntries[next[(int) cells.get(entryKeys[i]) - 1]++] = entryValues[i];
+		}
+		interiorCount = interior;
+		boundaryCount = entryCount - interior;
+
+		Map<Long, List<Integer>> areaLists = new HashMap<>();
+		for (int ordinal = 0; ordinal < this.fences.length; ++ordinal) {
+			GeoFence fence = this.fences[ordinal];
+			if (fence.getCountry() != null) {
+				int region = fence.getRegion() == null ? -1 : regions.intern(fence.getRegion());
+				areaLists.computeIfAbsent(areaKey(countries.intern(fence.getCountry()), region),
+						k -> new ArrayList<>()).add(ordinal);
+			}
+		}
+		countries.freeze();
+		regions.freeze();
+		areas = new LongLongMap(areaLists.size());
+		areaStart = new int[areaLists.size() + 1];
+		int entries = 0;
+		for (List<Integer> list : areaLists.values()) {
+			entries += list.size();
+		}
+		areaEntries = new int[entries];
+		int slot = 0;
+		for (Map.Entry<Long, List<Integer>> entry : areaLists.entrySet()) {
+			int start = areaStart[slot];
+			for (int value : entry.getValue()) {
+				areaEntries[start++] = value;
+			}
+			areaStart[++slot] = start;
+			areas.put(entry.getKey(), slot);
+		}
+	}
+
+	/**
+	 * Returns the finest level at which the bounding box of {@code fence}
+	 * spans at most {@link #MAX_CELLS_PER_FENCE} cells.
+	 */
+	private static int levelOf(GeoFence fence) {
+		int level = MAX_LEVEL;
+		while (level > 1 && (row(fence.getMaxLat(), level) - row(fence.getMinLat(), level) + 1)
+				* (col(fence.getMaxLon(), level) - col(fence.getMinLon(), level) + 1) > MAX_CELLS_PER_FENCE) {
+			--level;
+		}
+		return level;
+	}
+
+	private static double cellSize(int level) {
+		return 360.0 / (1 << level);
+	}
+
+	private static long row(double lat, int level) {
+		long rows = 1L << (level - 1);
+		return Math.max(0, Math.min(rows - 1, (long) Math.floor((lat + 90) / cellSize(level))));
+	}
+
+	private static long col(double lon, int level) {
+		long cols = 1L << level;
+		return Math.max(0, Math.min(cols - 1, (long) Math.floor((lon + 180) / cellSize(level))));
+	}
+
+	private static long key(int level, long row, long col) {
+		return (long) level << 58 | row << 29 | col;
+	}
+
+	private static long areaKey(int country, int region) {
+		return (long) country << 32 | (region & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Returns the number of fences.
+	 */
+	public int size() {
+		return fences.length;
+	}
+
+	public GeoFence getFence(int ordinal) {
+		return fences[ordinal];
+	}
+
+	/**
+	 * Returns the number of cells with fences.
+	 */
+	public int getCellCount() {
+		return cellStart.length - 1;
+	}
+
+	/**
+	 * Returns the fraction of fence cells that are boundary cells, where a
+	 * lookup checks the fence exactly.
+	 */
+	public double getBoundaryRatio() {
+		return interiorCount + boundaryCount == 0 ? 0 : (double) boundaryCount / (interiorCount + boundaryCount);
+	}
+
+	/**
+	 * Finds the fences of the device of {@code geo} into {@code matches}: by
+	 * its coordinates if it has both, by its country and region otherwise,
+	 * as {@link GeoFence#contains(Geo)} would. A null {@code geo} matches no
+	 * fence.
+	 *
+	 * @return {@code matches}
+	 */
+	public Matches match(Geo geo, Matches matches) {
+		if (geo == null) {
+			matches.reset(this, false);
+			return matches;
+		}
+		if (geo.has(Geo.LAT_FIELD_NUMBER) && geo.has(Geo.LON_FIELD_NUMBER)) {
+			return match(geo.getLat(), geo.getLon(), matches);
+		}
+		matches.reset(this, true);
+		if (!geo.has(Geo.COUNTRY_FIELD_NUMBER)) {
+			return matches;
+		}
+		int country = countries.lookup(geo.getCountry());
+		if (country < 0) {
+			return matches;
+		}
+		addArea(areaKey(country, -1), matches);
+		if (geo.has(Geo.REGION_FIELD_NUMBER)) {
+			int region = regions.lookup(geo.getRegion());
+			if (region >= 0) {
+				addArea(areaKey(country, region), matches);
+			}
+		}
+		return matches;
+	}
+
+	private void addArea(long key, Matches matches) {
+		int slot = (int) areas.get(key);
+		if (slot == 0) {
+			return;
+		}
+		for (int i = areaStart[slot - 1]; i < areaStart[slot]; ++i) {
+			matches.add(areaEntries[i]);
+		}
+	}
+
+	/**
+	 * Finds the fences of a point into {@code matches}.
+	 *
+	 * @return {@code matches}
+	 */
+	public Matches match(double lat, double lon, Matches matches) {
+		matches.reset(this, false);
+		if (!(lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180)) {
+			return matches;
+		}
+		for (int level : levels) {
+			int slot = (int) cells.get(key(level, row(lat, level), col(lon, level)));
+			if (slot == 0) {
+				continue;
+			}
+			for (int i = cellStart[slot - 1]; i < cellStart[slot]; ++i) {
+				int entry = cellEntries[i];
+				int ordinal = entry >>> 1;
+				if ((entry & 1) == 0) {
+					matches.add(ordinal);
+				} else {
+					++matches.refined;
+					if (fences[ordinal].contains(lat, lon)) {
+						matches.add(ordinal);
+					}
+				}
+			}
+		}
+		return matches;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s fences in %s cells of %s levels, %.1f%% boundary", fences.length,
+				getCellCount(), levels.length, getBoundaryRatio() * 100);
+	}
+
+	/**
+	 * Fences found by a lookup in a {@link GeoIndex}, as ordinals in that
+	 * index. Reused for each lookup; keep one per thread. Not thread-safe.
+	 */
+	public static final class Matches {
+		private GeoIndex index;
+		private int[] ordinals = new int[16];
+		private int size;
+		private boolean fallback;
+		private int refined;
+
+		private void reset(GeoIndex index, boolean fallback) {
+			this.index = index;
+			this.fallback = fallback;
+			size = 0;
+			refined = 0;
+		}
+
+		private void add(int ordinal) {
+			if (size == ordinals.length) {
+				ordinals = Arrays.copyOf(ordinals, size * 2);
+			}
+			ordinals[size++] = ordinal;
+		}
+
+		/**
+		 * Returns the index of the last lookup, the one the ordinals refer
+		 * to.
+		 */
+		public GeoIndex getIndex() {
+			return index;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public int getOrdinal(int i) {
+			if (i >= size) {
+				throw new IndexOutOfBoundsException(String.format("Index %s of %s", i, size));
+			}
+			return ordinals[i];
+		}
+
+		public GeoFence get(int i) {
+			return index.getFence(getOrdinal(i));
+		}
+
+		/**
+		 * Returns whether the fences were found by country and region, the
+		 * device having no coordinates.
+		 */
+		public boolean isFallback() {
+			return fallback;
+		}
+
+		/**
+		 * Returns the number of fences checked exactly, in boundary cells.
+		 */
+		public int getRefinedCount() {
+			return refined;
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package com.mplus.adx;
+
+import static java.lang.Math.min;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * HMAC-SHA1 (RFC 2104) that starts from precomputed key pad states.
+ * <p>
+ * {@code hmac(key, m) = sha1(key ^ opad || sha1(key ^ ipad || m))}. The first
+ * block of both hashes only depends on the key, so {@link Midstate} compresses
+ * it once per key. A message that fits in one block (such as the 16-byte
+ * initVector or the 24-byte {@code payload || initVector} of a price) then
+ * costs exactly two SHA-1 compressions.
+ * <p>
+ * Instances are not thread-safe, and allocate nothing after construction.
+ */
+final class HmacSha1 {
+	public static final int BLOCK_SIZE = 64;
+	public static final int DIGEST_SIZE = 20;
+
+	private static final int LENGTH_OFFSET = BLOCK_SIZE - 8;
+	private static final int[] SHA1_INIT = { 0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0 };
+
+	private final Midstate midstate;
+	private final int[] state = new int[5];
+	private final int[] schedule = new int[80];
+	private final byte[] block = new byte[BLOCK_SIZE];
+	private int blockLength;
+	/** Bytes hashed so far, including the key pad block. */
+	private long length;
+
+	HmacSha1(Midstate midstate) {
+		this.midstate = midstate;
+		reset();
+	}
+
+	/**
+	 * Discards any data fed so far; the key is kept.
+	 */
+	public void reset() {
+		System.arraycopy(midstate.inner, 0, state, 0, state.length);
+		blockLength = 0;
+		length = BLOCK_SIZE;
+	}
+
+	public void update(byte[] input, int off, int len) {
+		length += len;
+		while (len > 0) {
+			int count = min(len, BLOCK_SIZE - blockLength);
+			System.arraycopy(input, off, block, blockLength, count);
+			blockLength += count;
+			off += count;
+			len -= count;
+
+			if (blockLength == BLOCK_SIZE) {
+				compress(state, block, schedule);
+				blockLength = 0;
+			}
+		}
+	}
+
+	/**
+	 * Writes the 20-byte HMAC to {@code output} and resets for the next
+	 * message.
+	 */
+	public void doFinal(byte[] output, int off) {
+		// state := sha1(key ^ ipad || m)
+		finish(state, block, blockLength, length, schedule);
+
+		// state := sha1(key ^ opad || innerDigest)
+		for (int i = 0; i < state.length; ++i) {
+			putInt(block, i * 4, state[i]);
+		}
+		System.arraycopy(midstate.outer, 0, state, 0, state.length);
+		finish(state, block, DIGEST_SIZE, BLOCK_SIZE + DIGEST_SIZE, schedule);
+
+		for (int i = 0; i < state.length; ++i) {
+			putInt(output, off + i * 4, state[i]);
+		}
+		reset();
+	}
+
+	/**
+	 * Appends the SHA-1 padding to the partial {@code block} and compresses
+	 * the remaining block(s).
+	 */
+	private static void finish(int[] state, byte[] block, int blockLength, long length, int[] schedule) {
+		block[blockLength++] = (byte) 0x80;
+		if (blockLength > LENGTH_OFFSET) {
+			Arrays.fill(block, blockLength, BLOCK_SIZE, (byte) 0);
+			compress(state, block, schedule);
+			blockLength = 0;
+		}
+		Arrays.fill(block, blockLength, LENGTH_OFFSET, (byte) 0);
+
+		long bits = length << 3;
+		putInt(block, LENGTH_OFFSET, (int) (bits >>> 32));
+		putInt(block, LENGTH_OFFSET + 4, (int) bits);
+		compress(state, block, schedule);
+	}
+
+	/**
+	 * SHA-1 compression function (FIPS 180-4, 6.1.2) over one 64-byte block.
+	 */
+	private static void compress(int[] state, byte[] block, int[] w) {
+		for (int t = 0; t < 16; ++t) {
+			w[t] = block[t * 4] << 24 | (block[t * 4 + 1] & 0xFF) << 16 | (block[t * 4 + 2] & 0xFF) << 8
+					| (block[t * 4 + 3] & 0xFF);
+		}
+		for (int t = 16; t < 80; ++t) {
+			w[t] = Integer.rotateLeft(w[t - 3] ^ w[t - 8] ^ w[t - 14] ^ w[t - 16], 1);
+		}
+
+		int a = state[0];
+		int b = state[1];
+		int c = state[2];
+		int d = state[3];
+		int e = state[4];
+
+		int t = 0;
+		for (; t < 20; ++t) {
+			int temp = Integer.rotateLeft(a, 5) + ((b & c) | (~b & d)) + e + w[t] + 0x5A827999;
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = temp;
+		}
+		for (; t < 40; ++t) {
+			int temp = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + w[t] + 0x6ED9EBA1;
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = temp;
+		}
+		for (; t < 60; ++t) {
+			int temp = Integer.rotateLeft(a, 5) + ((b & c) | (b & d) | (c & d)) + e + w[t] + 0x8F1BBCDC;
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = temp;
+		}
+		for (; t < 80; ++t) {
+			int temp = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + w[t] + 0xCA62C1D6;
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = temp;
+		}
+
+		state[0] += a;
+		state[1] += b;
+		state[2] += c;
+		state[3] += d;
+		state[4] += e;
+	}
+
+	private static void putInt(byte[] bytes, int off, int value) {
+		bytes[off] = (byte) (value >>> 24);
+		bytes[off + 1] = (byte) (value >>> 16);
+		bytes[off + 2] = (byte) (value >>> 8);
+		bytes[off + 3] = (byte) value;
+	}
+
+	/**
+	 * SHA-1 states after compressing {@code key ^ ipad} and
+	 * {@code key ^ opad}. Immutable, so it can be shared by all threads using
+	 * the same key.
+	 */
+	static final class Midstate {
+		private final int[] inner;
+		private final int[] outer;
+
+		Midstate(byte[] key) {
+			if (key.length > BLOCK_SIZE) {
+				key = sha1(key);
+			}
+
+			byte[] pad = new byte[BLOCK_SIZE];
+			int[] schedule = new int[80];
+
+			for (int i = 0; i < BLOCK_SIZE; ++i) {
+				pad[i] = (byte) ((i < key.length ? key[i] : 0) ^ 0x36);
+			}
+			inner = SHA1_INIT.clone();
+			compress(inner, pad, schedule);
+
+			for (int i = 0; i < BLOCK_SIZE; ++i) {
+				pad[i] = (byte) ((i < key.length ? key[i] : 0) ^ 0x5C);
+			}
+			outer = SHA1_INIT.clone();
+			compress(outer, pad, schedule);
+
+			Arrays.fill(pad, (byte) 0);
+		}
+
+		private static byte[] sha1(byte[] data) {
+			try {
+				return MessageDigest.getInstance("SHA-1").digest(data);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package com.mplus.adx;
+
+import static com.mplus.adx.ProtoCursor.WIRETYPE_LENGTH_DELIMITED;
+import static com.mplus.adx.ProtoCursor.WIRETYPE_VARINT;
+import static com.mplus.adx.ProtoCursor.makeTag;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads the fields of a serialized {@code BidRequest} (see
+ * {@code bidrequest.proto}) that a first-stage filter needs, straight from
+ * its bytes: {@code id}, {@code tmax}, {@code imp[].id},
+ * {@code imp[].bidfloor}, {@code imp[].banner.w/h} and
+ * {@code device.geo.country}.
+ * <p>
+ * Nothing is decoded by {@link #wrap(ByteBuffer)}. The first accessor indexes
+ * the top-level fields, jumping over the content of the others; an
+ * impression or the device is only read when one of its fields is asked
+ * for. Strings are returned as {@link ByteSlice}s of the buffer. Repeated
+ * occurrences of a field follow protobuf rules: the last scalar wins and
+ * messages are merged.
+ * <p>
+ * An instance is meant to be reused for request after request, and then
+ * allocates nothing once its arrays fit the largest request. Malformed input
+ * throws {@link IllegalArgumentException} from the accessor that reaches it.
+ * Not thread-safe.
+ */
+public final class LazyBidRequest {
+	private static final int ID = makeTag(1, WIRETYPE_LENGTH_DELIMITED);
+	private static final int IMP = makeTag(2, WIRETYPE_LENGTH_DELIMITED);
+	private static final int DEVICE = makeTag(4, WIRETYPE_LENGTH_DELIMITED);
+	private static final int TMAX = makeTag(6, WIRETYPE_VARINT);
+
+	private static final int IMP_ID = makeTag(1, WIRETYPE_LENGTH_DELIMITED);
+	private static final int IMP_BANNER = makeTag(2, WIRETYPE_LENGTH_DELIMITED);
+	private static final int IMP_BIDFLOOR = makeTag(8, WIRETYPE_VARINT);
+	private static final int BANNER_W = makeTag(1, WIRETYPE_VARINT);
+	private static final int BANNER_H = makeTag(2, WIRETYPE_VARINT);
+	private static final int DEVICE_GEO = makeTag(2, WIRETYPE_LENGTH_DELIMITED);
+	private static final int GEO_COUNTRY = makeTag(3, WIRETYPE_LENGTH_DELIMITED);
+
+	/** Flags of a decoded impression. */
+	private static final int HAS_ID = 1;
+	private static final int HAS_BIDFLOOR = 1 << 1;
+	private static final int HAS_BANNER = 1 << 2;
+	private static final int DECODED = 1 << 7;
+
+	private final ProtoCursor cursor = new ProtoCursor();
+	/** Reads submessages inside the one {@link #cursor} is on. */
+	private final ProtoCursor nested = new ProtoCursor();
+	private ByteBuffer buffer;
+	private int start;
+	private int end;
+	private boolean indexed;
+
+	private int idOff = -1;
+	private int idLen;
+	private boolean hasTmax;
+	private int tmax;
+
+	/** Offsets and lengths of the content of each occurrence. */
+	private int deviceCount;
+	private int[] deviceOff = new int[1];
+	private int[] deviceLen = new int[1];
+	private boolean deviceDecoded;
+	private int countryOff = -1;
+	private int countryLen;
+
+	private int impCount;
+	private int[] impOff = new int[8];
+	private int[] impLen = new int[8];
+	private int[] impFlags = new int[8];
+	private int[] impIdOff = new int[8];
+	private int[] impIdLen = new int[8];
+	private long[] impBidfloor = new long[8];
+	private int[] bannerW = new int[8];
+	private int[] bannerH = new int[8];
+
+	/**
+	 * Reads the request between the position and the limit of
+	 * {@code buffer}, which are not modified. The buffer must not change while
+	 * this request or slices of it are used.
+	 *
+	 * @return this request
+	 */
+	public LazyBidRequest wrap(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.start = buffer.position();
+		this.end = buffer.limit();
+		this.indexed = false;
+		return this;
+	}
+
+	/**
+	 * Reads the id into {@code target}.
+	 *
+	 * @return false if the request has no id
+	 */
+	public boolean getId(ByteSlice target) {
+		index();
+		return slice(idOff, idLen, target);
+	}
+
+	public boolean hasTmax() {
+		index();
+		return hasTmax;
+	}
+
+	/**
+	 * Returns the maximum time to bid in milliseconds, or 0 if unset.
+	 */
+	public int getTmax() {
+		index();
+		return tmax;
+	}
+
+	public int getImpCount() {
+		index();
+		return impCount;
+	}
+
+	public boolean getImpId(int index, ByteSlice target) {
+		int flags = imp(index);
+		return (flags & HAS_ID) != 0 && slice(impIdOff[index], impIdLen[index], target);
+	}
+
+	public boolean hasImpBidfloor(int index) {
+		return (imp(index) & HAS_BIDFLOOR) != 0;
+	}
+
+	/**
+	 * Returns the bid floor of an impression, or 0 if unset.
+	 */
+	public long getImpBidfloor(int index) {
+		imp(index);
+		return impBidfloor[index];
+	}
+
+	public boolean hasImpBanner(int index) {
+		return (imp(index) & HAS_BANNER) != 0;
+	}
+
+	/**
+	 * Returns the banner width of an impression, or 0 if unset.
+	 */
+	public int getImpBannerW(int index) {
+		imp(index);
+		return bannerW[index];
+	}
+
+	/**
+	 * Returns the banner height of an impression, or 0 if unset.
+	 */
+	public int getImpBannerH(int index) {
+		imp(index);
+		return bannerH[index];
+	}
+
+	/**
+	 * Reads {@code device.geo.country} into {@code target}.
+	 *
+	 * @return false if the request has no country
+	 */
+	public boolean getDeviceGeoCountry(ByteSlice target) {
+		index();
+		if (!deviceDecoded) {
+			for (int i = 0; i < deviceCount; ++i) {
+				cursor.reset(buffer, deviceOff[i], deviceOff[i] + deviceLen[i]);
+				while (cursor.hasRemaining()) {
+					int tag = cursor.readTag();
+					if (tag == DEVICE_GEO) {
+						int length = cursor.readLength();
+						int geoEnd = cursor.position() + length;
+						readCountry(cursor.position(), geoEnd);
+						cursor.skip(length);
+					} else {
+						cursor.skipField(tag);
+					}
+				}
+			}
+			deviceDecoded = true;
+		}
+		return slice(countryOff, countryLen, target);
+	}
+
+	private void readCountry(int geoStart, int geoEnd) {
+		ProtoCursor geo = nested.reset(buffer, geoStart, geoEnd);
+		while (geo.hasRemaining()) {
+			int tag = geo.readTag();
+			if (tag == GEO_COUNTRY) {
+				countryLen = geo.readLength();
+				countryOff = geo.position();
+				geo.skip(countryLen);
+			} else {
+				geo.skipField(tag);
+			}
+		}
+	}
+
+	/**
+	 * Indexes the top-level fields, once per request.
+	 */
+	private void index() {
+		if (indexed) {
+			return;
+		}
+		if (buffer == null) {
+			throw new IllegalStateException("No request wrapped");
+		}
+
+		idOff = -1;
+		idLen = 0;
+		hasTmax = false;
+		tmax = 0;
+		deviceCount = 0;
+		deviceDecoded = false;
+		countryOff = -1;
+		countryLen = 0;
+		impCount = 0;
+
+		cursor.reset(buffer, start, end);
+		while (cursor.hasRemaining()) {
+			int tag = cursor.readTag();
+			if (tag == ID) {
+				idLen = cursor.readLength();
+				idOff = cursor.position();
+				cursor.skip(idLen);
+			} else if (tag == IMP) {
+				int length = cursor.readLength();
+				addImp(cursor.position(), length);
+				cursor.skip(length);
+			} else if (tag == DEVICE) {
+				int length = cursor.readLength();
+				addDevice(cursor.position(), length);
+				cursor.skip(length);
+			} else if (tag == TMAX) {
+				tmax = cursor.readVarint32();
+				hasTmax = true;
+			} else {
+				cursor.skipField(tag);
+			}
+		}
+		indexed = true;
+	}
+
+	private void addImp(int off, int length) {
+		if (impCount == impOff.length) {
+			int capacity = impCount * 2;
+			impOff = Arrays.copyOf(impOff, capacity);
+			impLen = Arrays.copyOf(impLen, capacity);
+			impFlags = Arrays.copyOf(impFlags, capacity);
+			impIdOff = Arrays.copyOf(impIdOff, capacity);
+			impIdLen = Arrays.copyOf(impIdLen, capacity);
+			impBidfloor = Arrays.copyOf(impBidfloor, capacity);
+			bannerW = Arrays.copyOf(bannerW, capacity);
+			bannerH = Arrays.copyOf(bannerH, capacity);
+		}
+		impOff[impCount] = off;
+		impLen[impCount] = length;
+		impFlags[impCount] = 0;
+		++impCount;
+	}
+
+	private void addDevice(int off, int length) {
+		if (deviceCount == deviceOff.length) {
+			deviceOff = Arrays.copyOf(deviceOff, deviceCount * 2);
+			deviceLen = Arrays.copyOf(deviceLen, deviceCount * 2);
+		}
+		deviceOff[deviceCount] = off;
+		deviceLen[deviceCount] = length;
+		++deviceCount;
+	}
+
+	/**
+	 * Decodes an impression on first use.
+	 *
+	 * @return its flags
+	 */
+	private int imp(int index) {
+		index();
+		if (index < 0 || index >= impCount) {
+			throw new IndexOutOfBoundsException(String.format("Imp %s of %s", index, impCount));
+		}
+		int flags = impFlags[index];
+		if ((flags & DECODED) != 0) {
+			return flags;
+		}
+
+		flags = DECODED;
+		impBidfloor[index] = 0;
+		bannerW[index] = 0;
+		bannerH[index] = 0;
+		cursor.reset(buffer, impOff[index], impOff[index] + impLen[index]);
+		while (cursor.hasRemaining()) {
+			int tag = cursor.readTag();
+			if (tag == IMP_ID) {
+				impIdLen[index] = cursor.readLength();
+				impIdOff[index] = cursor.position();
+				cursor.skip(impIdLen[index]);
+				flags |= HAS_ID;
+			} else if (tag == IMP_BIDFLOOR) {
+				impBidfloor[index] = cursor.readVarint64();
+				flags |= HAS_BIDFLOOR;
+			} else if (tag == IMP_BANNER) {
+				int length = cursor.readLength();
+				readBanner(index, cursor.position(), cursor.position() + length);
+				cursor.skip(length);
+				flags |= HAS_BANNER;
+			} else {
+				cursor.skipField(tag);
+			}
+		}
+		impFlags[index] = flags;
+		return flags;
+	}
+
+	private void readBanner(int index, int bannerStart, int bannerEnd) {
+		ProtoCursor banner = nested.reset(buffer, bannerStart, bannerEnd);
+		while (banner.hasRemaining()) {
+			int tag = banner.readTag();
+			if (tag == BANNER_W) {
+				bannerW[index] = banner.readVarint32();
+			} else if (tag == BANNER_H) {
+				bannerH[index] = banner.readVarint32();
+			} else {
+				banner.skipField(tag);
+			}
+		}
+	}
+
+	private boolean slice(int off, int length, ByteSlice target) {
+		if (off < 0) {
+			target.clear();
+			return false;
+		}
+		target.set(buffer, off, length);
+		return true;
+	}
+}
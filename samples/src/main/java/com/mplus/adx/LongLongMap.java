@@ -0,0 +1,185 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+/**
+ * Map from {@code long} keys to {@code long} values, such as sums by id, in
+ * primitive arrays with open addressing: no object is allocated per entry,
+ * nor per {@link #add(long, long)} once sized. Absent keys read as 0. Not
+ * thread-safe; accumulate in one map per thread and {@link #merge} them.
+ */
+public final class LongLongMap {
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private long[] keys;
+	private long[] values;
+	private boolean[] used;
+	private int size;
+	private int mask;
+
+	public LongLongMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            entries held without resizing
+	 */
+	public LongLongMap(int expectedSize) {
+		checkArgument(expectedSize >= 0 && expectedSize <= 1 << 29, "Invalid size: %s", expectedSize);
+		allocate(Math.max(DEFAULT_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize * 2 - 1)) << 1));
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new long[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Adds {@code delta} to the value of {@code key}, 0 if absent.
+	 *
+	 * @return the new value
+	 */
+	public long add(long key, long delta) {
+		int i = indexOf(key);
+		if (!used[i]) {
+			if (size + 1 > (mask + 1) / 2) {
+				grow();
+				i = indexOf(key);
+			}
+			used[i] = true;
+			keys[i] = key;
+			++size;
+		}
+		return values[i] += delta;
+	}
+
+	public void put(long key, long value) {
+		add(key, value - get(key));
+	}
+
+	/**
+	 * @return the value of {@code key}, or 0 if absent
+	 */
+	public long get(long key) {
+		int i = indexOf(key);
+		return used[i] ? values[i] : 0;
+	}
+
+	public boolean containsKey(long key) {
+		return used[indexOf(key)];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Adds the values of {@code other} to this map.
+	 *
+	 * @return this map
+	 */
+	public LongLongMap merge(LongLongMap other) {
+		for (int i = 0; i < other.keys.length; ++i) {
+			if (other.used[i]) {
+				add(other.keys[i], other.values[i]);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the keys, in ascending order.
+	 */
+	public long[] sortedKeys() {
+		long[] sorted = new long[size];
+		int n = 0;
+		for (int i = 0; i < keys.length; ++i) {
+			if (used[i]) {
+				sorted[n++] = keys[i];
+			}
+		}
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Calls {@code visitor} for each entry, in ascending order of keys.
+	 */
+	public void forEach(Visitor visitor) {
+		for (long key : sortedKeys()) {
+			visitor.visit(key, get(key));
+		}
+	}
+
+	public interface Visitor {
+		void visit(long key, long value);
+	}
+
+	private int indexOf(long key) {
+		int i = hash(key) & mask;
+		while (used[i] && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ h >>> 32);
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		boolean[] oldUsed = used;
+		allocate(oldKeys.length * 2);
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldUsed[i]) {
+				int j = indexOf(oldKeys[i]);
+				used[j] = true;
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof LongLongMap)) {
+			return false;
+		}
+		LongLongMap other = (LongLongMap) obj;
+		if (other.size != size) {
+			return false;
+		}
+		for (int i = 0; i < keys.length; ++i) {
+			if (used[i] && (!other.containsKey(keys[i]) || other.get(keys[i]) != values[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int h = 0;
+		for (int i = 0; i < keys.length; ++i) {
+			if (used[i]) {
+				h += hash(keys[i]) ^ Long.hashCode(values[i]);
+			}
+		}
+		return h;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder("{");
+		forEach((key, value) -> s.append(s.length() > 1 ? ", " : "").append(key).append('=').append(value));
+		return s.append('}').toString();
+	}
+}
@@ -0,0 +1,240 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A win-notice URL ({@code Bid.nurl}) with OpenRTB macros, split once into
+ * literal bytes and macros so that it is expanded per bid without building
+ * strings:
+ *
+ * <pre>
+ * NoticeUrlTemplate nurl = NoticeUrlTemplate
+ * 		.compile("http://win.mplus.com/win?id=${AUCTION_ID}&amp;imp=${AUCTION_IMP_ID}&amp;price=${AUCTION_PRICE}");
+ * </pre>
+ *
+ * A bidder fills in the ids it knows with
+ * {@link BidResponseWriter#nurl(NoticeUrlTemplate, ByteSlice, ByteSlice)}
+ * and leaves {@code ${AUCTION_PRICE}} to the exchange, which replaces it with
+ * the encrypted price (see {@link PriceCryptor}). The query parameters whose
+ * value is a macro tell {@link WinNotice} where to find the values in the
+ * notice. Other macros, such as {@code ${AUCTION_SEAT_ID}}, are kept as
+ * literals. Immutable and thread-safe.
+ */
+public final class NoticeUrlTemplate {
+	public enum Macro {
+		AUCTION_ID("${AUCTION_ID}"),
+		AUCTION_IMP_ID("${AUCTION_IMP_ID}"),
+		AUCTION_PRICE("${AUCTION_PRICE}");
+
+		private final String text;
+		private final byte[] bytes;
+
+		Macro(String text) {
+			this.text = text;
+			this.bytes = text.getBytes(StandardCharsets.US_ASCII);
+		}
+
+		/**
+		 * Returns the macro as written in a URL, such as
+		 * {@code ${AUCTION_PRICE}}.
+		 */
+		public String getText() {
+			return text;
+		}
+	}
+
+	private static final Macro[] MACROS = Macro.values();
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+	private final String template;
+	/** Literal before each macro, and after the last one: one more than macros. */
+	private final byte[][] literals;
+	private final Macro[] macros;
+	private final int literalLength;
+	private final String path;
+	/** Query parameter holding each macro, by ordinal, or null. */
+	private final String[] parameters = new String[MACROS.length];
+
+	private NoticeUrlTemplate(String template) {
+		this.template = template;
+		List<byte[]> literals = new ArrayList<>();
+		List<Macro> macros = new ArrayList<>();
+		int literalLength = 0;
+		int start = 0;
+		for (int i = template.indexOf("${"); i >= 0; i = template.indexOf("${", i + 1)) {
+			Macro macro = macroAt(template, i);
+			if (macro != null) {
+				byte[] literal = template.substring(start, i).getBytes(StandardCharsets.UTF_8);
+				literals.add(literal);
+				literalLength += literal.length;
+				macros.add(macro);
+				start = i + macro.text.length();
+			}
+		}
+		byte[] last = template.substring(start).getBytes(StandardCharsets.UTF_8);
+		literals.add(last);
+		literalLength += last.length;
+		this.literals = literals.toArray(new byte[literals.size()][]);
+		this.macros = macros.toArray(new Macro[macros.size()]);
+		this.literalLength = literalLength;
+
+		int query = template.indexOf('?');
+		int authority = template.indexOf("://");
+		int pathStart = authority < 0 ? 0 : template.indexOf('/', authority + 3);
+		if (pathStart < 0 || query >= 0 && pathStart > query) {
+			pathStart = query < 0 ? template.length() : query;
+		}
+		String path = template.substring(pathStart, query < 0 ? template.length() : query);
+		this.path = path.isEmpty() ? "/" : path;
+		if (query >= 0) {
+			for (String pair : template.substring(query + 1).split("&")) {
+				int eq = pair.indexOf('=');
+				Macro macro = eq < 0 ? null : macroAt(pair, eq + 1);
+				if (macro != null && pair.length() == eq + 1 + macro.text.length()) {
+					parameters[macro.ordinal()] = pair.substring(0, eq);
+				}
+			}
+		}
+	}
+
+	public static NoticeUrlTemplate compile(String template) {
+		return new NoticeUrlTemplate(checkNotNull(template));
+	}
+
+	private static Macro macroAt(String s, int index) {
+		for (Macro macro : MACROS) {
+			if (s.startsWith(macro.text, index)) {
+				return macro;
+			}
+		}
+		return null;
+	}
+
+	public boolean hasMacro(Macro macro) {
+		for (Macro m : macros) {
+			if (m == macro) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the path of the URL, such as {@code /win}.
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Returns the query parameter whose value is {@code macro}, or null.
+	 */
+	public String getParameter(Macro macro) {
+		return parameters[macro.ordinal()];
+	}
+
+	/**
+	 * Returns the length in bytes of the URL expanded by
+	 * {@link #expand(ByteBuffer, ByteSlice, ByteSlice, CharSequence)}.
+	 */
+	public int expandedLength(ByteSlice auctionId, ByteSlice impId, CharSequence price) {
+		int length = literalLength;
+		for (Macro macro : macros) {
+			switch (macro) {
+			case AUCTION_ID:
+				length += encodedLength(auctionId, macro);
+				break;
+			case AUCTION_IMP_ID:
+				length += encodedLength(impId, macro);
+				break;
+			default:
+				length += price == null ? macro.bytes.length : price.length();
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Writes the URL into {@code dst} at its position, with the macros
+	 * replaced by their values; a null value keeps its macro, for the
+	 * exchange to replace.
+	 *
+	 * @param auctionId
+	 *            the id of the request, percent-encoded where needed
+	 * @param impId
+	 *            the id of the impression, percent-encoded where needed
+	 * @param price
+	 *            the price as the exchange sends it, such as websafe-base64
+	 *            from {@link PriceCryptor}; written as is
+	 */
+	public void expand(ByteBuffer dst, ByteSlice auctionId, ByteSlice impId, CharSequence price) {
+		for (int i = 0; i < macros.length; ++i) {
+			dst.put(literals[i]);
+			switch (macros[i]) {
+			case AUCTION_ID:
+				encode(dst, auctionId, macros[i]);
+				break;
+			case AUCTION_IMP_ID:
+				encode(dst, impId, macros[i]);
+				break;
+			default:
+				if (price == null) {
+					dst.put(macros[i].bytes);
+				} else {
+					for (int j = 0; j < price.length(); ++j) {
+						dst.put((byte) price.charAt(j));
+					}
+				}
+			}
+		}
+		dst.put(literals[macros.length]);
+	}
+
+	private static int encodedLength(ByteSlice value, Macro macro) {
+		if (value == null) {
+			return macro.bytes.length;
+		}
+		int length = value.length();
+		for (int i = 0; i < value.length(); ++i) {
+			if (!isUnreserved(value.byteAt(i))) {
+				length += 2;
+			}
+		}
+		return length;
+	}
+
+	private static void encode(ByteBuffer dst, ByteSlice value, Macro macro) {
+		if (value == null) {
+			dst.put(macro.bytes);
+			return;
+		}
+		for (int i = 0; i < value.length(); ++i) {
+			byte b = value.byteAt(i);
+			if (isUnreserved(b)) {
+				dst.put(b);
+			} else {
+				dst.put((byte) '%');
+				dst.put(HEX[b >>> 4 & 0xF]);
+				dst.put(HEX[b & 0xF]);
+			}
+		}
+	}
+
+	/**
+	 * RFC 3986 unreserved characters, written as is in a query.
+	 */
+	private static boolean isUnreserved(byte b) {
+		return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9' || b == '-' || b == '.'
+				|| b == '_' || b == '~';
+	}
+
+	@Override
+	public String toString() {
+		return template;
+	}
+}
@@ -2,6 +2,7 @@ package com.mplus.adx;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.Math.max;
 import static java.lang.Math.min;
 
 import java.nio.ByteBuffer;
@@ -10,7 +11,10 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.text.DateFormat;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.ThreadLocalRandom;
 
 import javax.crypto.Mac;
@@ -21,7 +25,6 @@ import org.apache.log4j.Logger;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.io.BaseEncoding;
-import com.google.common.primitives.Ints;
 
 /**
  * from DoubleClickCrypto
@@ -55,13 +58,46 @@ public class PriceCryptor {
 
 	private static final int MICROS_PER_CURRENCY_UNIT = 1_000_000;
 
+	/** Records decrypted by one fork-join task in a batch. */
+	private static final int BATCH_THRESHOLD = 1024;
+
 	private static final int PAYLOAD_SIZE = 8;
+	private static final int PRICE_CIPHER_SIZE = OVERHEAD_SIZE + PAYLOAD_SIZE;
+
+	private static final String WEBSAFE_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+	private static final char[] WEBSAFE_ENCODING = WEBSAFE_ALPHABET.toCharArray();
+	private static final byte[] WEBSAFE_DECODING = new byte[128];
+
+	static {
+		Arrays.fill(WEBSAFE_DECODING, (byte) -1);
+		for (int i = 0; i < WEBSAFE_ALPHABET.length(); ++i) {
+			WEBSAFE_DECODING[WEBSAFE_ALPHABET.charAt(i)] = (byte) i;
+		}
+	}
 
 	private static final ThreadLocalRandom fastRandom = ThreadLocalRandom.current();
 	private final Keys keys;
 
+	/**
+	 * Per-thread HMAC state. The {@link Mac}s are keyed once and reused, so a
+	 * price operation costs no provider lookup and no key setup.
+	 */
+	private final ThreadLocal<Workspace> workspaces;
+
 	public PriceCryptor(Keys keys) {
+		this(keys, Engine.JCE);
+	}
+
+	public PriceCryptor(final Keys keys, final Engine engine) {
+		checkArgument(engine != Engine.MIDSTATE || keys.encryptionMidstate != null && keys.integrityMidstate != null,
+				"Keys %s do not expose raw key material, required by %s", keys, engine);
 		this.keys = keys;
+		this.workspaces = new ThreadLocal<Workspace>() {
+			@Override
+			protected Workspace initialValue() {
+				return new Workspace(keys, engine);
+			}
+		};
 	}
 
 	public String encryptPrice(PriceInfo priceInfo) {
@@ -80,6 +116,156 @@ public class PriceCryptor {
 		return new PriceInfo(price, time, serverId);
 	}
 
+	/**
+	 * Decrypts a price into a reusable {@link PriceInfo}, without allocating
+	 * on the success path.
+	 *
+	 * @param priceCipher
+	 *            holds the encrypted price, encoded as websafe-base64
+	 * @param off
+	 *            offset of the encoded price in {@code priceCipher}
+	 * @param len
+	 *            length of the encoded price
+	 * @param target
+	 *            receives price, timestamp and serverId
+	 * @return {@code target}
+	 */
+	public PriceInfo decryptPrice(CharSequence priceCipher, int off, int len, PriceInfo target)
+			throws SignatureException {
+		byte[] workBytes = decodePriceCipher(priceCipher, off, len);
+
+		target.setCurrentTimeMillis(getLong(workBytes, INITV_BASE + INITV_TIMESTAMP_OFFSET));
+		target.setServerId(getLong(workBytes, INITV_BASE + INITV_SERVERID_OFFSET));
+		target.setPrice(getLong(workBytes, PAYLOAD_BASE));
+		return target;
+	}
+
+	/**
+	 * Decrypts a price from ASCII bytes, such as a copied query parameter,
+	 * into a reusable {@link PriceInfo}, without allocating on the success
+	 * path.
+	 *
+	 * @see #decryptPrice(CharSequence, int, int, PriceInfo)
+	 */
+	public PriceInfo decryptPrice(byte[] priceCipher, int off, int len, PriceInfo target) throws SignatureException {
+		Workspace ws = workspaces.get();
+		byte[] workBytes = decryptPriceCipher(ws, decode(priceCipher, off, len, ws.work, 0));
+
+		target.setCurrentTimeMillis(getLong(workBytes, INITV_BASE + INITV_TIMESTAMP_OFFSET));
+		target.setServerId(getLong(workBytes, INITV_BASE + INITV_SERVERID_OFFSET));
+		target.setPrice(getLong(workBytes, PAYLOAD_BASE));
+		return target;
+	}
+
+	/**
+	 * Decodes and decrypts a batch of prices in parallel on the common
+	 * fork-join pool.
+	 *
+	 * @see #decryptPrices(ForkJoinPool, String[], long[], long[], long[], BitSet)
+	 */
+	public int decryptPrices(String[] in, long[] priceOut, long[] timeOut, long[] serverIdOut, BitSet failures) {
+		return decryptPrices(ForkJoinPool.commonPool(), in, priceOut, timeOut, serverIdOut, failures);
+	}
+
+	/**
+	 * Decodes and decrypts a batch of prices in parallel, into columnar
+	 * arrays. A bad record (null, malformed or with a signature mismatch) does
+	 * not abort the batch: its index is set in {@code failures} and its
+	 * outputs are set to 0.
+	 *
+	 * @param in
+	 *            encrypted prices, encoded as websafe-base64
+	 * @param priceOut
+	 *            receives the price of {@code in[i]} at index {@code i}, in
+	 *            micros
+	 * @param timeOut
+	 *            receives the initVector timestamps
+	 * @param serverIdOut
+	 *            receives the initVector serverIds
+	 * @param failures
+	 *            receives the indexes of the records that failed
+	 * @return the number of records that failed
+	 */
+	public int decryptPrices(ForkJoinPool pool, String[] in, long[] priceOut, long[] timeOut, long[] serverIdOut,
+			BitSet failures) {
+		checkArgument(priceOut.length >= in.length && timeOut.length >= in.length
+				&& serverIdOut.length >= in.length, "Output arrays are shorter than the %s input records", in.length);
+
+		BitSet batchFailures = pool.invoke(new DecryptPricesTask(in, 0, in.length, priceOut, timeOut, serverIdOut));
+		if (batchFailures == null) {
+			return 0;
+		}
+		failures.or(batchFailures);
+		return batchFailures.cardinality();
+	}
+
+	/**
+	 * Decrypts {@code in[from, to)}, splitting in halves down to
+	 * {@link #BATCH_THRESHOLD} records. Yields the failed indexes, or null if
+	 * there were none.
+	 */
+	private final class DecryptPricesTask extends RecursiveTask<BitSet> {
+		private static final long serialVersionUID = 1L;
+
+		private final String[] in;
+		private final int from;
+		private final int to;
+		private final long[] priceOut;
+		private final long[] timeOut;
+		private final long[] serverIdOut;
+
+		DecryptPricesTask(String[] in, int from, int to, long[] priceOut, long[] timeOut, long[] serverIdOut) {
+			this.in = in;
+			this.from = from;
+			this.to = to;
+			this.priceOut = priceOut;
+			this.timeOut = timeOut;
+			this.serverIdOut = serverIdOut;
+		}
+
+		@Override
+		protected BitSet compute() {
+			if (to - from > BATCH_THRESHOLD) {
+				int mid = (from + to) >>> 1;
+				DecryptPricesTask right = new DecryptPricesTask(in, mid, to, priceOut, timeOut, serverIdOut);
+				right.fork();
+				BitSet failures = new DecryptPricesTask(in, from, mid, priceOut, timeOut, serverIdOut).compute();
+				BitSet rightFailures = right.join();
+
+				if (failures == null) {
+					return rightFailures;
+				} else if (rightFailures != null) {
+					failures.or(rightFailures);
+				}
+				return failures;
+			}
+
+			Workspace ws = workspaces.get();
+			BitSet failures = null;
+			for (int i = from; i < to; ++i) {
+				String priceCipher = in[i];
+				try {
+					if (priceCipher == null) {
+						throw new IllegalArgumentException("Price is null");
+					}
+					byte[] workBytes = decodePriceCipher(ws, priceCipher, 0, priceCipher.length());
+					timeOut[i] = getLong(workBytes, INITV_BASE + INITV_TIMESTAMP_OFFSET);
+					serverIdOut[i] = getLong(workBytes, INITV_BASE + INITV_SERVERID_OFFSET);
+					priceOut[i] = getLong(workBytes, PAYLOAD_BASE);
+				} catch (SignatureException | IllegalArgumentException e) {
+					if (failures == null) {
+						failures = new BitSet(to);
+					}
+					failures.set(i);
+					timeOut[i] = 0;
+					serverIdOut[i] = 0;
+					priceOut[i] = 0;
+				}
+			}
+			return failures;
+		}
+	}
+
 	/**
 	 * Decrypts data.
 	 *
@@ -91,35 +277,57 @@ public class PriceCryptor {
 	public byte[] decrypt(byte[] cipherData) throws SignatureException {
 		checkArgument(cipherData.length >= OVERHEAD_SIZE, "Invalid cipherData, %s bytes", cipherData.length);
 
-		// workBytes := initVector || E(payload) || I(signature)
-		byte[] workBytes = cipherData.clone();
-		ByteBuffer workBuffer = ByteBuffer.wrap(workBytes);
-		boolean success = false;
+		byte[] workBytes = new byte[cipherData.length];
+		decrypt(cipherData, 0, cipherData.length, workBytes, 0);
+		return workBytes;
+	}
 
-		try {
-			// workBytes := initVector || payload || I(signature)
-			xorPayloadToHmacPad(workBytes);
-			// workBytes := initVector || payload || I'(signature)
-			int confirmationSignature = hmacSignature(workBytes);
-			int integritySignature = workBuffer.getInt(workBytes.length - SIGNATURE_SIZE);
-			workBuffer.putInt(workBytes.length - SIGNATURE_SIZE, confirmationSignature);
-
-			if (confirmationSignature != integritySignature) {
-				throw new SignatureException("Signature mismatch: " + Integer.toHexString(confirmationSignature)
-						+ " vs " + Integer.toHexString(integritySignature));
-			}
+	/**
+	 * Decrypts data into a caller-supplied buffer. {@code src} and {@code dst}
+	 * may be the same array, for in-place decryption.
+	 *
+	 * @param src
+	 *            holds {@code initVector || E(payload) || I(signature)}
+	 * @param dst
+	 *            receives {@code initVector || payload || I'(signature)}
+	 * @return the number of bytes written to {@code dst}
+	 */
+	public int decrypt(byte[] src, int srcOff, int len, byte[] dst, int dstOff) throws SignatureException {
+		return decrypt(workspaces.get(), src, srcOff, len, dst, dstOff);
+	}
 
-			if (logger.isDebugEnabled()) {
-				logger.debug(dump("Decrypted", cipherData, workBytes));
-			}
+	private int decrypt(Workspace ws, byte[] src, int srcOff, int len, byte[] dst, int dstOff)
+			throws SignatureException {
+		if (len < OVERHEAD_SIZE) {
+			throw new IllegalArgumentException("Invalid cipherData, " + len + " bytes");
+		}
+
+		// Only keep a copy of the input when it is going to be dumped.
+		byte[] cipherData = logger.isDebugEnabled() ? Arrays.copyOfRange(src, srcOff, srcOff + len) : null;
+		// dst := initVector || E(payload) || I(signature)
+		if (src != dst || srcOff != dstOff) {
+			System.arraycopy(src, srcOff, dst, dstOff, len);
+		}
 
-			success = true;
-			return workBytes;
-		} finally {
-			if (!success && logger.isDebugEnabled()) {
-				logger.debug(dump("Decrypted (failed)", cipherData, workBytes));
+		// dst := initVector || payload || I(signature)
+		xorPayloadToHmacPad(ws, dst, dstOff, len);
+		// dst := initVector || payload || I'(signature)
+		int confirmationSignature = hmacSignature(ws, dst, dstOff, len);
+		int integritySignature = getInt(dst, dstOff + len - SIGNATURE_SIZE);
+		putInt(dst, dstOff + len - SIGNATURE_SIZE, confirmationSignature);
+
+		if (confirmationSignature != integritySignature) {
+			if (cipherData != null) {
+				logger.debug(dump("Decrypted (failed)", cipherData, Arrays.copyOfRange(dst, dstOff, dstOff + len)));
 			}
+			throw new SignatureException("Signature mismatch: " + Integer.toHexString(confirmationSignature)
+					+ " vs " + Integer.toHexString(integritySignature));
+		}
+
+		if (cipherData != null) {
+			logger.debug(dump("Decrypted", cipherData, Arrays.copyOfRange(dst, dstOff, dstOff + len)));
 		}
+		return len;
 	}
 
 	/**
@@ -132,68 +340,78 @@ public class PriceCryptor {
 	public byte[] encrypt(byte[] plainData) {
 		checkArgument(plainData.length >= OVERHEAD_SIZE, "Invalid plainData, %s bytes", plainData.length);
 
-		// workBytes := initVector || payload || zeros:4
-		byte[] workBytes = plainData.clone();
-		ByteBuffer workBuffer = ByteBuffer.wrap(workBytes);
-		boolean success = false;
+		byte[] workBytes = new byte[plainData.length];
+		encrypt(plainData, 0, plainData.length, workBytes, 0);
+		return workBytes;
+	}
 
-		try {
-			// workBytes := initVector || payload || I(signature)
-			int signature = hmacSignature(workBytes);
-			workBuffer.putInt(workBytes.length - SIGNATURE_SIZE, signature);
-			// workBytes := initVector || E(payload) || I(signature)
-			xorPayloadToHmacPad(workBytes);
-
-			if (logger.isDebugEnabled()) {
-				logger.debug(dump("Encrypted", plainData, workBytes));
-			}
+	/**
+	 * Encrypts data into a caller-supplied buffer. {@code src} and {@code dst}
+	 * may be the same array, for in-place encryption.
+	 *
+	 * @param src
+	 *            holds {@code initVector || payload || zeros:4}
+	 * @param dst
+	 *            receives {@code initVector || E(payload) || I(signature)}
+	 * @return the number of bytes written to {@code dst}
+	 */
+	public int encrypt(byte[] src, int srcOff, int len, byte[] dst, int dstOff) {
+		if (len < OVERHEAD_SIZE) {
+			throw new IllegalArgumentException("Invalid plainData, " + len + " bytes");
+		}
 
-			success = true;
-			return workBytes;
-		} finally {
-			if (!success && logger.isDebugEnabled()) {
-				logger.debug(dump("Encrypted (failed)", plainData, workBytes));
-			}
+		Workspace ws = workspaces.get();
+		byte[] plainData = logger.isDebugEnabled() ? Arrays.copyOfRange(src, srcOff, srcOff + len) : null;
+		// dst := initVector || payload || zeros:4
+		if (src != dst || srcOff != dstOff) {
+			System.arraycopy(src, srcOff, dst, dstOff, len);
 		}
+
+		// dst := initVector || payload || I(signature)
+		int signature = hmacSignature(ws, dst, dstOff, len);
+		putInt(dst, dstOff + len - SIGNATURE_SIZE, signature);
+		// dst := initVector || E(payload) || I(signature)
+		xorPayloadToHmacPad(ws, dst, dstOff, len);
+
+		if (plainData != null) {
+			logger.debug(dump("Encrypted", plainData, Arrays.copyOfRange(dst, dstOff, dstOff + len)));
+		}
+		return len;
 	}
 
 	/**
 	 * {@code payload = payload ^ hmac(encryptionKey, initVector || counterBytes)}
 	 * per max-20-byte blocks.
 	 */
-	private void xorPayloadToHmacPad(byte[] workBytes) {
-		int payloadSize = workBytes.length - OVERHEAD_SIZE;
+	private static void xorPayloadToHmacPad(Workspace ws, byte[] workBytes, int off, int len) {
+		int payloadSize = len - OVERHEAD_SIZE;
 		int sections = (payloadSize + COUNTER_PAGESIZE - 1) / COUNTER_PAGESIZE;
-		checkArgument(sections <= COUNTER_SECTIONS, "Payload is %s bytes, exceeds limit of %s", payloadSize,
-				COUNTER_PAGESIZE * COUNTER_SECTIONS);
+		if (sections > COUNTER_SECTIONS) {
+			throw new IllegalArgumentException("Payload is " + payloadSize + " bytes, exceeds limit of "
+					+ COUNTER_PAGESIZE * COUNTER_SECTIONS);
+		}
 
-		Mac encryptionHmac = createMac();
+		Hmac encryptionHmac = ws.encryptionHmac;
 
-		byte[] pad = new byte[COUNTER_PAGESIZE + 3];
+		byte[] pad = ws.pad;
+		Arrays.fill(pad, COUNTER_PAGESIZE, pad.length, (byte) 0);
 		int counterSize = 0;
 
 		for (int section = 0; section < sections; ++section) {
 			int sectionBase = section * COUNTER_PAGESIZE;
 			int sectionSize = min(payloadSize - sectionBase, COUNTER_PAGESIZE);
 
-			try {
-				encryptionHmac.reset();
-				encryptionHmac.init(keys.getEncryptionKey());
-				encryptionHmac.update(workBytes, INITV_BASE, INITV_SIZE);
-				if (counterSize != 0) {
-					encryptionHmac.update(pad, COUNTER_PAGESIZE, counterSize);
-				}
-				encryptionHmac.doFinal(pad, 0);
-			} catch (ShortBufferException | InvalidKeyException e) {
-				throw new IllegalStateException(e);
+			encryptionHmac.reset();
+			encryptionHmac.update(workBytes, off + INITV_BASE, INITV_SIZE);
+			if (counterSize != 0) {
+				encryptionHmac.update(pad, COUNTER_PAGESIZE, counterSize);
 			}
+			encryptionHmac.doFinal(pad, 0);
 
 			for (int i = 0; i < sectionSize; ++i) {
-				workBytes[PAYLOAD_BASE + sectionBase + i] ^= pad[i];
+				workBytes[off + PAYLOAD_BASE + sectionBase + i] ^= pad[i];
 			}
 
-			Arrays.fill(pad, 0, COUNTER_PAGESIZE, (byte) 0);
-
 			if (counterSize == 0 || ++pad[COUNTER_PAGESIZE + counterSize - 1] == 0) {
 				++counterSize;
 			}
@@ -203,16 +421,13 @@ public class PriceCryptor {
 	/**
 	 * {@code signature = hmac(integrityKey, payload || initVector)}
 	 */
-	private int hmacSignature(byte[] workBytes) {
-		try {
-			Mac integrityHmac = createMac();
-			integrityHmac.init(keys.getIntegrityKey());
-			integrityHmac.update(workBytes, PAYLOAD_BASE, workBytes.length - OVERHEAD_SIZE);
-			integrityHmac.update(workBytes, INITV_BASE, INITV_SIZE);
-			return Ints.fromByteArray(integrityHmac.doFinal());
-		} catch (InvalidKeyException e) {
-			throw new IllegalStateException(e);
-		}
+	private static int hmacSignature(Workspace ws, byte[] workBytes, int off, int len) {
+		Hmac integrityHmac = ws.integrityHmac;
+		integrityHmac.reset();
+		integrityHmac.update(workBytes, off + PAYLOAD_BASE, len - OVERHEAD_SIZE);
+		integrityHmac.update(workBytes, off + INITV_BASE, INITV_SIZE);
+		integrityHmac.doFinal(ws.signature, 0);
+		return getInt(ws.signature, 0);
 	}
 
 	/**
@@ -242,8 +457,53 @@ public class PriceCryptor {
 		checkArgument(priceCipher.length == (OVERHEAD_SIZE + PAYLOAD_SIZE), "Price is %s bytes, should be %s",
 				priceCipher.length, (OVERHEAD_SIZE + PAYLOAD_SIZE));
 
-		byte[] plainData = decrypt(priceCipher);
-		return ByteBuffer.wrap(plainData).getLong(PAYLOAD_BASE);
+		return decryptPriceMicros(priceCipher, 0);
+	}
+
+	/**
+	 * Decrypts the winning price, without allocating on the success path.
+	 *
+	 * @param priceCipher
+	 *            holds the encrypted price
+	 * @param off
+	 *            offset of the 28-byte encrypted price in {@code priceCipher}
+	 * @return the price value in micros (1/1.000.000th of the currency unit)
+	 */
+	public long decryptPriceMicros(byte[] priceCipher, int off) throws SignatureException {
+		if (off < 0 || priceCipher.length - off < PRICE_CIPHER_SIZE) {
+			throw new IllegalArgumentException("Price is " + (priceCipher.length - off) + " bytes, should be "
+					+ PRICE_CIPHER_SIZE);
+		}
+
+		Workspace ws = workspaces.get();
+		decrypt(ws, priceCipher, off, PRICE_CIPHER_SIZE, ws.work, 0);
+		return getLong(ws.work, PAYLOAD_BASE);
+	}
+
+	/**
+	 * Encrypts the winning price into a caller-supplied buffer.
+	 *
+	 * @param priceMicros
+	 *            the price in micros (1/1.000.000th of the currency unit)
+	 * @param timestamp
+	 *            timestamp subfield of the initialization vector
+	 * @param serverId
+	 *            serverId subfield of the initialization vector
+	 * @param dst
+	 *            receives the 28-byte encrypted price
+	 * @return the number of bytes written to {@code dst}
+	 */
+	public int encryptPriceMicros(long priceMicros, long timestamp, long serverId, byte[] dst, int dstOff) {
+		if (dstOff < 0 || dst.length - dstOff < PRICE_CIPHER_SIZE) {
+			throw new IllegalArgumentException("Buffer has " + (dst.length - dstOff) + " bytes, needs "
+					+ PRICE_CIPHER_SIZE);
+		}
+
+		putLong(dst, dstOff + INITV_BASE + INITV_TIMESTAMP_OFFSET, timestamp);
+		putLong(dst, dstOff + INITV_BASE + INITV_SERVERID_OFFSET, serverId);
+		putLong(dst, dstOff + PAYLOAD_BASE, priceMicros);
+		putInt(dst, dstOff + PAYLOAD_BASE + PAYLOAD_SIZE, 0);
+		return encrypt(dst, dstOff, PRICE_CIPHER_SIZE, dst, dstOff);
 	}
 
 	/**
@@ -285,6 +545,111 @@ public class PriceCryptor {
 		return decryptPriceMicros(decode(checkNotNull(priceCipher)));
 	}
 
+	/**
+	 * Decodes and decrypts the winning price, without allocating on the
+	 * success path. The encoded price may be embedded in a larger sequence,
+	 * such as a query string.
+	 *
+	 * @param priceCipher
+	 *            holds the encrypted price, encoded as websafe-base64
+	 * @param off
+	 *            offset of the encoded price in {@code priceCipher}
+	 * @param len
+	 *            length of the encoded price, with or without padding
+	 * @return the price value in micros (1/1.000.000th of the currency unit)
+	 */
+	public long decodePriceMicros(CharSequence priceCipher, int off, int len) throws SignatureException {
+		return getLong(decodePriceCipher(priceCipher, off, len), PAYLOAD_BASE);
+	}
+
+	/**
+	 * Decodes and decrypts the winning price straight from ASCII bytes, such
+	 * as a slice of a raw HTTP request line, without allocating on the
+	 * success path.
+	 *
+	 * @param priceCipher
+	 *            holds the encrypted price, encoded as websafe-base64
+	 * @param off
+	 *            offset of the encoded price in {@code priceCipher}
+	 * @param len
+	 *            length of the encoded price, with or without padding
+	 * @return the price value in micros (1/1.000.000th of the currency unit)
+	 */
+	public long decodePriceMicros(byte[] priceCipher, int off, int len) throws SignatureException {
+		Workspace ws = workspaces.get();
+		return getLong(decryptPriceCipher(ws, decode(priceCipher, off, len, ws.work, 0)), PAYLOAD_BASE);
+	}
+
+	/**
+	 * Decodes and decrypts the winning price from the ASCII bytes between the
+	 * position and the limit of {@code priceCipher}, without allocating on the
+	 * success path. The position of {@code priceCipher} is not changed.
+	 *
+	 * @return the price value in micros (1/1.000.000th of the currency unit)
+	 */
+	public long decodePriceMicros(ByteBuffer priceCipher) throws SignatureException {
+		Workspace ws = workspaces.get();
+		return getLong(decryptPriceCipher(ws, decode(priceCipher, ws.work, 0)), PAYLOAD_BASE);
+	}
+
+	/**
+	 * Encrypts and encodes the winning price into a caller-supplied buffer,
+	 * without allocating.
+	 *
+	 * @param priceMicros
+	 *            the price in micros (1/1.000.000th of the currency unit)
+	 * @param timestamp
+	 *            timestamp subfield of the initialization vector
+	 * @param serverId
+	 *            serverId subfield of the initialization vector
+	 * @param dst
+	 *            receives the encrypted price, encoded as padded
+	 *            websafe-base64
+	 * @return the number of chars written to {@code dst}
+	 */
+	public int encodePriceMicros(long priceMicros, long timestamp, long serverId, char[] dst, int dstOff) {
+		byte[] workBytes = workspaces.get().work;
+		encryptPriceMicros(priceMicros, timestamp, serverId, workBytes, 0);
+		return encode(workBytes, 0, PRICE_CIPHER_SIZE, dst, dstOff);
+	}
+
+	/**
+	 * Encrypts and encodes the winning price, appending it to {@code dst}.
+	 *
+	 * @return {@code dst}
+	 * @see #encodePriceMicros(long, long, long, char[], int)
+	 */
+	public StringBuilder encodePriceMicros(long priceMicros, long timestamp, long serverId, StringBuilder dst) {
+		byte[] workBytes = workspaces.get().work;
+		encryptPriceMicros(priceMicros, timestamp, serverId, workBytes, 0);
+		return encode(workBytes, 0, PRICE_CIPHER_SIZE, dst);
+	}
+
+	/**
+	 * Decodes and decrypts a price into this thread's work buffer, which is
+	 * returned and only valid until the next price operation.
+	 */
+	private byte[] decodePriceCipher(CharSequence priceCipher, int off, int len) throws SignatureException {
+		return decodePriceCipher(workspaces.get(), priceCipher, off, len);
+	}
+
+	private byte[] decodePriceCipher(Workspace ws, CharSequence priceCipher, int off, int len)
+			throws SignatureException {
+		return decryptPriceCipher(ws, decode(priceCipher, off, len, ws.work, 0));
+	}
+
+	/**
+	 * Decrypts in place the price cipher that was decoded into the work
+	 * buffer.
+	 */
+	private byte[] decryptPriceCipher(Workspace ws, int size) throws SignatureException {
+		if (size != PRICE_CIPHER_SIZE) {
+			throw new IllegalArgumentException("Price is " + size + " bytes, should be " + PRICE_CIPHER_SIZE);
+		}
+		decrypt(ws, ws.work, 0, PRICE_CIPHER_SIZE, ws.work, 0);
+		return ws.work;
+	}
+
 	/**
 	 * Decodes and decrypts the winning price.
 	 *
@@ -329,7 +694,12 @@ public class PriceCryptor {
 	 * performs websafe-base64 decoding (RFC 3548).
 	 */
 	public static byte[] decode(String data) {
-		return data == null ? null : BaseEncoding.base64Url().decode(data);
+		if (data == null) {
+			return null;
+		}
+		byte[] decoded = new byte[decodedSize(trimPadding(data, 0, data.length()), Integer.MAX_VALUE)];
+		decode(data, 0, data.length(), decoded, 0);
+		return decoded;
 	}
 
 	/**
@@ -337,7 +707,199 @@ public class PriceCryptor {
 	 * performs websafe-base64 encoding (RFC 3548).
 	 */
 	public static String encode(byte[] data) {
-		return data == null ? null : BaseEncoding.base64Url().encode(data);
+		if (data == null) {
+			return null;
+		}
+		char[] encoded = new char[encodedSize(data.length)];
+		encode(data, 0, data.length, encoded, 0);
+		return new String(encoded);
+	}
+
+	/**
+	 * Decodes websafe-base64 (RFC 3548) straight from a character sequence,
+	 * with or without trailing padding.
+	 *
+	 * @return the number of bytes written to {@code dst}
+	 */
+	public static int decode(CharSequence src, int off, int len, byte[] dst, int dstOff) {
+		len = trimPadding(src, off, len);
+		int size = decodedSize(len, dst.length - dstOff);
+
+		int quadEnd = off + (len & ~3);
+		int i = off;
+		for (; i < quadEnd; i += 4) {
+			int quad = digit(src.charAt(i), i) << 18 | digit(src.charAt(i + 1), i + 1) << 12
+					| digit(src.charAt(i + 2), i + 2) << 6 | digit(src.charAt(i + 3), i + 3);
+			dst[dstOff++] = (byte) (quad >> 16);
+			dst[dstOff++] = (byte) (quad >> 8);
+			dst[dstOff++] = (byte) quad;
+		}
+		if (i < off + len) {
+			int quad = digit(src.charAt(i), i) << 18 | digit(src.charAt(i + 1), i + 1) << 12;
+			dst[dstOff++] = (byte) (quad >> 16);
+			if (off + len - i == 3) {
+				quad |= digit(src.charAt(i + 2), i + 2) << 6;
+				dst[dstOff] = (byte) (quad >> 8);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Decodes websafe-base64 (RFC 3548) straight from ASCII bytes, such as a
+	 * slice of a raw HTTP request line, with or without trailing padding.
+	 *
+	 * @return the number of bytes written to {@code dst}
+	 */
+	public static int decode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+		while (len > 0 && src[off + len - 1] == '=') {
+			--len;
+		}
+		int size = decodedSize(len, dst.length - dstOff);
+
+		int quadEnd = off + (len & ~3);
+		int i = off;
+		for (; i < quadEnd; i += 4) {
+			int quad = digit(src[i] & 0xFF, i) << 18 | digit(src[i + 1] & 0xFF, i + 1) << 12
+					| digit(src[i + 2] & 0xFF, i + 2) << 6 | digit(src[i + 3] & 0xFF, i + 3);
+			dst[dstOff++] = (byte) (quad >> 16);
+			dst[dstOff++] = (byte) (quad >> 8);
+			dst[dstOff++] = (byte) quad;
+		}
+		if (i < off + len) {
+			int quad = digit(src[i] & 0xFF, i) << 18 | digit(src[i + 1] & 0xFF, i + 1) << 12;
+			dst[dstOff++] = (byte) (quad >> 16);
+			if (off + len - i == 3) {
+				quad |= digit(src[i + 2] & 0xFF, i + 2) << 6;
+				dst[dstOff] = (byte) (quad >> 8);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Decodes websafe-base64 (RFC 3548) from the ASCII bytes between the
+	 * position and the limit of {@code src}, with or without trailing
+	 * padding. The position of {@code src} is not changed.
+	 *
+	 * @return the number of bytes written to {@code dst}
+	 */
+	public static int decode(ByteBuffer src, byte[] dst, int dstOff) {
+		if (src.hasArray()) {
+			return decode(src.array(), src.arrayOffset() + src.position(), src.remaining(), dst, dstOff);
+		}
+
+		int off = src.position();
+		int len = src.remaining();
+		while (len > 0 && src.get(off + len - 1) == '=') {
+			--len;
+		}
+		int size = decodedSize(len, dst.length - dstOff);
+
+		int accum = 0;
+		int bits = 0;
+		for (int i = off; i < off + len; ++i) {
+			accum = accum << 6 | digit(src.get(i) & 0xFF, i);
+			bits += 6;
+			if (bits >= 8) {
+				bits -= 8;
+				dst[dstOff++] = (byte) (accum >> bits);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Encodes data as padded websafe-base64 (RFC 3548) into a caller-supplied
+	 * buffer.
+	 *
+	 * @return the number of chars written to {@code dst}
+	 */
+	public static int encode(byte[] src, int off, int len, char[] dst, int dstOff) {
+		int size = encodedSize(len);
+		if (size > dst.length - dstOff) {
+			throw new IllegalArgumentException("Buffer has " + (dst.length - dstOff) + " chars, needs " + size);
+		}
+
+		int tripleEnd = off + len - len % 3;
+		int i = off;
+		for (; i < tripleEnd; i += 3) {
+			int triple = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+			dst[dstOff++] = WEBSAFE_ENCODING[triple >>> 18];
+			dst[dstOff++] = WEBSAFE_ENCODING[(triple >>> 12) & 0x3F];
+			dst[dstOff++] = WEBSAFE_ENCODING[(triple >>> 6) & 0x3F];
+			dst[dstOff++] = WEBSAFE_ENCODING[triple & 0x3F];
+		}
+		if (i < off + len) {
+			boolean two = off + len - i == 2;
+			int triple = (src[i] & 0xFF) << 16 | (two ? (src[i + 1] & 0xFF) << 8 : 0);
+			dst[dstOff++] = WEBSAFE_ENCODING[triple >>> 18];
+			dst[dstOff++] = WEBSAFE_ENCODING[(triple >>> 12) & 0x3F];
+			dst[dstOff++] = two ? WEBSAFE_ENCODING[(triple >>> 6) & 0x3F] : '=';
+			dst[dstOff] = '=';
+		}
+		return size;
+	}
+
+	/**
+	 * Encodes data as padded websafe-base64 (RFC 3548), appending to
+	 * {@code dst}.
+	 *
+	 * @return {@code dst}
+	 */
+	public static StringBuilder encode(byte[] src, int off, int len, StringBuilder dst) {
+		int tripleEnd = off + len - len % 3;
+		int i = off;
+		for (; i < tripleEnd; i += 3) {
+			int triple = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+			dst.append(WEBSAFE_ENCODING[triple >>> 18]).append(WEBSAFE_ENCODING[(triple >>> 12) & 0x3F])
+					.append(WEBSAFE_ENCODING[(triple >>> 6) & 0x3F]).append(WEBSAFE_ENCODING[triple & 0x3F]);
+		}
+		if (i < off + len) {
+			boolean two = off + len - i == 2;
+			int triple = (src[i] & 0xFF) << 16 | (two ? (src[i + 1] & 0xFF) << 8 : 0);
+			dst.append(WEBSAFE_ENCODING[triple >>> 18]).append(WEBSAFE_ENCODING[(triple >>> 12) & 0x3F])
+					.append(two ? WEBSAFE_ENCODING[(triple >>> 6) & 0x3F] : '=').append('=');
+		}
+		return dst;
+	}
+
+	/**
+	 * Returns the number of chars needed to encode {@code size} bytes, padding
+	 * included.
+	 */
+	public static int encodedSize(int size) {
+		return (size + 2) / 3 * 4;
+	}
+
+	private static int trimPadding(CharSequence src, int off, int len) {
+		while (len > 0 && src.charAt(off + len - 1) == '=') {
+			--len;
+		}
+		return len;
+	}
+
+	/**
+	 * Returns the number of bytes decoded from {@code len} unpadded digits,
+	 * checking they fit in {@code capacity}.
+	 */
+	private static int decodedSize(int len, int capacity) {
+		if (len % 4 == 1) {
+			throw new IllegalArgumentException("Invalid websafe-base64 length: " + len);
+		}
+		int size = len / 4 * 3 + max(0, len % 4 - 1);
+		if (size > capacity) {
+			throw new IllegalArgumentException("Buffer has " + capacity + " bytes, needs " + size);
+		}
+		return size;
+	}
+
+	private static int digit(int c, int index) {
+		int value = c < WEBSAFE_DECODING.length ? WEBSAFE_DECODING[c] : -1;
+		if (value < 0) {
+			throw new IllegalArgumentException("Invalid websafe-base64 character at " + index + ": " + (char) c);
+		}
+		return value;
 	}
 
 	private static Mac createMac() {
@@ -360,16 +922,149 @@ public class PriceCryptor {
 		return initVector;
 	}
 
+	private static long getLong(byte[] bytes, int off) {
+		return (long) getInt(bytes, off) << 32 | (getInt(bytes, off + 4) & 0xFFFFFFFFL);
+	}
+
+	private static int getInt(byte[] bytes, int off) {
+		return bytes[off] << 24 | (bytes[off + 1] & 0xFF) << 16 | (bytes[off + 2] & 0xFF) << 8
+				| (bytes[off + 3] & 0xFF);
+	}
+
+	private static void putLong(byte[] bytes, int off, long value) {
+		putInt(bytes, off, (int) (value >>> 32));
+		putInt(bytes, off + 4, (int) value);
+	}
+
+	private static void putInt(byte[] bytes, int off, int value) {
+		bytes[off] = (byte) (value >>> 24);
+		bytes[off + 1] = (byte) (value >>> 16);
+		bytes[off + 2] = (byte) (value >>> 8);
+		bytes[off + 3] = (byte) value;
+	}
+
+	/**
+	 * HMAC-SHA1 implementation used for price cryptography. Both engines
+	 * produce bit-identical output.
+	 */
+	public enum Engine {
+		/** {@link Mac} from the installed JCE provider. */
+		JCE,
+		/**
+		 * {@link HmacSha1}, starting from key pad states cached in
+		 * {@link Keys}: four SHA-1 compressions per price instead of eight,
+		 * and no allocation. The compression itself is plain Java, so on
+		 * JVMs with SHA-1 intrinsics {@link #JCE} may still be faster.
+		 * Requires keys that expose their raw encoding.
+		 */
+		MIDSTATE
+	}
+
+	/**
+	 * Keyed, reusable HMAC; not thread-safe.
+	 */
+	private interface Hmac {
+		void reset();
+
+		void update(byte[] input, int off, int len);
+
+		/** Writes the 20-byte HMAC, then resets. */
+		void doFinal(byte[] output, int off);
+	}
+
+	private static final class JceHmac implements Hmac {
+		private final Mac mac = createMac();
+
+		JceHmac(SecretKey key) {
+			try {
+				mac.init(key);
+			} catch (InvalidKeyException e) {
+				// Keys are verified up front, see Keys constructor.
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public void reset() {
+			mac.reset();
+		}
+
+		@Override
+		public void update(byte[] input, int off, int len) {
+			mac.update(input, off, len);
+		}
+
+		@Override
+		public void doFinal(byte[] output, int off) {
+			try {
+				mac.doFinal(output, off);
+			} catch (ShortBufferException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	private static final class MidstateHmac implements Hmac {
+		private final HmacSha1 hmac;
+
+		MidstateHmac(HmacSha1.Midstate midstate) {
+			this.hmac = new HmacSha1(midstate);
+		}
+
+		@Override
+		public void reset() {
+			hmac.reset();
+		}
+
+		@Override
+		public void update(byte[] input, int off, int len) {
+			hmac.update(input, off, len);
+		}
+
+		@Override
+		public void doFinal(byte[] output, int off) {
+			hmac.doFinal(output, off);
+		}
+	}
+
+	/**
+	 * Keyed HMACs and scratch buffers owned by a single thread.
+	 */
+	private static final class Workspace {
+		final Hmac encryptionHmac;
+		final Hmac integrityHmac;
+		/** {@code initVector || payload || signature} of a price. */
+		final byte[] work = new byte[PRICE_CIPHER_SIZE];
+		/** {@code hmac || counterBytes} */
+		final byte[] pad = new byte[COUNTER_PAGESIZE + 3];
+		final byte[] signature = new byte[COUNTER_PAGESIZE];
+
+		Workspace(Keys keys, Engine engine) {
+			if (engine == Engine.MIDSTATE) {
+				encryptionHmac = new MidstateHmac(keys.encryptionMidstate);
+				integrityHmac = new MidstateHmac(keys.integrityMidstate);
+			} else {
+				encryptionHmac = new JceHmac(keys.getEncryptionKey());
+				integrityHmac = new JceHmac(keys.getIntegrityKey());
+			}
+		}
+	}
+
 	/**
 	 * Holds the keys used to configure price cryptography.
 	 */
 	public static class Keys {
 		private final SecretKey encryptionKey;
 		private final SecretKey integrityKey;
+		/** Key pad states for {@link Engine#MIDSTATE}, null if unavailable. */
+		private final HmacSha1.Midstate encryptionMidstate;
+		private final HmacSha1.Midstate integrityMidstate;
 
 		public Keys(SecretKey encryptionKey, SecretKey integrityKey) throws InvalidKeyException {
 			this.encryptionKey = encryptionKey;
 			this.integrityKey = integrityKey;
+			this.encryptionMidstate = createMidstate(encryptionKey);
+			this.integrityMidstate = createMidstate(integrityKey);
 
 			// Forces early failure if any of the keys are not good.
 			// This allows us to spare callers from InvalidKeyException in
@@ -381,6 +1076,11 @@ public class PriceCryptor {
 			hmac.reset();
 		}
 
+		private static HmacSha1.Midstate createMidstate(SecretKey key) {
+			byte[] encoded = "RAW".equals(key.getFormat()) ? key.getEncoded() : null;
+			return encoded == null ? null : new HmacSha1.Midstate(encoded);
+		}
+
 		public SecretKey getEncryptionKey() {
 			return encryptionKey;
 		}
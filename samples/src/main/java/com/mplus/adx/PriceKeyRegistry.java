@@ -0,0 +1,268 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.security.SignatureException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableMap;
+import com.mplus.adx.PriceCryptor.Keys;
+import com.mplus.adx.PriceCryptor.PriceInfo;
+
+/**
+ * {@link PriceCryptor}s for several exchange seats (tenants), with key
+ * rotation.
+ * <p>
+ * Each tenant has a current key {@link Generation}, and after a rotation the
+ * previous one. Prices are decrypted with the current keys first; if the
+ * signature does not match, the previous keys are tried until their grace
+ * period ends, so notices signed before a rotation are still accepted.
+ * <p>
+ * The tenant table is copy-on-write: lookups read a volatile immutable map
+ * and take no lock, while {@link #rotate(String, Keys)} and
+ * {@link #remove(String)} rebuild it.
+ */
+public class PriceKeyRegistry {
+	private static Logger logger = Logger.getLogger(PriceKeyRegistry.class);
+
+	private final long graceMillis;
+	private final PriceCryptor.Engine engine;
+	private volatile ImmutableMap<String, Tenant> tenants = ImmutableMap.of();
+
+	/**
+	 * @param graceMillis
+	 *            how long the previous keys of a tenant are still tried after
+	 *            a rotation
+	 */
+	public PriceKeyRegistry(long graceMillis) {
+		this(graceMillis, PriceCryptor.Engine.JCE);
+	}
+
+	public PriceKeyRegistry(long graceMillis, PriceCryptor.Engine engine) {
+		checkArgument(graceMillis >= 0, "Invalid grace period: %s", graceMillis);
+		this.graceMillis = graceMillis;
+		this.engine = checkNotNull(engine);
+	}
+
+	/**
+	 * Makes {@code keys} the current keys of {@code tenantId}. The keys they
+	 * replace, if any, remain valid for decryption during the grace period.
+	 *
+	 * @return the new current generation
+	 */
+	public synchronized Generation rotate(String tenantId, Keys keys) {
+		Tenant tenant = tenants.get(checkNotNull(tenantId));
+		Generation current = new Generation(tenant == null ? 1 : tenant.current.id + 1, keys,
+				new PriceCryptor(keys, engine));
+
+		Tenant rotated;
+		if (tenant == null) {
+			rotated = new Tenant(current, null, 0, new LongAdder());
+		} else {
+			rotated = new Tenant(current, tenant.current, System.currentTimeMillis() + graceMillis, tenant.failures);
+		}
+
+		Map<String, Tenant> copy = new HashMap<>(tenants);
+		copy.put(tenantId, rotated);
+		tenants = ImmutableMap.copyOf(copy);
+
+		logger.info(String.format("Rotated price keys of tenant %s to generation %s", tenantId, current.id));
+		return current;
+	}
+
+	/**
+	 * Removes a tenant and all its keys.
+	 */
+	public synchronized void remove(String tenantId) {
+		if (tenants.containsKey(tenantId)) {
+			Map<String, Tenant> copy = new HashMap<>(tenants);
+			copy.remove(tenantId);
+			tenants = ImmutableMap.copyOf(copy);
+		}
+	}
+
+	/**
+	 * Encrypts a price with the current keys of a tenant.
+	 */
+	public String encryptPrice(String tenantId, PriceInfo priceInfo) {
+		return tenant(tenantId).current.cryptor.encryptPrice(priceInfo);
+	}
+
+	public PriceInfo decryptPrice(String tenantId, String priceCipher) throws SignatureException {
+		return decryptPrice(tenantId, priceCipher, 0, priceCipher.length(), new PriceInfo(0, 0, 0));
+	}
+
+	/**
+	 * Decodes and decrypts a price with the keys of a tenant, falling back to
+	 * the previous keys during their grace period.
+	 *
+	 * @see PriceCryptor#decryptPrice(CharSequence, int, int, PriceInfo)
+	 */
+	public PriceInfo decryptPrice(String tenantId, CharSequence priceCipher, int off, int len, PriceInfo target)
+			throws SignatureException {
+		Tenant tenant = tenant(tenantId);
+		try {
+			tenant.current.cryptor.decryptPrice(priceCipher, off, len, target);
+			tenant.current.hits.increment();
+			return target;
+		} catch (SignatureException e) {
+			Generation previous = tenant.fallback(e);
+			try {
+				previous.cryptor.decryptPrice(priceCipher, off, len, target);
+			} catch (SignatureException previousException) {
+				tenant.failures.increment();
+				throw previousException;
+			}
+			previous.fallbacks.increment();
+			return target;
+		}
+	}
+
+	/**
+	 * Decodes and decrypts the winning price with the keys of a tenant,
+	 * falling back to the previous keys during their grace period.
+	 *
+	 * @see PriceCryptor#decodePriceMicros(CharSequence, int, int)
+	 */
+	public long decodePriceMicros(String tenantId, CharSequence priceCipher, int off, int len)
+			throws SignatureException {
+		Tenant tenant = tenant(tenantId);
+		try {
+			long price = tenant.current.cryptor.decodePriceMicros(priceCipher, off, len);
+			tenant.current.hits.increment();
+			return price;
+		} catch (SignatureException e) {
+			Generation previous = tenant.fallback(e);
+			long price;
+			try {
+				price = previous.cryptor.decodePriceMicros(priceCipher, off, len);
+			} catch (SignatureException previousException) {
+				tenant.failures.increment();
+				throw previousException;
+			}
+			previous.fallbacks.increment();
+			return price;
+		}
+	}
+
+	public Generation getCurrent(String tenantId) {
+		return tenant(tenantId).current;
+	}
+
+	/**
+	 * Returns the previous generation of a tenant, or null if it has none or
+	 * its grace period is over.
+	 */
+	public Generation getPrevious(String tenantId) {
+		Tenant tenant = tenant(tenantId);
+		return tenant.previous != null && System.currentTimeMillis() <= tenant.previousExpiresAt ? tenant.previous
+				: null;
+	}
+
+	/**
+	 * Returns the number of prices of a tenant that no valid key could
+	 * decrypt.
+	 */
+	public long getFailureCount(String tenantId) {
+		return tenant(tenantId).failures.sum();
+	}
+
+	private Tenant tenant(String tenantId) {
+		Tenant tenant = tenants.get(tenantId);
+		if (tenant == null) {
+			throw new IllegalArgumentException("Unknown tenant: " + tenantId);
+		}
+		return tenant;
+	}
+
+	/**
+	 * Immutable key state of a tenant; replaced as a whole on rotation.
+	 */
+	private static final class Tenant {
+		final Generation current;
+		final Generation previous;
+		final long previousExpiresAt;
+		/** Shared by all the states of a tenant. */
+		final LongAdder failures;
+
+		Tenant(Generation current, Generation previous, long previousExpiresAt, LongAdder failures) {
+			this.current = current;
+			this.previous = previous;
+			this.previousExpiresAt = previousExpiresAt;
+			this.failures = failures;
+		}
+
+		/**
+		 * Returns the generation to retry with after the current one failed
+		 * with {@code e}, or counts the failure and rethrows {@code e}.
+		 */
+		Generation fallback(SignatureException e) throws SignatureException {
+			if (previous == null || System.currentTimeMillis() > previousExpiresAt) {
+				failures.increment();
+				throw e;
+			}
+			return previous;
+		}
+	}
+
+	/**
+	 * One generation of keys of a tenant, with its usage counters.
+	 */
+	public static final class Generation {
+		private final int id;
+		private final Keys keys;
+		private final PriceCryptor cryptor;
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder fallbacks = new LongAdder();
+
+		Generation(int id, Keys keys, PriceCryptor cryptor) {
+			this.id = id;
+			this.keys = keys;
+			this.cryptor = cryptor;
+		}
+
+		/**
+		 * Returns the generation number, starting at 1 for the first keys of
+		 * a tenant.
+		 */
+		public int getId() {
+			return id;
+		}
+
+		public Keys getKeys() {
+			return keys;
+		}
+
+		public PriceCryptor getCryptor() {
+			return cryptor;
+		}
+
+		/**
+		 * Returns the number of prices decrypted while this was the current
+		 * generation.
+		 */
+		public long getHitCount() {
+			return hits.sum();
+		}
+
+		/**
+		 * Returns the number of prices decrypted with this generation after
+		 * the current one failed.
+		 */
+		public long getFallbackCount() {
+			return fallbacks.sum();
+		}
+
+		@Override
+		public String toString() {
+			return MoreObjects.toStringHelper(this).add("id", id).add("keys", keys).add("hits", getHitCount())
+					.add("fallbacks", getFallbackCount()).toString();
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Detects replayed win notices by the initialization vector of their
+ * encrypted price (timestamp + serverId, see
+ * {@link PriceCryptor#createInitVector(java.util.Date, long)}).
+ * <p>
+ * Seen vectors are kept for a sliding time window, split into buckets by
+ * their timestamp. Each bucket is an open-addressing table over primitive
+ * arrays, so no object is allocated per notice; a bucket is recycled as a
+ * whole once its time range leaves the window. Vectors older than the window
+ * are rejected, since they can no longer be checked.
+ * <p>
+ * Timestamps are expected in milliseconds, as set by
+ * {@link PriceCryptor#createInitVector(java.util.Date, long)}. Thread-safe
+ * and lock-free, except when a bucket is recycled.
+ */
+public class PriceReplayGuard {
+	public static final int DEFAULT_BUCKETS = 16;
+
+	public enum Verdict {
+		/** First time this vector is seen. */
+		ACCEPTED,
+		/** Vector was already seen within the window. */
+		DUPLICATE,
+		/** Timestamp is older than the window. */
+		EXPIRED,
+		/** Timestamp is further in the future than the allowed clock skew. */
+		FUTURE,
+		/** The bucket for this timestamp is full; the vector was not recorded. */
+		OVERFLOW
+	}
+
+	private final long maxAgeMillis;
+	private final long maxSkewMillis;
+	private final long bucketMillis;
+	private final Bucket[] buckets;
+
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder duplicates = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder overflows = new LongAdder();
+
+	/**
+	 * @param maxAgeMillis
+	 *            notices older than this are rejected as {@link Verdict#EXPIRED}
+	 * @param maxSkewMillis
+	 *            notices newer than now plus this are rejected as
+	 *            {@link Verdict#FUTURE}
+	 * @param bucketCapacity
+	 *            vectors kept per bucket, that is per
+	 *            {@code (maxAgeMillis + maxSkewMillis) / 14} milliseconds
+	 */
+	public PriceReplayGuard(long maxAgeMillis, long maxSkewMillis, int bucketCapacity) {
+		this(maxAgeMillis, maxSkewMillis, DEFAULT_BUCKETS, bucketCapacity);
+	}
+
+	public PriceReplayGuard(long maxAgeMillis, long maxSkewMillis, int bucketCount, int bucketCapacity) {
+		checkArgument(maxAgeMillis > 0 && maxSkewMillis >= 0, "Invalid window: maxAge %s, maxSkew %s", maxAgeMillis,
+				maxSkewMillis);
+		checkArgument(bucketCount >= 3, "At least 3 buckets are required, got %s", bucketCount);
+		checkArgument(bucketCapacity > 0 && bucketCapacity <= 1 << 29, "Invalid bucket capacity: %s", bucketCapacity);
+
+		this.maxAgeMillis = maxAgeMillis;
+		this.maxSkewMillis = maxSkewMillis;
+		// A window spans at most (window / bucketMillis + 2) buckets, so
+		// every timestamp in the window maps to a distinct bucket.
+		this.bucketMillis = (maxAgeMillis + maxSkewMillis + bucketCount - 3) / (bucketCount - 2);
+		this.buckets = new Bucket[bucketCount];
+		for (int i = 0; i < bucketCount; ++i) {
+			buckets[i] = new Bucket(bucketCapacity);
+		}
+	}
+
+	/**
+	 * Checks the initialization vector at {@code off}, such as the head of a
+	 * decrypted price, and records it if it was not seen yet.
+	 */
+	public Verdict check(byte[] initVector, int off) {
+		return check(getLong(initVector, off + PriceCryptor.INITV_TIMESTAMP_OFFSET),
+				getLong(initVector, off + PriceCryptor.INITV_SERVERID_OFFSET));
+	}
+
+	public Verdict check(long timestamp, long serverId) {
+		return check(timestamp, serverId, System.currentTimeMillis());
+	}
+
+	/**
+	 * Checks the vector {@code timestamp || serverId} and records it if it was
+	 * not seen yet.
+	 *
+	 * @param nowMillis
+	 *            current time, in milliseconds
+	 */
+	public Verdict check(long timestamp, long serverId, long nowMillis) {
+		if (timestamp < nowMillis - maxAgeMillis || timestamp <= 0) {
+			expired.increment();
+			return Verdict.EXPIRED;
+		} else if (timestamp > nowMillis + maxSkewMillis) {
+			expired.increment();
+			return Verdict.FUTURE;
+		}
+
+		long epoch = timestamp / bucketMillis;
+		Bucket bucket = buckets[(int) (epoch % buckets.length)];
+		if (bucket.epoch != epoch && !bucket.advance(epoch)) {
+			// The bucket was already recycled for a newer time range.
+			expired.increment();
+			return Verdict.EXPIRED;
+		}
+
+		Verdict verdict = bucket.putIfAbsent(timestamp, serverId);
+		if (verdict == Verdict.ACCEPTED) {
+			accepted.increment();
+		} else if (verdict == Verdict.DUPLICATE) {
+			duplicates.increment();
+		} else {
+			overflows.increment();
+		}
+		return verdict;
+	}
+
+	public long getBucketMillis() {
+		return bucketMillis;
+	}
+
+	public long getAcceptedCount() {
+		return accepted.sum();
+	}
+
+	public long getDuplicateCount() {
+		return duplicates.sum();
+	}
+
+	/**
+	 * Returns the number of vectors rejected as {@link Verdict#EXPIRED} or
+	 * {@link Verdict#FUTURE}.
+	 */
+	public long getExpiredCount() {
+		return expired.sum();
+	}
+
+	public long getOverflowCount() {
+		return overflows.sum();
+	}
+
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(this).add("maxAgeMillis", maxAgeMillis).add("maxSkewMillis", maxSkewMillis)
+				.add("bucketMillis", bucketMillis).add("accepted", getAcceptedCount())
+				.add("duplicates", getDuplicateCount()).add("expired", getExpiredCount())
+				.add("overflows", getOverflowCount()).toString();
+	}
+
+	private static long getLong(byte[] bytes, int off) {
+		long value = 0;
+		for (int i = 0; i < 8; ++i) {
+			value = value << 8 | (bytes[off + i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * 64-bit finalizer of MurmurHash3.
+	 */
+	private static long mix(long timestamp, long serverId) {
+		long h = timestamp * 0x9E3779B97F4A7C15L ^ serverId;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Open-addressing set of {@code (timestamp, serverId)} with linear
+	 * probing, for the vectors of one time range.
+	 * <p>
+	 * A slot is empty while its timestamp is 0. A writer claims it by setting
+	 * the timestamp to {@code -timestamp}, writes the serverId, then publishes
+	 * the timestamp; readers that meet a claimed slot wait for it.
+	 */
+	private static final class Bucket {
+		private final AtomicLongArray timestamps;
+		private final long[] serverIds;
+		private final int capacity;
+		private final int mask;
+		private final AtomicInteger size = new AtomicInteger();
+		private volatile long epoch = -1;
+
+		Bucket(int capacity) {
+			// Keeps the load factor at or below 0.5.
+			int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+			this.timestamps = new AtomicLongArray(tableSize);
+			this.serverIds = new long[tableSize];
+			this.capacity = capacity;
+			this.mask = tableSize - 1;
+		}
+
+		/**
+		 * Recycles this bucket for {@code newEpoch}, unless it already holds
+		 * a newer one.
+		 *
+		 * @return true if the bucket holds {@code newEpoch}
+		 */
+		synchronized boolean advance(long newEpoch) {
+			if (epoch < newEpoch) {
+				for (int i = 0; i <= mask; ++i) {
+					timestamps.lazySet(i, 0);
+				}
+				size.set(0);
+				epoch = newEpoch;
+			}
+			return epoch == newEpoch;
+		}
+
+		Verdict putIfAbsent(long timestamp, long serverId) {
+			int index = (int) mix(timestamp, serverId) & mask;
+			for (int probes = 0; probes <= mask;) {
+				long slot = timestamps.get(index);
+				if (slot < 0) {
+					// Claimed by a writer that is about to publish it.
+					continue;
+				} else if (slot == 0) {
+					if (size.get() >= capacity) {
+						return Verdict.OVERFLOW;
+					} else if (timestamps.compareAndSet(index, 0, -timestamp)) {
+						serverIds[index] = serverId;
+						if (timestamps.compareAndSet(index, -timestamp, timestamp)) {
+							size.incrementAndGet();
+						}
+						return Verdict.ACCEPTED;
+					}
+					// Lost the slot to another writer, look at it again.
+					continue;
+				} else if (slot == timestamp && serverIds[index] == serverId) {
+					return Verdict.DUPLICATE;
+				}
+
+				index = (index + 1) & mask;
+				++probes;
+			}
+			return Verdict.OVERFLOW;
+		}
+	}
+}
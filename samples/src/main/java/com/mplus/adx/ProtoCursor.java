@@ -0,0 +1,220 @@
+package com.mplus.adx;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the protobuf wire format from a range of a {@link ByteBuffer} with
+ * absolute gets, so neither the position of the buffer nor generated message
+ * classes are involved.
+ * <p>
+ * Malformed input throws {@link IllegalArgumentException}. Not thread-safe.
+ */
+final class ProtoCursor {
+	static final int WIRETYPE_VARINT = 0;
+	static final int WIRETYPE_FIXED64 = 1;
+	static final int WIRETYPE_LENGTH_DELIMITED = 2;
+	static final int WIRETYPE_START_GROUP = 3;
+	static final int WIRETYPE_END_GROUP = 4;
+	static final int WIRETYPE_FIXED32 = 5;
+	/** Nesting of groups beyond which input is rejected, as in protobuf-java. */
+	static final int MAX_GROUP_DEPTH = 100;
+
+	private ByteBuffer buffer;
+	private int pos;
+	private int limit;
+
+	/**
+	 * Reads from {@code pos} to {@code limit} of {@code buffer}, both
+	 * absolute.
+	 *
+	 * @return this cursor
+	 */
+	ProtoCursor reset(ByteBuffer buffer, int pos, int limit) {
+		if (pos < 0 || pos > limit || limit > buffer.limit()) {
+			throw new IndexOutOfBoundsException(String.format("Invalid range: %s-%s", pos, limit));
+		}
+		this.buffer = buffer;
+		this.pos = pos;
+		this.limit = limit;
+		return this;
+	}
+
+	ByteBuffer buffer() {
+		return buffer;
+	}
+
+	int position() {
+		return pos;
+	}
+
+	int limit() {
+		return limit;
+	}
+
+	boolean hasRemaining() {
+		return pos < limit;
+	}
+
+	/**
+	 * Fields are matched by their whole tag: like generated parsers, a field
+	 * with an unexpected wire type is skipped as unknown.
+	 */
+	static int makeTag(int fieldNumber, int wireType) {
+		return fieldNumber << 3 | wireType;
+	}
+
+	static int fieldNumber(int tag) {
+		return tag >>> 3;
+	}
+
+	static int wireType(int tag) {
+		return tag & 7;
+	}
+
+	/**
+	 * Reads the next tag.
+	 */
+	int readTag() {
+		int tag = readVarint32();
+		if (fieldNumber(tag) == 0) {
+			throw malformed("Invalid tag " + tag);
+		}
+		return tag;
+	}
+
+	long readVarint64() {
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (pos >= limit) {
+				throw malformed("Truncated varint");
+			}
+			byte b = buffer.get(pos++);
+			result |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return result;
+			}
+		}
+		throw malformed("Varint longer than 10 bytes");
+	}
+
+	/**
+	 * Reads a varint, keeping its low 32 bits as int32 fields do.
+	 */
+	int readVarint32() {
+		return (int) readVarint64();
+	}
+
+	int readFixed32() {
+		ensure(4);
+		int value = (buffer.get(pos) & 0xFF) | (buffer.get(pos + 1) & 0xFF) << 8
+				| (buffer.get(pos + 2) & 0xFF) << 16 | (buffer.get(pos + 3) & 0xFF) << 24;
+		pos += 4;
+		return value;
+	}
+
+	long readFixed64() {
+		long low = readFixed32() & 0xFFFFFFFFL;
+		long high = readFixed32() & 0xFFFFFFFFL;
+		return high << 32 | low;
+	}
+
+	float readFloat() {
+		return Float.intBitsToFloat(readFixed32());
+	}
+
+	/**
+	 * Reads the length of a length-delimited field. The cursor is then at the
+	 * first byte of its content.
+	 */
+	int readLength() {
+		long length = readVarint64();
+		if (length < 0 || length > limit - pos) {
+			throw malformed("Length " + length + " beyond the message end");
+		}
+		return (int) length;
+	}
+
+	/**
+	 * Reads a length-delimited field into {@code target} without copying.
+	 */
+	ByteSlice readBytes(ByteSlice target) {
+		int length = readLength();
+		target.set(buffer, pos, length);
+		pos += length;
+		return target;
+	}
+
+	/**
+	 * Limits reading to the next {@code length} bytes, as returned by
+	 * {@link #readLength()} for a submessage.
+	 *
+	 * @return the limit to restore with {@link #popLimit(int)}
+	 */
+	int pushLimit(int length) {
+		ensure(length);
+		int previous = limit;
+		limit = pos + length;
+		return previous;
+	}
+
+	/**
+	 * Restores the limit once the submessage is read.
+	 */
+	void popLimit(int previous) {
+		if (pos != limit) {
+			throw malformed("Submessage not fully read");
+		}
+		limit = previous;
+	}
+
+	void skip(int bytes) {
+		ensure(bytes);
+		pos += bytes;
+	}
+
+	/**
+	 * Skips the value of a field whose tag was just read.
+	 */
+	void skipField(int tag) {
+		skipField(tag, 0);
+	}
+
+	private void skipField(int tag, int depth) {
+		switch (wireType(tag)) {
+		case WIRETYPE_VARINT:
+			readVarint64();
+			break;
+		case WIRETYPE_FIXED64:
+			skip(8);
+			break;
+		case WIRETYPE_LENGTH_DELIMITED:
+			skip(readLength());
+			break;
+		case WIRETYPE_START_GROUP: {
+			if (depth == MAX_GROUP_DEPTH) {
+				throw malformed("Groups nested deeper than " + MAX_GROUP_DEPTH);
+			}
+			int end = makeTag(fieldNumber(tag), WIRETYPE_END_GROUP);
+			for (int nested = readTag(); nested != end; nested = readTag()) {
+				skipField(nested, depth + 1);
+			}
+			break;
+		}
+		case WIRETYPE_FIXED32:
+			skip(4);
+			break;
+		default:
+			throw malformed("Invalid wire type in tag " + tag);
+		}
+	}
+
+	private void ensure(int bytes) {
+		if (bytes < 0 || bytes > limit - pos) {
+			throw malformed("Truncated message");
+		}
+	}
+
+	static IllegalArgumentException malformed(String message) {
+		return new IllegalArgumentException("Malformed protobuf: " + message);
+	}
+}
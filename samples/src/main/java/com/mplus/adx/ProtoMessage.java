@@ -0,0 +1,226 @@
+package com.mplus.adx;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Base of mutable, reusable protobuf messages decoded without generated
+ * code, such as {@link UnifiedBidRequest}.
+ * <p>
+ * A message is reset and filled again for each input instead of being
+ * reallocated, together with its submessages and repeated fields. Presence
+ * is tracked per field number, see {@link #has(int)}. Not thread-safe.
+ */
+public abstract class ProtoMessage {
+	static final int VARINT = ProtoCursor.WIRETYPE_VARINT;
+	static final int LEN = ProtoCursor.WIRETYPE_LENGTH_DELIMITED;
+	static final int FIXED32 = ProtoCursor.WIRETYPE_FIXED32;
+
+	/** Bit n is set if field n is present; field numbers are below 32. */
+	private int present;
+
+	ProtoMessage() {
+	}
+
+	/**
+	 * Returns whether the field with this number was present in the input.
+	 * Repeated fields are present if they have at least one element.
+	 */
+	public boolean has(int fieldNumber) {
+		return (present & (1 << fieldNumber)) != 0;
+	}
+
+	void set(int fieldNumber) {
+		present |= 1 << fieldNumber;
+	}
+
+	/**
+	 * Clears all fields.
+	 */
+	void reset() {
+		present = 0;
+	}
+
+	/**
+	 * Reads a field whose tag was just read.
+	 *
+	 * @return false if the field is unknown, and was not read
+	 */
+	abstract boolean mergeField(ProtoCursor in, int tag);
+
+	/**
+	 * Reads fields up to the limit of {@code in}, merging them into this
+	 * message. Unknown fields are skipped.
+	 */
+	void merge(ProtoCursor in) {
+		while (in.hasRemaining()) {
+			int tag = in.readTag();
+			if (!mergeField(in, tag)) {
+				in.skipField(tag);
+			}
+		}
+	}
+
+	/**
+	 * Reads a length-delimited submessage into this message.
+	 */
+	void mergeDelimited(ProtoCursor in) {
+		int previous = in.pushLimit(in.readLength());
+		merge(in);
+		in.popLimit(previous);
+	}
+
+	/**
+	 * Returns a singular submessage to merge into: cleared on its first
+	 * occurrence, kept on the next ones as protobuf merges them.
+	 */
+	<T extends ProtoMessage> T child(int fieldNumber, T child) {
+		if (!has(fieldNumber)) {
+			child.reset();
+			set(fieldNumber);
+		}
+		return child;
+	}
+
+	/**
+	 * Returns a singular submessage, or null if it is not present.
+	 */
+	<T extends ProtoMessage> T get(int fieldNumber, T child) {
+		return has(fieldNumber) ? child : null;
+	}
+
+	/**
+	 * Reads a string or bytes field without copying.
+	 */
+	void readBytes(ProtoCursor in, int fieldNumber, ByteSlice target) {
+		in.readBytes(target);
+		set(fieldNumber);
+	}
+
+	/**
+	 * Reads a repeated int32 field, packed ({@code packed} true) or not.
+	 */
+	void readInts(ProtoCursor in, int fieldNumber, Ints target, boolean packed) {
+		if (packed) {
+			int previous = in.pushLimit(in.readLength());
+			while (in.hasRemaining()) {
+				target.add(in.readVarint32());
+			}
+			in.popLimit(previous);
+		} else {
+			target.add(in.readVarint32());
+		}
+		if (target.size() > 0) {
+			set(fieldNumber);
+		}
+	}
+
+	/**
+	 * Repeated string or bytes field, as slices of the input.
+	 */
+	public static final class Slices {
+		private ByteSlice[] slices = new ByteSlice[0];
+		private int size;
+
+		public int size() {
+			return size;
+		}
+
+		public ByteSlice get(int index) {
+			if (index >= size) {
+				throw new IndexOutOfBoundsException(String.format("Index %s of %s", index, size));
+			}
+			return slices[index];
+		}
+
+		ByteSlice add() {
+			if (size == slices.length) {
+				slices = Arrays.copyOf(slices, Math.max(4, size * 2));
+			}
+			if (slices[size] == null) {
+				slices[size] = new ByteSlice();
+			}
+			return slices[size++];
+		}
+
+		void clear() {
+			for (int i = 0; i < size; ++i) {
+				slices[i].clear();
+			}
+			size = 0;
+		}
+	}
+
+	/**
+	 * Repeated int32 field.
+	 */
+	public static final class Ints {
+		private int[] values = new int[4];
+		private int size;
+
+		public int size() {
+			return size;
+		}
+
+		public int get(int index) {
+			if (index >= size) {
+				throw new IndexOutOfBoundsException(String.format("Index %s of %s", index, size));
+			}
+			return values[index];
+		}
+
+		void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		void clear() {
+			size = 0;
+		}
+	}
+
+	/**
+	 * Repeated message field. Its elements are kept when it is cleared, and
+	 * reset when reused.
+	 */
+	public static final class Messages<T extends ProtoMessage> {
+		private final Supplier<T> factory;
+		private Object[] messages = new Object[0];
+		private int size;
+
+		Messages(Supplier<T> factory) {
+			this.factory = factory;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		@SuppressWarnings("unchecked")
+		public T get(int index) {
+			if (index >= size) {
+				throw new IndexOutOfBoundsException(String.format("Index %s of %s", index, size));
+			}
+			return (T) messages[index];
+		}
+
+		@SuppressWarnings("unchecked")
+		T add() {
+			if (size == messages.length) {
+				messages = Arrays.copyOf(messages, Math.max(4, size * 2));
+			}
+			if (messages[size] == null) {
+				messages[size] = factory.get();
+			}
+			T message = (T) messages[size++];
+			message.reset();
+			return message;
+		}
+
+		void clear() {
+			size = 0;
+		}
+	}
+}
@@ -1,38 +1,44 @@
 /**
- * 
+ *
  */
 package com.mplus.adx;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
-import org.apache.log4j.Logger;
-
 /**
  * Sha1加密算法，加密为字符串的结果为Hex String
+ * <p>
+ * 线程安全：每个线程使用各自的 MessageDigest 和缓冲区，实例之间共享。
  */
 public class Sha1Encryptor {
-	private static final Logger log = Logger.getLogger(Sha1Encryptor.class);
+	/** SHA1结果的字节数 */
+	public static final int DIGEST_SIZE = 20;
+	/** SHA1结果的Hex String长度 */
+	public static final int HEX_SIZE = DIGEST_SIZE * 2;
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
-	private MessageDigest sha1;
+	private static final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+		@Override
+		protected Workspace initialValue() {
+			return new Workspace();
+		}
+	};
 
 	/**
 	 * 创建SHA1解密器实例
 	 */
 	public Sha1Encryptor() {
-		try {
-			sha1 = MessageDigest.getInstance("SHA-1");
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		}
 	}
 
 	public byte[] encrypt(byte[] source) {
 		if (source == null || source.length == 0) {
 			return new byte[0];
 		}
-		return sha1.digest(source);
+		return workspaces.get().sha1.digest(source);
 	}
 
 	public byte[] encrypt(String source) {
@@ -40,12 +46,23 @@ public class Sha1Encryptor {
 			return new byte[0];
 		}
 
-		try {
-			return encrypt(source.getBytes("utf-8"));
-		} catch (UnsupportedEncodingException e) {
-			log.warn(e);
+		Workspace ws = workspaces.get();
+		int length = ws.encodeUtf8(source);
+		ws.sha1.update(ws.input, 0, length);
+		return ws.sha1.digest();
+	}
+
+	/**
+	 * 对 position 到 limit 之间的字节做SHA1，处理后 position 等于 limit
+	 */
+	public byte[] encrypt(ByteBuffer source) {
+		if (source == null || !source.hasRemaining()) {
 			return new byte[0];
 		}
+
+		MessageDigest sha1 = workspaces.get().sha1;
+		sha1.update(source);
+		return sha1.digest();
 	}
 
 	public String encryptToString(byte[] source) {
@@ -53,66 +70,259 @@ public class Sha1Encryptor {
 			return "";
 		}
 
-		byte[] result = encrypt(source);
-		if (result == new byte[0]) {
+		Workspace ws = workspaces.get();
+		ws.sha1.update(source);
+		return new String(ws.digestToHex(), 0, HEX_SIZE);
+	}
+
+	public String encryptToString(String source) {
+		if (null == source || "".equals(source)) {
 			return "";
 		}
 
-		return toHexString(result);
+		Workspace ws = workspaces.get();
+		int length = ws.encodeUtf8(source);
+		ws.sha1.update(ws.input, 0, length);
+		return new String(ws.digestToHex(), 0, HEX_SIZE);
 	}
 
-	public String encryptToString(String source) {
+	/**
+	 * 对字符串的UTF-8编码做SHA1，Hex String写入调用方提供的数组，不产生临时对象
+	 *
+	 * @param source
+	 *            被加密的字符串
+	 * @param dst
+	 *            接收Hex String的数组
+	 * @param dstOff
+	 *            写入的起始位置
+	 * @return 写入的字符数，source为空时为0
+	 */
+	public int encryptToHex(CharSequence source, char[] dst, int dstOff) {
+		if (source == null || source.length() == 0) {
+			return 0;
+		}
 
-		if (null == source || "".equals(source)) {
-			return "";
+		Workspace ws = workspaces.get();
+		int length = ws.encodeUtf8(source);
+		ws.sha1.update(ws.input, 0, length);
+		return ws.digestToHex(dst, dstOff);
+	}
+
+	/**
+	 * 对字符串的UTF-8编码做SHA1，Hex String追加到 dst
+	 *
+	 * @return dst
+	 */
+	public StringBuilder encryptToHex(CharSequence source, StringBuilder dst) {
+		if (source == null || source.length() == 0) {
+			return dst;
 		}
-		try {
-			return encryptToString(source.getBytes("utf-8"));
-		} catch (UnsupportedEncodingException e) {
-			log.warn(e);
-			return "";
+
+		Workspace ws = workspaces.get();
+		int length = ws.encodeUtf8(source);
+		ws.sha1.update(ws.input, 0, length);
+		return dst.append(ws.digestToHex(), 0, HEX_SIZE);
+	}
+
+	/**
+	 * 计算客户端令牌 {@code SHA1(clientKey|timestamp)}，直接编码输入，不拼接字符串
+	 *
+	 * @param clientKey
+	 *            客户端密钥
+	 * @param timestamp
+	 *            时间戳
+	 * @param dst
+	 *            接收Hex String的数组
+	 * @param dstOff
+	 *            写入的起始位置
+	 * @return 写入的字符数
+	 */
+	public int encryptToHex(CharSequence clientKey, long timestamp, char[] dst, int dstOff) {
+		Workspace ws = workspaces.get();
+		int length = ws.encodeUtf8(clientKey);
+		length = ws.appendAscii(length, '|');
+		length = ws.appendDecimal(length, timestamp);
+		ws.sha1.update(ws.input, 0, length);
+		return ws.digestToHex(dst, dstOff);
+	}
+
+	/**
+	 * 对 position 到 limit 之间的字节做SHA1，Hex String写入调用方提供的数组
+	 *
+	 * @return 写入的字符数，source为空时为0
+	 */
+	public int encryptToHex(ByteBuffer source, char[] dst, int dstOff) {
+		if (source == null || !source.hasRemaining()) {
+			return 0;
 		}
+
+		Workspace ws = workspaces.get();
+		ws.sha1.update(source);
+		return ws.digestToHex(dst, dstOff);
 	}
 
 	/*
-	 * convert byte array to hex string <example>{127,0,1} to "FF0001"</example>
-	 * 
+	 * convert byte array to hex string <example>{127,0,1} to "7F0001"</example>
+	 *
 	 * @param source
-	 * 
+	 *
 	 * @return
 	 */
 	public String toHexString(byte[] source) {
-		if (source == null || source.length == 1) {
+		if (source == null || source.length == 0) {
 			return "";
 		}
 
 		char[] chrs = new char[source.length * 2];
-		for (int i = 0; i < chrs.length; i += 2) {
-			char[] tmp = toHexChars(source[i / 2]);
-			chrs[i] = tmp[0];
-			chrs[i + 1] = tmp[1];
+		toHexChars(source, 0, source.length, chrs, 0);
+		return new String(chrs);
+	}
+
+	/**
+	 * byte数组转换为大写Hex字符，写入调用方提供的数组
+	 *
+	 * @return 写入的字符数
+	 */
+	public static int toHexChars(byte[] source, int off, int len, char[] dst, int dstOff) {
+		for (int i = off; i < off + len; ++i) {
+			dst[dstOff++] = HEX_DIGITS[(source[i] >> 4) & 0x0F];
+			dst[dstOff++] = HEX_DIGITS[source[i] & 0x0F];
 		}
+		return len * 2;
+	}
 
-		return new String(chrs).toUpperCase();
+	/**
+	 * byte数组转换为大写Hex字符，追加到 dst
+	 *
+	 * @return dst
+	 */
+	public static StringBuilder appendHex(byte[] source, int off, int len, StringBuilder dst) {
+		for (int i = off; i < off + len; ++i) {
+			dst.append(HEX_DIGITS[(source[i] >> 4) & 0x0F]).append(HEX_DIGITS[source[i] & 0x0F]);
+		}
+		return dst;
 	}
 
 	/**
-	 * byte数组转换为char数组
-	 * 
-	 * @param b
-	 * @return
+	 * 每个线程的 MessageDigest 和缓冲区
 	 */
-	private char[] toHexChars(byte b) {
-		char[] chrs = new char[2];
+	private static final class Workspace {
+		final MessageDigest sha1;
+		final byte[] digest = new byte[DIGEST_SIZE];
+		final char[] hex = new char[HEX_SIZE];
+		/** 输入的UTF-8编码，按需扩容 */
+		byte[] input = new byte[128];
 
-		char[] tmp = String.format("%x", b).toCharArray();
-		if (tmp.length == 2) {
-			chrs = tmp;
-		} else if (tmp.length == 1) {
-			chrs[0] = '0';
-			chrs[1] = tmp[0];
+		Workspace() {
+			try {
+				sha1 = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
 		}
 
-		return chrs;
+		/**
+		 * 结束SHA1计算，结果转换为Hex写入 dst
+		 */
+		int digestToHex(char[] dst, int dstOff) {
+			try {
+				sha1.digest(digest, 0, DIGEST_SIZE);
+			} catch (DigestException e) {
+				throw new IllegalStateException(e);
+			}
+			return toHexChars(digest, 0, DIGEST_SIZE, dst, dstOff);
+		}
+
+		/**
+		 * 结束SHA1计算，返回线程内的Hex缓冲区
+		 */
+		char[] digestToHex() {
+			digestToHex(hex, 0);
+			return hex;
+		}
+
+		/**
+		 * 将字符串按UTF-8编码写入 input，与 {@code String.getBytes("utf-8")}
+		 * 结果一致（不成对的代理字符编码为 '?'）
+		 *
+		 * @return 编码后的字节数
+		 */
+		int encodeUtf8(CharSequence source) {
+			int length = source.length();
+			ensureCapacity(length * 3);
+
+			byte[] out = input;
+			int pos = 0;
+			for (int i = 0; i < length; ++i) {
+				char c = source.charAt(i);
+				if (c < 0x80) {
+					out[pos++] = (byte) c;
+				} else if (c < 0x800) {
+					out[pos++] = (byte) (0xC0 | (c >> 6));
+					out[pos++] = (byte) (0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < length
+						&& Character.isLowSurrogate(source.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, source.charAt(++i));
+					out[pos++] = (byte) (0xF0 | (codePoint >> 18));
+					out[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+					out[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+					out[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+				} else if (Character.isSurrogate(c)) {
+					out[pos++] = '?';
+				} else {
+					out[pos++] = (byte) (0xE0 | (c >> 12));
+					out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+					out[pos++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+			return pos;
+		}
+
+		int appendAscii(int pos, char c) {
+			ensureCapacity(pos + 1);
+			input[pos++] = (byte) c;
+			return pos;
+		}
+
+		/**
+		 * 将十进制数字写入 input 的 pos 位置
+		 *
+		 * @return 写入后的位置
+		 */
+		int appendDecimal(int pos, long value) {
+			// Long.MIN_VALUE 有19位数字和符号位
+			ensureCapacity(pos + 20);
+			if (value == Long.MIN_VALUE) {
+				for (char c : Long.toString(value).toCharArray()) {
+					input[pos++] = (byte) c;
+				}
+				return pos;
+			}
+			if (value < 0) {
+				input[pos++] = '-';
+				value = -value;
+			}
+
+			int end = pos;
+			long rest = value;
+			do {
+				++end;
+				rest /= 10;
+			} while (rest != 0);
+
+			for (int i = end - 1; i >= pos; --i) {
+				input[i] = (byte) ('0' + value % 10);
+				value /= 10;
+			}
+			return end;
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (input.length < capacity) {
+				byte[] grown = new byte[Math.max(capacity, input.length * 2)];
+				System.arraycopy(input, 0, grown, 0, input.length);
+				input = grown;
+			}
+		}
 	}
 }
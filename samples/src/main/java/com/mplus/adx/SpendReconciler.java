@@ -0,0 +1,256 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.mplus.adx.PriceCryptor.PriceInfo;
+
+/**
+ * Reconciles spend from win-notice logs: text files with a notice per line,
+ * such as its query string or a log line holding it, whose encrypted price
+ * is a {@code price=} parameter (see {@link PriceCryptor}).
+ * <p>
+ * Files are mapped in chunks of whole lines (see
+ * {@link FileHelper#mapChunks(String, int)}), and the chunks of all files are
+ * processed in parallel, each into its own partial {@link Result}: lines are
+ * scanned in place, each price is decrypted without allocating, and its value
+ * is added to the spend of its serverId and of its hour, taken from the
+ * initialization vector, in {@link LongLongMap}s. The partial results are then
+ * merged in chunk order; sums being exact, the result does not depend on the
+ * number of threads.
+ */
+public final class SpendReconciler {
+	public static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+	public static final String DEFAULT_PRICE_PARAMETER = "price";
+
+	/** Websafe-base64 of a price, with padding, fits in this. */
+	private static final int MAX_CIPHER_CHARS = 64;
+
+	private final PriceCryptor cryptor;
+	private final byte[] priceParameter;
+	private final int chunkSize;
+
+	public SpendReconciler(PriceCryptor cryptor) {
+		this(cryptor, DEFAULT_PRICE_PARAMETER, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param priceParameter
+	 *            name of the parameter holding the encrypted price
+	 * @param chunkSize
+	 *            bytes per task, at least; a chunk extends to the end of its
+	 *            last line
+	 */
+	public SpendReconciler(PriceCryptor cryptor, String priceParameter, int chunkSize) {
+		checkArgument(chunkSize > 0, "chunkSize must be positive: %s", chunkSize);
+		this.cryptor = checkNotNull(cryptor);
+		this.priceParameter = (priceParameter + "=").getBytes(StandardCharsets.US_ASCII);
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Reconciles the files under {@code dir} and its subdirectories.
+	 *
+	 * @param filter
+	 *            files to read, or null for all
+	 */
+	public Result reconcile(ForkJoinPool pool, String dir, FileFilter filter) throws IOException {
+		List<String> files = FileHelper.getAllFileAbsolutePath(dir, true, filter);
+		if (files == null) {
+			throw new IOException("Not a directory: " + dir);
+		}
+		return reconcile(pool, files);
+	}
+
+	/**
+	 * Reconciles {@code files}, split in chunks processed on {@code pool}.
+	 */
+	public Result reconcile(ForkJoinPool pool, List<String> files) throws IOException {
+		long started = System.nanoTime();
+		List<Callable<Result>> tasks = new ArrayList<>();
+		for (String file : files) {
+			for (MappedByteBuffer chunk : FileHelper.mapChunks(file, chunkSize)) {
+				tasks.add(() -> reconcile(chunk));
+			}
+		}
+
+		Result result = new Result();
+		try {
+			for (Future<Result> partial : pool.invokeAll(tasks)) {
+				result.merge(partial.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted reconciling " + files.size() + " files", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Failed to reconcile", e.getCause());
+		}
+		result.fileCount = files.size();
+		result.chunkCount = tasks.size();
+		result.elapsedNanos = System.nanoTime() - started;
+		return result;
+	}
+
+	/**
+	 * Reconciles the lines of a chunk.
+	 */
+	private Result reconcile(MappedByteBuffer chunk) {
+		Result result = new Result();
+		byte[] cipher = new byte[MAX_CIPHER_CHARS];
+		PriceInfo price = new PriceInfo(0, 0, 0);
+		result.lineCount = FileHelper.forEachLine(chunk, line -> {
+			int start = indexOfValue(line);
+			if (start < 0) {
+				return;
+			}
+			int end = start;
+			while (end < line.length() && !isValueEnd(line.byteAt(end))) {
+				++end;
+			}
+			++result.recordCount;
+			if (end - start > MAX_CIPHER_CHARS) {
+				++result.failureCount;
+				return;
+			}
+			for (int i = start; i < end; ++i) {
+				cipher[i - start] = line.byteAt(i);
+			}
+			try {
+				cryptor.decryptPrice(cipher, 0, end - start, price);
+			} catch (SignatureException | IllegalArgumentException e) {
+				++result.failureCount;
+				return;
+			}
+			result.totalSpend += price.getPrice();
+			result.spendByServerId.add(price.getServerId(), price.getPrice());
+			result.spendByHour.add(price.getCurrentTimeMillis() / TimeUnit.HOURS.toMillis(1), price.getPrice());
+		});
+		return result;
+	}
+
+	/**
+	 * Returns the start of the price parameter value in {@code line}, or -1.
+	 */
+	private int indexOfValue(ByteSlice line) {
+		for (int i = 0; i + priceParameter.length <= line.length(); ++i) {
+			if (i > 0 && !isValueEnd(line.byteAt(i - 1)) && line.byteAt(i - 1) != '?') {
+				continue;
+			}
+			int j = 0;
+			while (j < priceParameter.length && line.byteAt(i + j) == priceParameter[j]) {
+				++j;
+			}
+			if (j == priceParameter.length) {
+				return i + j;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isValueEnd(byte b) {
+		return b == '&' || b == ' ' || b == '\t' || b == '"';
+	}
+
+	/**
+	 * Spend of a reconciliation, in micros, and its counters.
+	 */
+	public static final class Result {
+		private long lineCount;
+		private long recordCount;
+		private long failureCount;
+		private long totalSpend;
+		private final LongLongMap spendByServerId = new LongLongMap();
+		private final LongLongMap spendByHour = new LongLongMap();
+		private int fileCount;
+		private int chunkCount;
+		private long elapsedNanos;
+
+		private void merge(Result partial) {
+			lineCount += partial.lineCount;
+			recordCount += partial.recordCount;
+			failureCount += partial.failureCount;
+			totalSpend += partial.totalSpend;
+			spendByServerId.merge(partial.spendByServerId);
+			spendByHour.merge(partial.spendByHour);
+		}
+
+		public long getLineCount() {
+			return lineCount;
+		}
+
+		/**
+		 * Returns the number of lines with a price.
+		 */
+		public long getRecordCount() {
+			return recordCount;
+		}
+
+		/**
+		 * Returns the number of prices that could not be decrypted.
+		 */
+		public long getFailureCount() {
+			return failureCount;
+		}
+
+		public long getTotalSpend() {
+			return totalSpend;
+		}
+
+		public LongLongMap getSpendByServerId() {
+			return spendByServerId;
+		}
+
+		/**
+		 * Returns the spend by hour since the epoch, of the price timestamps.
+		 */
+		public LongLongMap getSpendByHour() {
+			return spendByHour;
+		}
+
+		public int getFileCount() {
+			return fileCount;
+		}
+
+		public int getChunkCount() {
+			return chunkCount;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		public double getRecordsPerSecond() {
+			return elapsedNanos == 0 ? 0 : recordCount * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * Compares the spend and counters, not the timing.
+		 */
+		public boolean sameSpend(Result other) {
+			return lineCount == other.lineCount && recordCount == other.recordCount
+					&& failureCount == other.failureCount && totalSpend == other.totalSpend
+					&& spendByServerId.equals(other.spendByServerId) && spendByHour.equals(other.spendByHour);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"files=%s, chunks=%s, lines=%s, records=%s, failures=%s, spend=%s, serverIds=%s, hours=%s, %.0f records/s",
+					fileCount, chunkCount, lineCount, recordCount, failureCount, totalSpend, spendByServerId.size(),
+					spendByHour.size(), getRecordsPerSecond());
+		}
+	}
+}
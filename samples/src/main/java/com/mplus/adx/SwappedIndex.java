@@ -0,0 +1,48 @@
+package com.mplus.adx;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An index that is rebuilt as a whole from its items and swapped in with a
+ * volatile write, so readers take no lock and each read sees one version.
+ * Rebuilds are serialized.
+ *
+ * @param <T>
+ *            the items
+ * @param <I>
+ *            the index built from them
+ */
+final class SwappedIndex<T, I> {
+	private static Logger logger = Logger.getLogger(SwappedIndex.class);
+
+	private final Function<Collection<T>, I> builder;
+	private volatile I index;
+
+	/**
+	 * Starts with the index of no items.
+	 */
+	SwappedIndex(Function<Collection<T>, I> builder) {
+		this.builder = builder;
+		this.index = builder.apply(Collections.<T>emptyList());
+	}
+
+	/**
+	 * Builds the index of {@code items} and swaps it in, unless the builder
+	 * throws.
+	 */
+	synchronized I update(Collection<T> items) {
+		long start = System.nanoTime();
+		I rebuilt = builder.apply(items);
+		index = rebuilt;
+		logger.info(String.format("Indexed %s in %s ms", rebuilt, (System.nanoTime() - start) / 1_000_000));
+		return rebuilt;
+	}
+
+	I get() {
+		return index;
+	}
+}
@@ -0,0 +1,1475 @@
+package com.mplus.adx;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@code BidRequest} of either revision of the schema, decoded in a single
+ * pass from its wire format.
+ * <p>
+ * {@code bidrequest.proto} and {@code bidrequest2.proto} differ in that the
+ * second makes {@code Pmp.Deal.bidfloor} optional and adds
+ * {@code Device.imei/anid/mac} (fields 23 to 25). This model has the fields
+ * of both, and {@link #getRevision()} tells which revision the input needs:
+ * {@link Revision#REVISION_2} if it uses one of those fields or has a deal
+ * without floor, {@link Revision#REVISION_1} otherwise, since such a request
+ * is valid under both.
+ * <p>
+ * Decoding resets the model and refills it, reusing its submessages, lists
+ * and slices; keep one instance per thread. Strings are {@link ByteSlice}s
+ * of the input, valid until the input buffer is reused. Field numbers for
+ * {@link ProtoMessage#has(int)} are the {@code *_FIELD_NUMBER} constants, as
+ * in generated code. Not thread-safe.
+ */
+public final class UnifiedBidRequest extends ProtoMessage {
+	public enum Revision {
+		/** {@code bidrequest.proto}: deals have a floor, no device ids. */
+		REVISION_1,
+		/** {@code bidrequest2.proto}: optional deal floor, device imei/anid/mac. */
+		REVISION_2
+	}
+
+	public static final int ID_FIELD_NUMBER = 1;
+	public static final int IMP_FIELD_NUMBER = 2;
+	public static final int APP_FIELD_NUMBER = 3;
+	public static final int DEVICE_FIELD_NUMBER = 4;
+	public static final int AT_FIELD_NUMBER = 5;
+	public static final int TMAX_FIELD_NUMBER = 6;
+	public static final int CUR_FIELD_NUMBER = 7;
+	public static final int BCAT_FIELD_NUMBER = 8;
+	public static final int BADV_FIELD_NUMBER = 9;
+	public static final int BAPP_FIELD_NUMBER = 10;
+
+	private final ProtoCursor cursor = new ProtoCursor();
+	private Revision revision;
+
+	private final ByteSlice id = new ByteSlice();
+	private final Messages<Imp> imp = new Messages<>(Imp::new);
+	private final App app = new App();
+	private final Device device = new Device();
+	private int at;
+	private int tmax;
+	private final Slices cur = new Slices();
+	private final Slices bcat = new Slices();
+	private final Slices badv = new Slices();
+	private final Slices bapp = new Slices();
+
+	/**
+	 * Decodes the request between the position and the limit of
+	 * {@code buffer}, which are not modified.
+	 *
+	 * @return this request
+	 * @throws IllegalArgumentException
+	 *             if the input is malformed, or misses a field that both
+	 *             revisions require
+	 */
+	public UnifiedBidRequest decode(ByteBuffer buffer) {
+		reset();
+		cursor.reset(buffer, buffer.position(), buffer.limit());
+		merge(cursor);
+		checkRequired();
+		revision = detectRevision();
+		return this;
+	}
+
+	public UnifiedBidRequest decode(byte[] bytes, int off, int len) {
+		return decode(ByteBuffer.wrap(bytes, off, len));
+	}
+
+	public Revision getRevision() {
+		return revision;
+	}
+
+	public ByteSlice getId() {
+		return id;
+	}
+
+	public Messages<Imp> getImp() {
+		return imp;
+	}
+
+	public App getApp() {
+		return get(APP_FIELD_NUMBER, app);
+	}
+
+	public Device getDevice() {
+		return get(DEVICE_FIELD_NUMBER, device);
+	}
+
+	public int getAt() {
+		return at;
+	}
+
+	public int getTmax() {
+		return tmax;
+	}
+
+	public Slices getCur() {
+		return cur;
+	}
+
+	public Slices getBcat() {
+		return bcat;
+	}
+
+	public Slices getBadv() {
+		return badv;
+	}
+
+	public Slices getBapp() {
+		return bapp;
+	}
+
+	@Override
+	void reset() {
+		super.reset();
+		revision = null;
+		id.clear();
+		imp.clear();
+		at = 0;
+		tmax = 0;
+		cur.clear();
+		bcat.clear();
+		badv.clear();
+		bapp.clear();
+	}
+
+	@Override
+	boolean mergeField(ProtoCursor in, int tag) {
+		switch (tag) {
+		case ID_FIELD_NUMBER << 3 | LEN:
+			readBytes(in, ID_FIELD_NUMBER, id);
+			return true;
+		case IMP_FIELD_NUMBER << 3 | LEN:
+			imp.add().mergeDelimited(in);
+			set(IMP_FIELD_NUMBER);
+			return true;
+		case APP_FIELD_NUMBER << 3 | LEN:
+			child(APP_FIELD_NUMBER, app).mergeDelimited(in);
+			return true;
+		case DEVICE_FIELD_NUMBER << 3 | LEN:
+			child(DEVICE_FIELD_NUMBER, device).mergeDelimited(in);
+			return true;
+		case AT_FIELD_NUMBER << 3 | VARINT:
+			at = in.readVarint32();
+			set(AT_FIELD_NUMBER);
+			return true;
+		case TMAX_FIELD_NUMBER << 3 | VARINT:
+			tmax = in.readVarint32();
+			set(TMAX_FIELD_NUMBER);
+			return true;
+		case CUR_FIELD_NUMBER << 3 | LEN:
+			readBytes(in, CUR_FIELD_NUMBER, cur.add());
+			return true;
+		case BCAT_FIELD_NUMBER << 3 | LEN:
+			readBytes(in, BCAT_FIELD_NUMBER, bcat.add());
+			return true;
+		case BADV_FIELD_NUMBER << 3 | LEN:
+			readBytes(in, BADV_FIELD_NUMBER, badv.add());
+			return true;
+		case BAPP_FIELD_NUMBER << 3 | LEN:
+			readBytes(in, BAPP_FIELD_NUMBER, bapp.add());
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Checks the required fields of revision 2, which are required by
+	 * revision 1 too.
+	 */
+	private void checkRequired() {
+		if (!has(ID_FIELD_NUMBER)) {
+			throw missing("BidRequest.id");
+		}
+		for (int i = 0; i < imp.size(); ++i) {
+			Imp current = imp.get(i);
+			if (!current.has(Imp.ID_FIELD_NUMBER)) {
+				throw missing("BidRequest.Imp.id");
+			}
+			if (current.getNativead() != null && !current.getNativead().has(Native.REQUEST_FIELD_NUMBER)) {
+				throw missing("BidRequest.Imp.Native.request");
+			}
+			Pmp pmp = current.getPmp();
+			for (int j = 0; pmp != null && j < pmp.getDeals().size(); ++j) {
+				if (!pmp.getDeals().get(j).has(Deal.ID_FIELD_NUMBER)) {
+					throw missing("BidRequest.Imp.Pmp.Deal.id");
+				}
+			}
+		}
+	}
+
+	private Revision detectRevision() {
+		if (has(DEVICE_FIELD_NUMBER) && (device.has(Device.IMEI_FIELD_NUMBER)
+				|| device.has(Device.ANID_FIELD_NUMBER) || device.has(Device.MAC_FIELD_NUMBER))) {
+			return Revision.REVISION_2;
+		}
+		for (int i = 0; i < imp.size(); ++i) {
+			Pmp pmp = imp.get(i).getPmp();
+			for (int j = 0; pmp != null && j < pmp.getDeals().size(); ++j) {
+				if (!pmp.getDeals().get(j).has(Deal.BIDFLOOR_FIELD_NUMBER)) {
+					return Revision.REVISION_2;
+				}
+			}
+		}
+		return Revision.REVISION_1;
+	}
+
+	private static IllegalArgumentException missing(String field) {
+		return ProtoCursor.malformed("Missing required field " + field);
+	}
+
+	public static final class Imp extends ProtoMessage {
+		public static final int ID_FIELD_NUMBER = 1;
+		public static final int BANNER_FIELD_NUMBER = 2;
+		public static final int VIDEO_FIELD_NUMBER = 3;
+		public static final int AUDIO_FIELD_NUMBER = 4;
+		public static final int NATIVEAD_FIELD_NUMBER = 5;
+		public static final int PMP_FIELD_NUMBER = 6;
+		public static final int INSTL_FIELD_NUMBER = 7;
+		public static final int BIDFLOOR_FIELD_NUMBER = 8;
+		public static final int BIDFLOORCUR_FIELD_NUMBER = 9;
+		public static final int SECURE_FIELD_NUMBER = 10;
+		public static final int EXT_FIELD_NUMBER = 11;
+		public static final int TAGID_FIELD_NUMBER = 12;
+
+		private final ByteSlice id = new ByteSlice();
+		private final Banner banner = new Banner();
+		private final Video video = new Video();
+		private final Audio audio = new Audio();
+		private final Native nativead = new Native();
+		private final Pmp pmp = new Pmp();
+		private int instl;
+		private long bidfloor;
+		private final ByteSlice bidfloorcur = new ByteSlice();
+		private int secure;
+		private final ImpExt ext = new ImpExt();
+		private final ByteSlice tagid = new ByteSlice();
+
+		public ByteSlice getId() {
+			return id;
+		}
+
+		public Banner getBanner() {
+			return get(BANNER_FIELD_NUMBER, banner);
+		}
+
+		public Video getVideo() {
+			return get(VIDEO_FIELD_NUMBER, video);
+		}
+
+		public Audio getAudio() {
+			return get(AUDIO_FIELD_NUMBER, audio);
+		}
+
+		public Native getNativead() {
+			return get(NATIVEAD_FIELD_NUMBER, nativead);
+		}
+
+		public Pmp getPmp() {
+			return get(PMP_FIELD_NUMBER, pmp);
+		}
+
+		public int getInstl() {
+			return instl;
+		}
+
+		public long getBidfloor() {
+			return bidfloor;
+		}
+
+		public ByteSlice getBidfloorcur() {
+			return bidfloorcur;
+		}
+
+		public int getSecure() {
+			return secure;
+		}
+
+		public ImpExt getExt() {
+			return get(EXT_FIELD_NUMBER, ext);
+		}
+
+		public ByteSlice getTagid() {
+			return tagid;
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			id.clear();
+			instl = 0;
+			bidfloor = 0;
+			bidfloorcur.clear();
+			secure = 0;
+			tagid.clear();
+		}
+
+		@Override
+		boolean mergeField(ProtoCursor in, int tag) {
+			switch (tag) {
+			case ID_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, ID_FIELD_NUMBER, id);
+				return true;
+			case BANNER_FIELD_NUMBER << 3 | LEN:
+				child(BANNER_FIELD_NUMBER, banner).mergeDelimited(in);
+				return true;
+			case VIDEO_FIELD_NUMBER << 3 | LEN:
+				child(VIDEO_FIELD_NUMBER, video).mergeDelimited(in);
+				return true;
+			case AUDIO_FIELD_NUMBER << 3 | LEN:
+				child(AUDIO_FIELD_NUMBER, audio).mergeDelimited(in);
+				return true;
+			case NATIVEAD_FIELD_NUMBER << 3 | LEN:
+				child(NATIVEAD_FIELD_NUMBER, nativead).mergeDelimited(in);
+				return true;
+			case PMP_FIELD_NUMBER << 3 | LEN:
+				child(PMP_FIELD_NUMBER, pmp).mergeDelimited(in);
+				return true;
+			case INSTL_FIELD_NUMBER << 3 | VARINT:
+				instl = in.readVarint32();
+				set(INSTL_FIELD_NUMBER);
+				return true;
+			case BIDFLOOR_FIELD_NUMBER << 3 | VARINT:
+				bidfloor = in.readVarint64();
+				set(BIDFLOOR_FIELD_NUMBER);
+				return true;
+			case BIDFLOORCUR_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, BIDFLOORCUR_FIELD_NUMBER, bidfloorcur);
+				return true;
+			case SECURE_FIELD_NUMBER << 3 | VARINT:
+				secure = in.readVarint32();
+				set(SECURE_FIELD_NUMBER);
+				return true;
+			case EXT_FIELD_NUMBER << 3 | LEN:
+				child(EXT_FIELD_NUMBER, ext).mergeDelimited(in);
+				return true;
+			case TAGID_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, TAGID_FIELD_NUMBER, tagid);
+				return true;
+			default:
+				return false;
+			}
+		}
+	}
+
+	public static final class Banner extends ProtoMessage {
+		public static final int W_FIELD_NUMBER = 1;
+		public static final int H_FIELD_NUMBER = 2;
+		public static final int BTYPE_FIELD_NUMBER = 3;
+		public static final int MIMES_FIELD_NUMBER = 4;
+		public static final int API_FIELD_NUMBER = 5;
+
+		private int w;
+		private int h;
+		private final Slices btype = new Slices();
+		private final Slices mimes = new Slices();
+		private final Ints api = new Ints();
+
+		public int getW() {
+			return w;
+		}
+
+		public int getH() {
+			return h;
+		}
+
+		public Slices getBtype() {
+			return btype;
+		}
+
+		public Slices getMimes() {
+			return mimes;
+		}
+
+		public Ints getApi() {
+			return api;
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			w = 0;
+			h = 0;
+			btype.clear();
+			mimes.clear();
+			api.clear();
+		}
+
+		@Override
+		boolean mergeField(ProtoCursor in, int tag) {
+			switch (tag) {
+			case W_FIELD_NUMBER << 3 | VARINT:
+				w = in.readVarint32();
+				set(W_FIELD_NUMBER);
+				return true;
+			case H_FIELD_NUMBER << 3 | VARINT:
+				h = in.readVarint32();
+				set(H_FIELD_NUMBER);
+				return true;
+			case BTYPE_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, BTYPE_FIELD_NUMBER, btype.add());
+				return true;
+			case MIMES_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, MIMES_FIELD_NUMBER, mimes.add());
+				return true;
+			case API_FIELD_NUMBER << 3 | VARINT:
+			case API_FIELD_NUMBER << 3 | LEN:
+				readInts(in, API_FIELD_NUMBER, api, tag == (API_FIELD_NUMBER << 3 | LEN));
+				return true;
+			default:
+				return false;
+			}
+		}
+	}
+
+	public static final class Video extends ProtoMessage {
+		public static final int W_FIELD_NUMBER = 1;
+		public static final int H_FIELD_NUMBER = 2;
+		public static final int MIMES_FIELD_NUMBER = 3;
+		public static final int API_FIELD_NUMBER = 4;
+		public static final int MINDURATION_FIELD_NUMBER = 5;
+		public static final int MAXDURATION_FIELD_NUMBER = 6;
+		public static final int STARTDELAY_FIELD_NUMBER = 7;
+		public static final int LINEARITY_FIELD_NUMBER = 8;
+		public static final int SKIP_FIELD_NUMBER = 9;
+		public static final int MINBITRATE_FIELD_NUMBER = 10;
+		public static final int MAXBITRATE_FIELD_NUMBER = 11;
+		public static final int BOXINGALLOWED_FIELD_NUMBER = 12;
+		public static final int DELIVERY_FIELD_NUMBER = 13;
+		public static final int PROTOCOLS_FIELD_NUMBER = 15;
+		public static final int EXT_FIELD_NUMBER = 16;
+
+		private int w;
+		private int h;
+		private final Slices mimes = new Slices();
+		private final Ints api = new Ints();
+		private int minduration;
+		private int maxduration;
+		private int startdelay;
+		private int linearity;
+		private int skip;
+		private int minbitrate;
+		private int maxbitrate;
+		private int boxingallowed;
+		private final Ints delivery = new Ints();
+		private final Ints protocols = new Ints();
+		private final VideoExt ext = new VideoExt();
+
+		public int getW() {
+			return w;
+		}
+
+		public int getH() {
+			return h;
+		}
+
+		public Slices getMimes() {
+			return mimes;
+		}
+
+		public Ints getApi() {
+			return api;
+		}
+
+		public int getMinduration() {
+			return minduration;
+		}
+
+		public int getMaxduration() {
+			return maxduration;
+		}
+
+		public int getStartdelay() {
+			return startdelay;
+		}
+
+		public int getLinearity() {
+			return linearity;
+		}
+
+		public int getSkip() {
+			return skip;
+		}
+
+		public int getMinbitrate() {
+			return minbitrate;
+		}
+
+		public int getMaxbitrate() {
+			return maxbitrate;
+		}
+
+		public int getBoxingallowed() {
+			return boxingallowed;
+		}
+
+		public Ints getDelivery() {
+			return delivery;
+		}
+
+		public Ints getProtocols() {
+			return protocols;
+		}
+
+		public VideoExt getExt() {
+			return get(EXT_FIELD_NUMBER, ext);
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			w = 0;
+			h = 0;
+			mimes.clear();
+			api.clear();
+			minduration = 0;
+			maxduration = 0;
+			startdelay = 0;
+			linearity = 0;
+			skip = 0;
+			minbitrate = 0;
+			maxbitrate = 0;
+			boxingallowed = 0;
+			delivery.clear();
+			protocols.clear();
+		}
+
+		@Override
+		boolean mergeField(ProtoCursor in, int tag) {
+			switch (tag) {
+			case W_FIELD_NUMBER << 3 | VARINT:
+				w = in.readVarint32();
+				break;
+			case H_FIELD_NUMBER << 3 | VARINT:
+				h = in.readVarint32();
+				break;
+			case MIMES_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, MIMES_FIELD_NUMBER, mimes.add());
+				return true;
+			case API_FIELD_NUMBER << 3 | VARINT:
+			case API_FIELD_NUMBER << 3 | LEN:
+				readInts(in, API_FIELD_NUMBER, api, tag == (API_FIELD_NUMBER << 3 | LEN));
+				return true;
+			case MINDURATION_FIELD_NUMBER << 3 | VARINT:
+				minduration = in.readVarint32();
+				break;
+			case MAXDURATION_FIELD_NUMBER << 3 | VARINT:
+				maxduration = in.readVarint32();
+				break;
+			case STARTDELAY_FIELD_NUMBER << 3 | VARINT:
+				startdelay = in.readVarint32();
+				break;
+			case LINEARITY_FIELD_NUMBER << 3 | VARINT:
+				linearity = in.readVarint32();
+				break;
+			case SKIP_FIELD_NUMBER << 3 | VARINT:
+				skip = in.readVarint32();
+				break;
+			case MINBITRATE_FIELD_NUMBER << 3 | VARINT:
+				minbitrate = in.readVarint32();
+				break;
+			case MAXBITRATE_FIELD_NUMBER << 3 | VARINT:
+				maxbitrate = in.readVarint32();
+				break;
+			case BOXINGALLOWED_FIELD_NUMBER << 3 | VARINT:
+				boxingallowed = in.readVarint32();
+				break;
+			case DELIVERY_FIELD_NUMBER << 3 | VARINT:
+			case DELIVERY_FIELD_NUMBER << 3 | LEN:
+				readInts(in, DELIVERY_FIELD_NUMBER, delivery, tag == (DELIVERY_FIELD_NUMBER << 3 | LEN));
+				return true;
+			case PROTOCOLS_FIELD_NUMBER << 3 | VARINT:
+			case PROTOCOLS_FIELD_NUMBER << 3 | LEN:
+				readInts(in, PROTOCOLS_FIELD_NUMBER, protocols, tag == (PROTOCOLS_FIELD_NUMBER << 3 | LEN));
+				return true;
+			case EXT_FIELD_NUMBER << 3 | LEN:
+				child(EXT_FIELD_NUMBER, ext).mergeDelimited(in);
+				return true;
+			default:
+				return false;
+			}
+			set(ProtoCursor.fieldNumber(tag));
+			return true;
+		}
+
+		public static final class VideoExt extends ProtoMessage {
+			public static final int MAXCREATIVE_FIELD_NUMBER = 1;
+
+			private int maxcreative;
+
+			public int getMaxcreative() {
+				return maxcreative;
+			}
+
+			@Override
+			void reset() {
+				super.reset();
+				maxcreative = 0;
+			}
+
+			@Override
+			boolean mergeField(ProtoCursor in, int tag) {
+				if (tag != (MAXCREATIVE_FIELD_NUMBER << 3 | VARINT)) {
+					return false;
+				}
+				maxcreative = in.readVarint32();
+				set(MAXCREATIVE_FIELD_NUMBER);
+				return true;
+			}
+		}
+	}
+
+	public static final class Audio extends ProtoMessage {
+		public static final int MIMES_FIELD_NUMBER = 1;
+		public static final int API_FIELD_NUMBER = 2;
+		public static final int MINDURATION_FIELD_NUMBER = 3;
+		public static final int MAXDURATION_FIELD_NUMBER = 4;
+		public static final int STARTDELAY_FIELD_NUMBER = 5;
+		public static final int MINBITRATE_FIELD_NUMBER = 6;
+		public static final int MAXBITRATE_FIELD_NUMBER = 7;
+		public static final int DELIVERY_FIELD_NUMBER = 8;
+		public static final int PROTOCOLS_FIELD_NUMBER = 9;
+
+		private final Slices mimes = new Slices();
+		private final Ints api = new Ints();
+		private int minduration;
+		private int maxduration;
+		private int startdelay;
+		private int minbitrate;
+		private int maxbitrate;
+		private final Ints delivery = new Ints();
+		private final Ints protocols = new Ints();
+
+		public Slices getMimes() {
+			return mimes;
+		}
+
+		public Ints getApi() {
+			return api;
+		}
+
+		public int getMinduration() {
+			return minduration;
+		}
+
+		public int getMaxduration() {
+			return maxduration;
+		}
+
+		public int getStartdelay() {
+			return startdelay;
+		}
+
+		public int getMinbitrate() {
+			return minbitrate;
+		}
+
+		public int getMaxbitrate() {
+			return maxbitrate;
+		}
+
+		public Ints getDelivery() {
+			return delivery;
+		}
+
+		public Ints getProtocols() {
+			return protocols;
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			mimes.clear();
+			api.clear();
+			minduration = 0;
+			maxduration = 0;
+			startdelay = 0;
+			minbitrate = 0;
+			maxbitrate = 0;
+			delivery.clear();
+			protocols.clear();
+		}
+
+		@Override
+		boolean mergeField(ProtoCursor in, int tag) {
+			switch (tag) {
+			case MIMES_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, MIMES_FIELD_NUMBER, mimes.add());
+				return true;
+			case API_FIELD_NUMBER << 3 | VARINT:
+			case API_FIELD_NUMBER << 3 | LEN:
+				readInts(in, API_FIELD_NUMBER, api, tag == (API_FIELD_NUMBER << 3 | LEN));
+				return true;
+			case MINDURATION_FIELD_NUMBER << 3 | VARINT:
+				minduration = in.readVarint32();
+				break;
+			case MAXDURATION_FIELD_NUMBER << 3 | VARINT:
+				maxduration = in.readVarint32();
+				break;
+			case STARTDELAY_FIELD_NUMBER << 3 | VARINT:
+				startdelay = in.readVarint32();
+				break;
+			case MINBITRATE_FIELD_NUMBER << 3 | VARINT:
+				minbitrate = in.readVarint32();
+				break;
+			case MAXBITRATE_FIELD_NUMBER << 3 | VARINT:
+				maxbitrate = in.readVarint32();
+				break;
+			case DELIVERY_FIELD_NUMBER << 3 | VARINT:
+			case DELIVERY_FIELD_NUMBER << 3 | LEN:
+				readInts(in, DELIVERY_FIELD_NUMBER, delivery, tag == (DELIVERY_FIELD_NUMBER << 3 | LEN));
+				return true;
+			case PROTOCOLS_FIELD_NUMBER << 3 | VARINT:
+			case PROTOCOLS_FIELD_NUMBER << 3 | LEN:
+				readInts(in, PROTOCOLS_FIELD_NUMBER, protocols, tag == (PROTOCOLS_FIELD_NUMBER << 3 | LEN));
+				return true;
+			default:
+				return false;
+			}
+			set(ProtoCursor.fieldNumber(tag));
+			return true;
+		}
+	}
+
+	public static final class Native extends ProtoMessage {
+		public static final int REQUEST_FIELD_NUMBER = 1;
+		public static final int VER_FIELD_NUMBER = 2;
+		public static final int API_FIELD_NUMBER = 3;
+
+		private final ByteSlice request = new ByteSlice();
+		private int ver;
+		private final Ints api = new Ints();
+
+		public ByteSlice getRequest() {
+			return request;
+		}
+
+		public int getVer() {
+			return ver;
+		}
+
+		public Ints getApi() {
+			return api;
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			request.clear();
+			ver = 0;
+			api.clear();
+		}
+
+		@Override
+		boolean mergeField(ProtoCursor in, int tag) {
+			switch (tag) {
+			case REQUEST_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, REQUEST_FIELD_NUMBER, request);
+				return true;
+			case VER_FIELD_NUMBER << 3 | VARINT:
+				ver = in.readVarint32();
+				set(VER_FIELD_NUMBER);
+				return true;
+			case API_FIELD_NUMBER << 3 | VARINT:
+			case API_FIELD_NUMBER << 3 | LEN:
+				readInts(in, API_FIELD_NUMBER, api, tag == (API_FIELD_NUMBER << 3 | LEN));
+				return true;
+			default:
+				return false;
+			}
+		}
+	}
+
+	public static final class Pmp extends ProtoMessage {
+		public static final int DEALS_FIELD_NUMBER = 1;
+
+		private final Messages<Deal> deals = new Messages<>(Deal::new);
+
+		public Messages<Deal> getDeals() {
+			return deals;
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			deals.clear();
+		}
+
+		@Override
+		boolean mergeField(ProtoCursor in, int tag) {
+			if (tag != (DEALS_FIELD_NUMBER << 3 | LEN)) {
+				return false;
+			}
+			deals.add().mergeDelimited(in);
+			set(DEALS_FIELD_NUMBER);
+			return true;
+		}
+	}
+
+	/**
+	 * {@code Pmp.Deal}, whose {@code bidfloor} is required in revision 1.
+	 */
+	public static final class Deal extends ProtoMessage {
+		public static final int ID_FIELD_NUMBER = 1;
+		public static final int BIDFLOOR_FIELD_NUMBER = 2;
+		public static final int BIDFLOORCUR_FIELD_NUMBER = 3;
+		public static final int AT_FIELD_NUMBER = 4;
+		public static final int WADOMAIN_FIELD_NUMBER = 5;
+
+		private final ByteSlice id = new ByteSlice();
+		private long bidfloor;
+		private final ByteSlice bidfloorcur = new ByteSlice();
+		private int at;
+		private final Slices wadomain = new Slices();
+
+		public ByteSlice getId() {
+			return id;
+		}
+
+		public long getBidfloor() {
+			return bidfloor;
+		}
+
+		public ByteSlice getBidfloorcur() {
+			return bidfloorcur;
+		}
+
+		public int getAt() {
+			return at;
+		}
+
+		public Slices getWadomain() {
+			return wadomain;
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			id.clear();
+			bidfloor = 0;
+			bidfloorcur.clear();
+			at = 0;
+			wadomain.clear();
+		}
+
+		@Override
+		boolean mergeField(ProtoCursor in, int tag) {
+			switch (tag) {
+			case ID_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, ID_FIELD_NUMBER, id);
+				return true;
+			case BIDFLOOR_FIELD_NUMBER << 3 | VARINT:
+				bidfloor = in.readVarint64();
+				set(BIDFLOOR_FIELD_NUMBER);
+				return true;
+			case BIDFLOORCUR_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, BIDFLOORCUR_FIELD_NUMBER, bidfloorcur);
+				return true;
+			case AT_FIELD_NUMBER << 3 | VARINT:
+				at = in.readVarint32();
+				set(AT_FIELD_NUMBER);
+				return true;
+			case WADOMAIN_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, WADOMAIN_FIELD_NUMBER, wadomain.add());
+				return true;
+			default:
+				return false;
+			}
+		}
+	}
+
+	public static final class ImpExt extends ProtoMessage {
+		public static final int FULLSCREEN_FIELD_NUMBER = 1;
+
+		private int fullscreen;
+
+		public int getFullscreen() {
+			return fullscreen;
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			fullscreen = 0;
+		}
+
+		@Override
+		boolean mergeField(ProtoCursor in, int tag) {
+			if (tag != (FULLSCREEN_FIELD_NUMBER << 3 | VARINT)) {
+				return false;
+			}
+			fullscreen = in.readVarint32();
+			set(FULLSCREEN_FIELD_NUMBER);
+			return true;
+		}
+	}
+
+	public static final class Publisher extends ProtoMessage {
+		public static final int ID_FIELD_NUMBER = 1;
+		public static final int NAME_FIELD_NUMBER = 2;
+		public static final int CAT_FIELD_NUMBER = 3;
+		public static final int DOMAIN_FIELD_NUMBER = 4;
+
+		private final ByteSlice id = new ByteSlice();
+		private final ByteSlice name = new ByteSlice();
+		private final Slices cat = new Slices();
+		private final ByteSlice domain = new ByteSlice();
+
+		public ByteSlice getId() {
+			return id;
+		}
+
+		public ByteSlice getName() {
+			return name;
+		}
+
+		public Slices getCat() {
+			return cat;
+		}
+
+		public ByteSlice getDomain() {
+			return domain;
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			id.clear();
+			name.clear();
+			cat.clear();
+			domain.clear();
+		}
+
+		@Override
+		boolean mergeField(ProtoCursor in, int tag) {
+			switch (tag) {
+			case ID_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, ID_FIELD_NUMBER, id);
+				return true;
+			case NAME_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, NAME_FIELD_NUMBER, name);
+				return true;
+			case CAT_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, CAT_FIELD_NUMBER, cat.add());
+				return true;
+			case DOMAIN_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, DOMAIN_FIELD_NUMBER, domain);
+				return true;
+			default:
+				return false;
+			}
+		}
+	}
+
+	public static final class Geo extends ProtoMessage {
+		public static final int LAT_FIELD_NUMBER = 1;
+		public static final int LON_FIELD_NUMBER = 2;
+		public static final int COUNTRY_FIELD_NUMBER = 3;
+		public static final int REGION_FIELD_NUMBER = 4;
+		public static final int CITY_FIELD_NUMBER = 5;
+		public static final int UFCOFFSET_FIELD_NUMBER = 7;
+
+		private float lat;
+		private float lon;
+		private final ByteSlice country = new ByteSlice();
+		private final ByteSlice region = new ByteSlice();
+		private final ByteSlice city = new ByteSlice();
+		private int ufcoffset;
+
+		public float getLat() {
+			return lat;
+		}
+
+		public float getLon() {
+			return lon;
+		}
+
+		public ByteSlice getCountry() {
+			return country;
+		}
+
+		public ByteSlice getRegion() {
+			return region;
+		}
+
+		public ByteSlice getCity() {
+			return city;
+		}
+
+		public int getUfcoffset() {
+			return ufcoffset;
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			lat = 0;
+			lon = 0;
+			country.clear();
+			region.clear();
+			city.clear();
+			ufcoffset = 0;
+		}
+
+		@Override
+		boolean mergeField(ProtoCursor in, int tag) {
+			switch (tag) {
+			case LAT_FIELD_NUMBER << 3 | FIXED32:
+				lat = in.readFloat();
+				set(LAT_FIELD_NUMBER);
+				return true;
+			case LON_FIELD_NUMBER << 3 | FIXED32:
+				lon = in.readFloat();
+				set(LON_FIELD_NUMBER);
+				return true;
+			case COUNTRY_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, COUNTRY_FIELD_NUMBER, country);
+				return true;
+			case REGION_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, REGION_FIELD_NUMBER, region);
+				return true;
+			case CITY_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, CITY_FIELD_NUMBER, city);
+				return true;
+			case UFCOFFSET_FIELD_NUMBER << 3 | VARINT:
+				ufcoffset = in.readVarint32();
+				set(UFCOFFSET_FIELD_NUMBER);
+				return true;
+			default:
+				return false;
+			}
+		}
+	}
+
+	public static final class App extends ProtoMessage {
+		public static final int ID_FIELD_NUMBER = 1;
+		public static final int NAME_FIELD_NUMBER = 2;
+		public static final int BUNDLE_FIELD_NUMBER = 3;
+		public static final int DOMAIN_FIELD_NUMBER = 4;
+		public static final int STOREURL_FIELD_NUMBER = 5;
+		public static final int CAT_FIELD_NUMBER = 6;
+		public static final int SECTIONCAT_FIELD_NUMBER = 7;
+		public static final int PAGECAT_FIELD_NUMBER = 8;
+		public static final int VER_FIELD_NUMBER = 9;
+		public static final int PAID_FIELD_NUMBER = 10;
+		public static final int PUBLISHER_FIELD_NUMBER = 11;
+		public static final int KEYWORDS_FIELD_NUMBER = 12;
+
+		private final ByteSlice id = new ByteSlice();
+		private final ByteSlice name = new ByteSlice();
+		private final ByteSlice bundle = new ByteSlice();
+		private final ByteSlice domain = new ByteSlice();
+		private final ByteSlice storeurl = new ByteSlice();
+		private final Slices cat = new Slices();
+		private final Slices sectioncat = new Slices();
+		private final Slices pagecat = new Slices();
+		private final ByteSlice ver = new ByteSlice();
+		private int paid;
+		private final Publisher publisher = new Publisher();
+		private final ByteSlice keywords = new ByteSlice();
+
+		public ByteSlice getId() {
+			return id;
+		}
+
+		public ByteSlice getName() {
+			return name;
+		}
+
+		public ByteSlice getBundle() {
+			return bundle;
+		}
+
+		public ByteSlice getDomain() {
+			return domain;
+		}
+
+		public ByteSlice getStoreurl() {
+			return storeurl;
+		}
+
+		public Slices getCat() {
+			return cat;
+		}
+
+		public Slices getSectioncat() {
+			return sectioncat;
+		}
+
+		public Slices getPagecat() {
+			return pagecat;
+		}
+
+		public ByteSlice getVer() {
+			return ver;
+		}
+
+		public int getPaid() {
+			return paid;
+		}
+
+		public Publisher getPublisher() {
+			return get(PUBLISHER_FIELD_NUMBER, publisher);
+		}
+
+		public ByteSlice getKeywords() {
+			return keywords;
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			id.clear();
+			name.clear();
+			bundle.clear();
+			domain.clear();
+			storeurl.clear();
+			cat.clear();
+			sectioncat.clear();
+			pagecat.clear();
+			ver.clear();
+			paid = 0;
+			keywords.clear();
+		}
+
+		@Override
+		boolean mergeField(ProtoCursor in, int tag) {
+			switch (tag) {
+			case ID_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, ID_FIELD_NUMBER, id);
+				return true;
+			case NAME_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, NAME_FIELD_NUMBER, name);
+				return true;
+			case BUNDLE_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, BUNDLE_FIELD_NUMBER, bundle);
+				return true;
+			case DOMAIN_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, DOMAIN_FIELD_NUMBER, domain);
+				return true;
+			case STOREURL_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, STOREURL_FIELD_NUMBER, storeurl);
+				return true;
+			case CAT_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, CAT_FIELD_NUMBER, cat.add());
+				return true;
+			case SECTIONCAT_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, SECTIONCAT_FIELD_NUMBER, sectioncat.add());
+				return true;
+			case PAGECAT_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, PAGECAT_FIELD_NUMBER, pagecat.add());
+				return true;
+			case VER_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, VER_FIELD_NUMBER, ver);
+				return true;
+			case PAID_FIELD_NUMBER << 3 | VARINT:
+				paid = in.readVarint32();
+				set(PAID_FIELD_NUMBER);
+				return true;
+			case PUBLISHER_FIELD_NUMBER << 3 | LEN:
+				child(PUBLISHER_FIELD_NUMBER, publisher).mergeDelimited(in);
+				return true;
+			case KEYWORDS_FIELD_NUMBER << 3 | LEN:
+				readBytes(in, KEYWORDS_FIELD_NUMBER, keywords);
+				return true;
+			default:
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * {@code Device}, whose {@code imei}, {@code anid} and {@code mac} only
+	 * exist in revision 2.
+	 */
+	public static final class Device extends ProtoMessage {
+		public static final int UA_FIELD_NUMBER = 1;
+		public static final int GEO_FIELD_NUMBER = 2;
+		public static final int IP_FIELD_NUMBER = 3;
+		public static final int IPV6_FIELD_NUMBER = 4;
+		public static final int DEVICETYPE_FIELD_NUMBER = 5;
+		public static final int MAKE_FIELD_NUMBER = 6;
+		public static final int MODEL_FIELD_NUMBER = 7;
+		public static final int OS_FIELD_NUMBER = 8;
+		public static final int H_FIELD_NUMBER = 9;
+		public static final int W_FIELD_NUMBER = 10;
+		public static final int PPI_FIELD_NUMBER = 11;
+		public static final int PXRATIO_FIELD_NUMBER = 12;
+		public static final int CARRIER_FIELD_NUMBER = 13;
+		public static final int CONNECTIONTYPE_FIELD_NUMBER = 14;
+		public static final int IFA_FIELD_NUMBER = 15;
+		public static final int DIDSHA1_FIELD_NUMBER = 16;
+		public static final int DIDMD5_FIELD_NUMBER = 17;
+		public static final int DPIDSHA1_FIELD_NUMBER = 18;
+		public static final int DPIDMD5_FIELD_NUMBER = 19;
+		public static final int MACSHA1_FIELD_NUMBER = 20;
+		public static final int MACMD5_FIELD_NUMBER = 21;
+		public static final int EXT_FIELD_NUMBER = 22;
+		public static final int IMEI_FIELD_NUMBER = 23;
+		public static final int ANID_FIELD_NUMBER = 24;
+		public static final int MAC_FIELD_NUMBER = 25;
+
+		private final ByteSlice ua = new ByteSlice();
+		private final Geo geo = new Geo();
+		private final ByteSlice ip = new ByteSlice();
+		private final ByteSlice ipv6 = new ByteSlice();
+		private int devicetype;
+		private final ByteSlice make = new ByteSlice();
+		private final ByteSlice model = new ByteSlice();
+		private final ByteSlice os = new ByteSlice();
+		private int h;
+		private int w;
+		private int ppi;
+		private float pxratio;
+		private final ByteSlice carrier = new ByteSlice();
+		private int connectiontype;
+		private final ByteSlice ifa = new ByteSlice();
+		private final ByteSlice didsha1 = new ByteSlice();
+		private final ByteSlice didmd5 = new ByteSlice();
+		private final ByteSlice dpidsha1 = new ByteSlice();
+		private final ByteSlice dpidmd5 = new ByteSlice();
+		private final ByteSlice macsha1 = new ByteSlice();
+		private final ByteSlice macmd5 = new ByteSlice();
+		private final DeviceExt ext = new DeviceExt();
+		private final ByteSlice imei = new ByteSlice();
+		private final ByteSlice anid = new ByteSlice();
+		private final ByteSlice mac = new ByteSlice();
+
+		public ByteSlice getUa() {
+			return ua;
+		}
+
+		public Geo getGeo() {
+			return get(GEO_FIELD_NUMBER, geo);
+		}
+
+		public ByteSlice getIp() {
+			return ip;
+		}
+
+		public ByteSlice getIpv6() {
+			return ipv6;
+		}
+
+		public int getDevicetype() {
+			return devicetype;
+		}
+
+		public ByteSlice getMake() {
+			return make;
+		}
+
+		public ByteSlice getModel() {
+			return model;
+		}
+
+		public ByteSlice getOs() {
+			return os;
+		}
+
+		public int getH() {
+			return h;
+		}
+
+		public int getW() {
+			return w;
+		}
+
+		public int getPpi() {
+			return ppi;
+		}
+
+		public float getPxratio() {
+			return pxratio;
+		}
+
+		public ByteSlice getCarrier() {
+			return carrier;
+		}
+
+		public int getConnectiontype() {
+			return connectiontype;
+		}
+
+		public ByteSlice getIfa() {
+			return ifa;
+		}
+
+		public ByteSlice getDidsha1() {
+			return didsha1;
+		}
+
+		public ByteSlice getDidmd5() {
+			return didmd5;
+		}
+
+		public ByteSlice getDpidsha1() {
+			return dpidsha1;
+		}
+
+		public ByteSlice getDpidmd5() {
+			return dpidmd5;
+		}
+
+		public ByteSlice getMacsha1() {
+			return macsha1;
+		}
+
+		public ByteSlice getMacmd5() {
+			return macmd5;
+		}
+
+		public DeviceExt getExt() {
+			return get(EXT_FIELD_NUMBER, ext);
+		}
+
+		public ByteSlice getImei() {
+			return imei;
+		}
+
+		public ByteSlice getAnid() {
+			return anid;
+		}
+
+		public ByteSlice getMac() {
+			return mac;
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			ua.clear();
+			ip.clear();
+			ipv6.clear();
+			devicetype = 0;
+			make.clear();
+			model.clear();
+			os.clear();
+			h = 0;
+			w = 0;
+			ppi = 0;
+			pxratio = 0;
+			carrier.clear();
+			connectiontype = 0;
+			ifa.clear();
+			didsha1.clear();
+			didmd5.clear();
+			dpidsha1.clear();
+			dpidmd5.clear();
+			macsha1.clear();
+			macmd5.clear();
+			imei.clear();
+			anid.clear();
+			mac.clear();
+		}
+
+		@Override
+		boolean mergeField(ProtoCursor in, int tag) {
+			switch (tag) {
+			case GEO_FIELD_NUMBER << 3 | LEN:
+				child(GEO_FIELD_NUMBER, geo).mergeDelimited(in);
+				return true;
+			case EXT_FIELD_NUMBER << 3 | LEN:
+				child(EXT_FIELD_NUMBER, ext).mergeDelimited(in);
+				return true;
+			case DEVICETYPE_FIELD_NUMBER << 3 | VARINT:
+				devicetype = in.readVarint32();
+				break;
+			case H_FIELD_NUMBER << 3 | VARINT:
+				h = in.readVarint32();
+				break;
+			case W_FIELD_NUMBER << 3 | VARINT:
+				w = in.readVarint32();
+				break;
+			case PPI_FIELD_NUMBER << 3 | VARINT:
+				ppi = in.readVarint32();
+				break;
+			case PXRATIO_FIELD_NUMBER << 3 | FIXED32:
+				pxratio = in.readFloat();
+				break;
+			case CONNECTIONTYPE_FIELD_NUMBER << 3 | VARINT:
+				connectiontype = in.readVarint32();
+				break;
+			default:
+				ByteSlice target = ProtoCursor.wireType(tag) == LEN ? string(ProtoCursor.fieldNumber(tag)) : null;
+				if (target == null) {
+					return false;
+				}
+				in.readBytes(target);
+				break;
+			}
+			set(ProtoCursor.fieldNumber(tag));
+			return true;
+		}
+
+		/**
+		 * Returns the string field with this number, or null.
+		 */
+		private ByteSlice string(int fieldNumber) {
+			switch (fieldNumber) {
+			case UA_FIELD_NUMBER:
+				return ua;
+			case IP_FIELD_NUMBER:
+				return ip;
+			case IPV6_FIELD_NUMBER:
+				return ipv6;
+			case MAKE_FIELD_NUMBER:
+				return make;
+			case MODEL_FIELD_NUMBER:
+				return model;
+			case OS_FIELD_NUMBER:
+				return os;
+			case CARRIER_FIELD_NUMBER:
+				return carrier;
+			case IFA_FIELD_NUMBER:
+				return ifa;
+			case DIDSHA1_FIELD_NUMBER:
+				return didsha1;
+			case DIDMD5_FIELD_NUMBER:
+				return didmd5;
+			case DPIDSHA1_FIELD_NUMBER:
+				return dpidsha1;
+			case DPIDMD5_FIELD_NUMBER:
+				return dpidmd5;
+			case MACSHA1_FIELD_NUMBER:
+				return macsha1;
+			case MACMD5_FIELD_NUMBER:
+				return macmd5;
+			case IMEI_FIELD_NUMBER:
+				return imei;
+			case ANID_FIELD_NUMBER:
+				return anid;
+			case MAC_FIELD_NUMBER:
+				return mac;
+			default:
+				return null;
+			}
+		}
+
+		public static final class DeviceExt extends ProtoMessage {
+			public static final int CUSTOMID_FIELD_NUMBER = 1;
+
+			private final ByteSlice customid = new ByteSlice();
+
+			public ByteSlice getCustomid() {
+				return customid;
+			}
+
+			@Override
+			void reset() {
+				super.reset();
+				customid.clear();
+			}
+
+			@Override
+			boolean mergeField(ProtoCursor in, int tag) {
+				if (tag != (CUSTOMID_FIELD_NUMBER << 3 | LEN)) {
+					return false;
+				}
+				readBytes(in, CUSTOMID_FIELD_NUMBER, customid);
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,625 @@
+package com.mplus.adx;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Single-pass StAX check of the structure of VAST 3 and 4 documents, used by
+ * {@link VastValidator} before the full schema validation when its fast path
+ * is requested.
+ * <p>
+ * The element structure of {@code VAST}, {@code Ad}, {@code InLine},
+ * {@code Wrapper}, their {@code Creatives} and {@code Linear} creatives is
+ * checked as the XSD of the version declares it: required, repeated and
+ * out-of-order children, and the format of {@code Linear/Duration} and
+ * {@code Pricing}. A document breaking one of these rules is
+ * {@link Verdict#INVALID} for the schema too. A document meeting them is
+ * {@link Verdict#VALID} unless it contains a part that is not checked here
+ * ({@code Extensions}, companion and non-linear ads, verifications, DTDs,
+ * {@code xsi} attributes), which makes it {@link Verdict#INCONCLUSIVE}.
+ * <p>
+ * Attribute values are not checked: a document can be VALID here and still
+ * fail the schema on a missing or malformed attribute, which is why the fast
+ * path of {@link VastValidator} is opt-in. Thread-safe.
+ */
+public final class VastStreamValidator {
+	public enum Verdict {
+		/** The checked rules hold and the document has no unchecked part. */
+		VALID,
+		/** The document breaks a rule of the schema. */
+		INVALID,
+		/** The document needs the full schema validation. */
+		INCONCLUSIVE
+	}
+
+
+	/** Depth of VAST/Ad/InLine/Creatives/Creative/Linear/Icons/Icon/IconClicks/IconClickThrough. */
+	private static final int MAX_DEPTH = 10;
+
+	private static final ThreadLocal<XMLInputFactory> inputFactories = new ThreadLocal<XMLInputFactory>() {
+		@Override
+		protected XMLInputFactory initialValue() {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+			return factory;
+		}
+	};
+
+	private static final Map<Byte, Element> models = new HashMap<>();
+
+	static {
+		models.put((byte) 0x03, vast3());
+		models.put((byte) 0x04, vast4());
+	}
+
+	private VastStreamValidator() {
+	}
+
+	public static Result validate(byte version, String vast) {
+		return validate(version, new StringReader(vast));
+	}
+
+	/**
+	 * Checks a document, reading {@code reader} up to the first rule broken or
+	 * unchecked part. The reader is not closed.
+	 */
+	public static Result validate(byte version, Reader reader) {
+		Element root = models.get(version);
+		if (root == null) {
+			return new Result(Verdict.INCONCLUSIVE, "unsupported version " + version);
+		}
+
+		XMLStreamReader xml = null;
+		try {
+			xml = inputFactories.get().createXMLStreamReader(reader);
+			return validate(root, xml);
+		} catch (XMLStreamException e) {
+			return new Result(Verdict.INVALID, "malformed XML: " + e.getMessage());
+		} finally {
+			if (xml != null) {
+				try {
+					xml.close();
+				} catch (XMLStreamException e) {
+					// nothing more to read
+				}
+			}
+		}
+	}
+
+	private static Result validate(Element root, XMLStreamReader xml) throws XMLStreamException {
+		Frame[] stack = new Frame[MAX_DEPTH + 1];
+		int depth = 0;
+		StringBuilder text = null;
+
+		while (xml.hasNext()) {
+			switch (xml.next()) {
+			case XMLStreamConstants.START_ELEMENT: {
+				Result unchecked = checkAttributes(xml);
+				if (unchecked != null) {
+					return unchecked;
+				}
+
+				String name = xml.getLocalName();
+				boolean unqualified = isEmpty(xml.getNamespaceURI());
+				Element element;
+				if (depth == 0) {
+					if (!unqualified || !root.name.equals(name)) {
+						return invalid("root element is " + xml.getName() + ", expected " + root.name);
+					}
+					if (xml.getAttributeValue(null, "version") == null) {
+						return invalid("VAST: missing version attribute");
+					}
+					element = root;
+				} else {
+					Frame parent = stack[depth - 1];
+					if (parent.element.content != Content.ELEMENTS) {
+						return invalid(parent.element.name + ": unexpected element " + xml.getName());
+					}
+					element = unqualified ? parent.accept(name) : null;
+					if (element == null) {
+						return invalid(
+								parent.element.name + ": unexpected element " + xml.getName() + parent.expected());
+					}
+					if (element.content == Content.UNCHECKED) {
+						return new Result(Verdict.INCONCLUSIVE, element.name + " is not checked");
+					}
+				}
+
+				if (stack[depth] == null) {
+					stack[depth] = new Frame();
+				}
+				stack[depth++].reset(element);
+				if (element.content == Content.TIME || element.content == Content.DECIMAL) {
+					if (text == null) {
+						text = new StringBuilder();
+					}
+					text.setLength(0);
+				}
+				break;
+			}
+			case XMLStreamConstants.END_ELEMENT: {
+				Frame frame = stack[--depth];
+				Element element = frame.element;
+				if (element.content == Content.ELEMENTS) {
+					String missing = frame.missing();
+					if (missing != null) {
+						return invalid(element.name + ": missing " + missing);
+					}
+				} else if (element.content == Content.TIME) {
+					Verdict verdict = checkTime(text);
+					if (verdict != Verdict.VALID) {
+						return new Result(verdict, element.name + ": not an xs:time: '" + text + "'");
+					}
+				} else if (element.content == Content.DECIMAL && !isDecimal(text)) {
+					return invalid(element.name + ": not an xs:decimal: '" + text + "'");
+				}
+				break;
+			}
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE: {
+				if (depth == 0) {
+					break;
+				}
+				Content content = stack[depth - 1].element.content;
+				if (content == Content.ELEMENTS) {
+					if (!xml.isWhiteSpace() && !isWhitespace(xml.getTextCharacters(), xml.getTextStart(),
+							xml.getTextLength())) {
+						return invalid(stack[depth - 1].element.name + ": text in element-only content");
+					}
+				} else if (content == Content.TIME || content == Content.DECIMAL) {
+					text.append(xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength());
+				}
+				break;
+			}
+			case XMLStreamConstants.DTD:
+			case XMLStreamConstants.ENTITY_REFERENCE:
+				return new Result(Verdict.INCONCLUSIVE, "DTDs are not checked");
+			default:
+				break;
+			}
+		}
+		return Result.VALID;
+	}
+
+	/**
+	 * Returns an INCONCLUSIVE result if an attribute can change how the schema
+	 * validates the element, or null.
+	 */
+	private static Result checkAttributes(XMLStreamReader xml) {
+		for (int i = 0; i < xml.getAttributeCount(); ++i) {
+			if (XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI.equals(xml.getAttributeNamespace(i))) {
+				String name = xml.getAttributeLocalName(i);
+				if (!"schemaLocation".equals(name) && !"noNamespaceSchemaLocation".equals(name)) {
+					return new Result(Verdict.INCONCLUSIVE, "xsi:" + name + " is not checked");
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Checks the lexical form of xs:time, {@code hh:mm:ss[.s+][Z|(+|-)hh:mm]}.
+	 * Hour 24 and second 60 are left to the schema.
+	 */
+	static Verdict checkTime(CharSequence text) {
+		int start = 0;
+		int end = text.length();
+		while (start < end && isWhitespace(text.charAt(start))) {
+			++start;
+		}
+		while (end > start && isWhitespace(text.charAt(end - 1))) {
+			--end;
+		}
+
+		if (end - start < 8 || text.charAt(start + 2) != ':' || text.charAt(start + 5) != ':') {
+			return Verdict.INVALID;
+		}
+		int hour = twoDigits(text, start);
+		int minute = twoDigits(text, start + 3);
+		int second = twoDigits(text, start + 6);
+		if (hour < 0 || minute < 0 || second < 0 || minute > 59) {
+			return Verdict.INVALID;
+		}
+
+		int pos = start + 8;
+		if (pos < end && text.charAt(pos) == '.') {
+			int digits = ++pos;
+			while (pos < end && isDigit(text.charAt(pos))) {
+				++pos;
+			}
+			if (pos == digits) {
+				return Verdict.INVALID;
+			}
+		}
+		if (pos < end) {
+			char zone = text.charAt(pos);
+			if (zone == 'Z') {
+				++pos;
+			} else if ((zone == '+' || zone == '-') && end - pos == 6 && text.charAt(pos + 3) == ':') {
+				int zoneHour = twoDigits(text, pos + 1);
+				int zoneMinute = twoDigits(text, pos + 4);
+				if (zoneHour < 0 || zoneMinute < 0 || zoneMinute > 59 || zoneHour > 14
+						|| (zoneHour == 14 && zoneMinute != 0)) {
+					return Verdict.INVALID;
+				}
+				pos = end;
+			} else {
+				return Verdict.INVALID;
+			}
+		}
+		if (pos != end || hour > 24 || second > 60) {
+			return Verdict.INVALID;
+		}
+		return hour == 24 || second == 60 ? Verdict.INCONCLUSIVE : Verdict.VALID;
+	}
+
+	/**
+	 * Checks the lexical form of xs:decimal, {@code [+|-]digits[.digits]}
+	 * with at least one digit.
+	 */
+	static boolean isDecimal(CharSequence text) {
+		int start = 0;
+		int end = text.length();
+		while (start < end && isWhitespace(text.charAt(start))) {
+			++start;
+		}
+		while (end > start && isWhitespace(text.charAt(end - 1))) {
+			--end;
+		}
+
+		if (start < end && (text.charAt(start) == '+' || text.charAt(start) == '-')) {
+			++start;
+		}
+		boolean digits = false;
+		boolean point = false;
+		for (int i = start; i < end; ++i) {
+			char c = text.charAt(i);
+			if (isDigit(c)) {
+				digits = true;
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				return false;
+			}
+		}
+		return digits;
+	}
+
+	private static int twoDigits(CharSequence text, int pos) {
+		char high = text.charAt(pos);
+		char low = text.charAt(pos + 1);
+		return isDigit(high) && isDigit(low) ? (high - '0') * 10 + (low - '0') : -1;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
+
+	private static boolean isWhitespace(char[] chars, int start, int length) {
+		for (int i = start; i < start + length; ++i) {
+			if (!isWhitespace(chars[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isEmpty(String namespaceURI) {
+		return namespaceURI == null || namespaceURI.isEmpty();
+	}
+
+	private static Result invalid(String reason) {
+		return new Result(Verdict.INVALID, reason);
+	}
+
+	/**
+	 * Verdict of a document, with the rule it broke or the part that was not
+	 * checked.
+	 */
+	public static final class Result {
+		static final Result VALID = new Result(Verdict.VALID, null);
+
+		private final Verdict verdict;
+		private final String reason;
+
+		Result(Verdict verdict, String reason) {
+			this.verdict = verdict;
+			this.reason = reason;
+		}
+
+		public Verdict getVerdict() {
+			return verdict;
+		}
+
+		/**
+		 * Returns why the document is not VALID, or null if it is.
+		 */
+		public String getReason() {
+			return reason;
+		}
+
+		@Override
+		public String toString() {
+			return reason == null ? verdict.toString() : verdict + ": " + reason;
+		}
+	}
+
+	/*
+	 * Content models, transcribed from vast3.xsd and vast4.xsd. Elements whose
+	 * content is not modelled are UNCHECKED and make a document INCONCLUSIVE.
+	 */
+
+	private static Element vast3() {
+		Element icons = icons(optional(elements("IconClicks", many(text("IconClickTracking")),
+				optional(text("IconClickThrough")))));
+		Element creativeExtensions = unchecked("CreativeExtensions");
+		Element trackingEvents = elements("TrackingEvents", many(text("Tracking")));
+		Element companionAds = unchecked("CompanionAds");
+		Element nonLinearAds = unchecked("NonLinearAds");
+
+		Element inLineLinear = elements("Linear", optional(icons), optional(creativeExtensions),
+				one(time("Duration")), optional(trackingEvents), optional(text("AdParameters")),
+				optional(elements("VideoClicks", optional(text("ClickThrough")), many(text("ClickTracking")),
+						many(text("CustomClick")))),
+				optional(elements("MediaFiles", oneOrMore(text("MediaFile")))));
+		Element inLine = elements("InLine", one(text("AdSystem")), one(text("AdTitle")),
+				optional(text("Description")), optional(text("Advertiser")), optional(decimal("Pricing")),
+				optional(text("Survey")), optional(text("Error")), oneOrMore(text("Impression")),
+				one(elements("Creatives", oneOrMore(elements("Creative",
+						choice(optional(inLineLinear), optional(companionAds), optional(nonLinearAds)))))),
+				optional(unchecked("Extensions")));
+
+		Element wrapperLinear = elements("Linear", optional(creativeExtensions), optional(icons),
+				optional(trackingEvents), optional(elements("VideoClicks", many(text("ClickTracking")),
+						many(text("CustomClick")))));
+		Element wrapper = elements("Wrapper", one(text("AdSystem")), one(text("VASTAdTagURI")),
+				optional(text("Error")), oneOrMore(text("Impression")),
+				one(elements("Creatives", many(elements("Creative",
+						choice(optional(wrapperLinear), optional(companionAds), optional(nonLinearAds)))))),
+				optional(unchecked("Extensions")));
+
+		return elements("VAST", many(elements("Ad", choice(optional(inLine), optional(wrapper)))));
+	}
+
+	private static Element vast4() {
+		Element icons = icons(optional(elements("IconClicks", optional(text("IconClickThrough")),
+				many(text("IconClickTracking")))));
+		Element trackingEvents = elements("TrackingEvents", many(text("Tracking")));
+		Element companionAds = unchecked("CompanionAds");
+		Element nonLinearAds = unchecked("NonLinearAds");
+		Element interactiveCreativeFile = text("InteractiveCreativeFile");
+
+		Element inLineLinear = elements("Linear", optional(icons), one(time("Duration")),
+				optional(trackingEvents), optional(text("AdParameters")),
+				optional(elements("VideoClicks", optional(text("ClickThrough")), many(text("ClickTracking")),
+						many(text("CustomClick")))),
+				optional(elements("MediaFiles", oneOrMore(text("MediaFile")), optional(text("Mezzanine")))),
+				optional(interactiveCreativeFile));
+		Element inLine = elements("InLine", one(text("AdSystem")), one(text("AdTitle")),
+				optional(text("Description")), optional(text("Advertiser")), many(text("Category")),
+				optional(decimal("Pricing")), optional(text("Survey")), optional(text("Error")),
+				oneOrMore(text("Impression")), optional(unchecked("ViewableImpression")),
+				optional(unchecked("AdVerifications")),
+				one(elements("Creatives", oneOrMore(elements("Creative", optional(text("UniversalAdId")),
+						optional(unchecked("CreativeExtensions")),
+						choice(optional(inLineLinear), optional(companionAds), optional(nonLinearAds)))))),
+				optional(unchecked("Extensions")));
+
+		Element wrapperLinear = elements("Linear", optional(trackingEvents),
+				optional(elements("VideoClicks", many(text("ClickTracking")), many(text("CustomClick")))),
+				optional(icons), optional(interactiveCreativeFile));
+		Element wrapper = elements("Wrapper", one(text("AdSystem")), one(text("VASTAdTagURI")),
+				optional(decimal("Pricing")), optional(text("Error")), oneOrMore(text("Impression")),
+				optional(unchecked("ViewableImpression")), optional(unchecked("AdVerifications")),
+				optional(elements("Creatives", many(elements("Creative",
+						choice(optional(wrapperLinear), optional(companionAds), optional(nonLinearAds)))))),
+				optional(unchecked("Extensions")));
+
+		Element ad = elements("Ad", choice(optional(inLine), optional(wrapper)));
+		return elements("VAST", choice(many(ad), optional(text("Error"))));
+	}
+
+	private static Element icons(Particle iconClicks) {
+		return elements("Icons", oneOrMore(elements("Icon",
+				choice(optional(text("StaticResource")), optional(text("IFrameResource")),
+						optional(text("HTMLResource"))),
+				iconClicks, many(text("IconViewTracking")))));
+	}
+
+	private enum Content {
+		/** Child elements only, as modelled by the particles. */
+		ELEMENTS,
+		/** Text of any form. */
+		TEXT,
+		TIME,
+		DECIMAL,
+		/** Not modelled. */
+		UNCHECKED
+	}
+
+	private static final class Element {
+		final String name;
+		final Content content;
+		final Particle[] particles;
+
+		Element(String name, Content content, Particle... particles) {
+			this.name = name;
+			this.content = content;
+			this.particles = particles;
+		}
+	}
+
+	private static Element elements(String name, Particle... particles) {
+		return new Element(name, Content.ELEMENTS, particles);
+	}
+
+	private static Element text(String name) {
+		return new Element(name, Content.TEXT);
+	}
+
+	private static Element time(String name) {
+		return new Element(name, Content.TIME);
+	}
+
+	private static Element decimal(String name) {
+		return new Element(name, Content.DECIMAL);
+	}
+
+	private static Element unchecked(String name) {
+		return new Element(name, Content.UNCHECKED);
+	}
+
+	/**
+	 * An element, or a choice between elements, of a sequence. A choice is
+	 * satisfied by any number of occurrences of one of its elements, up to the
+	 * maximum of that element.
+	 */
+	private static final class Particle {
+		final Element[] elements;
+		final int[] maxOccurs;
+		final int minOccurs;
+
+		Particle(Element[] elements, int[] maxOccurs, int minOccurs) {
+			this.elements = elements;
+			this.maxOccurs = maxOccurs;
+			this.minOccurs = minOccurs;
+		}
+
+		int indexOf(String name) {
+			for (int i = 0; i < elements.length; ++i) {
+				if (elements[i].name.equals(name)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		String names() {
+			if (elements.length == 1) {
+				return elements[0].name;
+			}
+			StringBuilder names = new StringBuilder();
+			for (Element element : elements) {
+				names.append(names.length() == 0 ? "" : "|").append(element.name);
+			}
+			return names.toString();
+		}
+	}
+
+	private static Particle occurs(Element element, int minOccurs, int maxOccurs) {
+		return new Particle(new Element[] { element }, new int[] { maxOccurs }, minOccurs);
+	}
+
+	private static Particle one(Element element) {
+		return occurs(element, 1, 1);
+	}
+
+	private static Particle optional(Element element) {
+		return occurs(element, 0, 1);
+	}
+
+	private static Particle many(Element element) {
+		return occurs(element, 0, Integer.MAX_VALUE);
+	}
+
+	private static Particle oneOrMore(Element element) {
+		return occurs(element, 1, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * A choice occurring once, between the given single-element particles.
+	 */
+	private static Particle choice(Particle... branches) {
+		Element[] elements = new Element[branches.length];
+		int[] maxOccurs = new int[branches.length];
+		int minOccurs = 1;
+		for (int i = 0; i < branches.length; ++i) {
+			elements[i] = branches[i].elements[0];
+			maxOccurs[i] = branches[i].maxOccurs[0];
+			minOccurs = Math.min(minOccurs, branches[i].minOccurs);
+		}
+		return new Particle(elements, maxOccurs, minOccurs);
+	}
+
+	/**
+	 * Position of an open element in the sequence of its particles.
+	 */
+	private static final class Frame {
+		Element element;
+		/** Index of the current particle. */
+		int particle;
+		/** Element of the current particle that was chosen, or -1. */
+		int branch;
+		/** Occurrences of the current particle. */
+		int count;
+
+		void reset(Element element) {
+			this.element = element;
+			this.particle = 0;
+			this.branch = -1;
+			this.count = 0;
+		}
+
+		/**
+		 * Advances to the child {@code name}, returning its element, or null
+		 * if the sequence does not allow it here.
+		 */
+		Element accept(String name) {
+			Particle[] particles = element.particles;
+			for (int i = particle; i < particles.length; ++i) {
+				int index = particles[i].indexOf(name);
+				if (i == particle) {
+					if (index >= 0 && (branch < 0 || branch == index) && count < particles[i].maxOccurs[index]) {
+						branch = index;
+						++count;
+						return particles[i].elements[index];
+					}
+					if (count < particles[i].minOccurs) {
+						return null;
+					}
+				} else if (index >= 0) {
+					particle = i;
+					branch = index;
+					count = 1;
+					return particles[i].elements[index];
+				} else if (particles[i].minOccurs > 0) {
+					return null;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Returns the first required particle that is still missing, or null.
+		 */
+		String missing() {
+			Particle[] particles = element.particles;
+			for (int i = particle; i < particles.length; ++i) {
+				if ((i == particle ? count : 0) < particles[i].minOccurs) {
+					return particles[i].names();
+				}
+			}
+			return null;
+		}
+
+		String expected() {
+			String missing = missing();
+			return missing == null ? "" : ", expected " + missing;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Caches {@link VastValidator} results by the SHA-1 of the document, so a
+ * creative seen before costs a digest and a lookup instead of a validation.
+ * <p>
+ * Failures are cached too. Their reasons are interned, so the many creatives
+ * rejected for the same reason share one string, and valid documents share
+ * one result: an entry is little more than its 20-byte key. Entries are
+ * evicted least recently used beyond the maximum size, and expire after the
+ * TTL so a schema change is picked up. Thread-safe.
+ */
+public class VastValidationCache {
+	private final boolean fastPath;
+	private final Sha1Encryptor sha1 = new Sha1Encryptor();
+	private final Cache<Key, VastStreamValidator.Result> results;
+	private final Interner<String> reasons = Interners.newWeakInterner();
+
+	/**
+	 * @param maximumSize
+	 *            maximum number of documents kept
+	 * @param ttlSeconds
+	 *            how long a result is kept after the validation
+	 */
+	public VastValidationCache(long maximumSize, long ttlSeconds) {
+		this(maximumSize, ttlSeconds, false);
+	}
+
+	/**
+	 * @param fastPath
+	 *            see {@link VastValidator#validate(byte, String, boolean)}
+	 */
+	public VastValidationCache(long maximumSize, long ttlSeconds, boolean fastPath) {
+		checkArgument(ttlSeconds > 0, "Invalid TTL: %s", ttlSeconds);
+		this.fastPath = fastPath;
+		this.results = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+				.recordStats().build();
+	}
+
+	public boolean validate(byte version, String vast) {
+		return check(version, vast).getVerdict() == VastStreamValidator.Verdict.VALID;
+	}
+
+	/**
+	 * Returns the cached result of the document, validating it on a miss.
+	 *
+	 * @see VastValidator#check(byte, String, boolean)
+	 */
+	public VastStreamValidator.Result check(byte version, String vast) {
+		Key key = new Key(version, sha1.encrypt(checkNotNull(vast)));
+		VastStreamValidator.Result result = results.getIfPresent(key);
+		if (result == null) {
+			result = VastValidator.check(version, vast, fastPath);
+			if (result.getReason() != null) {
+				result = new VastStreamValidator.Result(result.getVerdict(), reasons.intern(result.getReason()));
+			}
+			results.put(key, result);
+		}
+		return result;
+	}
+
+	public void invalidateAll() {
+		results.invalidateAll();
+	}
+
+	public long size() {
+		return results.size();
+	}
+
+	/**
+	 * Returns the hit, miss and eviction counts; see
+	 * {@link CacheStats#hitRate()}.
+	 */
+	public CacheStats getCacheStats() {
+		return results.stats();
+	}
+
+	private static final class Key {
+		final byte version;
+		final byte[] digest;
+		final int hash;
+
+		Key(byte version, byte[] digest) {
+			this.version = version;
+			this.digest = digest;
+			this.hash = Arrays.hashCode(digest) * 31 + version;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this) {
+				return true;
+			} else if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return version == other.version && Arrays.equals(digest, other.digest);
+		}
+	}
+}
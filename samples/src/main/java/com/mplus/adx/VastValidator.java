@@ -1,14 +1,14 @@
 package com.mplus.adx;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.xml.XMLConstants;
 import javax.xml.transform.stream.StreamSource;
@@ -19,59 +19,310 @@ import javax.xml.validation.Validator;
 import org.apache.log4j.Logger;
 import org.xml.sax.SAXException;
 
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Validates VAST documents against the XSD of their version.
+ * <p>
+ * Documents are validated against the full schema. Callers that can do
+ * without the check of attributes may opt in to the single-pass
+ * {@link VastStreamValidator}, after which the schema only runs when that
+ * check is inconclusive.
+ * <p>
+ * The XSD of a version is read from the classpath and compiled on its first
+ * use, or ahead of it by {@link #warmUp()}. The compiled {@link Schema} holds
+ * the grammar and is shared; {@link Validator}s are not thread-safe, so each
+ * validation borrows one from a bounded pool. All validate methods may be
+ * called concurrently.
+ */
 public class VastValidator {
 	private static Logger log = Logger.getLogger(VastValidator.class);
-    private static URL vast3xsdPath = VastValidator.class.getResource("/vast3.xsd");
-    private static URL vast4xsdPath = VastValidator.class.getResource("/vast4.xsd");
-	
-	private static Map<Byte, Validator> xsdValidators = new HashMap<>();
-	
-	static {
-		readXSD();
-	}
-	
-	private static void readXSD() {
-		try{
-			Validator v3Validator = createValidator(vast3xsdPath.toURI());
-			xsdValidators.put((byte)0x03, v3Validator);
-			
-			Validator v4Validator = createValidator(vast4xsdPath.toURI());
-			xsdValidators.put((byte)0x04, v4Validator);
-		} catch (SAXException | URISyntaxException e) {
-			log.error(String.format("Read Vast XSD error. Path: %s", vast3xsdPath), e);
+
+	/** Idle validators kept per version. */
+	private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+	/** XSD of each version on the classpath. */
+	private static final ImmutableMap<Byte, SchemaHolder> schemas = ImmutableMap.of(
+			(byte) 0x03, new SchemaHolder((byte) 0x03, "/vast3.xsd"),
+			(byte) 0x04, new SchemaHolder((byte) 0x04, "/vast4.xsd"));
+
+	private static final LongAdder fastPathResults = new LongAdder();
+	private static final LongAdder schemaValidations = new LongAdder();
+
+	/**
+	 * Compiles the schemas of all versions, fills their validator pools and
+	 * runs a validation through each validator, so the first documents do not
+	 * pay for class loading and compilation. Blocks until done.
+	 */
+	public static void warmUp() {
+		for (SchemaHolder holder : schemas.values()) {
+			ValidatorPool pool = holder.pool();
+			if (pool != null) {
+				String vast = String.format("<VAST version=\"%s.0\"/>", holder.version);
+				VastStreamValidator.validate(holder.version, vast);
+				pool.prime(vast);
+			}
 		}
 	}
-	
-	
-	private static Validator createValidator(URI xsdPath) throws SAXException {
-		SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-		Schema schema = factory.newSchema(new File(xsdPath));
-		return schema.newValidator();
+
+	/**
+	 * Runs {@link #warmUp()} in a daemon thread.
+	 *
+	 * @return the started thread, to join if needed
+	 */
+	public static Thread warmUpInBackground() {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				warmUp();
+			}
+		}, "vast-validator-warmup");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
 	}
 	
 	public static boolean validate(byte version, String vast) {
-		Validator validator = xsdValidators.get(version);
-		if (null != validator) {
-			try {
-				validator.validate(new StreamSource(new StringReader(vast)));
-				return true;
-			} catch (SAXException | IOException e) {
-				log.error(String.format("Validator vast error. version:%s --> vast:%s", version, vast), e);
+		return validate(version, vast, false);
+	}
+
+	/**
+	 * @param fastPath
+	 *            decide by the {@link VastStreamValidator} when it is
+	 *            conclusive, which does not check attributes; false to
+	 *            validate against the full schema only
+	 */
+	public static boolean validate(byte version, String vast, boolean fastPath) {
+		return check(version, vast, fastPath).getVerdict() == VastStreamValidator.Verdict.VALID;
+	}
+
+	/**
+	 * Validates like {@link #validate(byte, String, boolean)}, returning why
+	 * the document failed. The verdict is never INCONCLUSIVE.
+	 */
+	public static VastStreamValidator.Result check(byte version, String vast, boolean fastPath) {
+		if (fastPath) {
+			VastStreamValidator.Result result = VastStreamValidator.validate(version, vast);
+			switch (result.getVerdict()) {
+			case VALID:
+				fastPathResults.increment();
+				return result;
+			case INVALID:
+				fastPathResults.increment();
+				log.error(String.format("Validator vast error. version:%s, reason:%s --> vast:%s", version,
+						result.getReason(), vast));
+				return result;
+			default:
+				break;
 			}
 		}
-		return false;
+
+		SchemaHolder holder = schemas.get(version);
+		ValidatorPool pool = holder == null ? null : holder.pool();
+		if (null == pool) {
+			return new VastStreamValidator.Result(VastStreamValidator.Verdict.INVALID,
+					"unsupported version " + version);
+		}
+		schemaValidations.increment();
+		long start = System.nanoTime();
+		Validator validator = pool.borrow();
+		try {
+			validator.validate(new StreamSource(new StringReader(vast)));
+			return VastStreamValidator.Result.VALID;
+		} catch (SAXException | IOException e) {
+			log.error(String.format("Validator vast error. version:%s --> vast:%s", version, vast), e);
+			return new VastStreamValidator.Result(VastStreamValidator.Verdict.INVALID, e.getMessage());
+		} finally {
+			pool.release(validator);
+			holder.recordValidation(System.nanoTime() - start);
+		}
 	}
 	
+	/**
+	 * Validates against the full schema. A reader cannot be read twice, so
+	 * there is no fast path.
+	 */
 	public static boolean validate(byte version, Reader reader) {
-		Validator validator = xsdValidators.get(version);
-		if (null != validator) {
+		SchemaHolder holder = schemas.get(version);
+		ValidatorPool pool = holder == null ? null : holder.pool();
+		if (null != pool) {
+			schemaValidations.increment();
+			long start = System.nanoTime();
+			Validator validator = pool.borrow();
 			try {
 				validator.validate(new StreamSource(reader));
 				return true;
 			} catch (SAXException | IOException e) {
 				log.error(String.format("Validator vast error. version:%s, vast:%s", version, reader), e);
+			} finally {
+				pool.release(validator);
+				holder.recordValidation(System.nanoTime() - start);
 			}
 		}
 		return false;
 	}
+
+	/**
+	 * Returns the number of documents decided by the fast path alone.
+	 */
+	public static long getFastPathCount() {
+		return fastPathResults.sum();
+	}
+
+	/**
+	 * Returns the number of documents validated against the schema.
+	 */
+	public static long getSchemaValidationCount() {
+		return schemaValidations.sum();
+	}
+
+	/**
+	 * Returns how many times a validation found the pool of its version
+	 * empty and had to create a validator, across all versions.
+	 */
+	public static long getPoolContentionCount() {
+		long count = 0;
+		for (SchemaHolder holder : schemas.values()) {
+			ValidatorPool pool = holder.pool;
+			if (pool != null) {
+				count += pool.contention.sum();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns how long reading and compiling the schema of a version took, in
+	 * nanoseconds, or -1 if it is not loaded.
+	 */
+	public static long getSchemaLoadNanos(byte version) {
+		SchemaHolder holder = schemas.get(version);
+		return holder == null ? -1 : holder.loadNanos;
+	}
+
+	/**
+	 * Returns how long the first schema validation of a version took, in
+	 * nanoseconds, or -1 if there was none. Validations run by
+	 * {@link #warmUp()} do not count, so after a warm-up this is close to the
+	 * steady state.
+	 */
+	public static long getFirstValidationNanos(byte version) {
+		SchemaHolder holder = schemas.get(version);
+		return holder == null ? -1 : holder.firstValidationNanos;
+	}
+
+	private static Schema createSchema(URL xsd) throws SAXException, IOException {
+		SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+		// streams work inside jars; the system id resolves relative imports
+		try (InputStream in = xsd.openStream()) {
+			return factory.newSchema(new StreamSource(in, xsd.toExternalForm()));
+		}
+	}
+
+	/**
+	 * Loads the schema of one version on first use. A schema that cannot be
+	 * loaded is not retried.
+	 */
+	private static final class SchemaHolder {
+		final byte version;
+		final String resource;
+		volatile ValidatorPool pool;
+		volatile boolean failed;
+		volatile long loadNanos = -1;
+		volatile long firstValidationNanos = -1;
+
+		SchemaHolder(byte version, String resource) {
+			this.version = version;
+			this.resource = resource;
+		}
+
+		ValidatorPool pool() {
+			ValidatorPool loaded = pool;
+			if (loaded != null || failed) {
+				return loaded;
+			}
+			synchronized (this) {
+				if (pool == null && !failed) {
+					load();
+				}
+				return pool;
+			}
+		}
+
+		private void load() {
+			URL xsd = VastValidator.class.getResource(resource);
+			if (xsd == null) {
+				failed = true;
+				log.error(String.format("Read Vast XSD error. No %s on the classpath", resource));
+				return;
+			}
+
+			long start = System.nanoTime();
+			try {
+				pool = new ValidatorPool(createSchema(xsd));
+				loadNanos = System.nanoTime() - start;
+				log.info(String.format("Loaded Vast XSD of version %s from %s in %s ms", version, xsd,
+						TimeUnit.NANOSECONDS.toMillis(loadNanos)));
+			} catch (SAXException | IOException e) {
+				failed = true;
+				log.error(String.format("Read Vast XSD error. Path: %s", xsd), e);
+			}
+		}
+
+		void recordValidation(long nanos) {
+			if (firstValidationNanos < 0) {
+				firstValidationNanos = nanos;
+				log.info(String.format("First Vast validation of version %s took %s us (schema load %s ms)", version,
+						TimeUnit.NANOSECONDS.toMicros(nanos), TimeUnit.NANOSECONDS.toMillis(loadNanos)));
+			}
+		}
+	}
+
+	/**
+	 * Bounded pool of validators for one schema. An empty pool creates a new
+	 * validator rather than blocking; validators returned to a full pool are
+	 * dropped.
+	 */
+	private static final class ValidatorPool {
+		private final Schema schema;
+		private final BlockingQueue<Validator> idle = new ArrayBlockingQueue<>(POOL_SIZE);
+		private final LongAdder contention = new LongAdder();
+
+		ValidatorPool(Schema schema) {
+			this.schema = schema;
+		}
+
+		Validator borrow() {
+			Validator validator = idle.poll();
+			if (validator == null) {
+				contention.increment();
+				validator = schema.newValidator();
+			}
+			return validator;
+		}
+
+		void release(Validator validator) {
+			validator.reset();
+			idle.offer(validator);
+		}
+
+		/**
+		 * Fills the pool with validators that have each validated
+		 * {@code vast} once.
+		 */
+		void prime(String vast) {
+			while (idle.remainingCapacity() > 0) {
+				Validator validator = schema.newValidator();
+				try {
+					validator.validate(new StreamSource(new StringReader(vast)));
+				} catch (SAXException | IOException e) {
+					// only the warm-up matters
+				}
+				validator.reset();
+				if (!idle.offer(validator)) {
+					break;
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,541 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only log of wins, as fixed-width binary records in memory-mapped
+ * segment files: the decrypted price, its initialization vector (timestamp
+ * and serverId) and the ids of the auction and impression.
+ * <p>
+ * A segment is a file of {@code slotsPerSegment} slots of
+ * {@link #RECORD_BYTES}, preceded by a header slot. Writers claim a slot by
+ * advancing the tail of the current segment atomically, fill it in, and
+ * commit it by writing its CRC32 last; the writer that claims past the end
+ * of a segment rolls the log to a new one. Any number of threads may
+ * {@link #append} concurrently, without locking but to roll.
+ * <p>
+ * A slot that is empty or fails its CRC, such as a record torn by a crash,
+ * is skipped by readers. Opening a log recovers its last segment: the tail
+ * is set after its last committed record, and what follows is cleared.
+ * Written records reach the page cache at once, so they survive a crash of
+ * the process; {@link #sync()} forces them to disk. {@link #scan(Path,
+ * Visitor)} and {@link #scan(ForkJoinPool, Path, Supplier)} read closed
+ * logs, one segment per task.
+ * <p>
+ * As the sink of a {@link WinNoticeBatcher}, a batch is appended and forced
+ * to disk once:
+ *
+ * <pre>
+ * WinNoticeBatcher.Sink sink = batch -&gt; {
+ * 	for (int i = 0; i &lt; batch.size(); ++i) {
+ * 		winLog.append(batch.getPrice(i), batch.getTimestamp(i), batch.getServerId(i), batch.getAuctionId(i),
+ * 				batch.getImpId(i));
+ * 	}
+ * 	winLog.sync();
+ * };
+ * </pre>
+ * <p>
+ * Record layout, big-endian:
+ *
+ * <pre>
+ * 0   int   CRC32 of bytes 4 to 128
+ * 4   byte  version, 1
+ * 5   byte  auction id length
+ * 6   byte  impression id length
+ * 8   long  price, in micros
+ * 16  long  initialization vector timestamp
+ * 24  long  initialization vector serverId
+ * 32  long  time the record was appended, in milliseconds
+ * 40  44 bytes auction id
+ * 84  44 bytes impression id
+ * </pre>
+ */
+public final class WinLog implements Closeable {
+	private static Logger log = Logger.getLogger(WinLog.class);
+
+	public static final int RECORD_BYTES = 128;
+	public static final int MAX_ID_BYTES = 44;
+	public static final int DEFAULT_SLOTS_PER_SEGMENT = 1 << 19;
+	public static final String SEGMENT_SUFFIX = ".wlog";
+
+	private static final int MAGIC = 0x4D50574C; // MPWL
+	private static final byte VERSION = 1;
+
+	private static final int CRC = 0;
+	private static final int RECORD_VERSION = 4;
+	private static final int AUCTION_ID_LENGTH = 5;
+	private static final int IMP_ID_LENGTH = 6;
+	private static final int PRICE = 8;
+	private static final int TIMESTAMP = 16;
+	private static final int SERVER_ID = 24;
+	private static final int LOGGED_AT = 32;
+	private static final int AUCTION_ID = 40;
+	private static final int IMP_ID = AUCTION_ID + MAX_ID_BYTES;
+
+	/** Header slot: magic, version, record bytes, slots, segment index. */
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_VERSION = 4;
+	private static final int HEADER_RECORD_BYTES = 8;
+	private static final int HEADER_SLOTS = 12;
+	private static final int HEADER_INDEX = 16;
+
+	private static final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+		@Override
+		protected Workspace initialValue() {
+			return new Workspace();
+		}
+	};
+
+	private final Path dir;
+	private final int slotsPerSegment;
+	private volatile Segment current;
+	private volatile boolean closed;
+	private long recoveredCount;
+	private long tornCount;
+
+	/**
+	 * Opens the log in {@code dir}, creating it if needed, with
+	 * {@link #DEFAULT_SLOTS_PER_SEGMENT}.
+	 */
+	public WinLog(Path dir) throws IOException {
+		this(dir, DEFAULT_SLOTS_PER_SEGMENT);
+	}
+
+	/**
+	 * Opens the log in {@code dir}, creating it if needed, and recovers its
+	 * last segment.
+	 *
+	 * @param slotsPerSegment
+	 *            records per segment file, for new segments
+	 */
+	public WinLog(Path dir, int slotsPerSegment) throws IOException {
+		checkArgument(slotsPerSegment > 0 && (long) (slotsPerSegment + 1) * RECORD_BYTES <= Integer.MAX_VALUE,
+				"Invalid segment size: %s slots", slotsPerSegment);
+		this.dir = checkNotNull(dir);
+		this.slotsPerSegment = slotsPerSegment;
+		Files.createDirectories(dir);
+		List<Path> segments = listSegments(dir);
+		if (segments.isEmpty()) {
+			current = Segment.create(dir, 0, slotsPerSegment);
+		} else {
+			current = recover(segments.get(segments.size() - 1));
+		}
+	}
+
+	/**
+	 * Maps the last segment for writing, and sets its tail after its last
+	 * committed record.
+	 */
+	private Segment recover(Path path) throws IOException {
+		Segment segment = Segment.open(path);
+		ByteBuffer view = segment.buffer.duplicate();
+		CRC32 crc = new CRC32();
+		int last = -1;
+		for (int slot = 0; slot < segment.slots; ++slot) {
+			if (isCommitted(segment.buffer, view, crc, segment.offsetOf(slot))) {
+				last = slot;
+				++recoveredCount;
+			} else if (!isEmpty(segment.buffer, segment.offsetOf(slot))) {
+				++tornCount;
+			}
+		}
+		// records from torn ones on are cleared; holes before the last
+		// committed record stay, and are skipped by readers
+		for (int slot = last + 1; slot < segment.slots; ++slot) {
+			int at = segment.offsetOf(slot);
+			if (!isEmpty(segment.buffer, at)) {
+				for (int i = 0; i < RECORD_BYTES; i += 8) {
+					segment.buffer.putLong(at + i, 0);
+				}
+			}
+		}
+		segment.tail.set(last + 1);
+		if (tornCount > 0) {
+			log.warn(String.format("Recovered %s: %s records, %s torn", path, recoveredCount, tornCount));
+		}
+		return segment;
+	}
+
+	/**
+	 * Appends a win.
+	 *
+	 * @param auctionId
+	 *            at most {@link #MAX_ID_BYTES}
+	 * @param impId
+	 *            at most {@link #MAX_ID_BYTES}
+	 * @return the sequence number of the record: its segment index in the
+	 *         high 32 bits and its slot in the low ones, so numbers increase
+	 *         across segments of any size
+	 */
+	public long append(long price, long timestamp, long serverId, ByteSlice auctionId, ByteSlice impId) {
+		if (auctionId.length() > MAX_ID_BYTES || impId.length() > MAX_ID_BYTES) {
+			throw new IllegalArgumentException("Id too long: " + Math.max(auctionId.length(), impId.length())
+					+ " bytes");
+		}
+		if (closed) {
+			throw new IllegalStateException("Log closed");
+		}
+		Workspace ws = workspaces.get();
+		ByteBuffer record = ws.record;
+		for (int i = 0; i < RECORD_BYTES; i += 8) {
+			record.putLong(i, 0);
+		}
+		record.put(RECORD_VERSION, VERSION);
+		record.put(AUCTION_ID_LENGTH, (byte) auctionId.length());
+		record.put(IMP_ID_LENGTH, (byte) impId.length());
+		record.putLong(PRICE, price);
+		record.putLong(TIMESTAMP, timestamp);
+		record.putLong(SERVER_ID, serverId);
+		record.putLong(LOGGED_AT, System.currentTimeMillis());
+		auctionId.getBytes(ws.bytes, AUCTION_ID);
+		impId.getBytes(ws.bytes, IMP_ID);
+		ws.crc.reset();
+		ws.crc.update(ws.bytes, RECORD_VERSION, RECORD_BYTES - RECORD_VERSION);
+		record.putInt(CRC, (int) ws.crc.getValue());
+
+		while (true) {
+			Segment segment = current;
+			long slot = segment.tail.getAndIncrement();
+			if (slot < segment.slots) {
+				MappedByteBuffer buffer = segment.buffer;
+				int at = segment.offsetOf((int) slot);
+				for (int i = 8; i < RECORD_BYTES; i += 8) {
+					buffer.putLong(at + i, record.getLong(i));
+				}
+				// the CRC, written last, commits the record
+				buffer.putLong(at, record.getLong(0));
+				return segment.index << 32 | slot;
+			}
+			roll(segment);
+		}
+	}
+
+	/**
+	 * Replaces a full segment with the next one, unless another writer did.
+	 */
+	private synchronized void roll(Segment full) {
+		if (current != full) {
+			return;
+		}
+		if (closed) {
+			throw new IllegalStateException("Log closed");
+		}
+		try {
+			current = Segment.create(dir, full.index + 1, slotsPerSegment);
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to roll " + dir, e);
+		}
+		// writers still filling their slots of the full segment write to its
+		// mapping, which outlives this reference
+		full.buffer.force();
+	}
+
+	/**
+	 * Forces the records of the current segment to disk; the previous ones
+	 * were forced when rolled.
+	 */
+	public void sync() {
+		if (closed) {
+			throw new IllegalStateException("Log closed");
+		}
+		current.buffer.force();
+	}
+
+	/**
+	 * Returns the number of committed records found in the last segment when
+	 * the log was opened.
+	 */
+	public long getRecoveredCount() {
+		return recoveredCount;
+	}
+
+	/**
+	 * Returns the number of torn records found in the last segment when the
+	 * log was opened.
+	 */
+	public long getTornCount() {
+		return tornCount;
+	}
+
+	/**
+	 * Forces the records to disk. The last segment keeps its full size: it is
+	 * still mapped, and readers skip its empty slots. Appends must have
+	 * returned.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		current.buffer.force();
+	}
+
+	/**
+	 * Reads the committed records of a log, in order.
+	 *
+	 * @return the number of records read
+	 */
+	public static long scan(Path dir, Visitor visitor) throws IOException {
+		long count = 0;
+		for (Path segment : listSegments(dir)) {
+			count += scanSegment(segment, visitor);
+		}
+		return count;
+	}
+
+	/**
+	 * Reads the committed records of a log in parallel, one task and visitor
+	 * per segment; each visitor sees the records of its segment in order.
+	 *
+	 * @return the visitors, in the order of their segments, for the caller to
+	 *         merge their results
+	 */
+	public static <V extends Visitor> List<V> scan(ForkJoinPool pool, Path dir, Supplier<V> visitors)
+			throws IOException {
+		List<Path> segments = listSegments(dir);
+		List<V> results = new ArrayList<>(segments.size());
+		List<Callable<Long>> tasks = new ArrayList<>(segments.size());
+		for (Path segment : segments) {
+			V visitor = visitors.get();
+			results.add(visitor);
+			tasks.add(() -> scanSegment(segment, visitor));
+		}
+		try {
+			for (Future<Long> future : pool.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted scanning " + dir, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException("Failed to scan " + dir, e.getCause());
+		}
+		return results;
+	}
+
+	private static long scanSegment(Path path, Visitor visitor) throws IOException {
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path)) {
+			buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
+		checkHeader(path, buffer);
+		ByteBuffer view = buffer.duplicate();
+		CRC32 crc = new CRC32();
+		Record record = new Record(buffer);
+		long count = 0;
+		for (int at = RECORD_BYTES; at + RECORD_BYTES <= buffer.capacity(); at += RECORD_BYTES) {
+			if (isCommitted(buffer, view, crc, at)) {
+				visitor.visit(record.at(at));
+				++count;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Checks the CRC of the record at {@code at}.
+	 */
+	private static boolean isCommitted(ByteBuffer buffer, ByteBuffer view, CRC32 crc, int at) {
+		if (buffer.get(at + RECORD_VERSION) != VERSION || (buffer.get(at + AUCTION_ID_LENGTH) & 0xFF) > MAX_ID_BYTES
+				|| (buffer.get(at + IMP_ID_LENGTH) & 0xFF) > MAX_ID_BYTES) {
+			return false;
+		}
+		// the CRC of a direct buffer is computed in place
+		((Buffer) view).limit(at + RECORD_BYTES);
+		((Buffer) view).position(at + RECORD_VERSION);
+		crc.reset();
+		crc.update(view);
+		return buffer.getInt(at + CRC) == (int) crc.getValue();
+	}
+
+	private static boolean isEmpty(ByteBuffer buffer, int at) {
+		for (int i = 0; i < RECORD_BYTES; i += 8) {
+			if (buffer.getLong(at + i) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void checkHeader(Path path, ByteBuffer buffer) throws IOException {
+		if (buffer.capacity() < RECORD_BYTES || buffer.getInt(HEADER_MAGIC) != MAGIC
+				|| buffer.getInt(HEADER_VERSION) != VERSION || buffer.getInt(HEADER_RECORD_BYTES) != RECORD_BYTES) {
+			throw new IOException("Not a win log segment: " + path);
+		}
+	}
+
+	private static List<Path> listSegments(Path dir) throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+			for (Path path : stream) {
+				segments.add(path);
+			}
+		}
+		// names are zero-padded indexes
+		Collections.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * Called for each committed record of a scan.
+	 */
+	public interface Visitor {
+		/**
+		 * @param record
+		 *            reused for the next record
+		 */
+		void visit(Record record);
+	}
+
+	/**
+	 * A record of a segment being scanned.
+	 */
+	public static final class Record {
+		private final ByteBuffer buffer;
+		private final ByteSlice auctionId = new ByteSlice();
+		private final ByteSlice impId = new ByteSlice();
+		private int at;
+
+		Record(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		Record at(int at) {
+			this.at = at;
+			return this;
+		}
+
+		/**
+		 * Returns the price, in micros.
+		 */
+		public long getPrice() {
+			return buffer.getLong(at + PRICE);
+		}
+
+		public long getTimestamp() {
+			return buffer.getLong(at + TIMESTAMP);
+		}
+
+		public long getServerId() {
+			return buffer.getLong(at + SERVER_ID);
+		}
+
+		/**
+		 * Returns the time the record was appended, in milliseconds.
+		 */
+		public long getLoggedAt() {
+			return buffer.getLong(at + LOGGED_AT);
+		}
+
+		/**
+		 * Returns the auction id, in a slice of the segment reused for the
+		 * next record.
+		 */
+		public ByteSlice getAuctionId() {
+			return auctionId.set(buffer, at + AUCTION_ID, buffer.get(at + AUCTION_ID_LENGTH) & 0xFF);
+		}
+
+		/**
+		 * Returns the impression id, in a slice of the segment reused for the
+		 * next record.
+		 */
+		public ByteSlice getImpId() {
+			return impId.set(buffer, at + IMP_ID, buffer.get(at + IMP_ID_LENGTH) & 0xFF);
+		}
+	}
+
+	/**
+	 * A segment file mapped for writing.
+	 */
+	private static final class Segment {
+		final Path path;
+		final long index;
+		final int slots;
+		final MappedByteBuffer buffer;
+		/** Next slot to claim; past {@link #slots} once full. */
+		final AtomicLong tail = new AtomicLong();
+
+		private Segment(Path path, long index, int slots, MappedByteBuffer buffer) {
+			this.path = path;
+			this.index = index;
+			this.slots = slots;
+			this.buffer = buffer;
+		}
+
+		static Segment create(Path dir, long index, int slots) throws IOException {
+			Path path = dir.resolve(String.format("%016d%s", index, SEGMENT_SUFFIX));
+			Segment segment = new Segment(path, index, slots, map(path, slots));
+			segment.buffer.putInt(HEADER_MAGIC, MAGIC);
+			segment.buffer.putInt(HEADER_VERSION, VERSION);
+			segment.buffer.putInt(HEADER_RECORD_BYTES, RECORD_BYTES);
+			segment.buffer.putInt(HEADER_SLOTS, slots);
+			segment.buffer.putLong(HEADER_INDEX, index);
+			return segment;
+		}
+
+		/**
+		 * Maps an existing segment to its full size, growing a shorter file.
+		 */
+		static Segment open(Path path) throws IOException {
+			MappedByteBuffer header;
+			try (FileChannel channel = FileChannel.open(path)) {
+				header = channel.map(MapMode.READ_ONLY, 0, Math.min(channel.size(), RECORD_BYTES));
+			}
+			checkHeader(path, header);
+			int slots = header.getInt(HEADER_SLOTS);
+			return new Segment(path, header.getLong(HEADER_INDEX), slots, map(path, slots));
+		}
+
+		private static MappedByteBuffer map(Path path, int slots) throws IOException {
+			try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+				long size = (long) (slots + 1) * RECORD_BYTES;
+				if (file.length() < size) {
+					file.setLength(size);
+				}
+				return file.getChannel().map(MapMode.READ_WRITE, 0, size);
+			}
+		}
+
+		int offsetOf(int slot) {
+			return (slot + 1) * RECORD_BYTES;
+		}
+	}
+
+	/**
+	 * A record being built, and a CRC, owned by a single thread.
+	 */
+	private static final class Workspace {
+		final byte[] bytes = new byte[RECORD_BYTES];
+		final ByteBuffer record = ByteBuffer.wrap(bytes);
+		final CRC32 crc = new CRC32();
+	}
+}
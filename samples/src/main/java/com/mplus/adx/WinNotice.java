@@ -0,0 +1,136 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.mplus.adx.NoticeUrlTemplate.Macro;
+
+/**
+ * A win notice, parsed in place from the target of its request, such as
+ * {@code /win?id=req-1&imp=imp-1&price=...}: the values are
+ * {@link ByteSlice}s of the request buffer, found by the query parameters
+ * of the {@link NoticeUrlTemplate} the notice URL was expanded from. No
+ * string is built; the values are kept as sent, percent-encoded where
+ * needed.
+ * <p>
+ * A notice is only valid while its buffer is not reused; see
+ * {@link WinNoticeBatcher#offer(WinNotice)} to keep it. Not thread-safe;
+ * keep one per thread.
+ */
+public final class WinNotice {
+	private final byte[] path;
+	private final byte[] auctionIdName;
+	private final byte[] impIdName;
+	private final byte[] priceName;
+
+	private final ByteSlice auctionId = new ByteSlice();
+	private final ByteSlice impId = new ByteSlice();
+	private final ByteSlice price = new ByteSlice();
+
+	/**
+	 * @param template
+	 *            the notice URL, with a query parameter for
+	 *            {@code ${AUCTION_PRICE}}
+	 */
+	public WinNotice(NoticeUrlTemplate template) {
+		checkArgument(template.getParameter(Macro.AUCTION_PRICE) != null, "No parameter for %s in %s",
+				Macro.AUCTION_PRICE.getText(), template);
+		this.path = ascii(template.getPath());
+		this.auctionIdName = ascii(template.getParameter(Macro.AUCTION_ID));
+		this.impIdName = ascii(template.getParameter(Macro.AUCTION_IMP_ID));
+		this.priceName = ascii(template.getParameter(Macro.AUCTION_PRICE));
+	}
+
+	/**
+	 * Checks that the request target in {@code src[off, off + len)} has the
+	 * notice path, without parsing its query.
+	 */
+	public boolean isNotice(ByteBuffer src, int off, int len) {
+		return regionEquals(src, off, indexOfQuery(src, off, off + len), path);
+	}
+
+	/**
+	 * Parses the request target in {@code src[off, off + len)}, without
+	 * changing the position of {@code src}. Missing ids are left empty.
+	 *
+	 * @return false if the path is not the notice path, or there is no price
+	 */
+	public boolean parse(ByteBuffer src, int off, int len) {
+		auctionId.clear();
+		impId.clear();
+		price.clear();
+		int end = off + len;
+		int query = indexOfQuery(src, off, end);
+		if (!regionEquals(src, off, query, path)) {
+			return false;
+		}
+
+		for (int pair = query + 1; pair < end;) {
+			int pairEnd = pair;
+			int eq = -1;
+			for (byte b; pairEnd < end && (b = src.get(pairEnd)) != '&'; ++pairEnd) {
+				if (b == '=' && eq < 0) {
+					eq = pairEnd;
+				}
+			}
+			if (eq >= 0) {
+				if (regionEquals(src, pair, eq, priceName)) {
+					price.set(src, eq + 1, pairEnd - eq - 1);
+				} else if (regionEquals(src, pair, eq, auctionIdName)) {
+					auctionId.set(src, eq + 1, pairEnd - eq - 1);
+				} else if (regionEquals(src, pair, eq, impIdName)) {
+					impId.set(src, eq + 1, pairEnd - eq - 1);
+				}
+			}
+			pair = pairEnd + 1;
+		}
+		return !price.isEmpty();
+	}
+
+	/**
+	 * Returns the id of the request, {@code ${AUCTION_ID}}.
+	 */
+	public ByteSlice getAuctionId() {
+		return auctionId;
+	}
+
+	/**
+	 * Returns the id of the impression, {@code ${AUCTION_IMP_ID}}.
+	 */
+	public ByteSlice getImpId() {
+		return impId;
+	}
+
+	/**
+	 * Returns the encrypted price, {@code ${AUCTION_PRICE}}.
+	 */
+	public ByteSlice getPrice() {
+		return price;
+	}
+
+	private static int indexOfQuery(ByteBuffer src, int start, int end) {
+		int query = start;
+		while (query < end && src.get(query) != '?') {
+			++query;
+		}
+		return query;
+	}
+
+	private static boolean regionEquals(ByteBuffer src, int start, int end, byte[] bytes) {
+		if (bytes == null || end - start != bytes.length) {
+			return false;
+		}
+		for (int i = 0; i < bytes.length; ++i) {
+			if (src.get(start + i) != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] ascii(String s) {
+		return s == null ? null : s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,425 @@
+package com.mplus.adx;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.security.SignatureException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.mplus.adx.PriceCryptor.PriceInfo;
+
+/**
+ * Takes win notices off the request path: {@link #offer(WinNotice)} copies a
+ * notice into a bounded ring and returns, so the notice can be acknowledged
+ * at once, and a flusher thread takes the notices in micro-batches of up to
+ * {@code batchSize}, or whatever arrived within {@code maxDelay}. For each
+ * batch it decrypts the prices (checking their signature), drops replays
+ * with a {@link PriceReplayGuard}, and hands the wins to a {@link Sink} in
+ * one call, so that persistence is paid per batch rather than per notice.
+ * <p>
+ * The ring is preallocated: a notice is copied into its slot, and batches
+ * are columns of primitives, so nothing is allocated per notice. A slot is
+ * freed once its batch is persisted, so when persistence falls behind the
+ * ring fills up and {@link #offer(WinNotice)} returns false, for the caller
+ * to push back on the exchange, such as with
+ * {@code 503 Service Unavailable}; it never blocks. Thread-safe.
+ */
+public final class WinNoticeBatcher implements Closeable {
+	private static Logger log = Logger.getLogger(WinNoticeBatcher.class);
+
+	public static final int DEFAULT_SLOT_BYTES = 512;
+
+	/**
+	 * Persists the wins of a batch, such as into a log or a database.
+	 */
+	public interface Sink {
+		/**
+		 * Called on the flusher thread, one batch at a time. A batch that
+		 * throws is counted as failed and not retried.
+		 */
+		void persist(Batch batch) throws Exception;
+	}
+
+	private final PriceCryptor cryptor;
+	private final PriceReplayGuard replayGuard;
+	private final Sink sink;
+	private final int capacity;
+	private final int slotBytes;
+	private final int batchSize;
+	private final long maxDelayNanos;
+
+	/** Ids and price of each slot, one after the other. */
+	private final byte[] records;
+	private final int[] auctionIdLength;
+	private final int[] impIdLength;
+	private final int[] priceLength;
+	private final long[] offeredAt;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition ready = lock.newCondition();
+	/** Oldest slot, and slots taken from it, including the batch in flight. */
+	private int head;
+	private int count;
+	private boolean closed;
+
+	private final Batch batch;
+	private final PriceInfo priceInfo = new PriceInfo(0, 0, 0);
+	private final Thread flusher;
+
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder invalid = new LongAdder();
+	private final LongAdder replays = new LongAdder();
+	private final LongAdder persisted = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+
+	/**
+	 * @param replayGuard
+	 *            null to keep replays
+	 * @param capacity
+	 *            notices queued at most, including the batch being persisted
+	 * @param batchSize
+	 *            notices per batch, at most
+	 * @param maxDelay
+	 *            time a notice waits for its batch to fill, at most
+	 */
+	public WinNoticeBatcher(PriceCryptor cryptor, PriceReplayGuard replayGuard, Sink sink, int capacity,
+			int batchSize, long maxDelay, TimeUnit unit) {
+		this(cryptor, replayGuard, sink, capacity, DEFAULT_SLOT_BYTES, batchSize, maxDelay, unit);
+	}
+
+	/**
+	 * @param slotBytes
+	 *            bytes of the ids and price of a notice, at most
+	 */
+	public WinNoticeBatcher(PriceCryptor cryptor, PriceReplayGuard replayGuard, Sink sink, int capacity,
+			int slotBytes, int batchSize, long maxDelay, TimeUnit unit) {
+		checkArgument(capacity > 0 && slotBytes > 0 && (long) capacity * slotBytes <= Integer.MAX_VALUE,
+				"Invalid ring: %s slots of %s bytes", capacity, slotBytes);
+		checkArgument(batchSize > 0 && batchSize <= capacity, "Invalid batch size: %s", batchSize);
+		checkArgument(maxDelay >= 0, "Negative delay: %s", maxDelay);
+		this.cryptor = checkNotNull(cryptor);
+		this.replayGuard = replayGuard;
+		this.sink = checkNotNull(sink);
+		this.capacity = capacity;
+		this.slotBytes = slotBytes;
+		this.batchSize = batchSize;
+		this.maxDelayNanos = unit.toNanos(maxDelay);
+
+		this.records = new byte[capacity * slotBytes];
+		this.auctionIdLength = new int[capacity];
+		this.impIdLength = new int[capacity];
+		this.priceLength = new int[capacity];
+		this.offeredAt = new long[capacity];
+		this.batch = new Batch(ByteBuffer.wrap(records), batchSize);
+		this.flusher = new Thread(this::flush, "win-notice-flusher");
+	}
+
+	/**
+	 * Starts the flusher thread.
+	 *
+	 * @return this batcher
+	 */
+	public WinNoticeBatcher start() {
+		checkState(!flusher.isAlive() && !closed, "Already started");
+		flusher.start();
+		return this;
+	}
+
+	/**
+	 * Copies a notice into the ring, to be persisted in a later batch.
+	 *
+	 * @return false if the ring is full, or the batcher closed
+	 * @throws IllegalArgumentException
+	 *             if the ids and price do not fit in a slot
+	 */
+	public boolean offer(WinNotice notice) {
+		int auctionIdBytes = notice.getAuctionId().length();
+		int impIdBytes = notice.getImpId().length();
+		int priceBytes = notice.getPrice().length();
+		if (auctionIdBytes + impIdBytes + priceBytes > slotBytes) {
+			throw new IllegalArgumentException("Notice too long: " + (auctionIdBytes + impIdBytes + priceBytes)
+					+ " bytes");
+		}
+		lock.lock();
+		try {
+			if (count == capacity || closed) {
+				rejected.increment();
+				return false;
+			}
+			int slot = (head + count) % capacity;
+			int at = slot * slotBytes;
+			at += notice.getAuctionId().getBytes(records, at);
+			at += notice.getImpId().getBytes(records, at);
+			notice.getPrice().getBytes(records, at);
+			auctionIdLength[slot] = auctionIdBytes;
+			impIdLength[slot] = impIdBytes;
+			priceLength[slot] = priceBytes;
+			offeredAt[slot] = System.nanoTime();
+			if (++count == 1 || count == batchSize) {
+				ready.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		accepted.increment();
+		return true;
+	}
+
+	private void flush() {
+		while (true) {
+			int first;
+			int size;
+			lock.lock();
+			try {
+				try {
+					while (!closed && count < batchSize) {
+						long wait = count == 0 ? Long.MAX_VALUE : offeredAt[head] + maxDelayNanos - System.nanoTime();
+						if (wait <= 0) {
+							break;
+						}
+						ready.awaitNanos(wait);
+					}
+				} catch (InterruptedException e) {
+					closed = true;
+				}
+				if (count == 0) {
+					return;
+				}
+				first = head;
+				size = Math.min(count, batchSize);
+			} finally {
+				lock.unlock();
+			}
+
+			process(first, size);
+
+			lock.lock();
+			try {
+				head = (head + size) % capacity;
+				count -= size;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Decrypts, checks and persists the notices of {@code size} slots from
+	 * {@code first}.
+	 */
+	private void process(int first, int size) {
+		batch.size = 0;
+		for (int i = 0; i < size; ++i) {
+			int slot = (first + i) % capacity;
+			int at = slot * slotBytes;
+			int priceAt = at + auctionIdLength[slot] + impIdLength[slot];
+			try {
+				cryptor.decryptPrice(records, priceAt, priceLength[slot], priceInfo);
+			} catch (SignatureException | IllegalArgumentException e) {
+				invalid.increment();
+				continue;
+			}
+			if (replayGuard != null && replayGuard.check(priceInfo.getCurrentTimeMillis(),
+					priceInfo.getServerId()) != PriceReplayGuard.Verdict.ACCEPTED) {
+				replays.increment();
+				continue;
+			}
+			int n = batch.size++;
+			batch.auctionIdAt[n] = at;
+			batch.auctionIdLength[n] = auctionIdLength[slot];
+			batch.impIdAt[n] = at + auctionIdLength[slot];
+			batch.impIdLength[n] = impIdLength[slot];
+			batch.price[n] = priceInfo.getPrice();
+			batch.timestamp[n] = priceInfo.getCurrentTimeMillis();
+			batch.serverId[n] = priceInfo.getServerId();
+		}
+		if (batch.size == 0) {
+			return;
+		}
+		try {
+			sink.persist(batch);
+			persisted.add(batch.size);
+		} catch (Exception e) {
+			log.error("Failed to persist " + batch.size + " wins", e);
+			failed.add(batch.size);
+		}
+		batches.increment();
+	}
+
+	/**
+	 * Returns the number of notices queued, including the batch being
+	 * persisted.
+	 */
+	public int getQueuedCount() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of notices taken by {@link #offer(WinNotice)}.
+	 */
+	public long getAcceptedCount() {
+		return accepted.sum();
+	}
+
+	/**
+	 * Returns the number of notices refused because the ring was full.
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Returns the number of notices with a malformed price or a bad
+	 * signature.
+	 */
+	public long getInvalidCount() {
+		return invalid.sum();
+	}
+
+	/**
+	 * Returns the number of notices dropped by the replay guard.
+	 */
+	public long getReplayCount() {
+		return replays.sum();
+	}
+
+	public long getPersistedCount() {
+		return persisted.sum();
+	}
+
+	/**
+	 * Returns the number of wins of the batches the sink failed on.
+	 */
+	public long getFailedCount() {
+		return failed.sum();
+	}
+
+	public long getBatchCount() {
+		return batches.sum();
+	}
+
+	/**
+	 * Stops taking notices, and waits for the queued ones to be persisted.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			ready.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			if (flusher.isAlive()) {
+				flusher.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("accepted=%s, rejected=%s, invalid=%s, replays=%s, persisted=%s, failed=%s, batches=%s",
+				accepted.sum(), rejected.sum(), invalid.sum(), replays.sum(), persisted.sum(), failed.sum(),
+				batches.sum());
+	}
+
+	/**
+	 * The wins of a batch, decrypted and checked, as columns. It and its
+	 * slices are reused for the next batch.
+	 */
+	public static final class Batch {
+		private final ByteBuffer records;
+		private final ByteSlice auctionId = new ByteSlice();
+		private final ByteSlice impId = new ByteSlice();
+		private int size;
+		private final int[] auctionIdAt;
+		private final int[] auctionIdLength;
+		private final int[] impIdAt;
+		private final int[] impIdLength;
+		private final long[] price;
+		private final long[] timestamp;
+		private final long[] serverId;
+
+		Batch(ByteBuffer records, int capacity) {
+			this.records = records;
+			this.auctionIdAt = new int[capacity];
+			this.auctionIdLength = new int[capacity];
+			this.impIdAt = new int[capacity];
+			this.impIdLength = new int[capacity];
+			this.price = new long[capacity];
+			this.timestamp = new long[capacity];
+			this.serverId = new long[capacity];
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Returns the request id of win {@code i}, in a slice reused by the
+		 * next call.
+		 */
+		public ByteSlice getAuctionId(int i) {
+			checkIndex(i);
+			return auctionId.set(records, auctionIdAt[i], auctionIdLength[i]);
+		}
+
+		/**
+		 * Returns the impression id of win {@code i}, in a slice reused by the
+		 * next call.
+		 */
+		public ByteSlice getImpId(int i) {
+			checkIndex(i);
+			return impId.set(records, impIdAt[i], impIdLength[i]);
+		}
+
+		/**
+		 * Returns the price of win {@code i}, in micros.
+		 */
+		public long getPrice(int i) {
+			checkIndex(i);
+			return price[i];
+		}
+
+		/**
+		 * Returns the timestamp of the initialization vector of win
+		 * {@code i}.
+		 */
+		public long getTimestamp(int i) {
+			checkIndex(i);
+			return timestamp[i];
+		}
+
+		/**
+		 * Returns the serverId of the initialization vector of win {@code i}.
+		 */
+		public long getServerId(int i) {
+			checkIndex(i);
+			return serverId[i];
+		}
+
+		private void checkIndex(int i) {
+			if (i < 0 || i >= size) {
+				throw new IndexOutOfBoundsException("Win " + i + " of a batch of " + size);
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package com.mplus.adx.sample;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.io.Resources;
+import com.mplus.adx.BidResponseWriter;
+import com.mplus.adx.ByteSlice;
+import com.mplus.adx.DirectBufferPool;
+
+public class BidResponseWriterSample {
+
+	public static void main(String[] args) throws IOException {
+		byte[] vast = Resources.toByteArray(Resources.getResource("vast4-ad1.xml"));
+		ByteBuffer cached = ByteBuffer.allocateDirect(vast.length);
+		cached.put(vast);
+		ByteSlice adm = new ByteSlice().set(cached, 0, vast.length);
+		ByteSlice impId = new ByteSlice("imp-1".getBytes(StandardCharsets.UTF_8));
+
+		// step1: write a response, starting with a pool too small for the adm
+		DirectBufferPool pool = new DirectBufferPool(256, 4);
+		BidResponseWriter writer = new BidResponseWriter(pool);
+		ByteBuffer response = write(writer, adm, impId);
+		byte[] written = new byte[response.remaining()];
+		response.get(written);
+		pool.release(response);
+
+		Message bid1 = new Message().string(1, "bid-1").string(2, "imp-1").varint(3, 1_800_000)
+				.bytes(6, vast).string(7, "mplus.com").string(7, "例子.com").varint(13, 1).varint(13, 2).varint(17, 300)
+				.varint(18, 250);
+		Message bid2 = new Message().string(1, "bid-2").string(2, "imp-2").varint(3, 900_000).string(16, "deal-1")
+				.varint(14, -1);
+		Message seatBid = new Message(true).message(1, bid1).message(1, bid2).string(2, "seat-1");
+		byte[] expected = new Message(true).string(1, "req-0001").message(2, seatBid).string(4, "CNY").toByteArray();
+		assertArrayEquals(expected, written);
+		assertTrue(pool.getBufferSize() >= vast.length);
+
+		// step2: fields must be written in their message
+		try {
+			writer.start("req-0002").w(300);
+			fail("Bid field outside of a bid");
+		} catch (IllegalStateException e) {
+			System.out.println(e.getMessage());
+		}
+
+		// step3: writing responses allocates nothing once the pool is sized
+		// and the code compiled; what the JVM allocates for itself stays
+		// under a byte per response
+		writeAll(writer, pool, adm, impId, written.length, 1_000_000);
+		long allocations = pool.getAllocationCount();
+		long allocatedBytes = allocatedBytes();
+		long start = System.nanoTime();
+		writeAll(writer, pool, adm, impId, written.length, 1_000_000);
+		long nanos = System.nanoTime() - start;
+		allocatedBytes = allocatedBytes() - allocatedBytes;
+		assertEquals(allocations, pool.getAllocationCount());
+		System.out.println(String.format("Wrote a %s byte response in %s ns, allocating %s bytes in total",
+				written.length, nanos / 1_000_000, allocatedBytes));
+		assertTrue("Allocated " + allocatedBytes + " bytes", allocatedBytes < 1_000_000);
+	}
+
+	private static void writeAll(BidResponseWriter writer, DirectBufferPool pool, ByteSlice adm, ByteSlice impId,
+			int length, int count) {
+		for (int i = 0; i < count; ++i) {
+			ByteBuffer response = write(writer, adm, impId);
+			assertEquals(length, response.remaining());
+			pool.release(response);
+		}
+	}
+
+	private static ByteBuffer write(BidResponseWriter writer, ByteSlice adm, ByteSlice impId) {
+		return writer.start("req-0001")
+				.startSeatBid()
+				.startBid("bid-1", impId, 1_800_000).adm(adm).adomain("mplus.com").adomain("例子.com").attr(1).attr(2)
+				.w(300).h(250).endBid()
+				.startBid("bid-2", "imp-2", 900_000).dealid("deal-1").api(-1).endBid()
+				.seat("seat-1")
+				.endSeatBid()
+				.cur("CNY")
+				.finish();
+	}
+
+	/**
+	 * Returns the bytes allocated by this thread, or 0 if the JVM does not
+	 * tell.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+}
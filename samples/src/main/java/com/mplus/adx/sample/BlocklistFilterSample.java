@@ -0,0 +1,178 @@
+package com.mplus.adx.sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.mplus.adx.BlocklistFilter;
+import com.mplus.adx.BlocklistFilter.Blocks;
+import com.mplus.adx.Campaign;
+import com.mplus.adx.CampaignIndex;
+import com.mplus.adx.CampaignIndex.Candidates;
+import com.mplus.adx.UnifiedBidRequest;
+
+public class BlocklistFilterSample {
+	private static final String[] TLDS = { "com", "net", "cn", "io" };
+
+	public static void main(String[] args) {
+		// step1: categories block their subcategories, domains their
+		// subdomains, and bundles only themselves, ignoring case
+		Campaign travel = Campaign.newBuilder(1).banner("image/jpeg").size(300, 250).cat("IAB20-3")
+				.adomain("sub.example.com").build();
+		Campaign games = Campaign.newBuilder(2).banner("image/jpeg").size(300, 250).cat("IAB9-30")
+				.bundle("com.example.game").build();
+		Campaign shop = Campaign.newBuilder(3).banner("image/jpeg").size(300, 250).cat("IAB22")
+				.adomain("shop.example.net").adomain("example.org").build();
+		Campaign plain = Campaign.newBuilder(4).banner("image/jpeg").size(300, 250).build();
+		CampaignIndex index = new CampaignIndex(Arrays.asList(travel, games, shop, plain));
+		BlocklistFilter filter = index.getBlocklist();
+		Blocks blocks = new Blocks();
+
+		assertBlocked(index, blocks, new Message().string(8, "IAB20"), 1);
+		assertBlocked(index, blocks, new Message().string(8, "IAB20-3").string(8, "iab22"), 1, 3);
+		assertBlocked(index, blocks, new Message().string(8, "IAB2").string(8, "IAB20-30"));
+		assertBlocked(index, blocks, new Message().string(9, "EXAMPLE.com"), 1);
+		assertBlocked(index, blocks, new Message().string(9, "example.org").string(9, "ample.com"), 3);
+		assertBlocked(index, blocks, new Message().string(9, "www.sub.example.com").string(9, "unknown.io"));
+		assertBlocked(index, blocks, new Message().string(10, "com.example.game"), 2);
+		assertBlocked(index, blocks, new Message().string(10, "com.example"));
+		assertBlocked(index, blocks, new Message().string(8, "IAB9").string(9, "net").string(10, "x"), 2, 3);
+		try {
+			new CampaignIndex(Arrays.asList(plain)).getBlocklist().isBlocked(0, blocks);
+			fail("Blocks of another filter");
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+		}
+
+		// step2: block lists of a request remove the candidates they block,
+		// as string comparisons would
+		Candidates candidates = new Candidates();
+		UnifiedBidRequest request = decode(new Message().string(8, "IAB22").string(9, "example.com"));
+		index.select(request.getImp().get(0), candidates);
+		assertEquals(4, candidates.size());
+		assertEquals(2, filter.removeBlocked(candidates, filter.decode(request, blocks)));
+		assertEquals(2, candidates.size());
+		assertTrue(candidates.contains(1));
+		assertFalse(candidates.contains(0));
+
+		// step3: many campaigns and requests, checked against string
+		// comparisons, then timed
+		Random random = new Random(11);
+		String[] domains = new String[20_000];
+		for (int i = 0; i < domains.length; ++i) {
+			domains[i] = "advertiser" + i + "." + TLDS[random.nextInt(TLDS.length)];
+		}
+		List<Campaign> campaigns = new ArrayList<>();
+		for (int i = 0; i < 100_000; ++i) {
+			Campaign.Builder builder = Campaign.newBuilder(i).banner("image/jpeg").size(300, 250);
+			for (int j = random.nextInt(3); j >= 0; --j) {
+				builder.cat(randomCat(random));
+			}
+			for (int j = random.nextInt(2); j >= 0; --j) {
+				String domain = domains[random.nextInt(domains.length)];
+				builder.adomain(random.nextBoolean() ? domain : "www." + domain);
+			}
+			if (random.nextInt(4) == 0) {
+				builder.bundle("com.app" + random.nextInt(5000));
+			}
+			campaigns.add(builder.build());
+		}
+		long start = System.nanoTime();
+		index = new CampaignIndex(campaigns);
+		filter = index.getBlocklist();
+		System.out.println(String.format("Interned %s values of %s campaigns in %s ms", filter.getInternedCount(),
+				campaigns.size(), (System.nanoTime() - start) / 1_000_000));
+
+		UnifiedBidRequest[] requests = new UnifiedBidRequest[200];
+		for (int i = 0; i < requests.length; ++i) {
+			Message message = new Message();
+			for (int j = random.nextInt(8); j > 0; --j) {
+				message.string(8, random.nextInt(4) == 0 ? "IAB" + (1 + random.nextInt(26)) : randomCat(random));
+			}
+			for (int j = random.nextInt(50); j > 0; --j) {
+				message.string(9, domains[random.nextInt(domains.length)]);
+			}
+			for (int j = random.nextInt(20); j > 0; --j) {
+				message.string(10, "com.app" + random.nextInt(5000));
+			}
+			requests[i] = decode(message);
+		}
+
+		int checked = 5_000;
+		long blocked = 0;
+		for (UnifiedBidRequest each : requests) {
+			filter.decode(each, blocks);
+			for (int ordinal = 0; ordinal < checked; ++ordinal) {
+				boolean expected = campaigns.get(ordinal).isBlockedBy(each);
+				assertEquals(expected, filter.isBlocked(ordinal, blocks));
+				blocked += expected ? 1 : 0;
+			}
+		}
+		System.out.println(String.format("%.1f%% of candidates blocked", blocked * 100.0 / checked / requests.length));
+
+		for (int round = 0; round < 3; ++round) {
+			start = System.nanoTime();
+			long count = 0;
+			for (UnifiedBidRequest each : requests) {
+				for (int ordinal = 0; ordinal < checked; ++ordinal) {
+					count += campaigns.get(ordinal).isBlockedBy(each) ? 1 : 0;
+				}
+			}
+			long stringNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (UnifiedBidRequest each : requests) {
+				filter.decode(each, blocks);
+				for (int ordinal = 0; ordinal < checked; ++ordinal) {
+					count -= filter.isBlocked(ordinal, blocks) ? 1 : 0;
+				}
+			}
+			long filterNanos = System.nanoTime() - start;
+			assertEquals(0, count);
+			long checks = (long) checked * requests.length;
+			System.out.println(String.format("Strings %s ns, filter %s ns per candidate", stringNanos / checks,
+					filterNanos / checks));
+		}
+	}
+
+	private static String randomCat(Random random) {
+		return "IAB" + (1 + random.nextInt(26)) + "-" + (1 + random.nextInt(20));
+	}
+
+	private static void assertBlocked(CampaignIndex index, Blocks blocks, Message blockLists, long... ids) {
+		UnifiedBidRequest request = decode(blockLists);
+		BlocklistFilter filter = index.getBlocklist();
+		filter.decode(request, blocks);
+		List<Long> blocked = new ArrayList<>();
+		for (int ordinal = 0; ordinal < index.size(); ++ordinal) {
+			assertEquals(index.getCampaign(ordinal).isBlockedBy(request), filter.isBlocked(ordinal, blocks));
+			if (filter.isBlocked(ordinal, blocks)) {
+				blocked.add(index.getCampaign(ordinal).getId());
+			}
+		}
+		List<Long> expected = new ArrayList<>();
+		for (long id : ids) {
+			expected.add(id);
+		}
+		assertEquals(expected, blocked);
+	}
+
+	/**
+	 * Returns a request with these block lists and a 300x250 banner.
+	 */
+	private static UnifiedBidRequest decode(Message blockLists) {
+		Message imp = new Message().string(1, "imp").message(2, new Message().varint(1, 300).varint(2, 250));
+		UnifiedBidRequest request = new UnifiedBidRequest();
+		Message message = new Message().string(1, "req").message(2, imp);
+		byte[] lists = blockLists.toByteArray();
+		message.write(lists, 0, lists.length);
+		request.decode(ByteBuffer.wrap(message.toByteArray()));
+		return request;
+	}
+}
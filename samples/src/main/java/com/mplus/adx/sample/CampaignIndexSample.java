@@ -0,0 +1,196 @@
+package com.mplus.adx.sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.mplus.adx.Campaign;
+import com.mplus.adx.CampaignIndex;
+import com.mplus.adx.CampaignIndex.Candidates;
+import com.mplus.adx.CampaignSelector;
+import com.mplus.adx.UnifiedBidRequest;
+import com.mplus.adx.UnifiedBidRequest.Imp;
+
+public class CampaignIndexSample {
+	private static final int[][] SIZES = { { 300, 250 }, { 320, 50 }, { 728, 90 }, { 160, 600 }, { 300, 600 },
+			{ 320, 480 }, { 480, 320 }, { 1024, 768 }, { 640, 360 }, { 970, 250 } };
+	private static final String[] BANNER_MIMES = { "image/jpeg", "image/png", "image/gif", "text/html" };
+	private static final String[] VIDEO_MIMES = { "video/mp4", "video/webm", "video/3gpp" };
+	private static final int[] DURATIONS = { 6, 10, 15, 20, 30, 45, 60, 90, 120 };
+	private static final int[] MIN_DURATIONS = { 0, 5, 15, 30 };
+	private static final int[] MAX_DURATIONS = { 0, 15, 30, 60, 120 };
+
+	public static void main(String[] args) {
+		// step1: a few campaigns, selected as they match
+		Campaign mrec = Campaign.newBuilder(1).banner("image/jpeg").size(300, 250).secure(true).build();
+		Campaign rich = Campaign.newBuilder(2).banner("text/html").size(300, 250).size(320, 50).api(5).build();
+		Campaign preroll = Campaign.newBuilder(3).video("video/mp4", 15, 2).secure(true).build();
+		Campaign longVideo = Campaign.newBuilder(4).video("video/mp4", 60, 3).build();
+		Campaign fullscreen = Campaign.newBuilder(5).banner("image/png").size(320, 480).interstitial(true).build();
+		CampaignSelector selector = new CampaignSelector(Arrays.asList(mrec, rich, preroll, longVideo, fullscreen));
+		Candidates candidates = new Candidates();
+
+		assertSelected(selector, candidates, imp(new Message().varint(1, 300).varint(2, 250)), 1);
+		assertSelected(selector, candidates, imp(new Message().varint(1, 300).varint(2, 250).packed(5, 3, 5)), 1, 2);
+		assertSelected(selector, candidates, imp(new Message().varint(1, 320).varint(2, 50).string(4, "text/html")
+				.packed(5, 5)), 2);
+		assertSelected(selector, candidates,
+				new Message().string(1, "imp").message(2, new Message()).varint(7, 1), 5);
+		Message video = new Message().string(3, "video/mp4").varint(5, 10).varint(6, 30);
+		assertSelected(selector, candidates, new Message().string(1, "imp").message(3, video), 3);
+		assertSelected(selector, candidates, new Message().string(1, "imp").message(3, video).varint(10, 1), 3);
+		Message vast3 = new Message().string(3, "video/mp4").varint(15, 3);
+		assertSelected(selector, candidates, new Message().string(1, "imp").message(3, vast3), 4);
+		assertSelected(selector, candidates, new Message().string(1, "imp").message(3, vast3).varint(10, 1));
+		try {
+			selector.update(Arrays.asList(mrec, mrec));
+			fail("Duplicate campaigns");
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+		}
+		assertEquals(5, selector.getIndex().size());
+
+		// step2: the index selects what a scan of every campaign selects
+		Random random = new Random(7);
+		UnifiedBidRequest[] requests = new UnifiedBidRequest[200];
+		for (int i = 0; i < requests.length; ++i) {
+			requests[i] = new UnifiedBidRequest();
+			requests[i].decode(ByteBuffer.wrap(new Message().string(1, "req-" + i)
+					.message(2, randomImp(random)).toByteArray()));
+		}
+		for (int count : new int[] { 10_000, 100_000, 1_000_000 }) {
+			List<Campaign> campaigns = new ArrayList<>(count);
+			for (int i = 0; i < count; ++i) {
+				campaigns.add(randomCampaign(random, i));
+			}
+			CampaignIndex previous = selector.getIndex();
+			long start = System.nanoTime();
+			CampaignIndex index = selector.update(campaigns);
+			long buildMillis = (System.nanoTime() - start) / 1_000_000;
+			assertNotSame(previous, index);
+
+			long selected = 0;
+			long scanNanos = 0;
+			long indexNanos = 0;
+			for (int round = 0; round < 3; ++round) {
+				scanNanos = 0;
+				indexNanos = 0;
+				for (UnifiedBidRequest request : requests) {
+					Imp imp = request.getImp().get(0);
+					start = System.nanoTime();
+					selector.select(imp, candidates);
+					indexNanos += System.nanoTime() - start;
+					assertSame(index, candidates.getIndex());
+
+					start = System.nanoTime();
+					int next = candidates.next(0);
+					for (int ordinal = 0; ordinal < count; ++ordinal) {
+						if (campaigns.get(ordinal).matches(imp)) {
+							assertEquals(ordinal, next);
+							next = candidates.next(next + 1);
+							++selected;
+						}
+					}
+					scanNanos += System.nanoTime() - start;
+					assertEquals(-1, next);
+				}
+			}
+			System.out.println(String.format(
+					"%s: built in %s ms, %.1f candidates per imp, scan %s us, index %s us per imp (%.0fx)", index,
+					buildMillis, selected / 3.0 / requests.length, scanNanos / requests.length / 1000,
+					indexNanos / requests.length / 1000, (double) scanNanos / indexNanos));
+		}
+
+		// step3: candidates keep the index they were selected from after an
+		// update
+		CampaignIndex before = selector.getIndex();
+		Imp imp = requests[0].getImp().get(0);
+		selector.select(imp, candidates);
+		int first = candidates.next(0);
+		selector.update(Arrays.asList(mrec));
+		assertSame(before, candidates.getIndex());
+		if (first >= 0) {
+			assertTrue(candidates.get(first).matches(imp));
+		}
+		assertSelected(selector, candidates, imp(new Message().varint(1, 300).varint(2, 250)), 1);
+	}
+
+	private static void assertSelected(CampaignSelector selector, Candidates candidates, Message imp, long... ids) {
+		UnifiedBidRequest request = new UnifiedBidRequest();
+		request.decode(ByteBuffer.wrap(new Message().string(1, "req").message(2, imp).toByteArray()));
+		selector.select(request.getImp().get(0), candidates);
+		assertEquals(ids.length, candidates.size());
+		int i = 0;
+		for (int ordinal = candidates.next(0); ordinal >= 0; ordinal = candidates.next(ordinal + 1)) {
+			assertEquals(ids[i++], candidates.get(ordinal).getId());
+		}
+	}
+
+	/**
+	 * Returns an imp with this banner.
+	 */
+	private static Message imp(Message banner) {
+		return new Message().string(1, "imp").message(2, banner);
+	}
+
+	private static Campaign randomCampaign(Random random, long id) {
+		Campaign.Builder builder = Campaign.newBuilder(id);
+		boolean video = random.nextInt(10) < 3;
+		if (!video || random.nextInt(10) == 0) {
+			builder.banner(BANNER_MIMES[random.nextInt(BANNER_MIMES.length)]);
+			for (int i = 0, n = 1 + random.nextInt(2); i < n; ++i) {
+				int[] size = SIZES[random.nextInt(SIZES.length)];
+				builder.size(size[0], size[1]);
+			}
+		}
+		if (video) {
+			builder.video(VIDEO_MIMES[random.nextInt(VIDEO_MIMES.length)], DURATIONS[random.nextInt(DURATIONS.length)],
+					1 + random.nextInt(8));
+		}
+		return builder.api(random.nextInt(10) < 7 ? 0 : 1 + random.nextInt(6)).interstitial(random.nextInt(10) == 0)
+				.secure(random.nextInt(10) < 6).build();
+	}
+
+	private static Message randomImp(Random random) {
+		Message imp = new Message().string(1, "imp");
+		boolean video = random.nextInt(10) < 4;
+		if (!video || random.nextBoolean()) {
+			Message banner = new Message();
+			if (random.nextInt(10) > 0) {
+				int[] size = SIZES[random.nextInt(SIZES.length)];
+				banner.varint(1, size[0]).varint(2, size[1]);
+			}
+			for (int i = random.nextInt(4); i > 0; --i) {
+				banner.string(4, BANNER_MIMES[random.nextInt(BANNER_MIMES.length)]);
+			}
+			for (int i = random.nextInt(3); i > 0; --i) {
+				banner.varint(5, 1 + random.nextInt(6));
+			}
+			imp.message(2, banner);
+		}
+		if (video) {
+			Message content = new Message();
+			for (int i = random.nextInt(3); i > 0; --i) {
+				content.string(3, VIDEO_MIMES[random.nextInt(VIDEO_MIMES.length)]);
+			}
+			for (int i = random.nextInt(4); i > 0; --i) {
+				content.varint(15, 1 + random.nextInt(8));
+			}
+			content.varint(5, MIN_DURATIONS[random.nextInt(MIN_DURATIONS.length)])
+					.varint(6, MAX_DURATIONS[random.nextInt(MAX_DURATIONS.length)]);
+			if (random.nextBoolean()) {
+				content.varint(4, 1 + random.nextInt(6));
+			}
+			imp.message(3, content);
+		}
+		return imp.varint(7, random.nextInt(10) == 0 ? 1 : 0).varint(10, random.nextInt(2));
+	}
+}
@@ -0,0 +1,68 @@
+package com.mplus.adx.sample;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import com.mplus.adx.FileHelper;
+import com.mplus.adx.FileHelper.LineIterator;
+
+public class FileHelperSample {
+
+	public static void main(String[] args) throws IOException {
+		// a notice log of 100k lines, some ending with \r\n
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 100_000; ++i) {
+			content.append("id=req-").append(i).append("&price=").append(i * 7).append(i % 3 == 0 ? "\r\n" : "\n");
+		}
+		content.append("id=last&price=0");
+		byte[] bytes = content.toString().getBytes(StandardCharsets.UTF_8);
+		Path file = Files.createTempFile("notices", ".log");
+		try {
+			Files.write(file, bytes);
+			String path = file.toString();
+			List<String> expected = FileHelper.readLines(path, "UTF-8");
+			assertEquals(100_001, expected.size());
+
+			// step1: read in one shot, sized from the file
+			assertArrayEquals(bytes, FileHelper.readBytes(path));
+
+			// step2: stream the lines, one at a time
+			try (Stream<String> lines = FileHelper.lines(path, "UTF-8")) {
+				assertEquals(expected.size(), lines.count());
+			}
+			try (LineIterator lines = FileHelper.lineIterator(path, "UTF-8")) {
+				for (String line : expected) {
+					assertEquals(line, lines.next());
+				}
+				assertTrue(!lines.hasNext());
+			}
+
+			// step3: map the file, whole or in chunks that end with a line,
+			// and walk the lines without copying them
+			assertEquals(expected.size(), FileHelper.forEachLine(FileHelper.map(path),
+					line -> assertTrue(line.byteAt(line.length() - 1) != '\r')));
+			List<MappedByteBuffer> chunks = FileHelper.mapChunks(path, 64 * 1024);
+			assertTrue(chunks.size() > 1);
+			long lines = 0;
+			int index = 0;
+			for (MappedByteBuffer chunk : chunks) {
+				int[] at = { index };
+				lines += FileHelper.forEachLine(chunk, line -> assertEquals(expected.get(at[0]++), line.toString()));
+				index = at[0];
+			}
+			assertEquals(expected.size(), lines);
+			System.out.println(String.format("%s lines in %s chunks", lines, chunks.size()));
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.mplus.adx.sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.mplus.adx.FrequencyCapStore;
+import com.mplus.adx.UnifiedBidRequest;
+
+public class FrequencyCapStoreSample {
+	private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+	private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+	public static void main(String[] args) throws Exception {
+		// step1: the best device id, ignoring its case
+		long ifa = deviceKey(new Message().string(15, "6D92078A-8246-4BA4-AE5B-76104861E7DC").string(16, "sha1"));
+		assertEquals(ifa, deviceKey(new Message().string(15, "6d92078a-8246-4ba4-ae5b-76104861e7dc")));
+		long sha1 = deviceKey(new Message().string(16, "sha1").string(25, "mac"));
+		assertEquals(sha1, deviceKey(new Message().string(16, "sha1")));
+		// same bytes, other kind of id
+		assertNotEquals(sha1, deviceKey(new Message().string(17, "sha1")));
+		assertEquals(0, deviceKey(new Message().string(15, "").string(1, "Mozilla/5.0")));
+
+		// step2: caps over windows of hourly buckets, recency, expiry
+		FrequencyCapStore store = new FrequencyCapStore(10_000, 24, HOUR, 2 * DAY);
+		long now = 1_000 * DAY;
+		for (int i = 0; i < 3; ++i) {
+			assertTrue(store.record(ifa, 7, now + i * HOUR));
+		}
+		now += 2 * HOUR + 1;
+		assertEquals(3, store.count(ifa, 7, DAY, now));
+		assertEquals(2, store.count(ifa, 7, 2 * HOUR, now));
+		assertEquals(1, store.count(ifa, 7, 1, now));
+		assertEquals(0, store.count(ifa, 8, DAY, now));
+		assertTrue(store.isCapped(ifa, 7, 3, DAY, now));
+		assertFalse(store.isCapped(ifa, 7, 3, DAY, now + 23 * HOUR));
+		assertEquals(now - 1, store.getLastImpression(ifa, 7, now));
+		// the ring rolls over after a day
+		assertTrue(store.record(ifa, 7, now + 30 * HOUR));
+		assertEquals(1, store.count(ifa, 7, DAY, now + 30 * HOUR));
+		// late impressions count in their bucket
+		assertTrue(store.record(ifa, 7, now + 20 * HOUR));
+		assertEquals(2, store.count(ifa, 7, DAY, now + 30 * HOUR));
+		assertEquals(now + 30 * HOUR, store.getLastImpression(ifa, 7, now + 30 * HOUR));
+		assertFalse(store.record(ifa, 7, now));
+		// expired two days after the last impression
+		now += 30 * HOUR + 2 * DAY;
+		assertEquals(0, store.count(ifa, 7, DAY, now));
+		assertEquals(-1, store.getLastImpression(ifa, 7, now));
+		assertEquals(1, store.size());
+		assertEquals(1, store.purgeExpired(now));
+		assertEquals(0, store.size());
+		try {
+			store.record(0, 7, now);
+			fail("Recorded a device without id");
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+		}
+
+		// step3: concurrent impressions, checked against a map
+		int devices = 100_000;
+		int campaigns = 4;
+		store = new FrequencyCapStore(devices * campaigns, 24, HOUR, 2 * DAY);
+		System.out.println(store);
+		long start = 1_000 * DAY;
+		List<Thread> threads = new ArrayList<>();
+		int perThread = 500_000;
+		for (int t = 0; t < 4; ++t) {
+			FrequencyCapStore shared = store;
+			Random random = new Random(t);
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < perThread; ++i) {
+					shared.record(key(random.nextInt(devices)), random.nextInt(campaigns), start + i % 1_000);
+				}
+			}));
+		}
+		long begin = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long nanos = System.nanoTime() - begin;
+		System.out.println(String.format("%s records in %s ms, %s ns each", threads.size() * perThread,
+				nanos / 1_000_000, nanos / (threads.size() * perThread)));
+		Map<String, Integer> expected = new HashMap<>();
+		for (int t = 0; t < threads.size(); ++t) {
+			Random random = new Random(t);
+			for (int i = 0; i < perThread; ++i) {
+				expected.merge(random.nextInt(devices) + ":" + random.nextInt(campaigns), 1, Integer::sum);
+			}
+		}
+		long total = 0;
+		for (int device = 0; device < devices; ++device) {
+			for (int campaign = 0; campaign < campaigns; ++campaign) {
+				int count = store.count(key(device), campaign, DAY, start + HOUR);
+				assertEquals(expected.getOrDefault(device + ":" + campaign, 0).intValue(), count);
+				total += count;
+			}
+		}
+		assertEquals(threads.size() * perThread, total);
+		assertEquals(expected.size(), store.size());
+		assertEquals(0, store.getRejectedCount());
+
+		// step4: a full store purges the expired pairs, or rejects
+		FrequencyCapStore small = new FrequencyCapStore(1_000, 4, HOUR, HOUR);
+		int recorded = 0;
+		for (int i = 0; i < 2_000; ++i) {
+			recorded += small.record(key(i), 1, start) ? 1 : 0;
+		}
+		assertTrue(recorded >= 1_000 && recorded < 2_000);
+		assertEquals(2_000 - recorded, small.getRejectedCount());
+		for (int i = 0; i < 1_000; ++i) {
+			assertTrue(small.record(key(i + 2_000), 1, start + HOUR + i % 2));
+		}
+		small.purgeExpired(start + HOUR + 1);
+		assertEquals(1_000, small.size());
+		for (int i = 0; i < 1_000; ++i) {
+			assertEquals(1, small.count(key(i + 2_000), 1, HOUR, start + HOUR + 1));
+		}
+
+		// step5: the caps survive a restart
+		Path file = Files.createTempFile("frequency-cap", ".snapshot");
+		try {
+			store.snapshot(file);
+			FrequencyCapStore loaded = FrequencyCapStore.load(file);
+			assertEquals(store.size(), loaded.size());
+			for (int device = 0; device < devices; device += 7) {
+				for (int campaign = 0; campaign < campaigns; ++campaign) {
+					assertEquals(store.count(key(device), campaign, DAY, start + HOUR),
+							loaded.count(key(device), campaign, DAY, start + HOUR));
+				}
+			}
+			assertTrue(loaded.record(key(1), 9, start));
+			Files.write(file, new byte[] { 1, 2, 3 });
+			try {
+				FrequencyCapStore.load(file);
+				fail("Loaded a broken snapshot");
+			} catch (IOException e) {
+				System.out.println(e.getMessage());
+			}
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Key of a device with a numbered ifa.
+	 */
+	private static long key(int device) {
+		return device + 1L;
+	}
+
+	private static long deviceKey(Message device) {
+		UnifiedBidRequest request = new UnifiedBidRequest();
+		request.decode(ByteBuffer.wrap(new Message().string(1, "req").message(4, device).toByteArray()));
+		return FrequencyCapStore.deviceKey(request.getDevice());
+	}
+}
@@ -0,0 +1,157 @@
+package com.mplus.adx.sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.mplus.adx.GeoFence;
+import com.mplus.adx.GeoFenceSelector;
+import com.mplus.adx.GeoIndex;
+import com.mplus.adx.GeoIndex.Matches;
+import com.mplus.adx.UnifiedBidRequest;
+import com.mplus.adx.UnifiedBidRequest.Geo;
+
+public class GeoIndexSample {
+
+	public static void main(String[] args) {
+		// step1: circles and polygons, and the country and region of devices
+		// without coordinates
+		GeoFence peoplesSquare = GeoFence.newBuilder(1).circle(31.2304, 121.4737, 2_000).country("CHN")
+				.region("SH").build();
+		GeoFence shanghai = GeoFence.newBuilder(2).circle(31.2304, 121.4737, 100_000).country("CHN").build();
+		GeoFence forbiddenCity = GeoFence.newBuilder(3)
+				.polygon(39.9226, 116.3913, 39.9226, 116.4013, 39.9127, 116.4013, 39.9127, 116.3913).country("CHN")
+				.region("BJ").build();
+		GeoFenceSelector selector = new GeoFenceSelector(Arrays.asList(peoplesSquare, shanghai, forbiddenCity));
+		Matches matches = new Matches();
+
+		assertMatched(selector, matches, geo(31.2304f, 121.4737f), 1, 2);
+		assertMatched(selector, matches, geo(31.2304f, 121.5f), 2);
+		assertMatched(selector, matches, geo(30.5f, 121.4737f), 2);
+		assertMatched(selector, matches, geo(29.5f, 121.4737f));
+		assertMatched(selector, matches, geo(39.9176f, 116.3963f), 3);
+		assertMatched(selector, matches, geo(39.9176f, 116.4113f));
+		assertFalse(matches.isFallback());
+		assertMatched(selector, matches, new Message().string(3, "CHN").string(4, "sh"), 1, 2);
+		assertTrue(matches.isFallback());
+		assertMatched(selector, matches, new Message().string(3, "chn").string(4, "BJ"), 2, 3);
+		assertMatched(selector, matches, new Message().string(3, "CHN"), 2);
+		assertMatched(selector, matches, new Message().string(3, "USA").string(4, "SH"));
+		assertMatched(selector, matches, new Message().string(5, "Shanghai"));
+		try {
+			GeoFence.newBuilder(4).circle(0, 179.99, 10_000).build();
+			fail("Fence across the antimeridian");
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+		}
+
+		// step2: the index finds what measuring every fence finds
+		Random random = new Random(5);
+		List<GeoFence> fences = new ArrayList<>();
+		for (int i = 0; i < 100_000; ++i) {
+			double lat = 20 + random.nextDouble() * 25;
+			double lon = 100 + random.nextDouble() * 22;
+			GeoFence.Builder builder = GeoFence.newBuilder(i);
+			if (random.nextInt(4) > 0) {
+				builder.circle(lat, lon, 200 + random.nextDouble() * (random.nextInt(10) == 0 ? 50_000 : 5_000));
+			} else {
+				double size = 0.002 + random.nextDouble() * 0.05;
+				builder.polygon(lat, lon, lat + size, lon + size * random.nextDouble(), lat + size * random.nextDouble(),
+						lon + size, lat - size * random.nextDouble(), lon + size * random.nextDouble());
+			}
+			fences.add(builder.country("CHN").region("R" + random.nextInt(30)).build());
+		}
+		GeoIndex index = selector.update(fences);
+
+		double[] lats = new double[20_000];
+		double[] lons = new double[lats.length];
+		for (int i = 0; i < lats.length; ++i) {
+			lats[i] = (float) (20 + random.nextDouble() * 25);
+			lons[i] = (float) (100 + random.nextDouble() * 22);
+		}
+		long matched = 0;
+		long refined = 0;
+		for (int i = 0; i < lats.length; ++i) {
+			index.match(lats[i], lons[i], matches);
+			refined += matches.getRefinedCount();
+			boolean[] found = new boolean[fences.size()];
+			for (int j = 0; j < matches.size(); ++j) {
+				assertFalse(found[matches.getOrdinal(j)]);
+				found[matches.getOrdinal(j)] = true;
+			}
+			for (int ordinal = 0; ordinal < fences.size(); ordinal += i < 2_000 ? 1 : 97) {
+				assertEquals(fences.get(ordinal).contains(lats[i], lons[i]), found[ordinal]);
+			}
+			matched += matches.size();
+		}
+		System.out.println(String.format("%.2f fences and %.2f exact checks per point", (double) matched / lats.length,
+				(double) refined / lats.length));
+
+		for (int round = 0; round < 3; ++round) {
+			long start = System.nanoTime();
+			long count = 0;
+			for (int i = 0; i < 1_000; ++i) {
+				for (GeoFence fence : fences) {
+					count += fence.contains(lats[i], lons[i]) ? 1 : 0;
+				}
+			}
+			long scanNanos = (System.nanoTime() - start) / 1_000;
+			start = System.nanoTime();
+			for (int i = 0; i < lats.length; ++i) {
+				count -= i < 1_000 ? index.match(lats[i], lons[i], matches).size() : 0;
+			}
+			for (int i = 0; i < lats.length; ++i) {
+				index.match(lats[i], lons[i], matches);
+			}
+			long indexNanos = (System.nanoTime() - start) / (1_000 + lats.length);
+			assertEquals(0, count);
+			System.out.println(String.format("Scan %s us, index %s ns per point", scanNanos / 1_000, indexNanos));
+		}
+
+		// step3: reloading swaps the snapshot; matches keep theirs
+		GeoIndex before = selector.getIndex();
+		selector.match(null, matches);
+		assertEquals(0, matches.size());
+		index.match(31.2304, 121.4737, matches);
+		selector.update(Arrays.asList(peoplesSquare));
+		assertSame(before, matches.getIndex());
+		assertMatched(selector, matches, geo(31.2304f, 121.4737f), 1);
+	}
+
+	private static void assertMatched(GeoFenceSelector selector, Matches matches, Message geo, long... ids) {
+		Message device = new Message().string(1, "Mozilla/5.0").message(2, geo);
+		UnifiedBidRequest request = new UnifiedBidRequest();
+		request.decode(ByteBuffer.wrap(new Message().string(1, "req").message(4, device).toByteArray()));
+		Geo decoded = request.getDevice().getGeo();
+		selector.match(decoded, matches);
+		List<Long> found = new ArrayList<>();
+		for (int i = 0; i < matches.size(); ++i) {
+			found.add(matches.get(i).getId());
+		}
+		found.sort(null);
+		List<Long> expected = new ArrayList<>();
+		GeoIndex index = matches.getIndex();
+		for (int ordinal = 0; ordinal < index.size(); ++ordinal) {
+			if (index.getFence(ordinal).contains(decoded)) {
+				expected.add(index.getFence(ordinal).getId());
+			}
+		}
+		assertEquals(expected, found);
+		assertEquals(ids.length, found.size());
+		for (int i = 0; i < ids.length; ++i) {
+			assertEquals(ids[i], (long) found.get(i));
+		}
+	}
+
+	private static Message geo(float lat, float lon) {
+		return new Message().fixed32(1, Float.floatToIntBits(lat)).fixed32(2, Float.floatToIntBits(lon));
+	}
+}
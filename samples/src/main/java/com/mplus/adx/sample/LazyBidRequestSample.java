@@ -0,0 +1,115 @@
+package com.mplus.adx.sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import com.mplus.adx.ByteSlice;
+import com.mplus.adx.LazyBidRequest;
+
+public class LazyBidRequestSample {
+
+	public static void main(String[] args) {
+		byte[] request = createBidRequest();
+
+		// step1: read the filter fields from a heap buffer, and from a direct
+		// buffer at an offset
+		ByteBuffer direct = ByteBuffer.allocateDirect(request.length + 16);
+		direct.position(16);
+		direct.put(request);
+		direct.position(16);
+		LazyBidRequest lazy = new LazyBidRequest();
+		for (ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.wrap(request), direct }) {
+			lazy.wrap(buffer);
+			ByteSlice slice = new ByteSlice();
+			assertTrue(lazy.getId(slice));
+			assertEquals("req-0001", slice.toString());
+			assertEquals(120, lazy.getTmax());
+			assertEquals(2, lazy.getImpCount());
+
+			assertTrue(lazy.getImpId(0, slice));
+			assertTrue(slice.equalsAscii("imp-1"));
+			assertEquals(1_500_000, lazy.getImpBidfloor(0));
+			assertTrue(lazy.hasImpBanner(0));
+			assertEquals(300, lazy.getImpBannerW(0));
+			assertEquals(250, lazy.getImpBannerH(0));
+
+			assertTrue(lazy.getImpId(1, slice));
+			assertTrue(slice.equalsAscii("imp-2"));
+			assertFalse(lazy.hasImpBidfloor(1));
+			assertFalse(lazy.hasImpBanner(1));
+
+			assertTrue(lazy.getDeviceGeoCountry(slice));
+			assertTrue(slice.equalsAscii("CHN"));
+			assertEquals(16, direct.position());
+		}
+
+		// step2: reuse the decoder for many requests
+		int kept = 0;
+		long start = System.nanoTime();
+		ByteBuffer buffer = ByteBuffer.wrap(request);
+		ByteSlice country = new ByteSlice();
+		for (int i = 0; i < 1_000_000; ++i) {
+			lazy.wrap(buffer);
+			if (lazy.getImpBidfloor(0) < 2_000_000 && lazy.getDeviceGeoCountry(country) && country.equalsAscii("CHN")) {
+				++kept;
+			}
+		}
+		assertEquals(1_000_000, kept);
+		System.out.println(String.format("Filtered a %s byte request in %s ns", request.length,
+				(System.nanoTime() - start) / 1_000_000));
+
+		// step3: unknown groups are skipped, but not nested without limit
+		Message nested = new Message();
+		for (int i = 0; i < 100; ++i) {
+			nested.tag(99, 3);
+		}
+		for (int i = 0; i < 100; ++i) {
+			nested.tag(99, 4);
+		}
+		nested.string(1, "req-0002");
+		lazy.wrap(ByteBuffer.wrap(nested.toByteArray()));
+		assertTrue(lazy.getId(country));
+		assertEquals("req-0002", country.toString());
+		Message deep = new Message();
+		for (int i = 0; i < 100_000; ++i) {
+			deep.tag(99, 3);
+		}
+		lazy.wrap(ByteBuffer.wrap(deep.toByteArray()));
+		try {
+			lazy.getId(country);
+			fail("Decoded groups nested 100000 deep");
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Encodes a BidRequest of bidrequest.proto by hand.
+	 */
+	private static byte[] createBidRequest() {
+		Message banner = new Message().varint(1, 300).varint(2, 250).string(4, "image/jpeg");
+		Message imp1 = new Message().string(1, "imp-1").message(2, banner).varint(8, 1_500_000).string(9, "CNY");
+		Message video = new Message().varint(1, 640).varint(2, 360).varint(5, 5).varint(6, 30);
+		Message imp2 = new Message().string(1, "imp-2").message(3, video);
+		StringBuilder keywords = new StringBuilder();
+		for (int i = 0; i < 100; ++i) {
+			keywords.append("keyword").append(i).append(',');
+		}
+		Message app = new Message().string(1, "app-1").string(3, "com.mplus.game").string(12, keywords.toString());
+		Message geo = new Message().fixed32(1, Float.floatToIntBits(31.2f)).string(3, "CHN").string(5, "Shanghai");
+		Message device = new Message()
+				.string(1, "Mozilla/5.0 (Linux; Android 7.0; SM-G930V Build/NRD90M) AppleWebKit/537.36")
+				.message(2, geo).string(3, "10.0.0.1").varint(5, 4).string(8, "android");
+
+		Message request = new Message().string(1, "req-0001").message(2, imp1).message(2, imp2).message(3, app)
+				.message(4, device).varint(5, 2).varint(6, 120);
+		for (int i = 0; i < 20; ++i) {
+			request.string(8, "IAB" + i);
+		}
+		return request.toByteArray();
+	}
+}
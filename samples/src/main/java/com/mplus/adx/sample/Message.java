@@ -0,0 +1,90 @@
+package com.mplus.adx.sample;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes a protobuf message by hand, field by field, for the samples to
+ * build requests and expected responses without generated classes.
+ * <p>
+ * Public for the samples of the server module, in another package.
+ */
+public final class Message extends ByteArrayOutputStream {
+	private final boolean paddedLengths;
+
+	public Message() {
+		this(false);
+	}
+
+	/**
+	 * @param paddedLengths
+	 *            write the lengths of nested messages as 4-byte varints, as
+	 *            {@link com.mplus.adx.BidResponseWriter} reserves them
+	 */
+	public Message(boolean paddedLengths) {
+		this.paddedLengths = paddedLengths;
+	}
+
+	/**
+	 * Writes a bare tag, such as the start or end of a group.
+	 */
+	public Message tag(int field, int wireType) {
+		writeVarint(field << 3 | wireType);
+		return this;
+	}
+
+	public Message varint(int field, long value) {
+		writeVarint(field << 3);
+		writeVarint(value);
+		return this;
+	}
+
+	public Message packed(int field, int... values) {
+		Message content = new Message();
+		for (int value : values) {
+			content.writeVarint(value);
+		}
+		return bytes(field, content.toByteArray());
+	}
+
+	public Message fixed32(int field, int value) {
+		writeVarint(field << 3 | 5);
+		for (int i = 0; i < 4; ++i) {
+			write(value >>> (8 * i));
+		}
+		return this;
+	}
+
+	public Message string(int field, String value) {
+		return bytes(field, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public Message message(int field, Message value) {
+		if (!paddedLengths) {
+			return bytes(field, value.toByteArray());
+		}
+		writeVarint(field << 3 | 2);
+		int length = value.size();
+		write(length & 0x7F | 0x80);
+		write(length >>> 7 & 0x7F | 0x80);
+		write(length >>> 14 & 0x7F | 0x80);
+		write(length >>> 21);
+		write(value.toByteArray(), 0, length);
+		return this;
+	}
+
+	public Message bytes(int field, byte[] value) {
+		writeVarint(field << 3 | 2);
+		writeVarint(value.length);
+		write(value, 0, value.length);
+		return this;
+	}
+
+	private void writeVarint(long value) {
+		while ((value & ~0x7FL) != 0) {
+			write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		write((int) value);
+	}
+}
@@ -1,16 +1,25 @@
 package com.mplus.adx.sample;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
+import com.google.common.io.BaseEncoding;
 import com.mplus.adx.PriceCryptor;
 import com.mplus.adx.PriceCryptor.Keys;
 import com.mplus.adx.PriceCryptor.PriceInfo;
+import com.mplus.adx.PriceKeyRegistry;
 
 public class PriceCryptorSample {
 	private static final String EncryptionKey = "77165979f11b497da6f81b3bb320932c";
@@ -40,6 +49,110 @@ public class PriceCryptorSample {
 			assertEquals(time, dpriceInfo.getCurrentTimeMillis());
 			assertEquals(price, dpriceInfo.getPrice());
 
+			// step5: allocation-free fast path, e.g. straight from a query string
+			String query = "id=1&price=" + encryptPriceStr.replace("=", "") + "&t=2";
+			int off = query.indexOf("price=") + "price=".length();
+			int len = query.indexOf('&', off) - off;
+			assertEquals(price, cryptor.decodePriceMicros(query, off, len));
+
+			PriceInfo reused = cryptor.decryptPrice(query, off, len, new PriceInfo(0, 0, 0));
+			assertEquals(serverId, reused.getServerId());
+			assertEquals(time, reused.getCurrentTimeMillis());
+			assertEquals(price, reused.getPrice());
+
+			byte[] cipher = new byte[28];
+			cryptor.encryptPriceMicros(price, time, serverId, cipher, 0);
+			assertEquals(encryptPriceStr, PriceCryptor.encode(cipher));
+			assertEquals(price, cryptor.decryptPriceMicros(cipher, 0));
+
+			// step5b: decode from raw request bytes, encode into caller buffers
+			byte[] requestLine = ("GET /win?" + query + " HTTP/1.1").getBytes(StandardCharsets.US_ASCII);
+			int byteOff = off + "GET /win?".length();
+			assertEquals(price, cryptor.decodePriceMicros(requestLine, byteOff, len));
+			assertEquals(price, cryptor.decodePriceMicros(
+					(ByteBuffer) ByteBuffer.allocateDirect(len).put(requestLine, byteOff, len).flip()));
+
+			char[] encoded = new char[PriceCryptor.encodedSize(cipher.length)];
+			cryptor.encodePriceMicros(price, time, serverId, encoded, 0);
+			assertEquals(encryptPriceStr, new String(encoded));
+			assertEquals(encryptPriceStr,
+					cryptor.encodePriceMicros(price, time, serverId, new StringBuilder()).toString());
+
+			// step5c: the codec matches Guava's websafe base64, with and
+			// without padding
+			Random codecRandom = new Random(time);
+			for (int size = 0; size < 200; ++size) {
+				byte[] data = new byte[size];
+				codecRandom.nextBytes(data);
+				String padded = BaseEncoding.base64Url().encode(data);
+				String unpadded = BaseEncoding.base64Url().omitPadding().encode(data);
+				assertEquals(padded, PriceCryptor.encode(data));
+				assertArrayEquals(BaseEncoding.base64Url().decode(padded), PriceCryptor.decode(padded));
+				assertArrayEquals(BaseEncoding.base64Url().omitPadding().decode(unpadded),
+						PriceCryptor.decode(unpadded));
+			}
+
+			// step6: precomputed-midstate engine, bit-exact with the JCE one
+			PriceCryptor fastCryptor = new PriceCryptor(keys, PriceCryptor.Engine.MIDSTATE);
+			assertEquals(encryptPriceStr, fastCryptor.encryptPrice(priceInfo));
+			assertEquals(price, fastCryptor.decodePriceMicros(query, off, len));
+
+			// both keys must expose raw bytes to precompute their pads
+			Keys opaqueIntegrity = new Keys(eKey, new SecretKeySpec(IntegrityKey.getBytes(), "HmacSHA1") {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public String getFormat() {
+					return "PKCS#11";
+				}
+			});
+			try {
+				new PriceCryptor(opaqueIntegrity, PriceCryptor.Engine.MIDSTATE);
+				fail("Accepted keys without raw integrity key material");
+			} catch (IllegalArgumentException e) {
+				System.out.println(e.getMessage());
+			}
+
+			Random random = new Random(price);
+			for (int payloadSize = 0; payloadSize <= 200; ++payloadSize) {
+				byte[] plainData = new byte[PriceCryptor.OVERHEAD_SIZE + payloadSize];
+				random.nextBytes(plainData);
+				Arrays.fill(plainData, plainData.length - PriceCryptor.SIGNATURE_SIZE, plainData.length, (byte) 0);
+				assertArrayEquals(cryptor.encrypt(plainData), fastCryptor.encrypt(plainData));
+			}
+
+			// step7: batch decryption, bad records are reported per index
+			String[] batch = new String[5000];
+			for (int i = 0; i < batch.length; ++i) {
+				batch[i] = cryptor.encryptPrice(new PriceInfo(price + i, time + i, serverId));
+			}
+			batch[7] = "AAABVQ8mivsAAAAAAAByM5nk4xXcVyW_We11iA==";
+			batch[4000] = null;
+			long[] prices = new long[batch.length];
+			long[] times = new long[batch.length];
+			long[] serverIds = new long[batch.length];
+			BitSet failures = new BitSet();
+			assertEquals(2, fastCryptor.decryptPrices(batch, prices, times, serverIds, failures));
+			assertEquals(7, failures.nextSetBit(0));
+			assertEquals(4000, failures.nextSetBit(8));
+			assertEquals(price + 4999, prices[4999]);
+			assertEquals(time + 4999, times[4999]);
+			assertEquals(serverId, serverIds[4999]);
+
+			// step8: key rotation, notices signed with the old keys are still
+			// accepted during the grace period
+			PriceKeyRegistry registry = new PriceKeyRegistry(60_000);
+			registry.rotate("seat-1", keys);
+			Keys newKeys = new Keys(new SecretKeySpec(IntegrityKey.getBytes(), "HmacSHA1"),
+					new SecretKeySpec(EncryptionKey.getBytes(), "HmacSHA1"));
+			registry.rotate("seat-1", newKeys);
+			assertEquals(price, registry.decryptPrice("seat-1", encryptPriceStr).getPrice());
+			String rotatedPriceStr = registry.encryptPrice("seat-1", priceInfo);
+			assertEquals(price, registry.decodePriceMicros("seat-1", rotatedPriceStr, 0, rotatedPriceStr.length()));
+			assertEquals(2, registry.getCurrent("seat-1").getId());
+			assertEquals(1, registry.getCurrent("seat-1").getHitCount());
+			assertEquals(1, registry.getPrevious("seat-1").getFallbackCount());
+
 			System.out.println(encryptPriceStr);
 		} catch (InvalidKeyException | SignatureException e) {
 			e.printStackTrace();
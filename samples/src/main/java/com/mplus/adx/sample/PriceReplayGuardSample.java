@@ -0,0 +1,67 @@
+package com.mplus.adx.sample;
+
+import static org.junit.Assert.assertEquals;
+
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import com.mplus.adx.PriceCryptor;
+import com.mplus.adx.PriceCryptor.Keys;
+import com.mplus.adx.PriceCryptor.PriceInfo;
+import com.mplus.adx.PriceReplayGuard;
+import com.mplus.adx.PriceReplayGuard.Verdict;
+
+public class PriceReplayGuardSample {
+	private static final String EncryptionKey = "77165979f11b497da6f81b3bb320932c";
+	private static final String IntegrityKey = "f9db51664f8a44f99ef08b17f6c11ab3";
+
+	public static void main(String[] args) throws InterruptedException {
+		try {
+			Keys keys = new Keys(new SecretKeySpec(EncryptionKey.getBytes(), "HmacSHA1"),
+					new SecretKeySpec(IntegrityKey.getBytes(), "HmacSHA1"));
+			PriceCryptor cryptor = new PriceCryptor(keys);
+			// keep notices for 10 minutes, tolerate 5 seconds of clock skew
+			final PriceReplayGuard guard = new PriceReplayGuard(600_000, 5_000, 30_000);
+
+			long now = System.currentTimeMillis();
+			String notice = cryptor.encryptPrice(new PriceInfo(12345, now, 29235));
+			PriceInfo priceInfo = cryptor.decryptPrice(notice);
+
+			// step1: the first notice is billed, its retry is not
+			assertEquals(Verdict.ACCEPTED, guard.check(priceInfo.getCurrentTimeMillis(), priceInfo.getServerId()));
+			assertEquals(Verdict.DUPLICATE, guard.check(priceInfo.getCurrentTimeMillis(), priceInfo.getServerId()));
+			assertEquals(Verdict.DUPLICATE, guard.check(cryptor.decrypt(PriceCryptor.decode(notice)), 0));
+
+			// step2: stale and future notices are rejected
+			assertEquals(Verdict.EXPIRED, guard.check(now - 3_600_000, 29235));
+			assertEquals(Verdict.FUTURE, guard.check(now + 60_000, 29235));
+
+			// step3: concurrent retries are only accepted once
+			final long base = now - 1_000;
+			ExecutorService executor = Executors.newFixedThreadPool(4);
+			for (int t = 0; t < 4; ++t) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						for (int i = 0; i < 20_000; ++i) {
+							guard.check(base + i % 500, i);
+						}
+					}
+				});
+			}
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+			assertEquals(1 + 20_000, guard.getAcceptedCount());
+			assertEquals(2 + 3 * 20_000, guard.getDuplicateCount());
+
+			System.out.println(guard);
+		} catch (InvalidKeyException | SignatureException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -1,14 +1,49 @@
 package com.mplus.adx.sample;
 
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+
+import com.mplus.adx.ClientTokenVerifier;
+import com.mplus.adx.ClientTokenVerifier.Result;
 import com.mplus.adx.Sha1Encryptor;
 
 public class Sha1EncryptorSample {
 	public static void main(String[] args) {
-		String clientKey = "7CE167C1778E4A21BF7C1A1D80C1E8BF";
+		final String clientKey = "7CE167C1778E4A21BF7C1A1D80C1E8BF";
 		int timestamp = 1460966991;
 
 		String source = String.format("%s|%s", clientKey, timestamp);
-		String encryptStr = new Sha1Encryptor().encryptToString(source);
+		Sha1Encryptor encryptor = new Sha1Encryptor();
+		String encryptStr = encryptor.encryptToString(source);
+		assertEquals("1166C81A202C37970F509BC03A3BF684778F0AE8", encryptStr);
+
+		// allocation-free variants give the same token
+		char[] token = new char[Sha1Encryptor.HEX_SIZE];
+		encryptor.encryptToHex(clientKey, timestamp, token, 0);
+		assertEquals(encryptStr, new String(token));
+		assertEquals(encryptStr, encryptor.encryptToHex(source, new StringBuilder()).toString());
+		encryptor.encryptToHex(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)), token, 0);
+		assertEquals(encryptStr, new String(token));
+		assertEquals(encryptStr, encryptor.toHexString(encryptor.encrypt(source)));
+
+		// verify incoming tokens within a 5 minute window
+		ClientTokenVerifier verifier = new ClientTokenVerifier(new Function<String, String>() {
+			@Override
+			public String apply(String clientId) {
+				return "client-1".equals(clientId) ? clientKey : null;
+			}
+		}, 300, 10_000);
+		assertEquals(Result.VERIFIED, verifier.verify("client-1", timestamp, encryptStr, timestamp + 10));
+		assertEquals(Result.VERIFIED, verifier.verify("client-1", timestamp, encryptStr, timestamp + 11));
+		assertEquals(1, verifier.getCacheStats().hitCount());
+		assertEquals(Result.EXPIRED, verifier.verify("client-1", timestamp, encryptStr, timestamp + 301));
+		assertEquals(Result.EXPIRED, verifier.verify("client-1", Long.MIN_VALUE + 1, encryptStr, timestamp));
+		assertEquals(Result.EXPIRED, verifier.verify("client-1", Long.MAX_VALUE, encryptStr, timestamp));
+		assertEquals(Result.INVALID, verifier.verify("client-1", timestamp + 1, encryptStr, timestamp));
+		assertEquals(Result.UNKNOWN_CLIENT, verifier.verify("client-2", timestamp, encryptStr, timestamp));
 
 		System.out.println(encryptStr);
 	}
@@ -0,0 +1,97 @@
+package com.mplus.adx.sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import com.mplus.adx.FileHelper;
+import com.mplus.adx.LongLongMap;
+import com.mplus.adx.PriceCryptor;
+import com.mplus.adx.PriceCryptor.Keys;
+import com.mplus.adx.SpendReconciler;
+
+public class SpendReconcilerSample {
+	private static final String EncryptionKey = "77165979f11b497da6f81b3bb320932c";
+	private static final String IntegrityKey = "f9db51664f8a44f99ef08b17f6c11ab3";
+
+	private static final int FILES = 6;
+	private static final int LINES_PER_FILE = 100_000;
+	private static final long START = 1464838032123L;
+
+	public static void main(String[] args) throws Exception {
+		PriceCryptor cryptor = new PriceCryptor(new Keys(new SecretKeySpec(EncryptionKey.getBytes(), "HmacSHA1"),
+				new SecretKeySpec(IntegrityKey.getBytes(), "HmacSHA1")));
+		Path root = Files.createTempDirectory("notices");
+		try {
+			// step1: notice logs, half of them in subdirectories; every 1000th
+			// price is corrupt, and some lines have no price
+			long expectedSpend = 0;
+			LongLongMap expectedByServerId = new LongLongMap();
+			char[] cipher = new char[64];
+			for (int f = 0; f < FILES; ++f) {
+				Path dir = f % 2 == 0 ? root : Files.createDirectories(root.resolve("2016-06-0" + f));
+				try (BufferedWriter out = Files.newBufferedWriter(dir.resolve("win-" + f + ".log"),
+						StandardCharsets.US_ASCII)) {
+					for (int i = 0; i < LINES_PER_FILE; ++i) {
+						long price = 1000 + i % 5000;
+						long serverId = i % 7;
+						long time = START + (long) i * 60_000;
+						int len = cryptor.encodePriceMicros(price, time, serverId, cipher, 0);
+						if (i % 1000 == 999) {
+							cipher[5] = cipher[5] == 'A' ? 'B' : 'A';
+						} else {
+							expectedSpend += price;
+							expectedByServerId.add(serverId, price);
+						}
+						out.write("2016-06-02 12:00:00 INFO win GET /win?id=req-" + i + "&price=");
+						out.write(cipher, 0, len);
+						out.write("&s=1 HTTP/1.1\n");
+						if (i % 100 == 0) {
+							out.write("2016-06-02 12:00:00 INFO heartbeat\n");
+						}
+					}
+				}
+			}
+			Files.write(root.resolve("README"), "not a log".getBytes(StandardCharsets.US_ASCII));
+
+			// step2: the walk finds the files of the subdirectories too
+			List<String> logs = FileHelper.getAllFileAbsolutePath(root.toString(), true,
+					file -> file.getName().endsWith(".log"));
+			assertEquals(FILES, logs.size());
+
+			// step3: the result is the same on 1 thread and on 4
+			SpendReconciler reconciler = new SpendReconciler(cryptor, "price", 1024 * 1024);
+			SpendReconciler.Result single = reconciler.reconcile(new ForkJoinPool(1), root.toString(),
+					file -> file.getName().endsWith(".log"));
+			SpendReconciler.Result parallel = reconciler.reconcile(new ForkJoinPool(4), root.toString(),
+					file -> file.getName().endsWith(".log"));
+			System.out.println("1 thread:  " + single);
+			System.out.println("4 threads: " + parallel);
+			assertTrue(single.sameSpend(parallel));
+			assertEquals((long) FILES * LINES_PER_FILE, parallel.getRecordCount());
+			assertEquals(FILES * LINES_PER_FILE / 1000, parallel.getFailureCount());
+			assertEquals(expectedSpend, parallel.getTotalSpend());
+			assertEquals(expectedByServerId, parallel.getSpendByServerId());
+			long hours = TimeUnit.MINUTES.toHours((long) LINES_PER_FILE);
+			assertTrue(parallel.getSpendByHour().size() >= hours);
+		} finally {
+			try (Stream<Path> paths = Files.walk(root)) {
+				for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+					Files.delete(path);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package com.mplus.adx.sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import com.mplus.adx.UnifiedBidRequest;
+import com.mplus.adx.UnifiedBidRequest.Device;
+import com.mplus.adx.UnifiedBidRequest.Imp;
+import com.mplus.adx.UnifiedBidRequest.Revision;
+
+public class UnifiedBidRequestSample {
+
+	public static void main(String[] args) {
+		UnifiedBidRequest request = new UnifiedBidRequest();
+
+		// step1: a request of bidrequest.proto, with packed banner apis
+		Message banner = new Message().varint(1, 300).varint(2, 250).string(4, "image/jpeg").packed(5, 3, 5);
+		Message deal = new Message().string(1, "deal-1").varint(2, 3_000_000).string(3, "CNY");
+		Message imp = new Message().string(1, "imp-1").message(2, banner)
+				.message(6, new Message().message(1, deal)).varint(8, 1_500_000);
+		Message geo = new Message().fixed32(1, Float.floatToIntBits(31.2f)).string(3, "CHN");
+		Message device = new Message().string(1, "Mozilla/5.0").message(2, geo).string(8, "android").varint(14, 2);
+		Message app = new Message().string(1, "app-1").message(11, new Message().string(2, "mplus"));
+		byte[] revision1 = new Message().string(1, "req-1").message(2, imp).message(3, app).message(4, device)
+				.varint(6, 120).string(8, "IAB1").string(8, "IAB2").toByteArray();
+
+		request.decode(ByteBuffer.wrap(revision1));
+		assertEquals(Revision.REVISION_1, request.getRevision());
+		assertTrue(request.getId().equalsAscii("req-1"));
+		assertEquals(120, request.getTmax());
+		assertEquals(2, request.getBcat().size());
+		assertTrue(request.getBcat().get(1).equalsAscii("IAB2"));
+		assertEquals(1, request.getImp().size());
+		Imp first = request.getImp().get(0);
+		assertEquals(1_500_000, first.getBidfloor());
+		assertEquals(300, first.getBanner().getW());
+		assertEquals(2, first.getBanner().getApi().size());
+		assertEquals(5, first.getBanner().getApi().get(1));
+		assertNull(first.getVideo());
+		assertEquals(3_000_000, first.getPmp().getDeals().get(0).getBidfloor());
+		assertTrue(request.getApp().getPublisher().getName().equalsAscii("mplus"));
+		assertEquals(31.2f, request.getDevice().getGeo().getLat(), 0f);
+		assertTrue(request.getDevice().getGeo().getCountry().equalsAscii("CHN"));
+		assertEquals(2, request.getDevice().getConnectiontype());
+
+		// step2: a request of bidrequest2.proto, detected by the device ids,
+		// decoded into the same model, with unpacked video protocols
+		Message video = new Message().varint(1, 640).varint(2, 360).varint(15, 2).varint(15, 3)
+				.message(16, new Message().varint(1, 4));
+		Message imp2 = new Message().string(1, "imp-2").message(3, video);
+		Message device2 = new Message().string(1, "Mozilla/5.0").string(23, "860000000000000")
+				.message(22, new Message().string(1, "custom-1"));
+		byte[] revision2 = new Message().string(1, "req-2").message(2, imp2).message(4, device2).toByteArray();
+
+		request.decode(ByteBuffer.wrap(revision2));
+		assertEquals(Revision.REVISION_2, request.getRevision());
+		assertTrue(request.getId().equalsAscii("req-2"));
+		assertFalse(request.has(UnifiedBidRequest.TMAX_FIELD_NUMBER));
+		assertEquals(0, request.getBcat().size());
+		assertNull(request.getApp());
+		first = request.getImp().get(0);
+		assertNull(first.getBanner());
+		assertNull(first.getPmp());
+		assertEquals(2, first.getVideo().getProtocols().size());
+		assertEquals(4, first.getVideo().getExt().getMaxcreative());
+		Device device2Read = request.getDevice();
+		assertTrue(device2Read.getImei().equalsAscii("860000000000000"));
+		assertTrue(device2Read.getExt().getCustomid().equalsAscii("custom-1"));
+		assertNull(device2Read.getGeo());
+
+		// step3: a deal without floor is only valid in revision 2
+		Message noFloor = new Message().string(1, "deal-2");
+		Message imp3 = new Message().string(1, "imp-3").message(6, new Message().message(1, noFloor));
+		request.decode(ByteBuffer.wrap(new Message().string(1, "req-3").message(2, imp3).toByteArray()));
+		assertEquals(Revision.REVISION_2, request.getRevision());
+		assertFalse(request.getImp().get(0).getPmp().getDeals().get(0).has(UnifiedBidRequest.Deal.BIDFLOOR_FIELD_NUMBER));
+
+		// step4: fields required by both revisions are checked
+		try {
+			request.decode(ByteBuffer.wrap(new Message().message(2, imp).toByteArray()));
+			fail("Request without id");
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+		}
+
+		// step5: decode many requests into the same model
+		ByteBuffer buffer1 = ByteBuffer.wrap(revision1);
+		ByteBuffer buffer2 = ByteBuffer.wrap(revision2);
+		int second = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < 1_000_000; ++i) {
+			if (request.decode((i & 1) == 0 ? buffer1 : buffer2).getRevision() == Revision.REVISION_2) {
+				++second;
+			}
+		}
+		assertEquals(500_000, second);
+		System.out.println(String.format("Decoded a request in %s ns", (System.nanoTime() - start) / 1_000_000));
+	}
+}
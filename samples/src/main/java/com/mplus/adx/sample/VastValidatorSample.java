@@ -1,10 +1,23 @@
 package com.mplus.adx.sample;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.mplus.adx.FileHelper;
+import com.mplus.adx.VastStreamValidator;
+import com.mplus.adx.VastValidationCache;
+import com.mplus.adx.VastStreamValidator.Verdict;
 import com.mplus.adx.VastValidator;
 
 public class VastValidatorSample {
@@ -12,6 +25,15 @@ public class VastValidatorSample {
 			+ File.separator;
 
 	public static void main(String[] args) {
+		// compile the schemas before the first document arrives
+		Thread warmUp = VastValidator.warmUpInBackground();
+		try {
+			warmUp.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		assertTrue(VastValidator.getSchemaLoadNanos((byte) 0x04) > 0);
+
 		String vast = readVastXml(basePath + "vast4-ad1.xml");
 		boolean result = VastValidator.validate((byte)0x04, vast);
 		assertTrue(result);
@@ -20,7 +42,73 @@ public class VastValidatorSample {
 		result = VastValidator.validate((byte)0x04, vast);
 		assertTrue(result);
 		
-		System.out.println("Vast xml pass validate.");
+		// the fast path agrees with the schema, which vast-ad3.xml fails on
+		// the order of IconClicks
+		String[] samples = { "vast4-ad1.xml", "vast4-ad2.xml", "vast-ad3.xml" };
+		Verdict[] verdicts = { Verdict.VALID, Verdict.VALID, Verdict.INVALID };
+		for (int i = 0; i < samples.length; ++i) {
+			vast = readVastXml(basePath + samples[i]);
+			assertEquals(verdicts[i], VastStreamValidator.validate((byte) 0x04, vast).getVerdict());
+			assertEquals(VastValidator.validate((byte) 0x04, vast), VastValidator.validate((byte) 0x04, vast, true));
+		}
+
+		// attributes are only checked by the schema, which remains the default
+		vast = readVastXml(basePath + "vast4-ad1.xml").replaceFirst("delivery=\"streaming\"", "delivery=\"pigeon\"");
+		assertEquals(Verdict.VALID, VastStreamValidator.validate((byte) 0x04, vast).getVerdict());
+		assertTrue(VastValidator.validate((byte) 0x04, vast, true));
+		assertFalse(VastValidator.validate((byte) 0x04, vast));
+
+		// required elements and the Duration format are checked by the fast path
+		vast = readVastXml(basePath + "vast4-ad1.xml");
+		String[] broken = { vast.replaceFirst("<AdTitle>.*</AdTitle>", ""),
+				vast.replaceFirst("<Impression ", "<Ignored ").replaceFirst("</Impression>", "</Ignored>"),
+				vast.replaceFirst("00:00:14.234", "14 seconds") };
+		for (String document : broken) {
+			assertEquals(Verdict.INVALID, VastStreamValidator.validate((byte) 0x04, document).getVerdict());
+			assertFalse(VastValidator.validate((byte) 0x04, document, true));
+			assertFalse(VastValidator.validate((byte) 0x04, document));
+		}
+
+		// validators are pooled, so documents can be validated concurrently
+		final String ad1 = readVastXml(basePath + "vast4-ad1.xml");
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		List<Future<Boolean>> results = new ArrayList<>();
+		for (int i = 0; i < 100; ++i) {
+			results.add(executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return VastValidator.validate((byte) 0x04, new StringReader(ad1));
+				}
+			}));
+		}
+		try {
+			for (Future<Boolean> future : results) {
+				assertTrue(future.get());
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		} finally {
+			executor.shutdown();
+		}
+
+		// repeated creatives are validated once, failures included
+		VastValidationCache cache = new VastValidationCache(10_000, 600, true);
+		String ad3 = readVastXml(basePath + "vast-ad3.xml");
+		for (int i = 0; i < 100; ++i) {
+			assertTrue(cache.validate((byte) 0x04, ad1));
+			assertFalse(cache.validate((byte) 0x04, ad3));
+		}
+		assertEquals(VastStreamValidator.validate((byte) 0x04, ad3).getReason(),
+				cache.check((byte) 0x04, ad3).getReason());
+		assertEquals(2, cache.size());
+		assertEquals(2, cache.getCacheStats().missCount());
+		System.out.println("Validation cache hit rate: " + cache.getCacheStats().hitRate());
+
+		System.out.println("Vast xsd load: " + VastValidator.getSchemaLoadNanos((byte) 0x04) / 1000 + "us, first validation: "
+				+ VastValidator.getFirstValidationNanos((byte) 0x04) / 1000 + "us");
+		System.out.println("Vast xml pass validate. Fast path: " + VastValidator.getFastPathCount() + ", schema: "
+				+ VastValidator.getSchemaValidationCount() + ", pool contention: "
+				+ VastValidator.getPoolContentionCount());
 	}
 	
 	private static String readVastXml(String path) {
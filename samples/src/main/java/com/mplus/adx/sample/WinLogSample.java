@@ -0,0 +1,147 @@
+package com.mplus.adx.sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import com.mplus.adx.ByteSlice;
+import com.mplus.adx.WinLog;
+
+public class WinLogSample {
+	private static final int WRITERS = 4;
+	private static final int RECORDS_PER_WRITER = 250_000;
+	private static final int SLOTS_PER_SEGMENT = 100_000;
+
+	public static void main(String[] args) throws Exception {
+		Path dir = Files.createTempDirectory("winlog");
+		try {
+			run(dir);
+		} finally {
+			try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir)) {
+				for (Path segment : segments) {
+					Files.delete(segment);
+				}
+			}
+			Files.delete(dir);
+		}
+	}
+
+	private static void run(Path dir) throws Exception {
+		// step1: concurrent writers claim slots of the same log, which rolls
+		// to a new segment every 100k records
+		long started = System.nanoTime();
+		try (WinLog log = new WinLog(dir, SLOTS_PER_SEGMENT)) {
+			List<Thread> writers = new ArrayList<>();
+			for (int w = 0; w < WRITERS; ++w) {
+				int writer = w;
+				writers.add(new Thread(() -> {
+					ByteSlice auctionId = new ByteSlice(("req-" + writer).getBytes(StandardCharsets.US_ASCII));
+					ByteSlice impId = new ByteSlice("imp-1".getBytes(StandardCharsets.US_ASCII));
+					for (int i = 0; i < RECORDS_PER_WRITER; ++i) {
+						log.append(i, 1464838032123L + i, writer, auctionId, impId);
+					}
+				}));
+			}
+			for (Thread writer : writers) {
+				writer.start();
+			}
+			for (Thread writer : writers) {
+				writer.join();
+			}
+		}
+		long records = (long) WRITERS * RECORDS_PER_WRITER;
+		print("Wrote", records, started);
+
+		// step2: read it back in order, then one segment per task
+		long expectedSum = WRITERS * ((long) RECORDS_PER_WRITER * (RECORDS_PER_WRITER - 1) / 2);
+		started = System.nanoTime();
+		Sum sum = new Sum();
+		assertEquals(records, WinLog.scan(dir, sum));
+		print("Scanned", records, started);
+		assertEquals(expectedSum, sum.price);
+
+		started = System.nanoTime();
+		long parallelSum = 0;
+		long parallelCount = 0;
+		for (Sum partial : WinLog.scan(ForkJoinPool.commonPool(), dir, Sum::new)) {
+			parallelSum += partial.price;
+			parallelCount += partial.count;
+		}
+		print("Scanned in parallel", records, started);
+		assertEquals(expectedSum, parallelSum);
+		assertEquals(records, parallelCount);
+
+		// step3: a record torn by a crash after the tail is cleared when the
+		// log is opened again, and the tail resumes after the last good one
+		WinLog crashed = new WinLog(dir, SLOTS_PER_SEGMENT);
+		ByteSlice id = new ByteSlice("req-9".getBytes(StandardCharsets.US_ASCII));
+		long sequence = crashed.append(42, System.currentTimeMillis(), 9, id, id);
+		crashed.sync();
+		Path segment = dir.resolve(String.format("%016d%s", sequence >>> 32, WinLog.SEGMENT_SUFFIX));
+		long slot = sequence & 0xFFFFFFFFL;
+		try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+			// half of a record: its CRC and first fields, but not its ids
+			byte[] torn = new byte[WinLog.RECORD_BYTES / 2];
+			file.seek((slot + 1) * WinLog.RECORD_BYTES);
+			file.readFully(torn);
+			file.seek((slot + 2) * WinLog.RECORD_BYTES);
+			file.write(torn);
+		}
+
+		try (WinLog recovered = new WinLog(dir, SLOTS_PER_SEGMENT)) {
+			assertEquals(1, recovered.getTornCount());
+			assertTrue(recovered.getRecoveredCount() > 0);
+			assertEquals(sequence + 1, recovered.append(43, System.currentTimeMillis(), 9, id, id));
+		}
+		// a closed segment keeps its full size
+		assertEquals((SLOTS_PER_SEGMENT + 1L) * WinLog.RECORD_BYTES, Files.size(segment));
+
+		// step4: a log opened with another segment size finishes the
+		// recovered segment, then rolls to smaller ones; the numbers keep
+		// increasing across them
+		int appended = 0;
+		try (WinLog resized = new WinLog(dir, SLOTS_PER_SEGMENT / 10)) {
+			long previous = sequence + 1;
+			while ((previous >>> 32) < (sequence >>> 32) + 2) {
+				long next = resized.append(44, System.currentTimeMillis(), 9, id, id);
+				assertTrue(next > previous);
+				if (appended == 0) {
+					assertEquals(sequence + 2, next);
+				}
+				previous = next;
+				++appended;
+			}
+		}
+		assertEquals(SLOTS_PER_SEGMENT - 2 + SLOTS_PER_SEGMENT / 10 + 1, appended);
+		sum = new Sum();
+		assertEquals(records + 2 + appended, WinLog.scan(dir, sum));
+		assertEquals(expectedSum + 42 + 43 + 44L * appended, sum.price);
+	}
+
+	private static void print(String what, long records, long started) {
+		long nanos = System.nanoTime() - started;
+		System.out.println(String.format("%s %s records in %sms: %.0f records/s, %.0f MB/s", what, records,
+				TimeUnit.NANOSECONDS.toMillis(nanos), records * 1e9 / nanos,
+				records * WinLog.RECORD_BYTES * 1e3 / nanos));
+	}
+
+	private static final class Sum implements WinLog.Visitor {
+		long price;
+		long count;
+
+		@Override
+		public void visit(WinLog.Record record) {
+			price += record.getPrice();
+			++count;
+		}
+	}
+}
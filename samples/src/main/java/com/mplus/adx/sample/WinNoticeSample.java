@@ -0,0 +1,158 @@
+package com.mplus.adx.sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import com.mplus.adx.BidResponseWriter;
+import com.mplus.adx.ByteSlice;
+import com.mplus.adx.DirectBufferPool;
+import com.mplus.adx.NoticeUrlTemplate;
+import com.mplus.adx.NoticeUrlTemplate.Macro;
+import com.mplus.adx.PriceCryptor;
+import com.mplus.adx.PriceCryptor.Keys;
+import com.mplus.adx.PriceReplayGuard;
+import com.mplus.adx.WinNotice;
+import com.mplus.adx.WinNoticeBatcher;
+
+public class WinNoticeSample {
+	private static final String EncryptionKey = "77165979f11b497da6f81b3bb320932c";
+	private static final String IntegrityKey = "f9db51664f8a44f99ef08b17f6c11ab3";
+
+	public static void main(String[] args) throws Exception {
+		PriceCryptor cryptor = new PriceCryptor(new Keys(new SecretKeySpec(EncryptionKey.getBytes(), "HmacSHA1"),
+				new SecretKeySpec(IntegrityKey.getBytes(), "HmacSHA1")));
+
+		// step1: compile the notice URL once
+		NoticeUrlTemplate template = NoticeUrlTemplate.compile(
+				"http://win.mplus.com/win?id=${AUCTION_ID}&imp=${AUCTION_IMP_ID}&price=${AUCTION_PRICE}&s=${AUCTION_SEAT_ID}");
+		assertEquals("/win", template.getPath());
+		assertEquals("price", template.getParameter(Macro.AUCTION_PRICE));
+
+		// step2: the bidder expands the ids into its response, leaving the
+		// price to the exchange
+		ByteSlice auctionId = new ByteSlice("req 1".getBytes(StandardCharsets.UTF_8));
+		ByteSlice impId = new ByteSlice("imp-1".getBytes(StandardCharsets.UTF_8));
+		DirectBufferPool pool = new DirectBufferPool(4096, 4);
+		ByteBuffer response = new BidResponseWriter(pool).start(auctionId)
+				.startSeatBid().startBid("1", impId, 1_500_000).nurl(template, auctionId, impId).endBid().endSeatBid()
+				.finish();
+		String nurl = "http://win.mplus.com/win?id=req%201&imp=imp-1&price=${AUCTION_PRICE}&s=${AUCTION_SEAT_ID}";
+		byte[] body = new byte[response.remaining()];
+		response.get(body);
+		pool.release(response);
+		assertTrue(new String(body, StandardCharsets.UTF_8).contains(nurl));
+
+		// step3: the exchange replaces ${AUCTION_PRICE} with the encrypted
+		// price, and the notice is parsed in place
+		long now = System.currentTimeMillis();
+		List<ByteBuffer> notices = new ArrayList<>();
+		for (int i = 0; i < 1000; ++i) {
+			notices.add(notice(template, cryptor, "req-" + i, 1_000_000 + i, now, i));
+		}
+		WinNotice notice = new WinNotice(template);
+		ByteBuffer first = notices.get(0);
+		assertTrue(notice.parse(first, 0, first.limit()));
+		assertTrue(notice.getAuctionId().equalsAscii("req-0"));
+		assertTrue(notice.getImpId().equalsAscii("imp-1"));
+		assertFalse(notice.parse(ByteBuffer.wrap(ascii("/click?price=x")), 0, 14));
+		assertFalse(notice.parse(ByteBuffer.wrap(ascii("/win?id=1")), 0, 9));
+
+		// step4: queue the notices; they are decrypted, checked and persisted
+		// in batches
+		PriceReplayGuard replayGuard = new PriceReplayGuard(TimeUnit.MINUTES.toMillis(10), 1000, 1 << 12);
+		CollectingSink sink = new CollectingSink();
+		WinNoticeBatcher batcher = new WinNoticeBatcher(cryptor, replayGuard, sink, 4096, 256, 1,
+				TimeUnit.MILLISECONDS).start();
+		for (ByteBuffer buffer : notices) {
+			assertTrue(notice.parse(buffer, 0, buffer.limit()));
+			assertTrue(batcher.offer(notice));
+		}
+		// a replay, and a price encrypted with other keys
+		assertTrue(notice.parse(first, 0, first.limit()));
+		assertTrue(batcher.offer(notice));
+		PriceCryptor forger = new PriceCryptor(new Keys(new SecretKeySpec(IntegrityKey.getBytes(), "HmacSHA1"),
+				new SecretKeySpec(EncryptionKey.getBytes(), "HmacSHA1")));
+		ByteBuffer forged = notice(template, forger, "req-x", 1, now, 0);
+		assertTrue(notice.parse(forged, 0, forged.limit()));
+		assertTrue(batcher.offer(notice));
+		// a notice without ids
+		String cipher = cryptor.encodePriceMicros(900_000, now, 1000, new StringBuilder()).toString();
+		ByteBuffer anonymous = ByteBuffer.wrap(ascii("/win?price=" + cipher));
+		assertTrue(notice.parse(anonymous, 0, anonymous.limit()));
+		assertTrue(notice.getAuctionId().isEmpty());
+		assertTrue(batcher.offer(notice));
+		batcher.close();
+		System.out.println(batcher);
+		assertEquals(1, batcher.getReplayCount());
+		assertEquals(1, batcher.getInvalidCount());
+		assertEquals(1001, sink.prices.size());
+		for (int i = 0; i < 1000; ++i) {
+			assertEquals(1_000_000 + i, (long) sink.prices.get(i));
+			assertEquals("req-" + i, sink.ids.get(i));
+		}
+		assertEquals(900_000, (long) sink.prices.get(1000));
+		assertEquals("", sink.ids.get(1000));
+		assertTrue(sink.batches < 1000);
+		System.out.println("Persisted 1001 wins in " + sink.batches + " batches");
+
+		// step5: while persistence is stuck, the ring fills up and notices are
+		// refused rather than queued without bound
+		CountDownLatch unblock = new CountDownLatch(1);
+		WinNoticeBatcher.Sink stuck = batch -> unblock.await();
+		try (WinNoticeBatcher stuckBatcher = new WinNoticeBatcher(cryptor, null, stuck, 64, 256, 16, 0,
+				TimeUnit.MILLISECONDS).start()) {
+			assertTrue(notice.parse(first, 0, first.limit()));
+			int accepted = 0;
+			while (stuckBatcher.offer(notice)) {
+				++accepted;
+			}
+			assertEquals(64, accepted);
+			assertEquals(1, stuckBatcher.getRejectedCount());
+			unblock.countDown();
+		}
+	}
+
+	/**
+	 * Expands the notice URL as the exchange does, and returns its request
+	 * target.
+	 */
+	private static ByteBuffer notice(NoticeUrlTemplate template, PriceCryptor cryptor, String auctionId, long price,
+			long time, long serverId) {
+		StringBuilder cipher = cryptor.encodePriceMicros(price, time, serverId, new StringBuilder());
+		ByteBuffer url = ByteBuffer.allocate(256);
+		template.expand(url, new ByteSlice(ascii(auctionId)), new ByteSlice(ascii("imp-1")), cipher);
+		((Buffer) url).flip();
+		String target = StandardCharsets.US_ASCII.decode(url).toString().substring("http://win.mplus.com".length());
+		return ByteBuffer.wrap(ascii(target));
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static final class CollectingSink implements WinNoticeBatcher.Sink {
+		final List<String> ids = new ArrayList<>();
+		final List<Long> prices = new ArrayList<>();
+		int batches;
+
+		@Override
+		public void persist(WinNoticeBatcher.Batch batch) {
+			for (int i = 0; i < batch.size(); ++i) {
+				ids.add(batch.getAuctionId(i).toString());
+				prices.add(batch.getPrice(i));
+			}
+			++batches;
+		}
+	}
+}
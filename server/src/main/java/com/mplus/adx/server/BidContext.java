@@ -0,0 +1,140 @@
+package com.mplus.adx.server;
+
+/**
+ * Deadline of the request being bid on, and the stages it went through.
+ * <p>
+ * The deadline is the arrival of the request plus its {@code tmax}, less a
+ * margin for the way back to the exchange. Stages call
+ * {@link #checkDeadline()} at points where they can stop, which throws
+ * {@link DeadlineExceededException} once it has passed; {@link BidServer}
+ * then answers with a no-bid reason instead of a bid the exchange would
+ * drop. A bid finished after the deadline is dropped the same way.
+ * <p>
+ * Stages are timed with {@link #enter(Stage)} and {@link #exit()}, and may
+ * be nested. The stage in which the deadline passes is counted as having
+ * missed it. One context per event loop is reused for each request; not
+ * thread-safe.
+ */
+public final class BidContext {
+	private static final int MAX_DEPTH = 8;
+
+	private long deadlineNanos;
+	private boolean missed;
+
+	private final Stage[] stages = new Stage[MAX_DEPTH];
+	private final long[] enteredAt = new long[MAX_DEPTH];
+	private int depth;
+
+	/**
+	 * Starts a request.
+	 *
+	 * @param arrivalNanos
+	 *            {@link System#nanoTime()} when it arrived
+	 */
+	void start(long arrivalNanos, long budgetNanos) {
+		deadlineNanos = arrivalNanos + budgetNanos;
+		missed = false;
+		for (int i = 0; i < depth; ++i) {
+			stages[i] = null;
+		}
+		depth = 0;
+	}
+
+	/**
+	 * Returns the deadline, in {@link System#nanoTime()} time.
+	 */
+	public long getDeadlineNanos() {
+		return deadlineNanos;
+	}
+
+	/**
+	 * Returns the time left before the deadline, negative once passed.
+	 */
+	public long getRemainingNanos() {
+		return deadlineNanos - System.nanoTime();
+	}
+
+	public boolean isExpired() {
+		return getRemainingNanos() <= 0;
+	}
+
+	/**
+	 * Returns whether the deadline was found passed, so the request gets no
+	 * bid.
+	 */
+	public boolean hasMissed() {
+		return missed;
+	}
+
+	/**
+	 * Cancels the request once its deadline has passed.
+	 *
+	 * @throws DeadlineExceededException
+	 *             if it has
+	 */
+	public void checkDeadline() {
+		if (isExpired()) {
+			miss();
+			throw DeadlineExceededException.INSTANCE;
+		}
+	}
+
+	/**
+	 * Enters a stage, after checking the deadline.
+	 *
+	 * @throws DeadlineExceededException
+	 *             if it has passed
+	 */
+	public void enter(Stage stage) {
+		if (depth == MAX_DEPTH) {
+			throw new IllegalStateException("Stages nested deeper than " + MAX_DEPTH);
+		}
+		checkDeadline();
+		stages[depth] = stage;
+		enteredAt[depth] = System.nanoTime();
+		++depth;
+	}
+
+	/**
+	 * Leaves the current stage, which missed the deadline if it has passed.
+	 */
+	public void exit() {
+		if (depth == 0) {
+			throw new IllegalStateException("No stage entered");
+		}
+		long now = System.nanoTime();
+		if (now - deadlineNanos >= 0) {
+			miss();
+		}
+		leave(now);
+	}
+
+	/**
+	 * Leaves the stages left open by an exception.
+	 */
+	void abort() {
+		long now = System.nanoTime();
+		while (depth > 0) {
+			leave(now);
+		}
+	}
+
+	/**
+	 * Records the deadline as missed, by the current stage if it is the
+	 * first to find it.
+	 */
+	void miss() {
+		if (!missed) {
+			missed = true;
+			if (depth > 0) {
+				stages[depth - 1].miss();
+			}
+		}
+	}
+
+	private void leave(long now) {
+		--depth;
+		stages[depth].record(now - enteredAt[depth]);
+		stages[depth] = null;
+	}
+}
@@ -0,0 +1,369 @@
+package com.mplus.adx.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mplus.adx.NoticeUrlTemplate;
+import com.mplus.adx.NoticeUrlTemplate.Macro;
+import com.mplus.adx.WinNoticeBatcher;
+
+/**
+ * Embedded HTTP/1.1 bidder endpoint: accepts protobuf {@code BidRequest}s of
+ * either revision (see {@link com.mplus.adx.UnifiedBidRequest}), calls a
+ * {@link Bidder}, and answers with a protobuf {@code BidResponse} or
+ * {@code 204 No Content}.
+ * <p>
+ * Connections are spread over NIO event loops, one thread each, which decode,
+ * bid and write without blocking; connections are kept alive and requests
+ * may be pipelined. In steady state a request allocates nothing in the
+ * server. {@link #startReporting(long, TimeUnit)} logs the throughput and
+ * the latency percentiles, measured from a complete request to its queued
+ * response; see {@link LoadGenerator} for the client side.
+ * <p>
+ * Each request has a deadline, its {@code tmax} less a network margin from
+ * its arrival, tracked by a {@link BidContext}. Requests past it are
+ * answered with no-bid reason {@link #NBR_TECHNICAL_ERROR} rather than a bid
+ * the exchange has stopped waiting for. The time spent in each
+ * {@link Stage} and the deadlines missed are counted.
+ * <p>
+ * With {@link #setWinNotices(NoticeUrlTemplate, WinNoticeBatcher)}, win
+ * notices, {@code GET}s of the notice URL, are parsed in place and queued for
+ * batched decryption and persistence, and acknowledged with
+ * {@code 204 No Content} without waiting for them; while the queue is full
+ * they are answered with {@code 503 Service Unavailable}.
+ */
+public final class BidServer implements Closeable {
+	private static Logger log = Logger.getLogger(BidServer.class);
+
+	public static final int DEFAULT_MAX_REQUEST_BYTES = 64 * 1024;
+	public static final long DEFAULT_NETWORK_MARGIN_MILLIS = 10;
+	/** Budget of requests without {@code tmax}. */
+	public static final long DEFAULT_TMAX_MILLIS = 100;
+	/** OpenRTB no-bid reason of the responses to requests past their deadline. */
+	public static final int NBR_TECHNICAL_ERROR = 1;
+
+	private final InetSocketAddress address;
+	private final Bidder bidder;
+	private final int maxRequestBytes;
+	private final EventLoop[] loops;
+
+	private ServerSocketChannel serverChannel;
+	private Thread acceptor;
+	private ScheduledExecutorService reporter;
+	private boolean closed;
+	private volatile long networkMarginNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_NETWORK_MARGIN_MILLIS);
+	private volatile long defaultTmaxNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TMAX_MILLIS);
+	private NoticeUrlTemplate winNoticeUrl;
+	private WinNoticeBatcher winNotices;
+
+	private final AtomicInteger connections = new AtomicInteger();
+	private final LongAdder bids = new LongAdder();
+	private final LongAdder noBids = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder deadlineMisses = new LongAdder();
+	private final Map<String, Stage> stages = new LinkedHashMap<>();
+	private final Stage decodeStage = stage("decode");
+	private final Stage bidStage = stage("bid");
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LatencyHistogram intervalLatency = new LatencyHistogram();
+
+	/**
+	 * Listens on all interfaces, with an event loop per processor.
+	 */
+	public BidServer(int port, Bidder bidder) throws IOException {
+		this(new InetSocketAddress(port), bidder, Runtime.getRuntime().availableProcessors(),
+				DEFAULT_MAX_REQUEST_BYTES);
+	}
+
+	/**
+	 * @param address
+	 *            port 0 picks a free port, see {@link #getPort()}
+	 * @param maxRequestBytes
+	 *            larger requests are answered with
+	 *            {@code 413 Payload Too Large}
+	 */
+	public BidServer(InetSocketAddress address, Bidder bidder, int eventLoops, int maxRequestBytes)
+			throws IOException {
+		checkArgument(eventLoops > 0, "eventLoops must be positive: %s", eventLoops);
+		checkArgument(maxRequestBytes > 0, "maxRequestBytes must be positive: %s", maxRequestBytes);
+		this.address = checkNotNull(address);
+		this.bidder = checkNotNull(bidder);
+		this.maxRequestBytes = maxRequestBytes;
+		this.loops = new EventLoop[eventLoops];
+		for (int i = 0; i < eventLoops; ++i) {
+			loops[i] = new EventLoop(this, "bid-server-loop-" + i);
+		}
+	}
+
+	/**
+	 * Sets the time kept from {@code tmax} for the response to reach the
+	 * exchange.
+	 */
+	public void setNetworkMargin(long margin, TimeUnit unit) {
+		checkArgument(margin >= 0, "Negative margin: %s", margin);
+		networkMarginNanos = unit.toNanos(margin);
+	}
+
+	/**
+	 * Sets the {@code tmax} assumed for requests without one.
+	 */
+	public void setDefaultTmax(long tmax, TimeUnit unit) {
+		checkArgument(tmax > 0, "tmax must be positive: %s", tmax);
+		defaultTmaxNanos = unit.toNanos(tmax);
+	}
+
+	/**
+	 * Serves win notices for this URL, queued into {@code batcher}; its
+	 * lifecycle is left to the caller. To be set before {@link #start()}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the URL has no query parameter for
+	 *             {@code ${AUCTION_PRICE}}
+	 */
+	public synchronized void setWinNotices(NoticeUrlTemplate url, WinNoticeBatcher batcher) {
+		checkState(serverChannel == null, "Already started");
+		checkArgument(url.getParameter(Macro.AUCTION_PRICE) != null, "No parameter for %s in %s",
+				Macro.AUCTION_PRICE.getText(), url);
+		this.winNoticeUrl = url;
+		this.winNotices = checkNotNull(batcher);
+	}
+
+	/**
+	 * Returns the stage with this name, registering it on first use; bidders
+	 * get theirs once, when created.
+	 */
+	public Stage stage(String name) {
+		checkNotNull(name);
+		synchronized (stages) {
+			Stage stage = stages.get(name);
+			if (stage == null) {
+				stage = new Stage(name);
+				stages.put(name, stage);
+			}
+			return stage;
+		}
+	}
+
+	/**
+	 * Returns the stages, starting with {@code decode} and {@code bid}, the
+	 * whole call of the bidder.
+	 */
+	public List<Stage> getStages() {
+		synchronized (stages) {
+			return ImmutableList.copyOf(stages.values());
+		}
+	}
+
+	/**
+	 * Binds the address and starts serving.
+	 *
+	 * @return this server
+	 */
+	public synchronized BidServer start() throws IOException {
+		checkState(serverChannel == null, "Already started");
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind(address, 1024);
+		} catch (IOException | RuntimeException e) {
+			// left unset, so start() may be retried
+			channel.close();
+			throw e;
+		}
+		serverChannel = channel;
+		try {
+			for (EventLoop loop : loops) {
+				loop.start();
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		acceptor = new Thread(this::accept, "bid-server-acceptor");
+		acceptor.start();
+		log.info(String.format("Bid server listening on %s with %s event loops", serverChannel.getLocalAddress(),
+				loops.length));
+		return this;
+	}
+
+	private void accept() {
+		int next = 0;
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				log.warn("Failed to accept connection: " + e);
+				continue;
+			}
+			connections.incrementAndGet();
+			loops[next].register(channel);
+			next = (next + 1) % loops.length;
+		}
+	}
+
+	/**
+	 * Logs the requests per second, the latency percentiles of the interval
+	 * and the counters every {@code period}.
+	 */
+	public synchronized void startReporting(long period, TimeUnit unit) {
+		checkState(reporter == null, "Already reporting");
+		reporter = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("bid-server-reporter").setDaemon(true).build());
+		long periodNanos = unit.toNanos(period);
+		intervalLatency.drain();
+		reporter.scheduleAtFixedRate(() -> {
+			LatencyHistogram interval = intervalLatency.drain();
+			log.info(String.format("qps=%.0f, %s, connections=%s, bids=%s, noBids=%s, errors=%s, deadlineMisses=%s, %s",
+					interval.getCount() * 1e9 / periodNanos, interval, connections.get(), bids.sum(), noBids.sum(),
+					errors.sum(), deadlineMisses.sum(), getStages()));
+		}, period, period, unit);
+	}
+
+	public int getPort() {
+		checkState(serverChannel != null, "Not started");
+		return serverChannel.socket().getLocalPort();
+	}
+
+	public int getMaxRequestBytes() {
+		return maxRequestBytes;
+	}
+
+	public Bidder getBidder() {
+		return bidder;
+	}
+
+	public int getConnectionCount() {
+		return connections.get();
+	}
+
+	public long getBidCount() {
+		return bids.sum();
+	}
+
+	public long getNoBidCount() {
+		return noBids.sum();
+	}
+
+	/**
+	 * Returns the number of requests answered with an error: invalid ones and
+	 * bidder failures.
+	 */
+	public long getErrorCount() {
+		return errors.sum();
+	}
+
+	/**
+	 * Returns the number of requests answered with a no-bid reason because
+	 * their deadline passed; they are counted as no-bids too.
+	 */
+	public long getDeadlineMissCount() {
+		return deadlineMisses.sum();
+	}
+
+	/**
+	 * Returns the latencies since the start, from a complete request to its
+	 * queued response.
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	void onResponse(boolean bid, long nanos) {
+		(bid ? bids : noBids).increment();
+		latency.record(nanos);
+		intervalLatency.record(nanos);
+	}
+
+	/**
+	 * Returns the notice URL, or null if win notices are not served; stable
+	 * once started.
+	 */
+	NoticeUrlTemplate getWinNoticeUrl() {
+		return winNoticeUrl;
+	}
+
+	WinNoticeBatcher getWinNotices() {
+		return winNotices;
+	}
+
+	/**
+	 * Returns the time a request has from its arrival to its response.
+	 */
+	long getBudgetNanos(int tmaxMillis) {
+		long tmax = tmaxMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(tmaxMillis) : defaultTmaxNanos;
+		return tmax - networkMarginNanos;
+	}
+
+	Stage getDecodeStage() {
+		return decodeStage;
+	}
+
+	Stage getBidStage() {
+		return bidStage;
+	}
+
+	void onDeadlineMiss() {
+		deadlineMisses.increment();
+	}
+
+	void onError() {
+		errors.increment();
+	}
+
+	void onClose() {
+		connections.decrementAndGet();
+	}
+
+	/**
+	 * Stops accepting, and closes the connections.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (serverChannel == null || closed) {
+			return;
+		}
+		closed = true;
+		serverChannel.close();
+		if (reporter != null) {
+			reporter.shutdownNow();
+		}
+		try {
+			if (acceptor != null) {
+				acceptor.join();
+			}
+			for (EventLoop loop : loops) {
+				loop.close();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		log.info(String.format("Bid server closed: bids=%s, noBids=%s, errors=%s, deadlineMisses=%s, %s, %s",
+				bids.sum(), noBids.sum(), errors.sum(), deadlineMisses.sum(), latency, getStages()));
+	}
+}
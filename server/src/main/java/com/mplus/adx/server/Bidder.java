@@ -0,0 +1,30 @@
+package com.mplus.adx.server;
+
+import com.mplus.adx.BidResponseWriter;
+import com.mplus.adx.UnifiedBidRequest;
+
+/**
+ * Bidding logic called by {@link BidServer} for each request.
+ * <p>
+ * It runs on an event loop of the server, so it must not block: a slow
+ * bidder delays every connection of its loop. Long stages should check the
+ * deadline of the request with {@link BidContext#checkDeadline()}. The
+ * context, the request and the response are only valid during the call,
+ * and are reused afterwards.
+ */
+public interface Bidder {
+	/**
+	 * Bids on a request.
+	 *
+	 * @param context
+	 *            deadline of the request, and timing of the bidder stages
+	 * @param response
+	 *            already started with the id of the request; the bidder adds
+	 *            its seat bids and bids
+	 * @return false for no bid, answered with {@code 204 No Content} whatever
+	 *         was written
+	 * @throws DeadlineExceededException
+	 *             to give up once the deadline has passed
+	 */
+	boolean bid(BidContext context, UnifiedBidRequest request, BidResponseWriter response);
+}
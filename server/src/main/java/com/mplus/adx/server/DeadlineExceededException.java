@@ -0,0 +1,16 @@
+package com.mplus.adx.server;
+
+/**
+ * Thrown by {@link BidContext#checkDeadline()} once the deadline of a request
+ * has passed, to cancel the stage running. The instance is shared and has no
+ * stack trace, so cancelling costs no allocation.
+ */
+public final class DeadlineExceededException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	static final DeadlineExceededException INSTANCE = new DeadlineExceededException();
+
+	private DeadlineExceededException() {
+		super("Deadline exceeded", null, false, false);
+	}
+}
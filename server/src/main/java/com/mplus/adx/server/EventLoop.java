@@ -0,0 +1,166 @@
+package com.mplus.adx.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+import com.mplus.adx.BidResponseWriter;
+import com.mplus.adx.DirectBufferPool;
+import com.mplus.adx.UnifiedBidRequest;
+import com.mplus.adx.WinNotice;
+
+/**
+ * A thread serving its share of the connections of a {@link BidServer} with
+ * one selector. Requests are decoded, bid on and answered on this thread,
+ * into its own request model, response writer and buffer pool.
+ */
+final class EventLoop implements Runnable {
+	private static Logger log = Logger.getLogger(EventLoop.class);
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_IDLE_BUFFERS = 1024;
+
+	private final BidServer server;
+	/** Opened by {@link #start()}, so a server never started holds none. */
+	private Selector selector;
+	private final Thread thread;
+	private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+	private volatile boolean closed;
+
+	private final DirectBufferPool pool = new DirectBufferPool(BUFFER_SIZE, MAX_IDLE_BUFFERS);
+	private final UnifiedBidRequest request = new UnifiedBidRequest();
+	private final BidResponseWriter writer = new BidResponseWriter(pool, HttpConnection.HEADROOM);
+	private final BidContext context = new BidContext();
+	private WinNotice winNotice;
+
+	EventLoop(BidServer server, String name) {
+		this.server = server;
+		this.thread = new Thread(this, name);
+	}
+
+	void start() throws IOException {
+		selector = Selector.open();
+		thread.start();
+	}
+
+	/**
+	 * Hands over a connection from the acceptor thread.
+	 */
+	void register(SocketChannel channel) {
+		accepted.add(channel);
+		if (closed) {
+			// the loop may have exited before the add
+			closeAccepted();
+		} else {
+			selector.wakeup();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!closed) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				log.error("Select failed", e);
+				break;
+			}
+			for (SocketChannel channel = accepted.poll(); channel != null; channel = accepted.poll()) {
+				try {
+					SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+					key.attach(new HttpConnection(this, channel, key));
+				} catch (IOException | RuntimeException e) {
+					log.warn("Failed to register connection: " + e);
+					close(channel);
+				}
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				HttpConnection connection = (HttpConnection) key.attachment();
+				try {
+					if (key.isValid()) {
+						connection.handle(key.readyOps());
+					}
+				} catch (Throwable e) {
+					// handle() catches its own failures; this is the last resort
+					log.error("Connection handling failed", e);
+					connection.close();
+				}
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			((HttpConnection) key.attachment()).close();
+		}
+		closeAccepted();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.warn("Failed to close selector: " + e);
+		}
+	}
+
+	/**
+	 * Closes the connections handed over but not registered, as the loop
+	 * stopped.
+	 */
+	private void closeAccepted() {
+		for (SocketChannel channel = accepted.poll(); channel != null; channel = accepted.poll()) {
+			close(channel);
+		}
+	}
+
+	private void close(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.debug("Failed to close connection: " + e);
+		}
+		server.onClose();
+	}
+
+	/**
+	 * Stops the loop and closes its connections.
+	 */
+	void close() throws InterruptedException {
+		closed = true;
+		if (selector != null) {
+			selector.wakeup();
+			thread.join();
+		}
+	}
+
+	BidServer getServer() {
+		return server;
+	}
+
+	DirectBufferPool getPool() {
+		return pool;
+	}
+
+	UnifiedBidRequest getRequest() {
+		return request;
+	}
+
+	BidResponseWriter getWriter() {
+		return writer;
+	}
+
+	BidContext getContext() {
+		return context;
+	}
+
+	WinNotice getWinNotice() {
+		if (winNotice == null) {
+			winNotice = new WinNotice(server.getWinNoticeUrl());
+		}
+		return winNotice;
+	}
+}
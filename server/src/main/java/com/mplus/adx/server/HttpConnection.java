@@ -0,0 +1,574 @@
+package com.mplus.adx.server;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.log4j.Logger;
+
+import com.mplus.adx.BidResponseWriter;
+import com.mplus.adx.UnifiedBidRequest;
+import com.mplus.adx.WinNotice;
+
+/**
+ * An HTTP/1.1 connection of an {@link EventLoop}: bid requests are
+ * {@code POST}s of a protobuf {@code BidRequest} with a
+ * {@code Content-Length}, answered in order with a protobuf
+ * {@code BidResponse} or {@code 204 No Content}. Win notices, if served, are
+ * {@code GET}s of the notice URL, queued and answered with
+ * {@code 204 No Content}, or {@code 503 Service Unavailable} while the queue
+ * is full.
+ * <p>
+ * Connections are kept alive unless the client asks otherwise, and
+ * pipelined requests are all handled from one read, their responses written
+ * together. Once {@link #MAX_QUEUED} responses wait for a slow client, its
+ * requests are no longer read. Requests the server cannot handle, such as
+ * chunked ones, get an error and the connection is closed. The read buffer
+ * goes back to the pool when the connection is idle.
+ */
+final class HttpConnection {
+	private static Logger log = Logger.getLogger(HttpConnection.class);
+
+	/** Responses waiting to be written, at most. */
+	static final int MAX_QUEUED = 64;
+	/** Room for the status line and headers in front of a response body. */
+	static final int HEADROOM = 128;
+	private static final int MAX_HEADER_BYTES = 8 * 1024;
+
+	private static final byte[] POST = ascii("POST ");
+	private static final byte[] GET = ascii("GET ");
+	private static final byte[] HTTP_1_1 = ascii("HTTP/1.1");
+	private static final byte[] HTTP_1_0 = ascii("HTTP/1.0");
+	private static final byte[] CONTENT_LENGTH = ascii("content-length");
+	private static final byte[] CONNECTION = ascii("connection");
+	private static final byte[] TRANSFER_ENCODING = ascii("transfer-encoding");
+	private static final byte[] CLOSE = ascii("close");
+	private static final byte[] KEEP_ALIVE = ascii("keep-alive");
+
+	private static final byte[] OK = ascii("HTTP/1.1 200 OK\r\nContent-Type: application/x-protobuf\r\nContent-Length: ");
+	private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+	private static final byte[] CRLF = ascii("\r\n");
+	private static final byte[] NO_CONTENT = ascii("HTTP/1.1 204 No Content\r\n\r\n");
+	private static final byte[] NO_CONTENT_CLOSE = ascii("HTTP/1.1 204 No Content\r\nConnection: close\r\n\r\n");
+	private static final byte[] SERVICE_UNAVAILABLE = ascii(
+			"HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nRetry-After: 1\r\n\r\n");
+	private static final byte[] SERVICE_UNAVAILABLE_CLOSE = ascii(
+			"HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nRetry-After: 1\r\nConnection: close\r\n\r\n");
+	private static final byte[] BAD_REQUEST = error("400 Bad Request");
+	private static final byte[] METHOD_NOT_ALLOWED = error("405 Method Not Allowed");
+	private static final byte[] LENGTH_REQUIRED = error("411 Length Required");
+	private static final byte[] PAYLOAD_TOO_LARGE = error("413 Payload Too Large");
+	private static final byte[] HEADERS_TOO_LARGE = error("431 Request Header Fields Too Large");
+	private static final byte[] SERVER_ERROR = error("500 Internal Server Error");
+	private static final byte[] NOT_IMPLEMENTED = error("501 Not Implemented");
+	private static final byte[] VERSION_NOT_SUPPORTED = error("505 HTTP Version Not Supported");
+
+	private final EventLoop loop;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+
+	/** Received bytes, from 0 to the position; null when idle. */
+	private ByteBuffer in;
+	/** When the first request in {@link #in} started to arrive. */
+	private long receivedAt;
+	private long lastReadAt;
+	/** Size of the request being received, once its headers are read. */
+	private int needed;
+	private final ByteBuffer[] out = new ByteBuffer[MAX_QUEUED];
+	private int queued;
+	/** No more requests are read once the queued responses are written. */
+	private boolean closing;
+	private boolean closed;
+
+	/** Request line and headers of the request being parsed. */
+	private boolean winNotice;
+	private int targetStart;
+	private int targetEnd;
+	private int contentLength;
+	private boolean keepAlive;
+	private boolean chunked;
+
+	HttpConnection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+		this.loop = loop;
+		this.channel = channel;
+		this.key = key;
+	}
+
+	/**
+	 * Reads, handles and writes what the channel is ready for.
+	 */
+	void handle(int readyOps) {
+		try {
+			if ((readyOps & SelectionKey.OP_READ) != 0 && !read()) {
+				close();
+				return;
+			}
+			while (process() && flush()) {
+				// the queue was full and is written: handle the next requests
+			}
+			flush();
+			if (closing && queued == 0) {
+				close();
+				return;
+			}
+			int ops = (closing || queued == MAX_QUEUED ? 0 : SelectionKey.OP_READ)
+					| (queued > 0 ? SelectionKey.OP_WRITE : 0);
+			if (key.interestOps() != ops) {
+				key.interestOps(ops);
+			}
+		} catch (IOException e) {
+			log.debug("Connection failed: " + e);
+			close();
+		} catch (Throwable e) {
+			// a bug or a hostile request must not stop the other connections
+			log.error("Connection handling failed", e);
+			loop.getServer().onError();
+			close();
+		}
+	}
+
+	/**
+	 * @return false at the end of the stream
+	 */
+	private boolean read() throws IOException {
+		if (in == null) {
+			in = loop.getPool().acquire();
+		}
+		boolean empty = in.position() == 0;
+		int read = channel.read(in);
+		if (read > 0) {
+			lastReadAt = System.nanoTime();
+			if (empty) {
+				receivedAt = lastReadAt;
+			}
+		}
+		return read >= 0;
+	}
+
+	/**
+	 * Handles the complete requests received.
+	 *
+	 * @return true if it stopped on a full queue with bytes left to handle
+	 */
+	private boolean process() {
+		if (in == null) {
+			return false;
+		}
+		int start = 0;
+		int consumed;
+		while (!closing && queued < MAX_QUEUED && (consumed = processOne(start, in.position())) > 0) {
+			start += consumed;
+		}
+		int end = in.position();
+		if (start == end) {
+			loop.getPool().release(in);
+			in = null;
+			return false;
+		}
+		if (start > 0) {
+			((Buffer) in).limit(end);
+			((Buffer) in).position(start);
+			in.compact();
+			// the rest follows a request completed by the last read
+			receivedAt = lastReadAt;
+		}
+		if (needed > in.capacity()) {
+			ByteBuffer larger = loop.getPool().acquire(needed);
+			((Buffer) in).flip();
+			larger.put(in);
+			loop.getPool().release(in);
+			in = larger;
+		}
+		return !closing && queued == MAX_QUEUED;
+	}
+
+	/**
+	 * Handles the request starting at {@code start}, if complete.
+	 *
+	 * @return the bytes consumed, or 0 if the request is not complete
+	 */
+	private int processOne(int start, int end) {
+		needed = 0;
+		int headerEnd = indexOfHeaderEnd(start, end);
+		if (headerEnd < 0) {
+			if (end - start > MAX_HEADER_BYTES) {
+				fail(HEADERS_TOO_LARGE);
+			}
+			return 0;
+		}
+		byte[] error = parseHeaders(start, headerEnd);
+		if (error == null && winNotice && contentLength < 0) {
+			contentLength = 0;
+		}
+		if (error == null && chunked) {
+			error = NOT_IMPLEMENTED;
+		} else if (error == null && contentLength < 0) {
+			error = LENGTH_REQUIRED;
+		} else if (error == null && contentLength > loop.getServer().getMaxRequestBytes()) {
+			error = PAYLOAD_TOO_LARGE;
+		}
+		if (error != null) {
+			fail(error);
+			return 0;
+		}
+		int bodyStart = headerEnd + 4;
+		int total = bodyStart - start + contentLength;
+		if (end - start < total) {
+			needed = total;
+			return 0;
+		}
+		if (winNotice) {
+			queueWinNotice(keepAlive);
+		} else {
+			respond(bodyStart, contentLength, keepAlive);
+		}
+		return total;
+	}
+
+	/**
+	 * Parses the request line and the headers this server looks at.
+	 *
+	 * @return the response to fail with, or null
+	 */
+	private byte[] parseHeaders(int start, int headerEnd) {
+		contentLength = -1;
+		chunked = false;
+		int lineEnd = indexOfCrlf(start, headerEnd + 2);
+		if (startsWith(start, lineEnd, POST)) {
+			winNotice = false;
+			targetStart = start + POST.length;
+		} else if (startsWith(start, lineEnd, GET) && loop.getServer().getWinNoticeUrl() != null) {
+			winNotice = true;
+			targetStart = start + GET.length;
+		} else {
+			return METHOD_NOT_ALLOWED;
+		}
+		if (endsWith(start, lineEnd, HTTP_1_1)) {
+			keepAlive = true;
+		} else if (endsWith(start, lineEnd, HTTP_1_0)) {
+			keepAlive = false;
+		} else {
+			return VERSION_NOT_SUPPORTED;
+		}
+		// both versions have the same length
+		targetEnd = lineEnd - HTTP_1_1.length - 1;
+		if (targetEnd < targetStart) {
+			return BAD_REQUEST;
+		}
+
+		for (int line = lineEnd + 2; line < headerEnd + 2; line = lineEnd + 2) {
+			lineEnd = indexOfCrlf(line, headerEnd + 2);
+			int colon = indexOf(line, lineEnd, (byte) ':');
+			if (colon < 0) {
+				return BAD_REQUEST;
+			}
+			int valueStart = colon + 1;
+			int valueEnd = lineEnd;
+			while (valueStart < valueEnd && isSpace(in.get(valueStart))) {
+				++valueStart;
+			}
+			while (valueEnd > valueStart && isSpace(in.get(valueEnd - 1))) {
+				--valueEnd;
+			}
+			if (equalsIgnoreCase(line, colon, CONTENT_LENGTH)) {
+				contentLength = parseLength(valueStart, valueEnd);
+				if (contentLength < 0) {
+					return BAD_REQUEST;
+				}
+			} else if (equalsIgnoreCase(line, colon, CONNECTION)) {
+				if (containsIgnoreCase(valueStart, valueEnd, CLOSE)) {
+					keepAlive = false;
+				} else if (containsIgnoreCase(valueStart, valueEnd, KEEP_ALIVE)) {
+					keepAlive = true;
+				}
+			} else if (equalsIgnoreCase(line, colon, TRANSFER_ENCODING)) {
+				chunked = true;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Decodes a request, calls the bidder and queues the response.
+	 */
+	private void respond(int bodyStart, int length, boolean keepAlive) {
+		long started = System.nanoTime();
+		BidServer server = loop.getServer();
+		UnifiedBidRequest request = loop.getRequest();
+		int end = in.position();
+		try {
+			((Buffer) in).limit(bodyStart + length);
+			((Buffer) in).position(bodyStart);
+			request.decode(in);
+		} catch (IllegalArgumentException e) {
+			log.debug("Invalid bid request: " + e.getMessage());
+			fail(BAD_REQUEST);
+			return;
+		} finally {
+			((Buffer) in).limit(in.capacity());
+			((Buffer) in).position(end);
+		}
+		server.getDecodeStage().record(System.nanoTime() - started);
+
+		BidContext context = loop.getContext();
+		context.start(receivedAt, server.getBudgetNanos(request.getTmax()));
+		BidResponseWriter writer = loop.getWriter();
+		boolean bid = false;
+		ByteBuffer response = null;
+		if (context.isExpired()) {
+			// waited too long behind other requests
+			context.miss();
+		} else {
+			writer.start(request.getId());
+			try {
+				context.enter(server.getBidStage());
+				bid = server.getBidder().bid(context, request, writer);
+				context.exit();
+				if (bid && !context.hasMissed()) {
+					// fails on a message the bidder left open
+					response = writer.finish();
+				}
+			} catch (DeadlineExceededException e) {
+				context.abort();
+			} catch (RuntimeException e) {
+				context.abort();
+				log.warn("Bidder failed", e);
+				fail(SERVER_ERROR);
+				return;
+			}
+		}
+		if (context.hasMissed()) {
+			bid = false;
+			writer.start(request.getId()).nbr(BidServer.NBR_TECHNICAL_ERROR);
+			enqueue(withHeader(writer.finish(), keepAlive));
+			server.onDeadlineMiss();
+		} else if (bid) {
+			enqueue(withHeader(response, keepAlive));
+		} else {
+			enqueue(keepAlive ? NO_CONTENT : NO_CONTENT_CLOSE);
+		}
+		closing = !keepAlive;
+		server.onResponse(bid, System.nanoTime() - started);
+	}
+
+	/**
+	 * Queues a win notice, acknowledging it before it is persisted.
+	 */
+	private void queueWinNotice(boolean keepAlive) {
+		WinNotice notice = loop.getWinNotice();
+		boolean accepted;
+		if (!notice.isNotice(in, targetStart, targetEnd - targetStart)) {
+			fail(METHOD_NOT_ALLOWED);
+			return;
+		}
+		try {
+			if (!notice.parse(in, targetStart, targetEnd - targetStart)) {
+				fail(BAD_REQUEST);
+				return;
+			}
+			accepted = loop.getServer().getWinNotices().offer(notice);
+		} catch (IllegalArgumentException e) {
+			log.debug("Invalid win notice: " + e.getMessage());
+			fail(BAD_REQUEST);
+			return;
+		}
+		if (accepted) {
+			enqueue(keepAlive ? NO_CONTENT : NO_CONTENT_CLOSE);
+		} else {
+			enqueue(keepAlive ? SERVICE_UNAVAILABLE : SERVICE_UNAVAILABLE_CLOSE);
+		}
+		closing = !keepAlive;
+	}
+
+	/**
+	 * Writes the status line and headers in the headroom of a body.
+	 */
+	private static ByteBuffer withHeader(ByteBuffer body, boolean keepAlive) {
+		int bodyStart = body.position();
+		int length = body.remaining();
+		int digits = 1;
+		for (int n = length; n >= 10; n /= 10) {
+			++digits;
+		}
+		int start = bodyStart - OK.length - digits - CRLF.length - (keepAlive ? 0 : CONNECTION_CLOSE.length)
+				- CRLF.length;
+		((Buffer) body).position(start);
+		body.put(OK);
+		for (int i = digits - 1, n = length; i >= 0; --i, n /= 10) {
+			body.put(body.position() + i, (byte) ('0' + n % 10));
+		}
+		((Buffer) body).position(body.position() + digits);
+		body.put(CRLF);
+		if (!keepAlive) {
+			body.put(CONNECTION_CLOSE);
+		}
+		body.put(CRLF);
+		((Buffer) body).position(start);
+		return body;
+	}
+
+	/**
+	 * Queues an error and closes the connection once it is written.
+	 */
+	private void fail(byte[] response) {
+		loop.getServer().onError();
+		enqueue(response);
+		closing = true;
+	}
+
+	private void enqueue(byte[] response) {
+		ByteBuffer buffer = loop.getPool().acquire();
+		buffer.put(response);
+		((Buffer) buffer).flip();
+		enqueue(buffer);
+	}
+
+	private void enqueue(ByteBuffer response) {
+		out[queued++] = response;
+	}
+
+	/**
+	 * Writes the queued responses, with one gathering write.
+	 *
+	 * @return true if all were written
+	 */
+	private boolean flush() throws IOException {
+		if (queued == 0) {
+			return true;
+		}
+		channel.write(out, 0, queued);
+		int written = 0;
+		while (written < queued && !out[written].hasRemaining()) {
+			loop.getPool().release(out[written]);
+			out[written++] = null;
+		}
+		if (written > 0) {
+			System.arraycopy(out, written, out, 0, queued - written);
+			for (int i = queued - written; i < queued; ++i) {
+				out[i] = null;
+			}
+			queued -= written;
+		}
+		return queued == 0;
+	}
+
+	void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.debug("Failed to close connection: " + e);
+		}
+		if (in != null) {
+			loop.getPool().release(in);
+			in = null;
+		}
+		for (int i = 0; i < queued; ++i) {
+			loop.getPool().release(out[i]);
+			out[i] = null;
+		}
+		queued = 0;
+		loop.getServer().onClose();
+	}
+
+	private int indexOfHeaderEnd(int start, int end) {
+		for (int i = start; i + 3 < end; ++i) {
+			if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int indexOfCrlf(int start, int end) {
+		for (int i = start; i + 1 < end; ++i) {
+			if (in.get(i) == '\r' && in.get(i + 1) == '\n') {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	private int indexOf(int start, int end, byte b) {
+		for (int i = start; i < end; ++i) {
+			if (in.get(i) == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean startsWith(int start, int end, byte[] prefix) {
+		return end - start >= prefix.length && regionMatches(start, prefix, false);
+	}
+
+	private boolean endsWith(int start, int end, byte[] suffix) {
+		return end - start >= suffix.length && regionMatches(end - suffix.length, suffix, false);
+	}
+
+	/**
+	 * Compares with a lower case ASCII name.
+	 */
+	private boolean equalsIgnoreCase(int start, int end, byte[] lower) {
+		return end - start == lower.length && regionMatches(start, lower, true);
+	}
+
+	private boolean containsIgnoreCase(int start, int end, byte[] lower) {
+		for (int i = start; i + lower.length <= end; ++i) {
+			if (regionMatches(i, lower, true)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean regionMatches(int start, byte[] bytes, boolean ignoreCase) {
+		for (int i = 0; i < bytes.length; ++i) {
+			int b = in.get(start + i);
+			if (ignoreCase && b >= 'A' && b <= 'Z') {
+				b += 'a' - 'A';
+			}
+			if (b != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the length, or -1 if invalid
+	 */
+	private int parseLength(int start, int end) {
+		if (start == end || end - start > 9) {
+			return -1;
+		}
+		int length = 0;
+		for (int i = start; i < end; ++i) {
+			byte b = in.get(i);
+			if (b < '0' || b > '9') {
+				return -1;
+			}
+			length = length * 10 + b - '0';
+		}
+		return length;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] error(String status) {
+		return ascii("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+	}
+}
@@ -0,0 +1,114 @@
+package com.mplus.adx.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds, for percentiles such as p99.
+ * <p>
+ * Values below 128 are counted exactly; above, each power of two is split in
+ * 64 buckets, so a percentile is within 1.6% of the recorded value. Values
+ * above about 18 minutes count as 18 minutes. Recording is an atomic
+ * increment, thread-safe and allocation-free.
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Values below are counted exactly, one bucket each. */
+	private static final int EXACT = SUB_BUCKETS << 1;
+	private static final int MAX_MAGNITUDE = 40;
+	private static final long MAX_VALUE = (1L << MAX_MAGNITUDE) - 1;
+	private static final int BUCKETS = EXACT + (MAX_MAGNITUDE - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	public void record(long nanos) {
+		counts.incrementAndGet(index(Math.max(0, Math.min(nanos, MAX_VALUE))));
+	}
+
+	/**
+	 * Adds the counts of {@code other} to this histogram.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; ++i) {
+			long count = other.counts.get(i);
+			if (count != 0) {
+				counts.addAndGet(i, count);
+			}
+		}
+	}
+
+	/**
+	 * Moves the counts of this histogram to a new one, for the latencies of
+	 * an interval.
+	 */
+	public LatencyHistogram drain() {
+		LatencyHistogram drained = new LatencyHistogram();
+		for (int i = 0; i < BUCKETS; ++i) {
+			if (counts.get(i) != 0) {
+				drained.counts.set(i, counts.getAndSet(i, 0));
+			}
+		}
+		return drained;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the latency that {@code percentile} percent of the values do
+	 * not exceed, or 0 if there is none.
+	 */
+	public long getPercentile(double percentile) {
+		checkArgument(percentile >= 0 && percentile <= 100, "Invalid percentile: %s", percentile);
+		long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return highestValue(i);
+			}
+		}
+		return MAX_VALUE;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%s, p50=%sus, p99=%sus, p999=%sus", getCount(), micros(getPercentile(50)),
+				micros(getPercentile(99)), micros(getPercentile(99.9)));
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	private static int index(long value) {
+		if (value < EXACT) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return EXACT + (magnitude - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	private static long highestValue(int index) {
+		if (index < EXACT) {
+			return index;
+		}
+		int magnitude = (index - EXACT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+		long sub = (index - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,230 @@
+package com.mplus.adx.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Closed-loop HTTP/1.1 load generator for a {@link BidServer}, to measure its
+ * sustained throughput and latency on one machine.
+ * <p>
+ * Each connection is kept alive with {@code pipelineDepth} requests in
+ * flight: a new request is sent as soon as a response is read. Latency is
+ * measured from sending a request to reading its response, so it includes
+ * the queueing behind the pipelined requests before it.
+ */
+public final class LoadGenerator {
+	private final InetSocketAddress address;
+	private final byte[][] requests;
+	private final int connections;
+	private final int pipelineDepth;
+
+	/**
+	 * @param bodies
+	 *            encoded {@code BidRequest}s, sent in turn by each connection
+	 */
+	public LoadGenerator(InetSocketAddress address, List<byte[]> bodies, int connections, int pipelineDepth) {
+		checkArgument(!bodies.isEmpty(), "No request body");
+		checkArgument(connections > 0, "connections must be positive: %s", connections);
+		checkArgument(pipelineDepth > 0, "pipelineDepth must be positive: %s", pipelineDepth);
+		this.address = checkNotNull(address);
+		this.connections = connections;
+		this.pipelineDepth = pipelineDepth;
+		this.requests = new byte[bodies.size()][];
+		for (int i = 0; i < requests.length; ++i) {
+			byte[] body = bodies.get(i);
+			byte[] header = String.format("POST /bid HTTP/1.1\r\nHost: %s:%s\r\nContent-Type: application/x-protobuf\r\n"
+					+ "Content-Length: %s\r\n\r\n", address.getHostString(), address.getPort(), body.length)
+					.getBytes(StandardCharsets.US_ASCII);
+			requests[i] = new byte[header.length + body.length];
+			System.arraycopy(header, 0, requests[i], 0, header.length);
+			System.arraycopy(body, 0, requests[i], header.length, body.length);
+		}
+	}
+
+	/**
+	 * Sends requests for {@code duration}, then waits for the responses in
+	 * flight.
+	 */
+	public Result run(long duration, TimeUnit unit) throws IOException, InterruptedException {
+		Result result = new Result();
+		long deadline = System.nanoTime() + unit.toNanos(duration);
+		List<Thread> threads = new ArrayList<>();
+		List<Throwable> failures = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int i = 0; i < connections; ++i) {
+			Thread thread = new Thread(() -> {
+				try {
+					drive(deadline, result);
+				} catch (IOException | RuntimeException e) {
+					synchronized (failures) {
+						failures.add(e);
+					}
+				}
+			}, "load-generator-" + i);
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		result.nanos = System.nanoTime() - start;
+		if (!failures.isEmpty()) {
+			throw new IOException("Connection failed", failures.get(0));
+		}
+		return result;
+	}
+
+	private void drive(long deadline, Result result) throws IOException {
+		try (Socket socket = new Socket()) {
+			socket.setTcpNoDelay(true);
+			socket.connect(address);
+			OutputStream out = socket.getOutputStream();
+			InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+			long[] sentAt = new long[pipelineDepth];
+			int next = 0;
+			for (int i = 0; i < pipelineDepth; ++i) {
+				sentAt[i] = System.nanoTime();
+				out.write(requests[next++ % requests.length]);
+			}
+			int inFlight = pipelineDepth;
+			for (int slot = 0; inFlight > 0; slot = (slot + 1) % pipelineDepth) {
+				int status = readResponse(in);
+				long now = System.nanoTime();
+				result.latency.record(now - sentAt[slot]);
+				if (status == 200) {
+					result.bids.increment();
+				} else if (status == 204) {
+					result.noBids.increment();
+				} else {
+					result.errors.increment();
+				}
+				if (now < deadline) {
+					sentAt[slot] = now;
+					out.write(requests[next++ % requests.length]);
+				} else {
+					--inFlight;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a response, skipping its body.
+	 *
+	 * @return its status code
+	 */
+	private static int readResponse(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		readLine(in, line);
+		if (line.length() < 12 || !line.toString().startsWith("HTTP/1.1 ")) {
+			throw new IOException("Invalid status line: " + line);
+		}
+		int status = Integer.parseInt(line.substring(9, 12));
+		long contentLength = 0;
+		while (readLine(in, line) > 0) {
+			int colon = line.indexOf(":");
+			if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+				contentLength = Long.parseLong(line.substring(colon + 1).trim());
+			}
+		}
+		while (contentLength > 0) {
+			long skipped = in.skip(contentLength);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			contentLength -= skipped;
+		}
+		return status;
+	}
+
+	private static int readLine(InputStream in, StringBuilder line) throws IOException {
+		line.setLength(0);
+		for (int b = in.read(); b != '\n'; b = in.read()) {
+			if (b < 0) {
+				throw new EOFException();
+			}
+			if (b != '\r') {
+				line.append((char) b);
+			}
+		}
+		return line.length();
+	}
+
+	public static final class Result {
+		private final LongAdder bids = new LongAdder();
+		private final LongAdder noBids = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private long nanos;
+
+		public long getBidCount() {
+			return bids.sum();
+		}
+
+		public long getNoBidCount() {
+			return noBids.sum();
+		}
+
+		/**
+		 * Returns the number of responses with another status than 200 or
+		 * 204.
+		 */
+		public long getErrorCount() {
+			return errors.sum();
+		}
+
+		public long getResponseCount() {
+			return bids.sum() + noBids.sum() + errors.sum();
+		}
+
+		public double getQps() {
+			return getResponseCount() * 1e9 / nanos;
+		}
+
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("qps=%.0f, %s, bids=%s, noBids=%s, errors=%s", getQps(), latency, getBidCount(),
+					getNoBidCount(), getErrorCount());
+		}
+	}
+
+	/**
+	 * Loads a running server with the requests of the given files:
+	 * {@code host port connections pipelineDepth seconds file...}
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 6) {
+			System.err.println("Usage: LoadGenerator host port connections pipelineDepth seconds request.bin...");
+			System.exit(1);
+		}
+		List<byte[]> bodies = new ArrayList<>();
+		for (int i = 5; i < args.length; ++i) {
+			bodies.add(Files.readAllBytes(Paths.get(args[i])));
+		}
+		LoadGenerator generator = new LoadGenerator(new InetSocketAddress(args[0], Integer.parseInt(args[1])), bodies,
+				Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+		System.out.println(generator.run(Long.parseLong(args[4]), TimeUnit.SECONDS));
+	}
+}
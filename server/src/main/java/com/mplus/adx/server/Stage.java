@@ -0,0 +1,59 @@
+package com.mplus.adx.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A step of the bid pipeline, with the time spent in it and the deadlines
+ * it missed. Stages are registered with {@link BidServer#stage(String)} and
+ * timed with {@link BidContext#enter(Stage)} and {@link BidContext#exit()}.
+ * Thread-safe.
+ */
+public final class Stage {
+	private final String name;
+	private final LongAdder calls = new LongAdder();
+	private final LongAdder nanos = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	Stage(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getCallCount() {
+		return calls.sum();
+	}
+
+	/**
+	 * Returns the time spent in this stage, in nanoseconds.
+	 */
+	public long getTotalNanos() {
+		return nanos.sum();
+	}
+
+	/**
+	 * Returns the number of requests whose deadline passed in this stage.
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	void record(long elapsedNanos) {
+		calls.increment();
+		nanos.add(elapsedNanos);
+	}
+
+	void miss() {
+		misses.increment();
+	}
+
+	@Override
+	public String toString() {
+		long count = calls.sum();
+		return String.format("%s: calls=%s, avg=%sus, misses=%s", name, count,
+				count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(nanos.sum() / count), misses.sum());
+	}
+}
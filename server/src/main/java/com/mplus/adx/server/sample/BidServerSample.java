@@ -0,0 +1,280 @@
+package com.mplus.adx.server.sample;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.io.Resources;
+import com.mplus.adx.BidResponseWriter;
+import com.mplus.adx.ByteSlice;
+import com.mplus.adx.NoticeUrlTemplate;
+import com.mplus.adx.PriceCryptor;
+import com.mplus.adx.PriceCryptor.Keys;
+import com.mplus.adx.UnifiedBidRequest;
+import com.mplus.adx.WinNoticeBatcher;
+import com.mplus.adx.sample.Message;
+import com.mplus.adx.server.BidContext;
+import com.mplus.adx.server.BidServer;
+import com.mplus.adx.server.Bidder;
+import com.mplus.adx.server.LoadGenerator;
+import com.mplus.adx.server.Stage;
+
+public class BidServerSample {
+
+	public static void main(String[] args) throws IOException, InterruptedException, InvalidKeyException {
+		byte[] vast = Resources.toByteArray(Resources.getResource("vast4-ad1.xml"));
+		ByteBuffer cached = ByteBuffer.allocateDirect(vast.length);
+		cached.put(vast);
+		ByteSlice adm = new ByteSlice().set(cached, 0, vast.length);
+
+		NoticeUrlTemplate nurl = NoticeUrlTemplate
+				.compile("http://127.0.0.1/win?id=${AUCTION_ID}&imp=${AUCTION_IMP_ID}&price=${AUCTION_PRICE}");
+		PriceCryptor cryptor = new PriceCryptor(new Keys(
+				new SecretKeySpec("77165979f11b497da6f81b3bb320932c".getBytes(), "HmacSHA1"),
+				new SecretKeySpec("f9db51664f8a44f99ef08b17f6c11ab3".getBytes(), "HmacSHA1")));
+		AtomicLong spent = new AtomicLong();
+		SampleBidder bidder = new SampleBidder(adm, nurl);
+		BidServer server = new BidServer(new InetSocketAddress("127.0.0.1", 0), bidder, 1,
+				BidServer.DEFAULT_MAX_REQUEST_BYTES);
+		try (WinNoticeBatcher winNotices = new WinNoticeBatcher(cryptor, null, batch -> {
+			for (int i = 0; i < batch.size(); ++i) {
+				spent.addAndGet(batch.getPrice(i));
+			}
+		}, 1024, 64, 10, TimeUnit.MILLISECONDS).start()) {
+			try {
+				server.setWinNotices(NoticeUrlTemplate.compile("http://127.0.0.1/win?id=${AUCTION_ID}"), winNotices);
+				fail("Served win notices without a price");
+			} catch (IllegalArgumentException e) {
+				System.out.println(e.getMessage());
+			}
+			server.setWinNotices(nurl, winNotices);
+			server.start();
+			// a failed bind leaves a server that can start again
+			BidServer taken = new BidServer(new InetSocketAddress("127.0.0.1", server.getPort()), bidder, 1,
+					BidServer.DEFAULT_MAX_REQUEST_BYTES);
+			try {
+				taken.start();
+				fail("Bound a port in use");
+			} catch (IOException e) {
+				System.out.println(e.getMessage());
+			}
+			try {
+				taken.getPort();
+				fail("Started on a failed bind");
+			} catch (IllegalStateException e) {
+				System.out.println(e.getMessage());
+			}
+			taken.close();
+			bidder.vast = server.stage("vast");
+			server.setNetworkMargin(5, TimeUnit.MILLISECONDS);
+			byte[] bid = createBidRequest("req-1", 1_500_000, 120);
+			byte[] noBid = createBidRequest("req-2", 3_000_000, 120);
+
+			// step1: pipeline a bid, a no-bid and an invalid request on one
+			// connection, in one write
+			try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+				ByteArrayOutputStream requests = new ByteArrayOutputStream();
+				requests.write(post(bid));
+				requests.write(post(noBid));
+				requests.write("GET /bid HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+				OutputStream out = socket.getOutputStream();
+				out.write(requests.toByteArray());
+
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				byte[] body = readResponse(in, 200);
+				// BidResponse.id, then the seat bid
+				assertArrayEquals(Arrays.copyOfRange(bid, 0, 7), Arrays.copyOfRange(body, 0, 7));
+				assertTrue(body.length > vast.length);
+				assertTrue(new String(body, StandardCharsets.UTF_8)
+						.contains("/win?id=req-1&imp=imp-1&price=${AUCTION_PRICE}"));
+				assertEquals(0, readResponse(in, 204).length);
+				readResponse(in, 405);
+				assertEquals(-1, in.read());
+			}
+
+			// step2: a request split over several writes, with a body the
+			// server cannot decode
+			try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+				byte[] request = post(new byte[] { 0x0A, 0x10, 'x' });
+				OutputStream out = socket.getOutputStream();
+				for (byte b : request) {
+					out.write(b);
+				}
+				readResponse(new DataInputStream(socket.getInputStream()), 400);
+			}
+
+			// step2b: a bidder leaving its seat bid open, and groups nested too
+			// deep to decode, fail their own connection only
+			try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+				socket.getOutputStream().write(post(createBidRequest("open-1", 1_000_000, 120)));
+				readResponse(new DataInputStream(socket.getInputStream()), 500);
+			}
+			try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+				Message nested = new Message();
+				for (int i = 0; i < 20_000; ++i) {
+					nested.tag(99, 3);
+				}
+				socket.getOutputStream().write(post(nested.toByteArray()));
+				readResponse(new DataInputStream(socket.getInputStream()), 400);
+			}
+
+			// step3: a stage running past tmax (20 ms, less 5 ms of margin) is
+			// cancelled, and answered with a no-bid reason
+			try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+				socket.getOutputStream().write(post(createBidRequest("slow-1", 1_000_000, 20)));
+				byte[] body = readResponse(new DataInputStream(socket.getInputStream()), 200);
+				// BidResponse.id and nbr, without seat bid
+				assertArrayEquals(new Message().string(1, "slow-1").varint(5, BidServer.NBR_TECHNICAL_ERROR)
+						.toByteArray(), body);
+				assertEquals(1, server.getDeadlineMissCount());
+				assertEquals(1, bidder.vast.getMissCount());
+			}
+
+			// step4: win notices are acknowledged at once, then decrypted and
+			// persisted in a batch
+			try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+				String price = cryptor.encodePriceMicros(1_600_000, System.currentTimeMillis(), 1, new StringBuilder())
+						.toString();
+				String notice = "GET /win?id=req-1&imp=imp-1&price=" + price + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+				socket.getOutputStream()
+						.write((notice + notice.replace("price=", "p=")).getBytes(StandardCharsets.US_ASCII));
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				readResponse(in, 204);
+				// no price
+				readResponse(in, 400);
+				long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+				while (winNotices.getPersistedCount() == 0 && System.nanoTime() < deadline) {
+					Thread.sleep(1);
+				}
+				assertEquals(1_600_000, spent.get());
+			}
+
+			// step5: load the server from this machine, over kept-alive and
+			// pipelined connections
+			LoadGenerator generator = new LoadGenerator(new InetSocketAddress("127.0.0.1", server.getPort()),
+					Arrays.asList(bid, noBid), 4, 8);
+			generator.run(2, TimeUnit.SECONDS);
+			server.startReporting(1, TimeUnit.SECONDS);
+			LoadGenerator.Result result = generator.run(5, TimeUnit.SECONDS);
+			System.out.println("Client: " + result);
+			System.out.println("Server: " + server.getLatency());
+			assertEquals(0, result.getErrorCount());
+			assertEquals(result.getBidCount(), result.getNoBidCount(), result.getResponseCount() / 100);
+			assertEquals(5, server.getErrorCount());
+		} finally {
+			server.close();
+		}
+		assertEquals(0, server.getConnectionCount());
+	}
+
+	/**
+	 * Bids on the first impression if its floor is below 2 CNY, after a
+	 * validation stage that takes until the deadline for request "slow-1".
+	 * Leaves the response unfinished for request "open-1".
+	 */
+	private static final class SampleBidder implements Bidder {
+		private final ByteSlice adm;
+		private final NoticeUrlTemplate nurl;
+		private Stage vast;
+
+		SampleBidder(ByteSlice adm, NoticeUrlTemplate nurl) {
+			this.adm = adm;
+			this.nurl = nurl;
+		}
+
+		@Override
+		public boolean bid(BidContext context, UnifiedBidRequest request, BidResponseWriter response) {
+			if (request.getImp().size() == 0 || request.getImp().get(0).getBidfloor() >= 2_000_000) {
+				return false;
+			}
+			if (request.getId().equalsAscii("open-1")) {
+				response.startSeatBid();
+				return true;
+			}
+			context.enter(vast);
+			if (request.getId().equalsAscii("slow-1")) {
+				while (true) {
+					context.checkDeadline();
+				}
+			}
+			context.exit();
+			UnifiedBidRequest.Imp imp = request.getImp().get(0);
+			response.startSeatBid()
+					.startBid("1", imp.getId(), imp.getBidfloor() + 100_000).nurl(nurl, request.getId(), imp.getId())
+					.adm(adm).adomain("mplus.com").endBid()
+					.endSeatBid();
+			return true;
+		}
+	}
+
+	private static byte[] post(byte[] body) throws IOException {
+		ByteArrayOutputStream request = new ByteArrayOutputStream();
+		request.write(String.format("POST /bid HTTP/1.1\r\nHost: localhost\r\nContent-Length: %s\r\n\r\n", body.length)
+				.getBytes(StandardCharsets.US_ASCII));
+		request.write(body);
+		return request.toByteArray();
+	}
+
+	/**
+	 * Reads a response with the expected status.
+	 *
+	 * @return its body
+	 */
+	private static byte[] readResponse(DataInputStream in, int status) throws IOException {
+		String statusLine = readLine(in);
+		assertTrue(statusLine, statusLine.startsWith("HTTP/1.1 " + status + " "));
+		int length = 0;
+		for (String header = readLine(in); !header.isEmpty(); header = readLine(in)) {
+			if (header.toLowerCase().startsWith("content-length:")) {
+				length = Integer.parseInt(header.substring(15).trim());
+			}
+		}
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return body;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (int b = in.read(); b != '\n'; b = in.read()) {
+			if (b < 0) {
+				throw new IOException("End of stream in " + line);
+			}
+			if (b != '\r') {
+				line.append((char) b);
+			}
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Encodes a BidRequest of bidrequest.proto by hand.
+	 */
+	private static byte[] createBidRequest(String id, long bidfloor, int tmax) {
+		Message banner = new Message().varint(1, 300).varint(2, 250).string(4, "image/jpeg");
+		Message imp = new Message().string(1, "imp-1").message(2, banner).varint(8, bidfloor).string(9, "CNY");
+		Message geo = new Message().string(3, "CHN").string(5, "Shanghai");
+		Message device = new Message().string(1, "Mozilla/5.0 (Linux; Android 7.0)").message(2, geo)
+				.string(3, "10.0.0.1").string(8, "android");
+		Message app = new Message().string(1, "app-1").string(3, "com.mplus.game");
+		return new Message().string(1, id).message(2, imp).message(3, app).message(4, device).varint(6, tmax)
+				.toByteArray();
+	}
+}